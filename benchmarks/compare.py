@@ -0,0 +1,86 @@
+#!/usr/bin/env python3
+#
+# Copyright 2013 Jan Van Besien
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+
+"""Compare JMH results (json) with a baseline, and fail if a benchmark got slower or allocates more than the threshold allows.
+
+Usage: compare.py baseline.json results.json [--threshold PERCENT] [--allocation-threshold BYTES]
+"""
+
+import argparse
+import json
+import sys
+
+# modes in which a lower score is better (average time, sample time, single shot time)
+LOWER_IS_BETTER = {"avgt", "sample", "ss"}
+
+ALLOCATION_METRIC = "gc.alloc.rate.norm"
+
+
+def load(path):
+    with open(path) as f:
+        results = {}
+        for result in json.load(f):
+            params = ",".join("%s=%s" % item for item in sorted(result.get("params", {}).items()))
+            key = result["benchmark"] + ("(" + params + ")" if params else "")
+            allocation = None
+            for name, metric in result.get("secondaryMetrics", {}).items():
+                # older JMH versions prefix the names of profiler metrics with a dot
+                if name.lstrip("·") == ALLOCATION_METRIC:
+                    allocation = metric["score"]
+            results[key] = (result["mode"], result["primaryMetric"]["score"], result["primaryMetric"]["scoreUnit"], allocation)
+        return results
+
+
+def main():
+    parser = argparse.ArgumentParser(description=__doc__, formatter_class=argparse.RawDescriptionHelpFormatter)
+    parser.add_argument("baseline")
+    parser.add_argument("results")
+    parser.add_argument("--threshold", type=float, default=10.0, help="allowed slowdown in percent (default 10)")
+    parser.add_argument("--allocation-threshold", type=float, default=8.0,
+                        help="allowed increase of the allocated bytes per operation (default 8)")
+    args = parser.parse_args()
+
+    baseline = load(args.baseline)
+    results = load(args.results)
+
+    regressions = 0
+    for key in sorted(results):
+        mode, score, unit, allocation = results[key]
+        if key not in baseline:
+            print("NEW        %-80s %12.3f %s" % (key, score, unit))
+            continue
+
+        _, baseline_score, _, baseline_allocation = baseline[key]
+        change = (score - baseline_score) / baseline_score * 100 if baseline_score else 0.0
+        slower = change > args.threshold if mode in LOWER_IS_BETTER else -change > args.threshold
+        allocates_more = allocation is not None and baseline_allocation is not None \
+            and allocation - baseline_allocation > args.allocation_threshold
+
+        status = "REGRESSION" if slower or allocates_more else "ok"
+        regressions += 1 if status == "REGRESSION" else 0
+        line = "%-10s %-80s %12.3f %s (%+.1f%%)" % (status, key, score, unit, change)
+        if allocation is not None and baseline_allocation is not None:
+            line += ", %.1f B/op (was %.1f)" % (allocation, baseline_allocation)
+        print(line)
+
+    if regressions:
+        print("%d regression(s)" % regressions)
+        sys.exit(1)
+
+
+if __name__ == "__main__":
+    main()
@@ -0,0 +1,43 @@
+#!/bin/sh
+#
+# Copyright 2013 Jan Van Besien
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+
+# Build and run the benchmarks (with the GC profiler, such that allocation rates are reported), and compare the results with the stored
+# baseline (if there is one). Extra arguments are passed to JMH, e.g. a regular expression to select benchmarks: ./run.sh Pool
+#
+# Use ./run.sh --save-baseline [jmh arguments] to store the results as the new baseline.
+
+set -e
+cd "$(dirname "$0")"
+
+SAVE_BASELINE=false
+if [ "$1" = "--save-baseline" ]; then
+    SAVE_BASELINE=true
+    shift
+fi
+
+(cd .. && mvn -q -DskipTests install)
+mvn -q package
+java -jar target/benchmarks.jar -prof gc -rf json -rff target/results.json "$@"
+
+if [ "$SAVE_BASELINE" = true ]; then
+    cp target/results.json baseline.json
+    echo "stored the results as the new baseline"
+elif [ -f baseline.json ]; then
+    python3 compare.py baseline.json target/results.json
+else
+    echo "no baseline to compare with, use --save-baseline to store one"
+fi
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6.benchmarks;
+
+import com.googlecode.ipv6.IPv6Address;
+import com.googlecode.ipv6.IPv6NetworkMask;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Address arithmetic and masking.
+ *
+ * @author Jan Van Besien
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ArithmeticBenchmark
+{
+    @Param({"16", "48", "64", "96", "127"})
+    public int prefixLength;
+
+    private IPv6Address[] addresses;
+
+    private int[] values;
+
+    private IPv6NetworkMask mask;
+
+    private int next;
+
+    @Setup
+    public void setup()
+    {
+        final Random random = new Random(45);
+        addresses = new IPv6Address[Inputs.SIZE];
+        values = new int[Inputs.SIZE];
+        for (int i = 0; i < Inputs.SIZE; i++)
+        {
+            addresses[i] = IPv6Address.fromLongs(random.nextLong(), random.nextLong());
+            values[i] = random.nextInt(Integer.MAX_VALUE);
+        }
+        mask = IPv6NetworkMask.fromPrefixLength(prefixLength);
+    }
+
+    @Benchmark
+    public IPv6Address add()
+    {
+        final int i = next++ & Inputs.MASK;
+        return addresses[i].add(values[i]);
+    }
+
+    @Benchmark
+    public IPv6Address subtract()
+    {
+        final int i = next++ & Inputs.MASK;
+        return addresses[i].subtract(values[i]);
+    }
+
+    @Benchmark
+    public IPv6Address maskWithNetworkMask()
+    {
+        return addresses[next++ & Inputs.MASK].maskWithNetworkMask(mask);
+    }
+
+    @Benchmark
+    public IPv6Address maximumAddressWithNetworkMask()
+    {
+        return addresses[next++ & Inputs.MASK].maximumAddressWithNetworkMask(mask);
+    }
+
+    @Benchmark
+    public int compareTo()
+    {
+        final int i = next++ & Inputs.MASK;
+        return addresses[i].compareTo(addresses[(i + 1) & Inputs.MASK]);
+    }
+}
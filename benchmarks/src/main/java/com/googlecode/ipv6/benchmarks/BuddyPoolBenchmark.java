@@ -0,0 +1,116 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6.benchmarks;
+
+import com.googlecode.ipv6.IPv6AddressPool;
+import com.googlecode.ipv6.IPv6BuddyAddressPool;
+import com.googlecode.ipv6.IPv6Network;
+import com.googlecode.ipv6.IPv6NetworkMask;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allocating /56 and /64 subnets (for two kinds of customers) from a single buddy pool, compared to two separate pools (each with half of
+ * the range). Both keep a steady state of about 10000 allocations, released in allocation order.
+ *
+ * @author Jan Van Besien
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BuddyPoolBenchmark
+{
+    private static final int STEADY_STATE = 10000;
+
+    private IPv6BuddyAddressPool buddy;
+
+    private final ArrayDeque<IPv6Network> buddyAllocated = new ArrayDeque<IPv6Network>();
+
+    private IPv6AddressPool pool56;
+
+    private IPv6AddressPool pool64;
+
+    private final ArrayDeque<IPv6Network> separateAllocated = new ArrayDeque<IPv6Network>();
+
+    private Random random;
+
+    @Setup
+    public void setup()
+    {
+        random = new Random(45);
+        buddy = IPv6BuddyAddressPool.fromRangeAndPrefixLengths(IPv6Network.fromString("2001:db8::/40"), 48, 64);
+        pool56 = IPv6AddressPool.fromRangeAndSubnet(IPv6Network.fromString("2001:db8::/41"), IPv6NetworkMask.fromPrefixLength(56));
+        pool64 = IPv6AddressPool.fromRangeAndSubnet(IPv6Network.fromString("2001:db8:80::/41"), IPv6NetworkMask.fromPrefixLength(64));
+        for (int i = 0; i < STEADY_STATE; i++)
+        {
+            buddy();
+            separate();
+        }
+    }
+
+    @Benchmark
+    public IPv6Network buddy()
+    {
+        final IPv6Network allocated = buddy.allocate(random.nextInt(4) == 0 ? 56 : 64);
+        buddyAllocated.addLast(allocated);
+        if (buddyAllocated.size() > STEADY_STATE)
+            buddy.deAllocate(buddyAllocated.removeFirst());
+        return allocated;
+    }
+
+    @Benchmark
+    public IPv6Network separate()
+    {
+        final IPv6Network allocated;
+        if (random.nextInt(4) == 0)
+        {
+            pool56 = pool56.allocate();
+            allocated = pool56.getLastAllocated();
+        }
+        else
+        {
+            pool64 = pool64.allocate();
+            allocated = pool64.getLastAllocated();
+        }
+        separateAllocated.addLast(allocated);
+
+        if (separateAllocated.size() > STEADY_STATE)
+        {
+            final IPv6Network released = separateAllocated.removeFirst();
+            if (released.getNetmask().asPrefixLength() == 56)
+                pool56 = pool56.deAllocate(released);
+            else
+                pool64 = pool64.deAllocate(released);
+        }
+        return allocated;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6.benchmarks;
+
+import com.googlecode.ipv6.IPv6LatencyHistogram;
+import com.googlecode.ipv6.IPv6Network;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Macro benchmark which replays a {@link ChurnTrace} (months of allocations and releases) on pool implementations, to show how they
+ * degrade over time. Unlike the JMH benchmarks, this is a plain main class:
+ * <pre>
+ * java -cp target/benchmarks.jar com.googlecode.ipv6.benchmarks.ChurnBenchmark [engine...]
+ * </pre>
+ * The engines are first-fit, best-fit, top-down, random (the allocation strategies of the pool) and buddy (all by default). The trace is
+ * configured with system properties (see {@link #main}). Every engine replays the same trace, after a warm up on a trace with another
+ * seed, and prints a line of comma separated values at regular intervals: the (simulated) time, the number of live leases, the number
+ * of allocations which failed because the pool was exhausted, the throughput and 99th percentile latency of the operations in the
+ * interval, the number of free segments of the pool and the used heap (after a full garbage collection).
+ *
+ * @author Jan Van Besien
+ */
+public final class ChurnBenchmark
+{
+    private ChurnBenchmark()
+    {
+        // main class
+    }
+
+    /**
+     * Run the benchmark. The trace and the pool are configured with these system properties:
+     * <ul>
+     * <li>churn.seed: seed of the trace (default 46)</li>
+     * <li>churn.arrivals: number of arrivals (default 1000000)</li>
+     * <li>churn.interArrivalTime: mean time between arrivals in seconds (default 1)</li>
+     * <li>churn.minLifetime: minimum lifetime of a lease in seconds (default 3600)</li>
+     * <li>churn.lifetimeShape: shape of the Pareto distribution of the lifetimes (default 1.2)</li>
+     * <li>churn.burstProbability: probability that an arrival is a burst (default 0.0005)</li>
+     * <li>churn.burstSize: number of leases in a burst (default 256)</li>
+     * <li>churn.range: range to allocate from (default 2001:db8::/40)</li>
+     * <li>churn.prefixLength: prefix length of the allocated subnets (default 56)</li>
+     * <li>churn.samples: number of lines to print per engine (default 20)</li>
+     * </ul>
+     *
+     * @param args names of the engines to run, all if none
+     */
+    public static void main(String[] args)
+    {
+        final long seed = Long.getLong("churn.seed", 46);
+        final int arrivals = Integer.getInteger("churn.arrivals", 1000000);
+        final double interArrivalTime = Double.parseDouble(System.getProperty("churn.interArrivalTime", "1"));
+        final double minLifetime = Double.parseDouble(System.getProperty("churn.minLifetime", "3600"));
+        final double lifetimeShape = Double.parseDouble(System.getProperty("churn.lifetimeShape", "1.2"));
+        final double burstProbability = Double.parseDouble(System.getProperty("churn.burstProbability", "0.0005"));
+        final int burstSize = Integer.getInteger("churn.burstSize", 256);
+        final IPv6Network range = IPv6Network.fromString(System.getProperty("churn.range", "2001:db8::/40"));
+        final int prefixLength = Integer.getInteger("churn.prefixLength", 56);
+        final int samples = Integer.getInteger("churn.samples", 20);
+
+        final List<String> engines = Arrays.asList(args.length == 0 ? ChurnEngine.NAMES : args);
+
+        final ChurnTrace warmUp = ChurnTrace.generate(~seed, Math.min(arrivals, 100000), interArrivalTime, minLifetime, lifetimeShape,
+                                                      burstProbability, burstSize);
+        final ChurnTrace trace = ChurnTrace.generate(seed, arrivals, interArrivalTime, minLifetime, lifetimeShape, burstProbability,
+                                                     burstSize);
+        System.out.println("# " + trace + ", range=" + range + ", prefixLength=" + prefixLength);
+        System.out.println("engine,time,events,liveLeases,exhausted,opsPerSecond,p99Nanos,freeSegments,usedHeapBytes");
+
+        for (String name : engines)
+        {
+            replay(ChurnEngine.create(name, range, prefixLength, warmUp.getLeases(), seed), warmUp, 0);
+            replay(ChurnEngine.create(name, range, prefixLength, trace.getLeases(), seed), trace, samples);
+        }
+    }
+
+    private static void replay(final ChurnEngine engine, final ChurnTrace trace, final int samples)
+    {
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        final int interval = samples == 0 ? trace.size() : Math.max(1, (trace.size() + samples - 1) / samples);
+
+        int live = 0;
+        long exhausted = 0;
+        int index = 0;
+        while (index < trace.size())
+        {
+            final IPv6LatencyHistogram latency = new IPv6LatencyHistogram();
+            final int end = Math.min(trace.size(), index + interval);
+            final long intervalStart = System.nanoTime();
+            for (; index < end; index++)
+            {
+                final int lease = trace.getLease(index);
+                final long start = System.nanoTime();
+                if (trace.isAllocation(index))
+                {
+                    if (engine.allocate(lease))
+                        live++;
+                    else
+                        exhausted++;
+                }
+                else if (engine.release(lease))
+                {
+                    live--;
+                }
+                latency.record(System.nanoTime() - start);
+            }
+            final long elapsed = System.nanoTime() - intervalStart;
+
+            if (samples > 0)
+            {
+                System.gc();
+                System.out.println(engine.getName() + "," + trace.getTime(index - 1) + "," + index + "," + live + "," + exhausted + ","
+                                           + (long) (latency.getCount() * 1e9 / Math.max(1, elapsed)) + ","
+                                           + latency.getValueAtPercentile(99) + "," + engine.freeSegmentCount() + ","
+                                           + memory.getHeapMemoryUsage().getUsed());
+            }
+        }
+    }
+}
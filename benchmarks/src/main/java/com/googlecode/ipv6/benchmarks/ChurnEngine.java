@@ -0,0 +1,191 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6.benchmarks;
+
+import com.googlecode.ipv6.IPv6AddressPool;
+import com.googlecode.ipv6.IPv6BuddyAddressPool;
+import com.googlecode.ipv6.IPv6Network;
+import com.googlecode.ipv6.IPv6NetworkMask;
+
+import java.util.Random;
+
+/**
+ * Pool implementation (or allocation strategy) on which a {@link ChurnTrace} is replayed. Engines keep track of which subnet is allocated
+ * for which lease.
+ *
+ * @author Jan Van Besien
+ */
+abstract class ChurnEngine
+{
+    static final String[] NAMES = {"first-fit", "best-fit", "top-down", "random", "buddy"};
+
+    private final String name;
+
+    private final IPv6Network[] leases;
+
+    ChurnEngine(String name, int leases)
+    {
+        this.name = name;
+        this.leases = new IPv6Network[leases];
+    }
+
+    /**
+     * Create an engine by name (see {@link #NAMES}).
+     *
+     * @param name         name of the engine
+     * @param range        range to allocate from
+     * @param prefixLength prefix length of the allocated subnets
+     * @param leases       number of leases in the trace which will be replayed
+     * @param seed         seed for engines which allocate at random
+     * @return engine
+     */
+    static ChurnEngine create(final String name, final IPv6Network range, final int prefixLength, final int leases, final long seed)
+    {
+        if ("buddy".equals(name))
+            return new BuddyEngine(range, prefixLength, leases);
+        if ("first-fit".equals(name))
+            return new PoolEngine(name, range, prefixLength, leases, IPv6AddressPool.AllocationStrategy.FIRST_FIT, null);
+        if ("best-fit".equals(name))
+            return new PoolEngine(name, range, prefixLength, leases, IPv6AddressPool.AllocationStrategy.BEST_FIT, null);
+        if ("top-down".equals(name))
+            return new PoolEngine(name, range, prefixLength, leases, IPv6AddressPool.AllocationStrategy.TOP_DOWN, null);
+        if ("random".equals(name))
+            return new PoolEngine(name, range, prefixLength, leases, IPv6AddressPool.AllocationStrategy.RANDOM, new Random(seed));
+
+        throw new IllegalArgumentException("unknown engine [" + name + "]");
+    }
+
+    /**
+     * Allocate a subnet for the given lease.
+     *
+     * @return false if the pool is exhausted
+     */
+    final boolean allocate(int lease)
+    {
+        leases[lease] = doAllocate();
+        return leases[lease] != null;
+    }
+
+    /**
+     * Release the subnet of the given lease.
+     *
+     * @return false if nothing was released, because the lease could not be allocated
+     */
+    final boolean release(int lease)
+    {
+        if (leases[lease] == null)
+            return false;
+
+        doRelease(leases[lease]);
+        leases[lease] = null;
+        return true;
+    }
+
+    abstract IPv6Network doAllocate();
+
+    abstract void doRelease(IPv6Network subnet);
+
+    /**
+     * @return the number of free segments, a measure for the fragmentation of the pool
+     */
+    abstract int freeSegmentCount();
+
+    String getName()
+    {
+        return name;
+    }
+
+    /**
+     * {@link IPv6AddressPool} with one of its allocation strategies.
+     */
+    private static final class PoolEngine extends ChurnEngine
+    {
+        private final IPv6AddressPool.AllocationStrategy strategy;
+
+        private final Random random;
+
+        private IPv6AddressPool pool;
+
+        PoolEngine(String name, IPv6Network range, int prefixLength, int leases, IPv6AddressPool.AllocationStrategy strategy,
+                   Random random)
+        {
+            super(name, leases);
+            this.strategy = strategy;
+            this.random = random;
+            this.pool = IPv6AddressPool.fromRangeAndSubnet(range, IPv6NetworkMask.fromPrefixLength(prefixLength));
+        }
+
+        @Override
+        IPv6Network doAllocate()
+        {
+            final IPv6AddressPool result = pool.allocate(strategy, random);
+            if (result == null)
+                return null;
+
+            pool = result;
+            return pool.getLastAllocated();
+        }
+
+        @Override
+        void doRelease(IPv6Network subnet)
+        {
+            pool = pool.deAllocate(subnet);
+        }
+
+        @Override
+        int freeSegmentCount()
+        {
+            return pool.freeSegmentCount();
+        }
+    }
+
+    /**
+     * {@link IPv6BuddyAddressPool}, allocating subnets of a single size. Its free segments are its free blocks, which are not merged when
+     * they are adjacent but not buddies, so the numbers are not directly comparable with those of the other engines.
+     */
+    private static final class BuddyEngine extends ChurnEngine
+    {
+        private final IPv6BuddyAddressPool pool;
+
+        private final int prefixLength;
+
+        BuddyEngine(IPv6Network range, int prefixLength, int leases)
+        {
+            super("buddy", leases);
+            this.pool = IPv6BuddyAddressPool.fromRangeAndPrefixLengths(range, range.getNetmask().asPrefixLength(), prefixLength);
+            this.prefixLength = prefixLength;
+        }
+
+        @Override
+        IPv6Network doAllocate()
+        {
+            return pool.allocate(prefixLength);
+        }
+
+        @Override
+        void doRelease(IPv6Network subnet)
+        {
+            pool.deAllocate(subnet);
+        }
+
+        @Override
+        int freeSegmentCount()
+        {
+            return pool.getFreeBlocks().size();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6.benchmarks;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Synthetic history of leases being allocated and released, generated from a seed such that different pool implementations can be
+ * compared on identical histories.
+ * <p>
+ * Requests arrive as a Poisson process (exponentially distributed times between arrivals). Occasionally an arrival is a burst of many
+ * leases at once (e.g. provisioning a new site). Lease lifetimes follow a Pareto distribution: most leases are short, but some live (much)
+ * longer than the trace, which is what fragments a pool over time. Leases which are still alive at the end of the trace are never
+ * released.
+ * <p>
+ * Events are stored in flat arrays, such that replaying a trace doesn't allocate anything itself.
+ *
+ * @author Jan Van Besien
+ */
+final class ChurnTrace
+{
+    private final long seed;
+
+    private final long[] times;
+
+    private final int[] events;
+
+    private final int leases;
+
+    private ChurnTrace(long seed, long[] times, int[] events, int leases)
+    {
+        this.seed = seed;
+        this.times = times;
+        this.events = events;
+        this.leases = leases;
+    }
+
+    /**
+     * Generate a trace.
+     *
+     * @param seed                 seed of the random generator, the same seed (and parameters) gives the same trace
+     * @param arrivals             number of arrivals (bursts count as a single arrival)
+     * @param meanInterArrivalTime mean time between two arrivals (in seconds)
+     * @param minLifetime          minimum lifetime of a lease (scale of the Pareto distribution, in seconds)
+     * @param lifetimeShape        shape of the Pareto distribution of lifetimes (the smaller, the heavier the tail), should be bigger than 1
+     * @param burstProbability     probability that an arrival is a burst
+     * @param burstSize            number of leases in a burst
+     * @return generated trace
+     */
+    static ChurnTrace generate(final long seed, final int arrivals, final double meanInterArrivalTime, final double minLifetime,
+                               final double lifetimeShape, final double burstProbability, final int burstSize)
+    {
+        if (arrivals < 0)
+            throw new IllegalArgumentException("arrivals should not be negative [" + arrivals + "]");
+        if (meanInterArrivalTime <= 0 || minLifetime <= 0)
+            throw new IllegalArgumentException("times should be positive [" + meanInterArrivalTime + ", " + minLifetime + "]");
+        if (lifetimeShape <= 1)
+            throw new IllegalArgumentException("lifetime shape should be bigger than 1 [" + lifetimeShape + "]");
+        if (burstProbability < 0 || burstProbability > 1 || burstSize < 1)
+            throw new IllegalArgumentException("invalid burst [" + burstProbability + ", " + burstSize + "]");
+
+        final Random random = new Random(seed);
+
+        // pending releases, as {time, lease}
+        final PriorityQueue<long[]> releases = new PriorityQueue<long[]>(1024, new Comparator<long[]>()
+        {
+            @Override
+            public int compare(long[] a, long[] b)
+            {
+                return a[0] < b[0] ? -1 : a[0] > b[0] ? 1 : 0;
+            }
+        });
+
+        long[] times = new long[1024];
+        int[] events = new int[1024];
+        int size = 0;
+        int leases = 0;
+
+        double time = 0;
+        for (int arrival = 0; arrival < arrivals; arrival++)
+        {
+            time += -Math.log(1 - random.nextDouble()) * meanInterArrivalTime;
+            final long now = (long) time;
+
+            // releases go before arrivals at the same time
+            while (!releases.isEmpty() && releases.peek()[0] <= now)
+            {
+                final long[] release = releases.poll();
+                if (size + 1 > times.length)
+                {
+                    times = Arrays.copyOf(times, times.length * 2);
+                    events = Arrays.copyOf(events, events.length * 2);
+                }
+                times[size] = release[0];
+                events[size++] = ~(int) release[1];
+            }
+
+            final int count = random.nextDouble() < burstProbability ? burstSize : 1;
+            if (size + count > times.length)
+            {
+                times = Arrays.copyOf(times, Math.max(times.length * 2, size + count));
+                events = Arrays.copyOf(events, Math.max(events.length * 2, size + count));
+            }
+            for (int i = 0; i < count; i++)
+            {
+                final int lease = leases++;
+                times[size] = now;
+                events[size++] = lease;
+
+                final double lifetime = minLifetime / Math.pow(1 - random.nextDouble(), 1 / lifetimeShape);
+                if (time + lifetime < Long.MAX_VALUE)
+                    releases.add(new long[]{(long) (time + lifetime), lease});
+            }
+        }
+
+        return new ChurnTrace(seed, Arrays.copyOf(times, size), Arrays.copyOf(events, size), leases);
+    }
+
+    /**
+     * @return number of events (allocations and releases)
+     */
+    int size()
+    {
+        return events.length;
+    }
+
+    /**
+     * @return number of leases (i.e. allocations) in the trace
+     */
+    int getLeases()
+    {
+        return leases;
+    }
+
+    /**
+     * @param index index of an event
+     * @return time of the event (in seconds since the start of the trace)
+     */
+    long getTime(int index)
+    {
+        return times[index];
+    }
+
+    /**
+     * @param index index of an event
+     * @return true if the event is an allocation, false if it is a release
+     */
+    boolean isAllocation(int index)
+    {
+        return events[index] >= 0;
+    }
+
+    /**
+     * @param index index of an event
+     * @return the lease which is allocated or released by the event
+     */
+    int getLease(int index)
+    {
+        final int event = events[index];
+        return event >= 0 ? event : ~event;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "seed=" + seed + ", events=" + size() + ", leases=" + leases + ", duration=" + (size() == 0 ? 0 : times[size() - 1]) + "s";
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6.benchmarks;
+
+import com.googlecode.ipv6.ConcurrentIPv6NetworkTrie;
+import com.googlecode.ipv6.IPv6Address;
+import com.googlecode.ipv6.IPv6Network;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Longest prefix match lookups in a {@link ConcurrentIPv6NetworkTrie} with a routing table (see {@link RoutingTables}), by three threads
+ * while the table is not updated ({@code quiet}) and while a fourth thread continuously applies batches of updates ({@code updating}).
+ * The lookup latency should be about the same in both groups.
+ *
+ * @author Jan Van Besien
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class ConcurrentLongestMatchBenchmark
+{
+    @Param({"200000"})
+    public int size;
+
+    @Param({"100"})
+    public int batchSize;
+
+    private ConcurrentIPv6NetworkTrie<IPv6Network> trie;
+
+    private List<IPv6Network> networks;
+
+    private IPv6Address[] addresses;
+
+    @Setup
+    public void setup()
+    {
+        networks = RoutingTables.generate(50, size);
+        trie = new ConcurrentIPv6NetworkTrie<IPv6Network>();
+        final ConcurrentIPv6NetworkTrie.Batch<IPv6Network> batch = trie.batch();
+        for (IPv6Network network : networks)
+        {
+            batch.put(network, network);
+        }
+        trie.apply(batch);
+
+        final Random random = new Random(50);
+        addresses = new IPv6Address[Inputs.SIZE];
+        for (int i = 0; i < Inputs.SIZE; i++)
+        {
+            addresses[i] = RoutingTables.randomAddressWithin(random, networks.get(random.nextInt(networks.size())));
+        }
+    }
+
+    /**
+     * Position of a thread in the inputs.
+     */
+    @State(Scope.Thread)
+    public static class Cursor
+    {
+        private final Random random = new Random();
+
+        private int next;
+    }
+
+    @Benchmark
+    @Group("quiet")
+    @GroupThreads(3)
+    public IPv6Network quietLookup(Cursor cursor)
+    {
+        return trie.longestMatch(addresses[cursor.next++ & Inputs.MASK]);
+    }
+
+    @Benchmark
+    @Group("updating")
+    @GroupThreads(3)
+    public IPv6Network lookup(Cursor cursor)
+    {
+        return trie.longestMatch(addresses[cursor.next++ & Inputs.MASK]);
+    }
+
+    /**
+     * Withdraw and announce (again) a batch of random networks of the table, in a single update.
+     */
+    @Benchmark
+    @Group("updating")
+    @GroupThreads(1)
+    public void update(Cursor cursor)
+    {
+        final ConcurrentIPv6NetworkTrie.Batch<IPv6Network> batch = trie.batch();
+        for (int i = 0; i < batchSize; i++)
+        {
+            final IPv6Network network = networks.get(cursor.random.nextInt(networks.size()));
+            if (cursor.random.nextBoolean())
+                batch.remove(network);
+            else
+                batch.put(network, network);
+        }
+        trie.apply(batch);
+    }
+}
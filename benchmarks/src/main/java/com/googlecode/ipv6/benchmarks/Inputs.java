@@ -0,0 +1,34 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6.benchmarks;
+
+/**
+ * Benchmarks cycle through a fixed number of pre-generated inputs, to avoid measuring a single (perfectly predicted) input.
+ *
+ * @author Jan Van Besien
+ */
+final class Inputs
+{
+    static final int SIZE = 1024;
+
+    static final int MASK = SIZE - 1;
+
+    private Inputs()
+    {
+        // utility class
+    }
+}
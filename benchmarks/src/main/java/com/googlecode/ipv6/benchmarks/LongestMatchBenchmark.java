@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6.benchmarks;
+
+import com.googlecode.ipv6.IPv6Address;
+import com.googlecode.ipv6.IPv6CompiledNetworkTable;
+import com.googlecode.ipv6.IPv6Network;
+import com.googlecode.ipv6.IPv6NetworkTrie;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Longest prefix match lookups in routing tables (see {@link RoutingTables}) of a given size, with an {@link IPv6NetworkTrie} and an
+ * {@link IPv6CompiledNetworkTable}, and building the compiled table. The size of the compiled table is printed during the setup.
+ *
+ * @author Jan Van Besien
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LongestMatchBenchmark
+{
+    @Param({"1000", "200000"})
+    public int size;
+
+    private IPv6NetworkTrie<IPv6Network> trie;
+
+    private IPv6CompiledNetworkTable.Builder<IPv6Network> builder;
+
+    private IPv6CompiledNetworkTable<IPv6Network> table;
+
+    private IPv6Address[] addresses;
+
+    private int next;
+
+    @Setup
+    public void setup()
+    {
+        final List<IPv6Network> networks = RoutingTables.generate(49, size);
+        trie = new IPv6NetworkTrie<IPv6Network>();
+        builder = IPv6CompiledNetworkTable.builder();
+        for (IPv6Network network : networks)
+        {
+            trie.put(network, network);
+            builder.put(network, network);
+        }
+        table = builder.build();
+        System.out.println("\ncompiled table of " + size + " networks: " + table.tableSizeInBytes() / 1024 + " KB");
+
+        // mostly addresses within a network of the table, some random addresses (which mostly don't match)
+        final Random random = new Random(49);
+        addresses = new IPv6Address[Inputs.SIZE];
+        for (int i = 0; i < Inputs.SIZE; i++)
+        {
+            addresses[i] = random.nextInt(8) == 0 ?
+                    IPv6Address.fromLongs(random.nextLong(), random.nextLong()) :
+                    RoutingTables.randomAddressWithin(random, networks.get(random.nextInt(networks.size())));
+        }
+    }
+
+    @Benchmark
+    public IPv6Network trie()
+    {
+        return trie.longestMatch(addresses[next++ & Inputs.MASK]);
+    }
+
+    @Benchmark
+    public IPv6Network compiled()
+    {
+        return table.longestMatch(addresses[next++ & Inputs.MASK]);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public IPv6CompiledNetworkTable<IPv6Network> build()
+    {
+        return builder.build();
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6.benchmarks;
+
+import com.googlecode.ipv6.IPv6Address;
+import com.googlecode.ipv6.IPv6AddressRange;
+import com.googlecode.ipv6.IPv6Network;
+import com.googlecode.ipv6.IPv6NetworkMask;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splitting networks and converting ranges to networks.
+ *
+ * @author Jan Van Besien
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NetworkBenchmark
+{
+    /**
+     * Prefix length of the network which is split.
+     */
+    @Param({"32", "48", "56"})
+    public int prefixLength;
+
+    /**
+     * Number of subnets (as a power of two) the network is split in.
+     */
+    @Param({"4", "8"})
+    public int splitBits;
+
+    private IPv6Network[] networks;
+
+    private IPv6AddressRange[] ranges;
+
+    private IPv6NetworkMask subnetMask;
+
+    private int next;
+
+    @Setup
+    public void setup()
+    {
+        final Random random = new Random(45);
+        networks = new IPv6Network[Inputs.SIZE];
+        ranges = new IPv6AddressRange[Inputs.SIZE];
+        for (int i = 0; i < Inputs.SIZE; i++)
+        {
+            final IPv6Address address = IPv6Address.fromLongs(random.nextLong(), random.nextLong());
+            networks[i] = IPv6Network.fromAddressAndMask(address, IPv6NetworkMask.fromPrefixLength(prefixLength));
+            ranges[i] = IPv6AddressRange.fromFirstAndLast(address, address.add(random.nextInt(Integer.MAX_VALUE)));
+        }
+        subnetMask = IPv6NetworkMask.fromPrefixLength(prefixLength + splitBits);
+    }
+
+    @Benchmark
+    public void split(Blackhole blackhole)
+    {
+        final Iterator<IPv6Network> subnets = networks[next++ & Inputs.MASK].split(subnetMask);
+        while (subnets.hasNext())
+        {
+            blackhole.consume(subnets.next());
+        }
+    }
+
+    @Benchmark
+    public void toSubnets(Blackhole blackhole)
+    {
+        final Iterator<IPv6Network> subnets = ranges[next++ & Inputs.MASK].toSubnets();
+        while (subnets.hasNext())
+        {
+            blackhole.consume(subnets.next());
+        }
+    }
+
+    @Benchmark
+    public boolean containsAddress()
+    {
+        final int i = next++ & Inputs.MASK;
+        return networks[i].contains(networks[(i + 1) & Inputs.MASK].getFirst());
+    }
+}
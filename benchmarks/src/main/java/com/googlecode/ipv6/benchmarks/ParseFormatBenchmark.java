@@ -0,0 +1,105 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6.benchmarks;
+
+import com.googlecode.ipv6.IPv6Address;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and formatting of addresses in different notations.
+ *
+ * @author Jan Van Besien
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParseFormatBenchmark
+{
+    /**
+     * COMPRESSED: addresses with a run of zeroes (e.g. 2001:db8::1:2), UNCOMPRESSED: addresses without zeroes in long notation,
+     * IPV4_MAPPED: ::ffff:a.b.c.d
+     */
+    @Param({"COMPRESSED", "UNCOMPRESSED", "IPV4_MAPPED"})
+    public String notation;
+
+    private IPv6Address[] addresses;
+
+    private String[] strings;
+
+    private final StringBuilder builder = new StringBuilder(64);
+
+    private int next;
+
+    @Setup
+    public void setup()
+    {
+        final Random random = new Random(45);
+        addresses = new IPv6Address[Inputs.SIZE];
+        strings = new String[Inputs.SIZE];
+        for (int i = 0; i < Inputs.SIZE; i++)
+        {
+            if (notation.equals("COMPRESSED"))
+                addresses[i] = IPv6Address.fromLongs(0x20010db800000000L | random.nextInt(0x10000), random.nextInt(0x10000));
+            else if (notation.equals("UNCOMPRESSED"))
+                addresses[i] = IPv6Address.fromLongs(random.nextLong() | 0x0001000100010001L, random.nextLong() | 0x0001000100010001L);
+            else
+                addresses[i] = IPv6Address.fromLongs(0, 0xffff00000000L | (random.nextInt() & 0xffffffffL));
+            strings[i] = notation.equals("UNCOMPRESSED") ? addresses[i].toLongString() : addresses[i].toString();
+        }
+    }
+
+    @Benchmark
+    public IPv6Address parse()
+    {
+        return IPv6Address.fromString(strings[next++ & Inputs.MASK]);
+    }
+
+    @Benchmark
+    public String format()
+    {
+        return addresses[next++ & Inputs.MASK].toString();
+    }
+
+    @Benchmark
+    public StringBuilder formatAppendTo()
+    {
+        builder.setLength(0);
+        return addresses[next++ & Inputs.MASK].appendTo(builder);
+    }
+
+    @Benchmark
+    public String formatLong()
+    {
+        return addresses[next++ & Inputs.MASK].toLongString();
+    }
+}
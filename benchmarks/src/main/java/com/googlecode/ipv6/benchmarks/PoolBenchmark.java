@@ -0,0 +1,134 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6.benchmarks;
+
+import com.googlecode.ipv6.IPv6AddressPool;
+import com.googlecode.ipv6.IPv6Network;
+import com.googlecode.ipv6.IPv6NetworkMask;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allocating from and de-allocating to pools of 65536 subnets, of which a given percentage is allocated at random (the more subnets are
+ * allocated at random, the more fragmented the free subnets are).
+ *
+ * @author Jan Van Besien
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PoolBenchmark
+{
+    private static final IPv6Network RANGE = IPv6Network.fromString("2001:db8::/48");
+
+    private static final IPv6NetworkMask SUBNET = IPv6NetworkMask.fromPrefixLength(64);
+
+    @Param({"0", "10", "50", "90"})
+    public int percentageAllocated;
+
+    private IPv6AddressPool pool;
+
+    private List<IPv6Network> allocated;
+
+    private IPv6Network[] free;
+
+    private IPv6Network[] subnets;
+
+    private Random random;
+
+    private int next;
+
+    @Setup
+    public void setup()
+    {
+        random = new Random(45);
+        allocated = new ArrayList<IPv6Network>();
+        final List<IPv6Network> freeSubnets = new ArrayList<IPv6Network>();
+        subnets = new IPv6Network[Inputs.SIZE];
+
+        int i = 0;
+        for (Iterator<IPv6Network> it = RANGE.split(SUBNET); it.hasNext(); i++)
+        {
+            final IPv6Network subnet = it.next();
+            if (random.nextInt(100) < percentageAllocated)
+                allocated.add(subnet);
+            else
+                freeSubnets.add(subnet);
+            if (i < Inputs.SIZE * 64 && i % 64 == 0)
+                subnets[i / 64] = subnet;
+        }
+        pool = IPv6AddressPool.fromRangeAndSubnetWithAllocations(RANGE, SUBNET, allocated);
+        free = freeSubnets.toArray(new IPv6Network[freeSubnets.size()]);
+    }
+
+    @Benchmark
+    public IPv6AddressPool allocateFirstFit()
+    {
+        return pool.allocate();
+    }
+
+    @Benchmark
+    public IPv6AddressPool allocateBestFit()
+    {
+        return pool.allocate(IPv6AddressPool.AllocationStrategy.BEST_FIT);
+    }
+
+    @Benchmark
+    public IPv6AddressPool allocateRandom()
+    {
+        return pool.allocate(IPv6AddressPool.AllocationStrategy.RANDOM, random);
+    }
+
+    @Benchmark
+    public IPv6AddressPool allocateAndDeAllocate()
+    {
+        // the pool is immutable, so every invocation starts from the same state
+        final IPv6AddressPool result = pool.allocate(free[next++ % free.length]);
+        return result.deAllocate(result.getLastAllocated());
+    }
+
+    @Benchmark
+    public boolean isFree()
+    {
+        return pool.isFree(subnets[next++ & Inputs.MASK]);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public IPv6AddressPool bulkLoad()
+    {
+        return IPv6AddressPool.fromRangeAndSubnetWithAllocations(RANGE, SUBNET, allocated);
+    }
+}
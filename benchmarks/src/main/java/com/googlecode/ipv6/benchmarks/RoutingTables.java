@@ -0,0 +1,89 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6.benchmarks;
+
+import com.googlecode.ipv6.IPv6Address;
+import com.googlecode.ipv6.IPv6Network;
+import com.googlecode.ipv6.IPv6NetworkMask;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Synthetic routing tables which look like the global IPv6 routing table: all networks are in 2000::/3, clustered in a few dozen /12
+ * blocks (like the blocks of the regional internet registries), mostly /48, /32, /44 and /40 networks, and many networks are more
+ * specific than another network in the table.
+ *
+ * @author Jan Van Besien
+ */
+final class RoutingTables
+{
+    private static final int[] PREFIX_LENGTHS = {48, 48, 48, 48, 48, 48, 48, 48, 48, 32, 32, 32, 44, 44, 40, 40, 36, 29, 46, 47};
+
+    private RoutingTables()
+    {
+        // utility class
+    }
+
+    /**
+     * @param seed seed of the random generator
+     * @param size number of networks
+     * @return distinct networks
+     */
+    static List<IPv6Network> generate(final long seed, final int size)
+    {
+        final Random random = new Random(seed);
+        final long[] blocks = new long[32];
+        for (int i = 0; i < blocks.length; i++)
+        {
+            blocks[i] = (0x2000L | random.nextInt(0x2000)) << 48 & 0xFFF0000000000000L;
+        }
+
+        final Set<IPv6Network> networks = new LinkedHashSet<IPv6Network>();
+        final List<IPv6Network> list = new ArrayList<IPv6Network>();
+        while (networks.size() < size)
+        {
+            final IPv6Network network;
+            if (!list.isEmpty() && random.nextInt(4) == 0)
+            {
+                // more specific than a network in the table (e.g. a /48 of a customer within the /32 of its provider)
+                final IPv6Network covering = list.get(random.nextInt(list.size()));
+                final int prefixLength = Math.min(64, covering.getNetmask().asPrefixLength() + 1 + random.nextInt(16));
+                network = IPv6Network.fromAddressAndMask(randomAddressWithin(random, covering), IPv6NetworkMask.fromPrefixLength(prefixLength));
+            }
+            else
+            {
+                final long highBits = blocks[random.nextInt(blocks.length)] | (random.nextLong() & 0x000FFFFFFFFFFFFFL);
+                network = IPv6Network.fromAddressAndMask(IPv6Address.fromLongs(highBits, 0),
+                                                         IPv6NetworkMask.fromPrefixLength(PREFIX_LENGTHS[random.nextInt(PREFIX_LENGTHS.length)]));
+            }
+            if (networks.add(network))
+                list.add(network);
+        }
+        return list;
+    }
+
+    static IPv6Address randomAddressWithin(final Random random, final IPv6Network network)
+    {
+        final IPv6Address mask = network.getNetmask().asAddress();
+        return IPv6Address.fromLongs(network.getFirst().getHighBits() | (random.nextLong() & ~mask.getHighBits()),
+                                     network.getFirst().getLowBits() | (random.nextLong() & ~mask.getLowBits()));
+    }
+}
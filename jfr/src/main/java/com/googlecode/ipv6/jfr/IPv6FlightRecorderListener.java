@@ -0,0 +1,135 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6.jfr;
+
+import com.googlecode.ipv6.IPv6AddressPool;
+import com.googlecode.ipv6.IPv6Metrics;
+import com.googlecode.ipv6.IPv6MetricsListener;
+import com.googlecode.ipv6.IPv6Network;
+import com.googlecode.ipv6.IPv6NetworkMask;
+
+/**
+ * {@link IPv6MetricsListener} which records Java Flight Recorder events for slow pool operations and large splits, such that they can
+ * be correlated with garbage collections and safepoints in a recording. Register it with {@link IPv6Metrics#setListener} or {@link
+ * IPv6Metrics#registerFlightRecorderListener()}.
+ * <p>
+ * The durations are measured by the library before the listener is called, so the thresholds are applied by this listener (on top of
+ * enabling or disabling the events in the recording settings). The default thresholds can be configured with the system properties
+ * <code>com.googlecode.ipv6.jfr.thresholdNanos</code> (default 1 millisecond) and <code>com.googlecode.ipv6.jfr.splitThresholdLog2</code>
+ * (default 16, i.e. splits in 65536 subnets or more).
+ *
+ * @author Jan Van Besien
+ */
+public class IPv6FlightRecorderListener extends IPv6MetricsListener
+{
+    private final long thresholdNanos;
+
+    private final int splitThresholdLog2;
+
+    public IPv6FlightRecorderListener()
+    {
+        this(Long.getLong("com.googlecode.ipv6.jfr.thresholdNanos", 1000000L),
+             Integer.getInteger("com.googlecode.ipv6.jfr.splitThresholdLog2", 16));
+    }
+
+    /**
+     * @param thresholdNanos     minimum duration of the pool operations to record, in nanoseconds
+     * @param splitThresholdLog2 minimum number of subnets (as a power of two) of the splits to record
+     */
+    public IPv6FlightRecorderListener(final long thresholdNanos, final int splitThresholdLog2)
+    {
+        if (thresholdNanos < 0)
+            throw new IllegalArgumentException("threshold should not be negative [" + thresholdNanos + "]");
+        if (splitThresholdLog2 < 0 || splitThresholdLog2 > 128)
+            throw new IllegalArgumentException("split threshold should be within [0, 128] [" + splitThresholdLog2 + "]");
+
+        this.thresholdNanos = thresholdNanos;
+        this.splitThresholdLog2 = splitThresholdLog2;
+    }
+
+    @Override
+    public void poolAllocated(IPv6AddressPool result, long durationNanos)
+    {
+        poolOperation("allocate", result, durationNanos);
+    }
+
+    @Override
+    public void poolDeAllocated(IPv6AddressPool result, long durationNanos)
+    {
+        poolOperation("deAllocate", result, durationNanos);
+    }
+
+    @Override
+    public void poolExhausted(IPv6AddressPool pool)
+    {
+        final PoolOperationEvent event = new PoolOperationEvent();
+        if (event.isEnabled())
+        {
+            event.operation = "exhausted";
+            event.setPool(pool);
+            event.commit();
+        }
+    }
+
+    private void poolOperation(String operation, IPv6AddressPool result, long durationNanos)
+    {
+        if (durationNanos < thresholdNanos)
+            return;
+
+        final PoolOperationEvent event = new PoolOperationEvent();
+        if (event.isEnabled())
+        {
+            event.operation = operation;
+            event.operationDuration = durationNanos;
+            event.setPool(result);
+            event.commit();
+        }
+    }
+
+    @Override
+    public void poolLoaded(IPv6AddressPool pool, int allocations, long durationNanos)
+    {
+        if (durationNanos < thresholdNanos)
+            return;
+
+        final PoolLoadEvent event = new PoolLoadEvent();
+        if (event.isEnabled())
+        {
+            event.allocations = allocations;
+            event.loadDuration = durationNanos;
+            event.setPool(pool);
+            event.commit();
+        }
+    }
+
+    @Override
+    public void networkSplit(IPv6Network network, IPv6NetworkMask size)
+    {
+        final int subnetsLog2 = size.asPrefixLength() - network.getNetmask().asPrefixLength();
+        if (subnetsLog2 < splitThresholdLog2)
+            return;
+
+        final NetworkSplitEvent event = new NetworkSplitEvent();
+        if (event.isEnabled())
+        {
+            event.network = network.toString();
+            event.subnetPrefixLength = size.asPrefixLength();
+            event.subnetsLog2 = subnetsLog2;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Split of a network in a large number of subnets.
+ *
+ * @author Jan Van Besien
+ */
+@Name("com.googlecode.ipv6.NetworkSplit")
+@Label("IPv6 Network Split")
+@Category("java-ipv6")
+@Description("Split of an IPv6 network in a large number of subnets (the subnets are created lazily, after this event)")
+public final class NetworkSplitEvent extends Event
+{
+    @Label("Network")
+    String network;
+
+    @Label("Subnet Prefix Length")
+    int subnetPrefixLength;
+
+    @Label("Subnets (log2)")
+    int subnetsLog2;
+}
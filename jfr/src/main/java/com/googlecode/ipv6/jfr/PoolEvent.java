@@ -0,0 +1,49 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6.jfr;
+
+import com.googlecode.ipv6.IPv6AddressPool;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+
+/**
+ * Fields which are common to all events of a pool.
+ *
+ * @author Jan Van Besien
+ */
+abstract class PoolEvent extends Event
+{
+    @Label("Range")
+    String range;
+
+    @Label("Subnet Prefix Length")
+    int subnetPrefixLength;
+
+    @Label("Free Segments")
+    int freeSegments;
+
+    @Label("Free Subnets")
+    String freeCount;
+
+    void setPool(IPv6AddressPool pool)
+    {
+        range = pool.getFirst() + " - " + pool.getLast();
+        subnetPrefixLength = pool.getAllocationSubnetSize().asPrefixLength();
+        freeSegments = pool.freeSegmentCount();
+        freeCount = pool.freeCount().toString();
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Slow allocation or de-allocation, or failed allocation from an exhausted pool.
+ *
+ * @author Jan Van Besien
+ */
+@Name("com.googlecode.ipv6.PoolOperation")
+@Label("IPv6 Pool Operation")
+@Category("java-ipv6")
+@Description("Slow allocation or de-allocation of an IPv6 address pool, or allocation from an exhausted pool")
+public final class PoolOperationEvent extends PoolEvent
+{
+    @Label("Operation")
+    String operation;
+
+    @Label("Operation Duration")
+    @Timespan(Timespan.NANOSECONDS)
+    long operationDuration;
+}
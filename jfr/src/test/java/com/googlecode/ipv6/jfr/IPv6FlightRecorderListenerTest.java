@@ -0,0 +1,115 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6.jfr;
+
+import com.googlecode.ipv6.IPv6AddressPool;
+import com.googlecode.ipv6.IPv6Metrics;
+import com.googlecode.ipv6.IPv6Network;
+import com.googlecode.ipv6.IPv6NetworkMask;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Jan Van Besien
+ */
+public class IPv6FlightRecorderListenerTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void unregister()
+    {
+        IPv6Metrics.setListener(null);
+    }
+
+    @Test
+    public void registeredReflectively()
+    {
+        assertTrue(IPv6Metrics.registerFlightRecorderListener());
+        assertTrue(IPv6Metrics.getListener() instanceof IPv6FlightRecorderListener);
+    }
+
+    @Test
+    public void slowOperationsAreRecorded() throws IOException
+    {
+        final File file = new File(folder.getRoot(), "recording.jfr");
+        final Recording recording = new Recording();
+        recording.enable(PoolOperationEvent.class);
+        recording.enable(PoolLoadEvent.class);
+        recording.enable(NetworkSplitEvent.class);
+        recording.start();
+
+        // record everything
+        IPv6Metrics.setListener(new IPv6FlightRecorderListener(0, 8));
+        IPv6AddressPool pool = IPv6AddressPool.fromRangeAndSubnetWithAllocations(
+                IPv6Network.fromString("2001:db8::/63"), IPv6NetworkMask.fromPrefixLength(64),
+                Collections.singletonList(IPv6Network.fromString("2001:db8::/64")));
+        pool = pool.allocate();
+        assertNull(pool.allocate());
+        IPv6Network.fromString("2001:db8::/48").split(IPv6NetworkMask.fromPrefixLength(64));
+        IPv6Network.fromString("2001:db8::/48").split(IPv6NetworkMask.fromPrefixLength(50)); // below the threshold
+
+        // record nothing but exhaustion
+        IPv6Metrics.setListener(new IPv6FlightRecorderListener(Long.MAX_VALUE, 128));
+        pool.deAllocate(IPv6Network.fromString("2001:db8::/64"));
+
+        recording.stop();
+        recording.dump(file.toPath());
+        recording.close();
+
+        final List<String> operations = new ArrayList<String>();
+        int loads = 0;
+        int splits = 0;
+        for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath()))
+        {
+            final String name = event.getEventType().getName();
+            if (name.equals("com.googlecode.ipv6.PoolOperation"))
+            {
+                operations.add(event.getString("operation"));
+                assertEquals(64, event.getInt("subnetPrefixLength"));
+            }
+            else if (name.equals("com.googlecode.ipv6.PoolLoad"))
+            {
+                loads++;
+                assertEquals(1, event.getInt("allocations"));
+                assertEquals("1", event.getString("freeCount"));
+            }
+            else if (name.equals("com.googlecode.ipv6.NetworkSplit"))
+            {
+                splits++;
+                assertEquals(16, event.getInt("subnetsLog2"));
+            }
+        }
+        assertEquals(List.of("allocate", "exhausted"), operations);
+        assertEquals(1, loads);
+        assertEquals(1, splits);
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread safe, asynchronous facade for an {@link IPv6AddressPoolJournal}, which commits the requests of many threads in batches ("group
+ * commit").
+ * <p>
+ * Requests are queued, and a single committer thread takes them from the queue in batches of at most a configurable number of requests.
+ * The requests of a batch are applied to the pool one after the other, the journal is synced to disk once for the whole batch, and only
+ * then the futures of the requests are completed. Under contention, the cost of syncing is thus shared by all the requests of a batch
+ * instead of being paid by every request. The first request of a batch waits at most a configurable delay for more requests to arrive (a
+ * delay of zero batches the requests which arrive while the previous batch is being synced).
+ * <p>
+ * The journal should be opened with a sync interval of at least the maximum batch size, otherwise it is synced more than once per batch.
+ * After an I/O error (or any other unexpected exception while committing), all pending and subsequent requests fail, the changes of the
+ * failed batch which were not synced yet are discarded, and the journal should be re-opened to recover the durable state.
+ *
+ * @author Jan Van Besien
+ */
+public final class BatchingIPv6AddressPool implements Closeable
+{
+    private final IPv6AddressPoolJournal journal;
+
+    private final int maxBatchSize;
+
+    private final long maxDelayNanos;
+
+    private final BlockingQueue<Request<?>> queue = new LinkedBlockingQueue<Request<?>>();
+
+    private final Thread committer;
+
+    private final Request<Void> closeMarker = new Request<Void>()
+    {
+        @Override
+        Void execute(IPv6AddressPoolJournal journal)
+        {
+            return null;
+        }
+    };
+
+    private volatile boolean closed;
+
+    private volatile IPv6AddressPool committed;
+
+    private volatile IOException failure;
+
+    private volatile long batches;
+
+    /**
+     * Start a committer thread for the given journal. The journal should no longer be used directly.
+     *
+     * @param journal      journal to apply the requests to
+     * @param maxBatchSize maximum number of requests in a batch
+     * @param maxDelay     maximum time the first request of a batch waits for more requests
+     * @param unit         unit of the maximum delay
+     * @return the started pool
+     */
+    public static BatchingIPv6AddressPool start(final IPv6AddressPoolJournal journal, final int maxBatchSize, final long maxDelay,
+                                                final TimeUnit unit)
+    {
+        if (journal == null)
+            throw new IllegalArgumentException("journal invalid [null]");
+        if (maxBatchSize < 1)
+            throw new IllegalArgumentException("maximum batch size should be positive [" + maxBatchSize + "]");
+        if (maxDelay < 0 || unit == null)
+            throw new IllegalArgumentException("maximum delay invalid [" + maxDelay + " " + unit + "]");
+
+        final BatchingIPv6AddressPool pool = new BatchingIPv6AddressPool(journal, maxBatchSize, unit.toNanos(maxDelay));
+        pool.committer.start();
+        return pool;
+    }
+
+    private BatchingIPv6AddressPool(IPv6AddressPoolJournal journal, int maxBatchSize, long maxDelayNanos)
+    {
+        this.journal = journal;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = maxDelayNanos;
+        this.committed = journal.getPool();
+        this.committer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                commitLoop();
+            }
+        }, "ipv6-pool-committer");
+        this.committer.setDaemon(true);
+    }
+
+    /**
+     * Allocate the first available subnet from the pool.
+     *
+     * @return future of the allocated subnet (null if the pool is exhausted), completed once the allocation is durable
+     */
+    public Future<IPv6Network> allocate()
+    {
+        return submit(new Request<IPv6Network>()
+        {
+            @Override
+            IPv6Network execute(IPv6AddressPoolJournal journal) throws IOException
+            {
+                return journal.allocate();
+            }
+        });
+    }
+
+    /**
+     * Allocate the given subnet from the pool.
+     *
+     * @param toAllocate subnet to allocate
+     * @return future of the allocated subnet (null if it was not free), completed once the allocation is durable
+     */
+    public Future<IPv6Network> allocate(final IPv6Network toAllocate)
+    {
+        if (toAllocate == null)
+            throw new IllegalArgumentException("network to allocate invalid [null]");
+
+        return submit(new Request<IPv6Network>()
+        {
+            @Override
+            IPv6Network execute(IPv6AddressPoolJournal journal) throws IOException
+            {
+                return journal.allocate(toAllocate);
+            }
+        });
+    }
+
+    /**
+     * Give a network back to the pool.
+     *
+     * @param toDeAllocate network to de-allocate
+     * @return future which is completed once the de-allocation is durable (or fails with an IllegalArgumentException if the network
+     *         can not be de-allocated from the pool)
+     */
+    public Future<Void> deAllocate(final IPv6Network toDeAllocate)
+    {
+        if (toDeAllocate == null)
+            throw new IllegalArgumentException("network to de-allocate invalid [null]");
+
+        return submit(new Request<Void>()
+        {
+            @Override
+            Void execute(IPv6AddressPoolJournal journal) throws IOException
+            {
+                journal.deAllocate(toDeAllocate);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Queue a request (package private for testing).
+     */
+    <V> Future<V> submit(Request<V> request)
+    {
+        if (closed)
+        {
+            request.fail(new IllegalStateException("pool is closed"));
+            return request;
+        }
+
+        queue.add(request);
+
+        // if the pool was closed in the meantime, the committer might not take the request anymore
+        if (closed && queue.remove(request))
+            request.fail(new IllegalStateException("pool is closed"));
+
+        return request;
+    }
+
+    /**
+     * @return the pool with all the changes which are durable
+     */
+    public IPv6AddressPool getPool()
+    {
+        return committed;
+    }
+
+    /**
+     * @return the number of batches which were committed
+     */
+    long getBatches()
+    {
+        return batches;
+    }
+
+    private void commitLoop()
+    {
+        final List<Request<?>> batch = new ArrayList<Request<?>>(maxBatchSize);
+        try
+        {
+            boolean closing = false;
+            while (!closing && failure == null)
+            {
+                batch.clear();
+                closing = takeBatch(batch);
+                commit(batch);
+            }
+        } catch (InterruptedException e)
+        {
+            closed = true;
+        }
+
+        // fail everything which is still queued (including requests which raced with closing)
+        final IllegalStateException reason = failure != null
+                                              ? new IllegalStateException("pool failed", failure)
+                                              : new IllegalStateException("pool is closed");
+        Request<?> request;
+        while ((request = queue.poll()) != null)
+        {
+            request.fail(reason);
+        }
+    }
+
+    /**
+     * Take the next batch of requests from the queue (blocking until there is at least one).
+     *
+     * @return true if the pool is closing (all requests queued before closing are in the batch)
+     */
+    private boolean takeBatch(List<Request<?>> batch) throws InterruptedException
+    {
+        Request<?> next = queue.take();
+        final long deadline = System.nanoTime() + maxDelayNanos;
+        while (true)
+        {
+            if (next == closeMarker)
+                return true;
+
+            batch.add(next);
+            if (batch.size() == maxBatchSize)
+                return false;
+
+            next = queue.poll();
+            if (next == null)
+            {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    return false;
+                next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                if (next == null)
+                    return false;
+            }
+        }
+    }
+
+    private void commit(List<Request<?>> batch)
+    {
+        if (batch.isEmpty())
+            return;
+
+        try
+        {
+            for (Request<?> request : batch)
+            {
+                if (!request.isCancelled())
+                    request.executeAndKeepResult(journal);
+            }
+            journal.sync();
+        } catch (Throwable t)
+        {
+            // not only I/O errors: anything else would stop the committer thread, leaving all requests waiting forever
+            failure = t instanceof IOException ? (IOException) t : new IOException("committing a batch failed", t);
+            closed = true;
+
+            // don't sync the changes of the requests before the failure when closing, none of them is reported as completed
+            journal.fail();
+            for (Request<?> request : batch)
+            {
+                request.fail(t);
+            }
+            return;
+        }
+
+        committed = journal.getPool();
+        batches++;
+        for (Request<?> request : batch)
+        {
+            request.complete();
+        }
+    }
+
+    /**
+     * Complete all queued requests, stop the committer thread and close the journal.
+     *
+     * @throws IOException if the journal could not be written
+     */
+    @Override
+    public void close() throws IOException
+    {
+        synchronized (this)
+        {
+            if (!closed)
+            {
+                closed = true;
+                queue.add(closeMarker);
+            }
+        }
+
+        try
+        {
+            committer.join();
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while closing the pool");
+        }
+
+        journal.close();
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Queued request, of which the result is kept until the batch it belongs to is committed.
+     */
+    abstract static class Request<V> extends FutureTask<V>
+    {
+        private static final Runnable NOTHING = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+            }
+        };
+
+        private V result;
+
+        private RuntimeException error;
+
+        Request()
+        {
+            super(NOTHING, null);
+        }
+
+        abstract V execute(IPv6AddressPoolJournal journal) throws IOException;
+
+        void executeAndKeepResult(IPv6AddressPoolJournal journal) throws IOException
+        {
+            try
+            {
+                result = execute(journal);
+            } catch (IllegalArgumentException e)
+            {
+                error = e;
+            }
+        }
+
+        void complete()
+        {
+            if (error != null)
+                setException(error);
+            else
+                set(result);
+        }
+
+        void fail(Throwable t)
+        {
+            setException(t);
+        }
+    }
+}
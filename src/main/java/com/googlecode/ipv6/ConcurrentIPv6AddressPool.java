@@ -0,0 +1,501 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread safe (mutable) IPv6 address pool.
+ * <p>
+ * The underlying range is split in a number of aligned stripes, each of which is an {@link IPv6AddressPool} guarded by its own lock.
+ * Every thread allocates from its own "home" stripe first, and only steals from the other stripes when its home stripe is exhausted. This
+ * way, concurrent allocations from different threads hardly ever contend on the same lock. De-allocated networks are given back to the
+ * stripe that contains them.
+ * <p>
+ * A consistent view on the whole pool can be obtained as an immutable {@link IPv6AddressPool} with {@link #snapshot()}.
+ *
+ * @author Jan Van Besien
+ */
+public final class ConcurrentIPv6AddressPool
+{
+    private final IPv6AddressRange underlyingRange;
+
+    private final IPv6NetworkMask allocationSubnetSize;
+
+    private final Stripe[] stripes;
+
+    /**
+     * Create a completely free pool of the given range (boundaries inclusive), with a number of stripes which is appropriate for the
+     * number of available processors.
+     *
+     * @param range                range from within to allocate
+     * @param allocationSubnetSize size of the subnets that will be allocated
+     * @return concurrent ipv6 address pool
+     */
+    public static ConcurrentIPv6AddressPool fromRangeAndSubnet(final IPv6AddressRange range,
+                                                               final IPv6NetworkMask allocationSubnetSize)
+    {
+        return fromPool(IPv6AddressPool.fromRangeAndSubnet(range, allocationSubnetSize), defaultNumberOfStripes());
+    }
+
+    /**
+     * Create a concurrent pool with the same range, subnet size and free subnets as the given (immutable) pool. The range is split in at
+     * most the given number of stripes (less if the pool doesn't contain enough subnets).
+     *
+     * @param pool            pool to start from
+     * @param numberOfStripes maximum number of stripes
+     * @return concurrent ipv6 address pool
+     */
+    public static ConcurrentIPv6AddressPool fromPool(final IPv6AddressPool pool, final int numberOfStripes)
+    {
+        if (pool == null)
+            throw new IllegalArgumentException("pool invalid [null]");
+        if (numberOfStripes < 1)
+            throw new IllegalArgumentException("number of stripes should be at least 1 [" + numberOfStripes + "]");
+
+        return new ConcurrentIPv6AddressPool(pool, numberOfStripes);
+    }
+
+    private ConcurrentIPv6AddressPool(final IPv6AddressPool pool, final int numberOfStripes)
+    {
+        this.underlyingRange = IPv6AddressRange.fromFirstAndLast(pool.getFirst(), pool.getLast());
+        this.allocationSubnetSize = pool.getAllocationSubnetSize();
+
+        final List<IPv6AddressRange> stripeRanges = splitInStripes(underlyingRange, allocationSubnetSize, numberOfStripes);
+        this.stripes = new Stripe[stripeRanges.size()];
+
+        // distribute the free ranges of the pool over the stripes, in a single sweep over both
+        final List<IPv6AddressRange> freeRanges = pool.getFreeRanges();
+        int freeRangeIndex = 0;
+        for (int i = 0; i < stripes.length; i++)
+        {
+            final IPv6AddressRange stripeRange = stripeRanges.get(i);
+            final List<IPv6AddressRange> freeRangesInStripe = new ArrayList<IPv6AddressRange>();
+
+            while (freeRangeIndex < freeRanges.size() && freeRanges.get(freeRangeIndex).getFirst().compareTo(stripeRange.getLast()) <= 0)
+            {
+                final IPv6AddressRange freeRange = freeRanges.get(freeRangeIndex);
+                final IPv6Address first = max(freeRange.getFirst(), stripeRange.getFirst());
+                final IPv6Address last = min(freeRange.getLast(), stripeRange.getLast());
+                freeRangesInStripe.add(IPv6AddressRange.fromFirstAndLast(first, last));
+
+                if (freeRange.getLast().compareTo(stripeRange.getLast()) > 0)
+                    break; // continues in the next stripe
+                else
+                    freeRangeIndex++;
+            }
+
+            stripes[i] = new Stripe(IPv6AddressPool.fromFreeRanges(stripeRange, allocationSubnetSize, freeRangesInStripe));
+        }
+    }
+
+    private static int defaultNumberOfStripes()
+    {
+        // a few stripes per processor, such that threads rarely share their home stripe
+        return Integer.highestOneBit(Runtime.getRuntime().availableProcessors()) * 4;
+    }
+
+    /**
+     * Split the range in at most the given number of consecutive stripes. All stripes (except maybe the last one) contain the same number
+     * of subnets, which is a power of two.
+     */
+    private static List<IPv6AddressRange> splitInStripes(IPv6AddressRange range, IPv6NetworkMask allocationSubnetSize,
+                                                         int numberOfStripes)
+    {
+        final int subnetBits = 128 - allocationSubnetSize.asPrefixLength();
+        final BigInteger numberOfSubnets = range.size().shiftRight(subnetBits);
+
+        // number of subnets per stripe: at least total / numberOfStripes, rounded up to a power of two
+        final BigInteger minimumSubnetsPerStripe = numberOfSubnets.add(BigInteger.valueOf(numberOfStripes - 1))
+                .divide(BigInteger.valueOf(numberOfStripes));
+        final int stripeBits = subnetBits + minimumSubnetsPerStripe.subtract(BigInteger.ONE).bitLength();
+
+        final List<IPv6AddressRange> stripeRanges = new ArrayList<IPv6AddressRange>();
+        final BigInteger last = range.getLast().toBigInteger();
+        BigInteger first = range.getFirst().toBigInteger();
+        while (first.compareTo(last) <= 0)
+        {
+            final BigInteger stripeLast = first.add(BigInteger.ONE.shiftLeft(stripeBits)).subtract(BigInteger.ONE).min(last);
+            stripeRanges.add(IPv6AddressRange.fromFirstAndLast(IPv6Address.fromBigInteger(first), IPv6Address.fromBigInteger(stripeLast)));
+            first = stripeLast.add(BigInteger.ONE);
+        }
+
+        return stripeRanges;
+    }
+
+    private static IPv6Address max(IPv6Address a, IPv6Address b)
+    {
+        return a.compareTo(b) >= 0 ? a : b;
+    }
+
+    private static IPv6Address min(IPv6Address a, IPv6Address b)
+    {
+        return a.compareTo(b) <= 0 ? a : b;
+    }
+
+    /**
+     * Allocate the first available subnet from the home stripe of the calling thread, or from another stripe if the home stripe is
+     * exhausted.
+     *
+     * @return the allocated network, or null if the pool is exhausted
+     */
+    public IPv6Network allocate()
+    {
+        final int home = homeStripe();
+        for (int i = 0; i < stripes.length; i++)
+        {
+            final Stripe stripe = stripes[(home + i) % stripes.length];
+            if (!stripe.pool.isExhausted())
+            {
+                final IPv6Network allocated = stripe.allocate();
+                if (allocated != null)
+                    return allocated;
+            }
+        }
+
+        // exhausted
+        return null;
+    }
+
+    /**
+     * Allocate a batch of subnets, from the home stripe of the calling thread as much as possible (such that the lock of a stripe is only
+     * taken once for the whole batch).
+     *
+     * @param count number of subnets to allocate
+     * @return the allocated networks, less than the requested count if the pool got exhausted
+     */
+    public List<IPv6Network> allocate(final int count)
+    {
+        if (count < 0)
+            throw new IllegalArgumentException("count should be positive [" + count + "]");
+
+        final List<IPv6Network> allocated = new ArrayList<IPv6Network>(count);
+        final int home = homeStripe();
+        for (int i = 0; i < stripes.length && allocated.size() < count; i++)
+        {
+            final Stripe stripe = stripes[(home + i) % stripes.length];
+            if (!stripe.pool.isExhausted())
+                stripe.allocate(count - allocated.size(), allocated);
+        }
+
+        return allocated;
+    }
+
+    /**
+     * Allocate the given subnet from the pool.
+     *
+     * @param toAllocate subnet to allocate from the pool
+     * @return true if the subnet was allocated, false if it was not free
+     */
+    public boolean allocate(final IPv6Network toAllocate)
+    {
+        validate(toAllocate);
+
+        return stripeContaining(toAllocate).allocate(toAllocate);
+    }
+
+    /**
+     * Give a network back to the pool (de-allocate).
+     *
+     * @param toDeAllocate network to de-allocate
+     */
+    public void deAllocate(final IPv6Network toDeAllocate)
+    {
+        validate(toDeAllocate);
+
+        stripeContaining(toDeAllocate).deAllocate(toDeAllocate);
+    }
+
+    /**
+     * Give a batch of networks back to the pool (de-allocate). The lock of each stripe is only taken once for the whole batch.
+     *
+     * @param toDeAllocate networks to de-allocate
+     */
+    public void deAllocate(final Collection<IPv6Network> toDeAllocate)
+    {
+        if (toDeAllocate == null)
+            throw new IllegalArgumentException("networks invalid [null]");
+
+        // group per stripe
+        final List<List<IPv6Network>> perStripe = new ArrayList<List<IPv6Network>>(stripes.length);
+        for (int i = 0; i < stripes.length; i++)
+        {
+            perStripe.add(null);
+        }
+        for (IPv6Network network : toDeAllocate)
+        {
+            validate(network);
+            final int index = indexOfStripeContaining(network);
+            if (perStripe.get(index) == null)
+                perStripe.set(index, new ArrayList<IPv6Network>());
+            perStripe.get(index).add(network);
+        }
+
+        for (int i = 0; i < stripes.length; i++)
+        {
+            if (perStripe.get(i) != null)
+                stripes[i].deAllocate(perStripe.get(i));
+        }
+    }
+
+    private void validate(IPv6Network network)
+    {
+        if (network == null)
+            throw new IllegalArgumentException("network invalid [null]");
+
+        if (!contains(network))
+            throw new IllegalArgumentException("network [" + network + "] is not contained in this pool [" + this + "]");
+
+        if (!this.allocationSubnetSize.equals(network.getNetmask()))
+            throw new IllegalArgumentException(
+                    "network of prefix length [" + network.getNetmask().asPrefixLength()
+                            + "] can not be allocated in a pool which uses prefix length [" + allocationSubnetSize + "]");
+    }
+
+    /**
+     * @param network network to check
+     * @return true if the network is free at the moment of the call
+     */
+    public boolean isFree(final IPv6Network network)
+    {
+        validate(network);
+
+        return stripeContaining(network).pool.isFree(network);
+    }
+
+    /**
+     * @return true if no subnets were free in any of the stripes at the moment of the call, false otherwise
+     */
+    public boolean isExhausted()
+    {
+        for (Stripe stripe : stripes)
+        {
+            if (!stripe.pool.isExhausted())
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Take a consistent snapshot of the whole pool. All stripes are locked while the snapshot is taken, so this is considerably more
+     * expensive than allocating or de-allocating.
+     *
+     * @return an immutable pool with the same free subnets as this pool at the moment of the call (its last allocated network is null)
+     */
+    public IPv6AddressPool snapshot()
+    {
+        final IPv6AddressPool[] pools = new IPv6AddressPool[stripes.length];
+
+        // always lock in the same order
+        for (Stripe stripe : stripes)
+        {
+            stripe.lock.lock();
+        }
+        try
+        {
+            for (int i = 0; i < stripes.length; i++)
+            {
+                pools[i] = stripes[i].pool;
+            }
+        }
+        finally
+        {
+            for (Stripe stripe : stripes)
+            {
+                stripe.lock.unlock();
+            }
+        }
+
+        final List<IPv6AddressRange> freeRanges = new ArrayList<IPv6AddressRange>();
+        for (IPv6AddressPool pool : pools)
+        {
+            freeRanges.addAll(pool.getFreeRanges());
+        }
+
+        return IPv6AddressPool.fromFreeRanges(underlyingRange, allocationSubnetSize, freeRanges);
+    }
+
+    /**
+     * @return number of stripes in which the pool is split
+     */
+    public int getNumberOfStripes()
+    {
+        return stripes.length;
+    }
+
+    private int homeStripe()
+    {
+        // spread consecutive thread ids over the stripes
+        final long hash = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return (int) ((hash >>> 33) % stripes.length);
+    }
+
+    private Stripe stripeContaining(IPv6Network network)
+    {
+        return stripes[indexOfStripeContaining(network)];
+    }
+
+    private int indexOfStripeContaining(IPv6Network network)
+    {
+        // binary search on the (sorted, consecutive) stripes
+        int low = 0;
+        int high = stripes.length - 1;
+        while (low < high)
+        {
+            final int middle = (low + high + 1) >>> 1;
+            if (stripes[middle].pool.getFirst().compareTo(network.getFirst()) <= 0)
+                low = middle;
+            else
+                high = middle - 1;
+        }
+
+        return low;
+    }
+
+    public IPv6NetworkMask getAllocationSubnetSize()
+    {
+        return allocationSubnetSize;
+    }
+
+    // delegation methods
+
+    public boolean contains(IPv6Address address)
+    {
+        return underlyingRange.contains(address);
+    }
+
+    public boolean contains(IPv6AddressRange range)
+    {
+        return underlyingRange.contains(range);
+    }
+
+    public IPv6Address getFirst()
+    {
+        return underlyingRange.getFirst();
+    }
+
+    public IPv6Address getLast()
+    {
+        return underlyingRange.getLast();
+    }
+
+    @Override
+    public String toString()
+    {
+        return underlyingRange.toString();
+    }
+
+    /**
+     * One stripe of the pool. The pool of a stripe is only replaced while holding the lock, but it can be read without locking.
+     */
+    private static final class Stripe
+    {
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private volatile IPv6AddressPool pool;
+
+        private Stripe(IPv6AddressPool pool)
+        {
+            this.pool = pool;
+        }
+
+        private IPv6Network allocate()
+        {
+            lock.lock();
+            try
+            {
+                if (pool.isExhausted())
+                    return null;
+
+                pool = pool.allocate();
+                return pool.getLastAllocated();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        private void allocate(int count, List<IPv6Network> allocated)
+        {
+            lock.lock();
+            try
+            {
+                IPv6AddressPool result = pool;
+                for (int i = 0; i < count && !result.isExhausted(); i++)
+                {
+                    result = result.allocate();
+                    allocated.add(result.getLastAllocated());
+                }
+                pool = result;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        private boolean allocate(IPv6Network toAllocate)
+        {
+            lock.lock();
+            try
+            {
+                final IPv6AddressPool result = pool.allocate(toAllocate);
+                if (result == null)
+                    return false;
+
+                pool = result;
+                return true;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        private void deAllocate(IPv6Network toDeAllocate)
+        {
+            lock.lock();
+            try
+            {
+                pool = pool.deAllocate(toDeAllocate);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        private void deAllocate(List<IPv6Network> toDeAllocate)
+        {
+            lock.lock();
+            try
+            {
+                pool = pool.deAllocate(toDeAllocate);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,438 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.googlecode.ipv6.IPv6NetworkTrie.bit;
+import static com.googlecode.ipv6.IPv6NetworkTrie.commonPrefixLength;
+import static com.googlecode.ipv6.IPv6NetworkTrie.mask;
+
+/**
+ * Thread safe variant of {@link IPv6NetworkTrie}, for tables which are looked up by many threads while they are being updated.
+ * <p>
+ * Lookups never block and never retry: they read the current version of the trie through a volatile reference, and versions are never
+ * modified once they are published. Updates are applied in {@link Batch batches}: a batch of puts and removes creates a new version of
+ * the trie, which shares all nodes outside of the paths to the updated networks with the previous version, and publishes it at once.
+ * Lookups thus see either none or all of the updates in a batch. Nodes created while applying a batch are modified in place until the batch
+ * is published, such that a batch copies every node at most once, however many of its updates are below it.
+ * <p>
+ * Batches are applied one after the other (updates are synchronized), so a table is best updated in batches by a single writer.
+ *
+ * @param <V> type of the values
+ * @author Jan Van Besien
+ */
+public final class ConcurrentIPv6NetworkTrie<V>
+{
+    private volatile Version<V> current = new Version<V>(null, 0);
+
+    /**
+     * @return a new (empty) batch of updates, to {@link #apply(Batch) apply} to this trie
+     */
+    public Batch<V> batch()
+    {
+        return new Batch<V>();
+    }
+
+    /**
+     * Apply all updates in the batch (in the order in which they were added to the batch) and publish the result as a single new version.
+     *
+     * @param batch batch to apply
+     */
+    public synchronized void apply(final Batch<V> batch)
+    {
+        if (batch == null)
+            throw new IllegalArgumentException("batch invalid [null]");
+
+        final Edit edit = new Edit();
+        Node<V> root = current.root;
+        for (int i = 0; i < batch.networks.size(); i++)
+        {
+            final IPv6Network network = batch.networks.get(i);
+            final long highBits = network.getFirst().getHighBits();
+            final long lowBits = network.getFirst().getLowBits();
+            final int prefixLength = network.getNetmask().asPrefixLength();
+
+            final V value = batch.values.get(i);
+            if (value != null)
+                root = put(root, highBits, lowBits, prefixLength, value, edit);
+            else
+                root = remove(root, highBits, lowBits, prefixLength, edit);
+        }
+
+        current = new Version<V>(root, current.size + edit.sizeDelta);
+    }
+
+    /**
+     * Associate a value with a network (as a batch of one update).
+     *
+     * @param network network
+     * @param value   value (not null)
+     */
+    public void put(final IPv6Network network, final V value)
+    {
+        apply(batch().put(network, value));
+    }
+
+    /**
+     * Remove the value associated with a network, if any (as a batch of one update).
+     *
+     * @param network network
+     */
+    public void remove(final IPv6Network network)
+    {
+        apply(batch().remove(network));
+    }
+
+    /**
+     * @param network network
+     * @return the value associated with exactly the given network, or null if there is none
+     */
+    public V get(final IPv6Network network)
+    {
+        if (network == null)
+            throw new IllegalArgumentException("network invalid [null]");
+
+        final long highBits = network.getFirst().getHighBits();
+        final long lowBits = network.getFirst().getLowBits();
+        final int prefixLength = network.getNetmask().asPrefixLength();
+
+        Node<V> node = current.root;
+        while (node != null && node.prefixLength < prefixLength && node.contains(highBits, lowBits))
+        {
+            node = node.child(bit(highBits, lowBits, node.prefixLength));
+        }
+        return node != null && node.prefixLength == prefixLength && node.contains(highBits, lowBits) ? node.value : null;
+    }
+
+    /**
+     * @param address address
+     * @return the value associated with the longest network containing the address, or null if no network contains it
+     */
+    public V longestMatch(final IPv6Address address)
+    {
+        if (address == null)
+            throw new IllegalArgumentException("address invalid [null]");
+
+        return longestMatch(address.getHighBits(), address.getLowBits());
+    }
+
+    /**
+     * Like {@link #longestMatch(IPv6Address)}, for an address given as two longs (see {@link IPv6Address#fromLongs(long, long)}).
+     *
+     * @param highBits highest order bits of the address
+     * @param lowBits  lowest order bits of the address
+     * @return the value associated with the longest network containing the address, or null if no network contains it
+     */
+    public V longestMatch(final long highBits, final long lowBits)
+    {
+        V longest = null;
+        Node<V> node = current.root;
+        while (node != null && node.contains(highBits, lowBits))
+        {
+            if (node.value != null)
+                longest = node.value;
+            if (node.prefixLength == 128)
+                break;
+            node = node.child(bit(highBits, lowBits, node.prefixLength));
+        }
+        return longest;
+    }
+
+    /**
+     * @param address address
+     * @return the values associated with all networks containing the address, from the shortest to the longest network (all from the
+     *         same version of the trie)
+     */
+    public List<V> allMatches(final IPv6Address address)
+    {
+        if (address == null)
+            throw new IllegalArgumentException("address invalid [null]");
+
+        final long highBits = address.getHighBits();
+        final long lowBits = address.getLowBits();
+
+        final List<V> matches = new ArrayList<V>();
+        Node<V> node = current.root;
+        while (node != null && node.contains(highBits, lowBits))
+        {
+            if (node.value != null)
+                matches.add(node.value);
+            if (node.prefixLength == 128)
+                break;
+            node = node.child(bit(highBits, lowBits, node.prefixLength));
+        }
+        return matches;
+    }
+
+    /**
+     * @return the number of networks with a value
+     */
+    public int size()
+    {
+        return current.size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size() == 0;
+    }
+
+    /**
+     * @return the root of the current version (for testing)
+     */
+    Node<V> getRoot()
+    {
+        return current.root;
+    }
+
+    /**
+     * @return the subtree with the value put in it, nodes which are not created by the given edit are copied rather than modified
+     */
+    private static <V> Node<V> put(final Node<V> node, final long highBits, final long lowBits, final int prefixLength, final V value,
+                                   final Edit edit)
+    {
+        if (node == null)
+        {
+            edit.sizeDelta++;
+            return new Node<V>(edit, highBits, lowBits, prefixLength, value);
+        }
+
+        final int common = Math.min(commonPrefixLength(node.highBits, node.lowBits, highBits, lowBits),
+                                    Math.min(node.prefixLength, prefixLength));
+        if (common == node.prefixLength && common == prefixLength)
+        {
+            // the network itself
+            if (node.value == null)
+                edit.sizeDelta++;
+            final Node<V> editable = node.editableBy(edit);
+            editable.value = value;
+            return editable;
+        }
+        else if (common == node.prefixLength)
+        {
+            // the network is within the node
+            final int bit = bit(highBits, lowBits, node.prefixLength);
+            final Node<V> child = put(node.child(bit), highBits, lowBits, prefixLength, value, edit);
+            final Node<V> editable = node.editableBy(edit);
+            editable.setChild(bit, child);
+            return editable;
+        }
+        else
+        {
+            // the network and the node differ in a bit within the prefix of the node
+            edit.sizeDelta++;
+            final Node<V> leaf = new Node<V>(edit, highBits, lowBits, prefixLength, value);
+            if (common == prefixLength)
+            {
+                // the node is within the network
+                leaf.setChild(bit(node.highBits, node.lowBits, prefixLength), node);
+                return leaf;
+            }
+            else
+            {
+                final Node<V> branch = new Node<V>(edit, mask(highBits, common, true), mask(lowBits, common, false), common, null);
+                branch.setChild(bit(highBits, lowBits, common), leaf);
+                branch.setChild(bit(node.highBits, node.lowBits, common), node);
+                return branch;
+            }
+        }
+    }
+
+    /**
+     * @return the subtree with the value of the network removed from it (the same subtree if it doesn't contain a value for the network)
+     */
+    private static <V> Node<V> remove(final Node<V> node, final long highBits, final long lowBits, final int prefixLength,
+                                      final Edit edit)
+    {
+        if (node == null || node.prefixLength > prefixLength || !node.contains(highBits, lowBits))
+            return node;
+
+        if (node.prefixLength == prefixLength)
+        {
+            if (node.value == null)
+                return node;
+
+            edit.sizeDelta--;
+            if (node.left != null && node.right != null)
+            {
+                // keep it, as a branch without value
+                final Node<V> editable = node.editableBy(edit);
+                editable.value = null;
+                return editable;
+            }
+            return node.left != null ? node.left : node.right;
+        }
+
+        final int bit = bit(highBits, lowBits, node.prefixLength);
+        final Node<V> child = node.child(bit);
+        final Node<V> newChild = remove(child, highBits, lowBits, prefixLength, edit);
+        if (newChild == child)
+            return node;
+        if (newChild == null && node.value == null)
+            return node.child(1 - bit); // leave out the branch without value
+
+        final Node<V> editable = node.editableBy(edit);
+        editable.setChild(bit, newChild);
+        return editable;
+    }
+
+    /**
+     * Batch of updates (puts and removes) to apply to a {@link ConcurrentIPv6NetworkTrie}.
+     * <p>
+     * This class is not thread safe.
+     *
+     * @param <V> type of the values
+     */
+    public static final class Batch<V>
+    {
+        private final List<IPv6Network> networks = new ArrayList<IPv6Network>();
+
+        /**
+         * Values to put, null for removes.
+         */
+        private final List<V> values = new ArrayList<V>();
+
+        private Batch()
+        {
+        }
+
+        /**
+         * Associate a value with a network.
+         *
+         * @param network network
+         * @param value   value (not null)
+         * @return the batch
+         */
+        public Batch<V> put(final IPv6Network network, final V value)
+        {
+            if (network == null)
+                throw new IllegalArgumentException("network invalid [null]");
+            if (value == null)
+                throw new IllegalArgumentException("value invalid [null]");
+
+            networks.add(network);
+            values.add(value);
+            return this;
+        }
+
+        /**
+         * Remove the value associated with a network (if any).
+         *
+         * @param network network
+         * @return the batch
+         */
+        public Batch<V> remove(final IPv6Network network)
+        {
+            if (network == null)
+                throw new IllegalArgumentException("network invalid [null]");
+
+            networks.add(network);
+            values.add(null);
+            return this;
+        }
+
+        /**
+         * @return the number of updates in the batch
+         */
+        public int size()
+        {
+            return networks.size();
+        }
+    }
+
+    private static final class Version<V>
+    {
+        private final Node<V> root;
+
+        private final int size;
+
+        private Version(Node<V> root, int size)
+        {
+            this.root = root;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Identifies the nodes created while applying a batch (which may be modified until the batch is published), and counts the change in
+     * size.
+     */
+    private static final class Edit
+    {
+        private int sizeDelta;
+    }
+
+    static final class Node<V>
+    {
+        private final Edit edit;
+
+        private final long highBits;
+
+        private final long lowBits;
+
+        private final int prefixLength;
+
+        private V value;
+
+        private Node<V> left;
+
+        private Node<V> right;
+
+        private Node(Edit edit, long highBits, long lowBits, int prefixLength, V value)
+        {
+            this.edit = edit;
+            this.highBits = highBits;
+            this.lowBits = lowBits;
+            this.prefixLength = prefixLength;
+            this.value = value;
+        }
+
+        /**
+         * @return this node if it was created by the given edit, a copy otherwise
+         */
+        private Node<V> editableBy(Edit edit)
+        {
+            if (this.edit == edit)
+                return this;
+
+            final Node<V> copy = new Node<V>(edit, highBits, lowBits, prefixLength, value);
+            copy.left = left;
+            copy.right = right;
+            return copy;
+        }
+
+        private boolean contains(long highBits, long lowBits)
+        {
+            return commonPrefixLength(this.highBits, this.lowBits, highBits, lowBits) >= prefixLength;
+        }
+
+        Node<V> child(int bit)
+        {
+            return bit == 0 ? left : right;
+        }
+
+        private void setChild(int bit, Node<V> child)
+        {
+            if (bit == 0)
+                left = child;
+            else
+                right = child;
+        }
+    }
+}
@@ -0,0 +1,1572 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Immutable (persistent) set of free subnets, used by {@link IPv6AddressPool}.
+ * <p>
+ * Subnets are identified by their "subnet number": the address of the subnet shifted right over the number of host bits. The free subnets
+ * are stored as a sequence of segments in a treap (a binary search tree balanced with pseudo random priorities derived from the keys, such
+ * that equal sets have equal shapes). Updates copy only the path to the modified nodes, all other nodes are shared with the previous
+ * version.
+ * <p>
+ * A segment is either a "run" of consecutive free subnets (stored as its first and last subnet number), or a "bitmap" with one bit per
+ * subnet in an aligned chunk of 64 subnets. The representation is canonical: a run which lies entirely within one chunk is stored in the
+ * bitmap of that chunk if the chunk contains at least {@link #DENSE_CHUNK_THRESHOLD} such runs, and as a separate run otherwise. Densely
+ * fragmented regions thus take one node per 64 subnets instead of one node per fragment, while sparse regions are stored as runs. All
+ * runs (including those represented by bits in a bitmap) are maximal: no two runs are adjacent.
+ *
+ * @author Jan Van Besien
+ */
+final class FreeRangeTree
+{
+    /**
+     * Minimum number of runs within a chunk of 64 subnets to store that chunk as a bitmap.
+     */
+    static final int DENSE_CHUNK_THRESHOLD = 4;
+
+    private static final int CHUNK_BITS = 6;
+
+    /**
+     * Number of host bits in a subnet (128 - prefix length).
+     */
+    private final int shift;
+
+    private final Node root;
+
+    private FreeRangeTree(int shift, Node root)
+    {
+        this.shift = shift;
+        this.root = root;
+    }
+
+    /**
+     * Create a free range tree from sorted, non overlapping ranges which are aligned with the given subnet size. Adjacent ranges are
+     * merged.
+     *
+     * @param allocationSubnetSize subnet size
+     * @param sortedRanges         sorted free ranges
+     * @return free range tree
+     */
+    static FreeRangeTree fromRanges(IPv6NetworkMask allocationSubnetSize, Iterable<? extends IPv6AddressRange> sortedRanges)
+    {
+        final int shift = 128 - allocationSubnetSize.asPrefixLength();
+
+        final Runs runs = new Runs();
+        for (IPv6AddressRange range : sortedRanges)
+        {
+            final IPv6Address first = range.getFirst();
+            final IPv6Address last = range.getLast();
+            runs.addMerging(shiftRightHigh(first.getHighBits(), first.getLowBits(), shift),
+                            shiftRightLow(first.getHighBits(), first.getLowBits(), shift),
+                            shiftRightHigh(last.getHighBits(), last.getLowBits(), shift),
+                            shiftRightLow(last.getHighBits(), last.getLowBits(), shift));
+        }
+
+        return new FreeRangeTree(shift, build(canonicalize(runs)));
+    }
+
+    /**
+     * Create a free range tree from sorted, non overlapping runs of subnet numbers. Adjacent runs are merged.
+     *
+     * @param allocationSubnetSize subnet size
+     * @param runs                 first and last subnet number (high and low bits) of every run
+     * @param numberOfRuns         number of runs in the array
+     * @return free range tree
+     */
+    static FreeRangeTree fromSubnetRuns(IPv6NetworkMask allocationSubnetSize, long[] runs, int numberOfRuns)
+    {
+        final Runs merged = new Runs();
+        for (int i = 0; i < numberOfRuns; i++)
+        {
+            merged.addMerging(runs[4 * i], runs[4 * i + 1], runs[4 * i + 2], runs[4 * i + 3]);
+        }
+
+        return new FreeRangeTree(128 - allocationSubnetSize.asPrefixLength(), build(canonicalize(merged)));
+    }
+
+    boolean isEmpty()
+    {
+        return root == null;
+    }
+
+    /**
+     * @return the address of the first free subnet, or null if there are no free subnets
+     */
+    IPv6Address first()
+    {
+        if (root == null)
+            return null;
+
+        Node node = root;
+        while (node.left != null)
+        {
+            node = node.left;
+        }
+        return toAddress(node.startHigh, node.startLow);
+    }
+
+    /**
+     * @return the address of the last free subnet, or null if there are no free subnets
+     */
+    IPv6Address last()
+    {
+        final Node node = last(root);
+        return node == null ? null : toAddress(node.endHigh, node.endLow);
+    }
+
+    /**
+     * @return the address of the first subnet in the first of the shortest free ranges, or null if there are no free subnets
+     */
+    IPv6Address firstOfShortestRange()
+    {
+        if (root == null)
+            return null;
+
+        // descend to the first node which contains a run with the shortest length of the whole tree
+        Node node = root;
+        while (true)
+        {
+            if (node.left != null && node.left.shortestHigh == root.shortestHigh && node.left.shortestLow == root.shortestLow)
+                node = node.left;
+            else if (node.ownShortestHigh() == root.shortestHigh && node.ownShortestLow() == root.shortestLow)
+                break;
+            else
+                node = node.right;
+        }
+
+        if (node.isBitmap())
+            return toAddress(node.startHigh, (node.startLow & ~63L) | (shortestRunInBitmap(node.bits) >>> 7));
+        else
+            return toAddress(node.startHigh, node.startLow);
+    }
+
+    /**
+     * @return the first of the longest free ranges, or null if there are no free subnets
+     */
+    IPv6AddressRange longestRange()
+    {
+        if (root == null)
+            return null;
+
+        // descend to the first node which contains a run with the longest length of the whole tree
+        Node node = root;
+        while (true)
+        {
+            if (node.left != null && node.left.longestHigh == root.longestHigh && node.left.longestLow == root.longestLow)
+                node = node.left;
+            else if (node.ownLongestHigh() == root.longestHigh && node.ownLongestLow() == root.longestLow)
+                break;
+            else
+                node = node.right;
+        }
+
+        if (node.isBitmap())
+        {
+            final int run = longestRunInBitmap(node.bits);
+            final long first = (node.startLow & ~63L) | (run >>> 7);
+            return toRange(node.startHigh, first, node.startHigh, first + (run & 127) - 1);
+        }
+        else
+        {
+            return toRange(node.startHigh, node.startLow, node.endHigh, node.endLow);
+        }
+    }
+
+    /**
+     * @return the number of free subnets
+     */
+    BigInteger count()
+    {
+        if (root == null)
+            return BigInteger.ZERO;
+        else if (root.countHigh == 0 && root.countLow == 0)
+            return BigInteger.ONE.shiftLeft(128); // all subnets of the whole address space are free
+        else
+            return IPv6Address.fromLongs(root.countHigh, root.countLow).toBigInteger();
+    }
+
+    /**
+     * @param range range aligned with the subnet size
+     * @return the number of free subnets within the given range
+     */
+    BigInteger countWithin(IPv6AddressRange range)
+    {
+        if (root != null && root.countHigh == 0 && root.countLow == 0)
+            return range.size().shiftRight(shift); // all subnets of the whole address space are free
+
+        final long firstHigh = shiftRightHigh(range.getFirst().getHighBits(), range.getFirst().getLowBits(), shift);
+        final long firstLow = shiftRightLow(range.getFirst().getHighBits(), range.getFirst().getLowBits(), shift);
+        final long lastHigh = shiftRightHigh(range.getLast().getHighBits(), range.getLast().getLowBits(), shift);
+        final long lastLow = shiftRightLow(range.getLast().getHighBits(), range.getLast().getLowBits(), shift);
+
+        final long[] count = countBetween(firstHigh, firstLow, lastHigh, lastLow);
+        return IPv6Address.fromLongs(count[0], count[1]).toBigInteger();
+    }
+
+    /**
+     * @return the number of free subnets between the given subnet numbers (inclusive), as high and low bits (not for a tree in which all
+     *         2^128 subnets are free)
+     */
+    private long[] countBetween(long firstHigh, long firstLow, long lastHigh, long lastLow)
+    {
+        final long[] upToLast = countUpTo(lastHigh, lastLow);
+        final long[] beforeFirst = firstHigh == 0 && firstLow == 0
+                                   ? new long[2]
+                                   : countUpTo(firstLow == 0 ? firstHigh - 1 : firstHigh, firstLow - 1);
+
+        // the difference can not overflow (the count within a range of a pool which is not completely free is below 2^128)
+        final long low = upToLast[1] - beforeFirst[1];
+        final long high = upToLast[0] - beforeFirst[0] - (IPv6AddressHelpers.isLessThanUnsigned(upToLast[1], beforeFirst[1]) ? 1 : 0);
+        return new long[]{high, low};
+    }
+
+    /**
+     * @return the number of free subnets with a subnet number not bigger than the given subnet number (modulo 2^128), as high and low
+     *         bits
+     */
+    private long[] countUpTo(long high, long low)
+    {
+        final long[] result = new long[2];
+        Node node = root;
+        while (node != null)
+        {
+            if (compare(node.startHigh, node.startLow, high, low) > 0)
+            {
+                node = node.left;
+                continue;
+            }
+
+            if (node.left != null)
+                add(result, node.left.countHigh, node.left.countLow);
+
+            if (compare(node.endHigh, node.endLow, high, low) <= 0)
+            {
+                add(result, node.ownCountHigh(), node.ownCountLow());
+                node = node.right;
+            }
+            else
+            {
+                // the subnet is within the span of this node, nothing to the right of it counts
+                if (node.isBitmap())
+                {
+                    add(result, 0, Long.bitCount(node.bits & (-1L >>> (63 - (low & 63)))));
+                }
+                else
+                {
+                    // high, low - start + 1
+                    final long countLow = low - node.startLow + 1;
+                    final long borrow = IPv6AddressHelpers.isLessThanUnsigned(low, node.startLow) ? 1 : 0;
+                    final long carry = countLow == 0 ? 1 : 0;
+                    add(result, high - node.startHigh - borrow + carry, countLow);
+                }
+                break;
+            }
+        }
+        return result;
+    }
+
+    private static void add(long[] sum, long high, long low)
+    {
+        final long resultLow = sum[1] + low;
+        sum[0] += high + (IPv6AddressHelpers.isLessThanUnsigned(resultLow, sum[1]) ? 1 : 0);
+        sum[1] = resultLow;
+    }
+
+    /**
+     * @param random source of randomness
+     * @return the address of a free subnet chosen uniformly at random, or null if there are no free subnets
+     */
+    IPv6Address random(Random random)
+    {
+        if (root == null)
+            return null;
+
+        // uniformly random index below the number of free subnets, by rejection sampling
+        long indexHigh;
+        long indexLow;
+        if (root.countHigh == 0 && root.countLow == 0)
+        {
+            // all 2^128 subnets are free
+            indexHigh = random.nextLong();
+            indexLow = random.nextLong();
+        }
+        else
+        {
+            final long maskHigh = root.countHigh == 0 ? 0 : -1L >>> Long.numberOfLeadingZeros(root.countHigh);
+            final long maskLow = root.countHigh == 0 ? -1L >>> Long.numberOfLeadingZeros(root.countLow) : -1L;
+            do
+            {
+                indexHigh = random.nextLong() & maskHigh;
+                indexLow = random.nextLong() & maskLow;
+            } while (compare(indexHigh, indexLow, root.countHigh, root.countLow) >= 0);
+        }
+
+        return select(indexHigh, indexLow);
+    }
+
+    /**
+     * @return the address of the free subnet with the given (zero based) index in the ordered sequence of all free subnets
+     */
+    private IPv6Address select(long indexHigh, long indexLow)
+    {
+        Node node = root;
+        while (node != null)
+        {
+            if (node.left != null)
+            {
+                if (compare(indexHigh, indexLow, node.left.countHigh, node.left.countLow) < 0)
+                {
+                    node = node.left;
+                    continue;
+                }
+                indexHigh -= node.left.countHigh + (IPv6AddressHelpers.isLessThanUnsigned(indexLow, node.left.countLow) ? 1 : 0);
+                indexLow -= node.left.countLow;
+            }
+
+            final long ownHigh = node.ownCountHigh();
+            final long ownLow = node.ownCountLow();
+            if ((ownHigh == 0 && ownLow == 0) || compare(indexHigh, indexLow, ownHigh, ownLow) < 0)
+            {
+                if (node.isBitmap())
+                {
+                    long remaining = node.bits;
+                    for (long i = 0; i < indexLow; i++)
+                    {
+                        remaining &= remaining - 1;
+                    }
+                    return toAddress(node.startHigh, (node.startLow & ~63L) | Long.numberOfTrailingZeros(remaining));
+                }
+                else
+                {
+                    final long low = node.startLow + indexLow;
+                    return toAddress(node.startHigh + indexHigh + (IPv6AddressHelpers.isLessThanUnsigned(low, node.startLow) ? 1 : 0),
+                                     low);
+                }
+            }
+            indexHigh -= ownHigh + (IPv6AddressHelpers.isLessThanUnsigned(indexLow, ownLow) ? 1 : 0);
+            indexLow -= ownLow;
+
+            node = node.right;
+        }
+
+        throw new IllegalStateException("index out of bounds");
+    }
+
+    /**
+     * @param subnetAddress address of a subnet
+     * @return the address of the first free subnet at or after the given subnet, or null if there is none
+     */
+    IPv6Address firstFreeFrom(IPv6Address subnetAddress)
+    {
+        final long high = shiftRightHigh(subnetAddress.getHighBits(), subnetAddress.getLowBits(), shift);
+        final long low = shiftRightLow(subnetAddress.getHighBits(), subnetAddress.getLowBits(), shift);
+
+        final Node node = floor(root, high, low);
+        if (node != null && compare(high, low, node.endHigh, node.endLow) <= 0)
+        {
+            // within the span of the node, which contains a free subnet at or after the given subnet
+            if (!node.isBitmap() || (node.bits & (1L << (low & 63))) != 0)
+                return toAddress(high, low);
+            else
+                return toAddress(high, (low & ~63L) | Long.numberOfTrailingZeros(node.bits & (-1L << (low & 63))));
+        }
+
+        // the start of the next node, if any
+        final Node next = ceiling(root, high, low);
+        return next == null ? null : toAddress(next.startHigh, next.startLow);
+    }
+
+    /**
+     * @param subnetAddress address of a subnet
+     * @return the address of the last free subnet at or before the given subnet, or null if there is none
+     */
+    IPv6Address lastFreeUpTo(IPv6Address subnetAddress)
+    {
+        final long high = shiftRightHigh(subnetAddress.getHighBits(), subnetAddress.getLowBits(), shift);
+        final long low = shiftRightLow(subnetAddress.getHighBits(), subnetAddress.getLowBits(), shift);
+
+        final Node node = floor(root, high, low);
+        if (node == null)
+            return null;
+        else if (compare(high, low, node.endHigh, node.endLow) > 0)
+            return toAddress(node.endHigh, node.endLow);
+        else if (!node.isBitmap())
+            return toAddress(high, low);
+        else
+            return toAddress(high, (low & ~63L) | (63 - Long.numberOfLeadingZeros(node.bits & (-1L >>> (63 - (low & 63))))));
+    }
+
+    /**
+     * @param subnetAddress address of a subnet
+     * @return true if the subnet is free
+     */
+    boolean isFree(IPv6Address subnetAddress)
+    {
+        final long high = shiftRightHigh(subnetAddress.getHighBits(), subnetAddress.getLowBits(), shift);
+        final long low = shiftRightLow(subnetAddress.getHighBits(), subnetAddress.getLowBits(), shift);
+
+        final Node node = floor(root, high, low);
+        return node != null && node.contains(high, low);
+    }
+
+    /**
+     * @param range range aligned with the subnet size
+     * @return a tree in which all subnets in the range are allocated
+     */
+    FreeRangeTree allocate(IPv6AddressRange range)
+    {
+        return update(range, false);
+    }
+
+    /**
+     * @param range range aligned with the subnet size
+     * @return a tree in which all subnets in the range are free
+     */
+    FreeRangeTree free(IPv6AddressRange range)
+    {
+        return update(range, true);
+    }
+
+    /**
+     * Update the tree by extracting all the segments in the neighbourhood of the given range, applying the update on the runs in those
+     * segments and replacing the extracted segments with the canonical representation of the result. The neighbourhood includes the
+     * chunks just before and after the range, because the runs in those chunks might (no longer) have to be merged with runs in the
+     * range, which changes the canonical representation of those chunks.
+     */
+    private FreeRangeTree update(IPv6AddressRange range, boolean free)
+    {
+        return update(shiftRightHigh(range.getFirst().getHighBits(), range.getFirst().getLowBits(), shift),
+                      shiftRightLow(range.getFirst().getHighBits(), range.getFirst().getLowBits(), shift),
+                      shiftRightHigh(range.getLast().getHighBits(), range.getLast().getLowBits(), shift),
+                      shiftRightLow(range.getLast().getHighBits(), range.getLast().getLowBits(), shift), free);
+    }
+
+    private FreeRangeTree update(long firstHigh, long firstLow, long lastHigh, long lastLow, boolean free)
+    {
+        // the neighbourhood: from the start of the chunk before the first subnet, to the end of the chunk after the last subnet
+        long fromHigh = firstHigh;
+        long fromLow = firstLow & ~63L;
+        if (fromHigh != 0 || fromLow != 0)
+        {
+            fromHigh = fromLow == 0 ? fromHigh - 1 : fromHigh;
+            fromLow = fromLow - 64;
+        }
+        // saturated at the end of the space if the chunk after the last subnet is (or would be after) the last chunk
+        final boolean toEnd = lastHigh == -1L && (lastLow | 127L) == -1L;
+        final long toHigh = toEnd ? -1L : ((lastLow | 63L) == -1L ? lastHigh + 1 : lastHigh);
+        final long toLow = toEnd ? -1L : (lastLow | 63L) + 64;
+
+        // extract all segments which intersect the neighbourhood (only the last segment before it can start in front of it)
+        final Node[] split = split(root, fromHigh, fromLow);
+        Node before = split[0];
+        final Runs runs = new Runs();
+        final Node lastBefore = last(before);
+        if (lastBefore != null && compare(lastBefore.endHigh, lastBefore.endLow, fromHigh, fromLow) >= 0)
+        {
+            before = split(before, lastBefore.startHigh, lastBefore.startLow)[0];
+            lastBefore.addRunsTo(runs);
+        }
+
+        final Node after;
+        if (toEnd)
+        {
+            addRunsInOrder(split[1], runs);
+            after = null;
+        }
+        else
+        {
+            final Node[] rest = split(split[1], toLow == -1L ? toHigh + 1 : toHigh, toLow + 1);
+            addRunsInOrder(rest[0], runs);
+            after = rest[1];
+        }
+
+        final Runs updated = free ? runs.union(firstHigh, firstLow, lastHigh, lastLow) : runs.subtract(firstHigh, firstLow, lastHigh, lastLow);
+
+        return new FreeRangeTree(shift, merge(merge(before, build(canonicalize(updated))), after));
+    }
+
+    /**
+     * Compute the differences with another version of this tree. Subtrees which are shared between both versions are skipped, such that
+     * the differences between versions which are derived from each other are found in time proportional to the number of changed
+     * segments (times the logarithm of the number of segments), rather than to the size of the trees.
+     *
+     * @param newer other version of the tree
+     * @return first and last subnet number (high and low bits) of the runs which are free in this tree but not in the other, and of the
+     *         runs which are free in the other tree but not in this one
+     */
+    long[][] diff(FreeRangeTree newer)
+    {
+        final Runs olderOnly = new Runs();
+        final Runs newerOnly = new Runs();
+        collectDifferentSegments(root, newer.root, olderOnly, newerOnly);
+
+        return new long[][]{olderOnly.without(newerOnly).toArray(), newerOnly.without(olderOnly).toArray()};
+    }
+
+    /**
+     * Collect (in order) the runs of the segments which are only in one of both trees. The tree with the highest root is split around
+     * the key of that root, and the parts are compared recursively. Identical (shared) subtrees are not visited.
+     */
+    private static void collectDifferentSegments(Node a, Node b, Runs aOnly, Runs bOnly)
+    {
+        if (a == b)
+            return;
+        if (a == null)
+        {
+            addRunsInOrder(b, bOnly);
+            return;
+        }
+        if (b == null)
+        {
+            addRunsInOrder(a, aOnly);
+            return;
+        }
+        if (b.higherThan(a))
+        {
+            collectDifferentSegments(b, a, bOnly, aOnly);
+            return;
+        }
+
+        // split b in the nodes before, at and after the key of a
+        final Node[] split = split(b, a.startHigh, a.startLow);
+        final Node[] rest = a.startHigh == -1L && a.startLow == -1L
+                            ? new Node[]{split[1], null}
+                            : split(split[1], a.startLow == -1L ? a.startHigh + 1 : a.startHigh, a.startLow + 1);
+
+        collectDifferentSegments(a.left, split[0], aOnly, bOnly);
+        if (rest[0] == null || !a.sameSegment(rest[0]))
+        {
+            a.addRunsTo(aOnly);
+            if (rest[0] != null)
+                rest[0].addRunsTo(bOnly);
+        }
+        collectDifferentSegments(a.right, rest[1], aOnly, bOnly);
+    }
+
+    /**
+     * Apply differences (as computed with {@link #diff(FreeRangeTree)}).
+     *
+     * @param allocated runs of subnet numbers to allocate, which should be free
+     * @param released  runs of subnet numbers to free, which should be allocated
+     * @return the resulting tree
+     */
+    FreeRangeTree apply(long[] allocated, long[] released)
+    {
+        FreeRangeTree result = this;
+        for (int i = 0; i < allocated.length; i += 4)
+        {
+            if (!result.allFreeBetween(allocated[i], allocated[i + 1], allocated[i + 2], allocated[i + 3]))
+                throw new IllegalArgumentException("can not allocate subnets which are not free [" +
+                                                           toRange(allocated[i], allocated[i + 1], allocated[i + 2], allocated[i + 3]) + "]");
+            result = result.update(allocated[i], allocated[i + 1], allocated[i + 2], allocated[i + 3], false);
+        }
+        for (int i = 0; i < released.length; i += 4)
+        {
+            if (!result.noneFreeBetween(released[i], released[i + 1], released[i + 2], released[i + 3]))
+                throw new IllegalArgumentException("can not free subnets which are not allocated [" +
+                                                           toRange(released[i], released[i + 1], released[i + 2], released[i + 3]) + "]");
+            result = result.update(released[i], released[i + 1], released[i + 2], released[i + 3], true);
+        }
+        return result;
+    }
+
+    private boolean allFreeBetween(long firstHigh, long firstLow, long lastHigh, long lastLow)
+    {
+        if (root == null)
+            return false;
+        if (root.countHigh == 0 && root.countLow == 0)
+            return true; // all subnets of the whole address space are free
+
+        final long[] count = countBetween(firstHigh, firstLow, lastHigh, lastLow);
+        final long lengthLow = lastLow - firstLow + 1;
+        final long lengthHigh = lastHigh - firstHigh - (IPv6AddressHelpers.isLessThanUnsigned(lastLow, firstLow) ? 1 : 0)
+                + (lengthLow == 0 ? 1 : 0);
+        return count[0] == lengthHigh && count[1] == lengthLow;
+    }
+
+    private boolean noneFreeBetween(long firstHigh, long firstLow, long lastHigh, long lastLow)
+    {
+        if (root != null && root.countHigh == 0 && root.countLow == 0)
+            return false; // all subnets of the whole address space are free
+
+        final long[] count = countBetween(firstHigh, firstLow, lastHigh, lastLow);
+        return count[0] == 0 && count[1] == 0;
+    }
+
+    /**
+     * @return all free ranges, in order
+     */
+    List<IPv6AddressRange> toRanges()
+    {
+        final List<IPv6AddressRange> ranges = new ArrayList<IPv6AddressRange>();
+        final Runs runs = new Runs();
+        addRunsInOrder(root, runs);
+        for (int i = 0; i < runs.size; i++)
+        {
+            ranges.add(toRange(runs.data[4 * i], runs.data[4 * i + 1], runs.data[4 * i + 2], runs.data[4 * i + 3]));
+        }
+        return ranges;
+    }
+
+    /**
+     * @return first and last subnet number (high and low bits) of all free runs, in order
+     */
+    long[] toSubnetRuns()
+    {
+        final Runs runs = new Runs();
+        addRunsInOrder(root, runs);
+        return runs.toArray();
+    }
+
+    /**
+     * @return iterator over the addresses of all free subnets, in order
+     */
+    Iterator<IPv6Address> freeSubnets()
+    {
+        return new FreeSubnetIterator();
+    }
+
+    /**
+     * Verify the internal consistency of the tree: the ordering and priorities of the nodes and the canonical representation of the
+     * segments. Note that the ranges themselves are verified by the pool, based on {@link #toRanges()}.
+     *
+     * @throws IllegalStateException if the tree is inconsistent
+     */
+    void checkStructure()
+    {
+        checkNode(root);
+
+        final Runs runs = new Runs();
+        final List<Node> nodes = new ArrayList<Node>();
+        addNodesInOrder(root, nodes);
+        for (int i = 0; i < nodes.size(); i++)
+        {
+            final Node node = nodes.get(i);
+            if (i > 0 && compare(nodes.get(i - 1).endHigh, nodes.get(i - 1).endLow, node.startHigh, node.startLow) >= 0)
+                throw new IllegalStateException("segments overlap or are not sorted");
+
+            node.addRunsTo(runs);
+        }
+
+        // runs within a single chunk should be stored in a bitmap if and only if the chunk is dense
+        if (!equalSegments(nodes, canonicalize(runs)))
+            throw new IllegalStateException("segments are not in canonical form");
+    }
+
+    private static void checkNode(Node node)
+    {
+        if (node == null)
+            return;
+
+        if (node.left != null && (node.left.higherThan(node) || compare(node.left.startHigh, node.left.startLow, node.startHigh,
+                                                                         node.startLow) >= 0))
+            throw new IllegalStateException("tree is not a treap");
+        if (node.right != null && (node.right.higherThan(node) || compare(node.right.startHigh, node.right.startLow, node.startHigh,
+                                                                           node.startLow) <= 0))
+            throw new IllegalStateException("tree is not a treap");
+
+        checkNode(node.left);
+        checkNode(node.right);
+    }
+
+    private static boolean equalSegments(List<Node> nodes, Segments segments)
+    {
+        if (nodes.size() != segments.size)
+            return false;
+
+        for (int i = 0; i < nodes.size(); i++)
+        {
+            final Node node = nodes.get(i);
+            final long[] data = segments.data;
+            if (node.startHigh != data[5 * i] || node.startLow != data[5 * i + 1] || node.endHigh != data[5 * i + 2]
+                    || node.endLow != data[5 * i + 3] || node.bits != data[5 * i + 4])
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return number of segments (runs and bitmaps) in the tree
+     */
+    int numberOfSegments()
+    {
+        return root == null ? 0 : root.size;
+    }
+
+    private IPv6Address toAddress(long high, long low)
+    {
+        return IPv6Address.fromLongs(shiftLeftHigh(high, low, shift), shiftLeftLow(high, low, shift));
+    }
+
+    private IPv6AddressRange toRange(long startHigh, long startLow, long endHigh, long endLow)
+    {
+        // the last address of the last subnet has all host bits set
+        final long hostHigh = shift >= 64 ? (shift == 128 ? -1L : ~(-1L << (shift - 64))) : 0L;
+        final long hostLow = shift >= 64 ? -1L : ~(-1L << shift);
+
+        return IPv6AddressRange.fromFirstAndLast(toAddress(startHigh, startLow),
+                                                 IPv6Address.fromLongs(shiftLeftHigh(endHigh, endLow, shift) | hostHigh,
+                                                                       shiftLeftLow(endHigh, endLow, shift) | hostLow));
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        final FreeRangeTree that = (FreeRangeTree) o;
+        if (shift != that.shift) return false;
+
+        // the representation is canonical, so equal sets of free subnets have equal segments
+        final List<Node> these = new ArrayList<Node>();
+        final List<Node> those = new ArrayList<Node>();
+        addNodesInOrder(root, these);
+        addNodesInOrder(that.root, those);
+        if (these.size() != those.size()) return false;
+
+        for (int i = 0; i < these.size(); i++)
+        {
+            if (!these.get(i).sameSegment(those.get(i))) return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        final List<Node> nodes = new ArrayList<Node>();
+        addNodesInOrder(root, nodes);
+
+        int result = shift;
+        for (Node node : nodes)
+        {
+            result = 31 * result + node.segmentHashCode();
+        }
+        return result;
+    }
+
+    // treap operations
+
+    /**
+     * @return the node with the biggest start which is not bigger than the given subnet number, or null
+     */
+    private static Node floor(Node node, long high, long low)
+    {
+        Node result = null;
+        while (node != null)
+        {
+            if (compare(node.startHigh, node.startLow, high, low) <= 0)
+            {
+                result = node;
+                node = node.right;
+            }
+            else
+            {
+                node = node.left;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the node with the smallest start which is not smaller than the given subnet number, or null
+     */
+    private static Node ceiling(Node node, long high, long low)
+    {
+        Node result = null;
+        while (node != null)
+        {
+            if (compare(node.startHigh, node.startLow, high, low) >= 0)
+            {
+                result = node;
+                node = node.left;
+            }
+            else
+            {
+                node = node.right;
+            }
+        }
+        return result;
+    }
+
+    private static Node last(Node node)
+    {
+        if (node == null)
+            return null;
+
+        while (node.right != null)
+        {
+            node = node.right;
+        }
+        return node;
+    }
+
+    /**
+     * Split in the nodes with a start smaller than the given subnet number, and the others.
+     */
+    private static Node[] split(Node node, long high, long low)
+    {
+        if (node == null)
+            return new Node[2];
+
+        if (compare(node.startHigh, node.startLow, high, low) < 0)
+        {
+            final Node[] result = split(node.right, high, low);
+            result[0] = node.withChildren(node.left, result[0]);
+            return result;
+        }
+        else
+        {
+            final Node[] result = split(node.left, high, low);
+            result[1] = node.withChildren(result[1], node.right);
+            return result;
+        }
+    }
+
+    /**
+     * Merge two trees, all nodes of the first tree should be smaller than all nodes of the second tree.
+     */
+    private static Node merge(Node a, Node b)
+    {
+        if (a == null)
+            return b;
+        if (b == null)
+            return a;
+
+        if (b.higherThan(a))
+            return b.withChildren(merge(a, b.left), b.right);
+        else
+            return a.withChildren(a.left, merge(a.right, b));
+    }
+
+    /**
+     * Build a treap from sorted segments in linear time (as a cartesian tree on the priorities).
+     */
+    private static Node build(Segments segments)
+    {
+        final int n = segments.size;
+        if (n == 0)
+            return null;
+
+        final int[] priorities = new int[n];
+        final int[] left = new int[n];
+        final int[] right = new int[n];
+        final int[] stack = new int[n];
+        int top = -1;
+        for (int i = 0; i < n; i++)
+        {
+            priorities[i] = priority(segments.data[5 * i], segments.data[5 * i + 1]);
+            left[i] = -1;
+            right[i] = -1;
+
+            // ties are won by the smallest key, which is always the one on the stack
+            int lastPopped = -1;
+            while (top >= 0 && priorities[i] > priorities[stack[top]])
+            {
+                lastPopped = stack[top--];
+            }
+            left[i] = lastPopped;
+            if (top >= 0)
+                right[stack[top]] = i;
+            stack[++top] = i;
+        }
+
+        return buildNode(segments, priorities, left, right, stack[0]);
+    }
+
+    private static Node buildNode(Segments segments, int[] priorities, int[] left, int[] right, int i)
+    {
+        if (i < 0)
+            return null;
+
+        final long[] data = segments.data;
+        return new Node(data[5 * i], data[5 * i + 1], data[5 * i + 2], data[5 * i + 3], data[5 * i + 4], priorities[i],
+                        buildNode(segments, priorities, left, right, left[i]), buildNode(segments, priorities, left, right, right[i]));
+    }
+
+    private static void addRunsInOrder(Node node, Runs runs)
+    {
+        if (node != null)
+        {
+            addRunsInOrder(node.left, runs);
+            node.addRunsTo(runs);
+            addRunsInOrder(node.right, runs);
+        }
+    }
+
+    private static void addNodesInOrder(Node node, List<Node> nodes)
+    {
+        if (node != null)
+        {
+            addNodesInOrder(node.left, nodes);
+            nodes.add(node);
+            addNodesInOrder(node.right, nodes);
+        }
+    }
+
+    /**
+     * Convert sorted, maximal runs in their canonical representation as segments.
+     */
+    private static Segments canonicalize(Runs runs)
+    {
+        final Segments segments = new Segments();
+        final long[] data = runs.data;
+
+        int i = 0;
+        while (i < runs.size)
+        {
+            // find the consecutive runs which lie entirely within the chunk of this run
+            int j = i;
+            while (j < runs.size && isWithinChunk(data[4 * j], data[4 * j + 1], data[4 * j + 2], data[4 * j + 3])
+                    && data[4 * j] == data[4 * i] && (data[4 * j + 1] >>> CHUNK_BITS) == (data[4 * i + 1] >>> CHUNK_BITS))
+            {
+                j++;
+            }
+
+            if (j - i >= DENSE_CHUNK_THRESHOLD)
+            {
+                long bits = 0;
+                for (int k = i; k < j; k++)
+                {
+                    bits |= bitsOf(data[4 * k + 1], data[4 * k + 3]);
+                }
+                segments.add(data[4 * i], data[4 * i + 1], data[4 * (j - 1) + 2], data[4 * (j - 1) + 3], bits);
+                i = j;
+            }
+            else
+            {
+                final int end = Math.max(j, i + 1);
+                for (int k = i; k < end; k++)
+                {
+                    segments.add(data[4 * k], data[4 * k + 1], data[4 * k + 2], data[4 * k + 3], 0L);
+                }
+                i = end;
+            }
+        }
+
+        return segments;
+    }
+
+    private static boolean isWithinChunk(long startHigh, long startLow, long endHigh, long endLow)
+    {
+        return startHigh == endHigh && (startLow >>> CHUNK_BITS) == (endLow >>> CHUNK_BITS);
+    }
+
+    private static long bitsOf(long startLow, long endLow)
+    {
+        return (-1L << (startLow & 63)) & (-1L >>> (63 - (endLow & 63)));
+    }
+
+    /**
+     * @return the index of the first bit of the first shortest run of set bits, shifted left over 7 bits, or'ed with the length of that
+     *         run
+     */
+    private static int shortestRunInBitmap(long bits)
+    {
+        return extremeRunInBitmap(bits, true);
+    }
+
+    /**
+     * @return the index of the first bit of the first longest run of set bits, shifted left over 7 bits, or'ed with the length of that
+     *         run
+     */
+    private static int longestRunInBitmap(long bits)
+    {
+        return extremeRunInBitmap(bits, false);
+    }
+
+    private static int extremeRunInBitmap(long bits, boolean shortest)
+    {
+        int result = 0;
+        int extreme = shortest ? 65 : 0;
+        long remaining = bits;
+        while (remaining != 0)
+        {
+            final int first = Long.numberOfTrailingZeros(remaining);
+            final int length = Long.numberOfTrailingZeros(~(remaining >>> first));
+            if (shortest ? length < extreme : length > extreme)
+            {
+                extreme = length;
+                result = (first << 7) | length;
+            }
+            remaining &= first + length >= 64 ? 0L : (-1L << (first + length));
+        }
+        return result;
+    }
+
+    private static int priority(long high, long low)
+    {
+        // murmur3 finalizer
+        long h = high * 0x9E3779B97F4A7C15L ^ low;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    // unsigned 128 bit arithmetic on (high, low) pairs
+
+    static int compare(long aHigh, long aLow, long bHigh, long bLow)
+    {
+        if (aHigh != bHigh)
+            return IPv6AddressHelpers.isLessThanUnsigned(aHigh, bHigh) ? -1 : 1;
+        else if (aLow != bLow)
+            return IPv6AddressHelpers.isLessThanUnsigned(aLow, bLow) ? -1 : 1;
+        else
+            return 0;
+    }
+
+    static long shiftRightHigh(long high, long low, int n)
+    {
+        return n == 0 ? high : (n < 64 ? high >>> n : 0L);
+    }
+
+    static long shiftRightLow(long high, long low, int n)
+    {
+        if (n == 0)
+            return low;
+        else if (n < 64)
+            return (low >>> n) | (high << (64 - n));
+        else if (n < 128)
+            return high >>> (n - 64);
+        else
+            return 0L;
+    }
+
+    static long shiftLeftHigh(long high, long low, int n)
+    {
+        if (n == 0)
+            return high;
+        else if (n < 64)
+            return (high << n) | (low >>> (64 - n));
+        else if (n < 128)
+            return low << (n - 64);
+        else
+            return 0L;
+    }
+
+    static long shiftLeftLow(long high, long low, int n)
+    {
+        return n == 0 ? low : (n < 64 ? low << n : 0L);
+    }
+
+    /**
+     * Node in the treap, representing one segment. Immutable.
+     */
+    private static final class Node
+    {
+        /**
+         * First free subnet in the segment.
+         */
+        private final long startHigh, startLow;
+
+        /**
+         * Last free subnet in the segment.
+         */
+        private final long endHigh, endLow;
+
+        /**
+         * Zero for runs, bitmap of free subnets in the chunk of start (and end) otherwise.
+         */
+        private final long bits;
+
+        private final int priority;
+
+        private final Node left, right;
+
+        /**
+         * Number of nodes in the subtree.
+         */
+        private final int size;
+
+        /**
+         * Number of free subnets in the subtree (modulo 2^128, a non empty tree with count zero contains all 2^128 subnets).
+         */
+        private final long countHigh, countLow;
+
+        /**
+         * Length minus one of the shortest run in the subtree.
+         */
+        private final long shortestHigh, shortestLow;
+
+        /**
+         * Length minus one of the longest run in the subtree.
+         */
+        private final long longestHigh, longestLow;
+
+        private Node(long startHigh, long startLow, long endHigh, long endLow, long bits, int priority, Node left, Node right)
+        {
+            this.startHigh = startHigh;
+            this.startLow = startLow;
+            this.endHigh = endHigh;
+            this.endLow = endLow;
+            this.bits = bits;
+            this.priority = priority;
+            this.left = left;
+            this.right = right;
+            this.size = 1 + (left == null ? 0 : left.size) + (right == null ? 0 : right.size);
+
+            long countHigh = ownCountHigh();
+            long countLow = ownCountLow();
+            long shortestHigh = ownShortestHigh();
+            long shortestLow = ownShortestLow();
+            long longestHigh = ownLongestHigh();
+            long longestLow = ownLongestLow();
+            if (left != null)
+            {
+                countHigh += left.countHigh + (IPv6AddressHelpers.isLessThanUnsigned(countLow + left.countLow, countLow) ? 1 : 0);
+                countLow += left.countLow;
+                if (compare(left.shortestHigh, left.shortestLow, shortestHigh, shortestLow) < 0)
+                {
+                    shortestHigh = left.shortestHigh;
+                    shortestLow = left.shortestLow;
+                }
+                if (compare(left.longestHigh, left.longestLow, longestHigh, longestLow) > 0)
+                {
+                    longestHigh = left.longestHigh;
+                    longestLow = left.longestLow;
+                }
+            }
+            if (right != null)
+            {
+                countHigh += right.countHigh + (IPv6AddressHelpers.isLessThanUnsigned(countLow + right.countLow, countLow) ? 1 : 0);
+                countLow += right.countLow;
+                if (compare(right.shortestHigh, right.shortestLow, shortestHigh, shortestLow) < 0)
+                {
+                    shortestHigh = right.shortestHigh;
+                    shortestLow = right.shortestLow;
+                }
+                if (compare(right.longestHigh, right.longestLow, longestHigh, longestLow) > 0)
+                {
+                    longestHigh = right.longestHigh;
+                    longestLow = right.longestLow;
+                }
+            }
+            this.countHigh = countHigh;
+            this.countLow = countLow;
+            this.shortestHigh = shortestHigh;
+            this.shortestLow = shortestLow;
+            this.longestHigh = longestHigh;
+            this.longestLow = longestLow;
+        }
+
+        /**
+         * @return number of free subnets in this segment (only)
+         */
+        private long ownCountHigh()
+        {
+            return isBitmap() ? 0 : (runLengthMinusOneLow() == -1L ? runLengthMinusOneHigh() + 1 : runLengthMinusOneHigh());
+        }
+
+        private long ownCountLow()
+        {
+            return isBitmap() ? Long.bitCount(bits) : runLengthMinusOneLow() + 1;
+        }
+
+        /**
+         * @return length minus one of the shortest run in this segment (only)
+         */
+        private long ownShortestHigh()
+        {
+            return isBitmap() ? 0 : runLengthMinusOneHigh();
+        }
+
+        private long ownShortestLow()
+        {
+            return isBitmap() ? (shortestRunInBitmap(bits) & 127) - 1 : runLengthMinusOneLow();
+        }
+
+        /**
+         * @return length minus one of the longest run in this segment (only)
+         */
+        private long ownLongestHigh()
+        {
+            return isBitmap() ? 0 : runLengthMinusOneHigh();
+        }
+
+        private long ownLongestLow()
+        {
+            return isBitmap() ? (longestRunInBitmap(bits) & 127) - 1 : runLengthMinusOneLow();
+        }
+
+        private long runLengthMinusOneHigh()
+        {
+            return endHigh - startHigh - (IPv6AddressHelpers.isLessThanUnsigned(endLow, startLow) ? 1 : 0);
+        }
+
+        private long runLengthMinusOneLow()
+        {
+            return endLow - startLow;
+        }
+
+        private Node withChildren(Node left, Node right)
+        {
+            if (left == this.left && right == this.right)
+                return this;
+
+            return new Node(startHigh, startLow, endHigh, endLow, bits, priority, left, right);
+        }
+
+        private boolean isBitmap()
+        {
+            return bits != 0;
+        }
+
+        private boolean higherThan(Node that)
+        {
+            // ties are won by the smallest key
+            return priority > that.priority
+                    || (priority == that.priority && compare(startHigh, startLow, that.startHigh, that.startLow) < 0);
+        }
+
+        private boolean contains(long high, long low)
+        {
+            if (compare(high, low, startHigh, startLow) < 0 || compare(high, low, endHigh, endLow) > 0)
+                return false;
+
+            return !isBitmap() || (bits & (1L << (low & 63))) != 0;
+        }
+
+        private void addRunsTo(Runs runs)
+        {
+            if (!isBitmap())
+            {
+                runs.add(startHigh, startLow, endHigh, endLow);
+            }
+            else
+            {
+                final long chunk = startLow & ~63L;
+                long remaining = bits;
+                while (remaining != 0)
+                {
+                    final int first = Long.numberOfTrailingZeros(remaining);
+                    final int length = Long.numberOfTrailingZeros(~(remaining >>> first));
+                    final int last = Math.min(63, first + length - 1);
+                    runs.add(startHigh, chunk | first, startHigh, chunk | last);
+                    remaining &= last == 63 ? 0L : (-1L << (last + 1));
+                }
+            }
+        }
+
+        private boolean sameSegment(Node that)
+        {
+            return startHigh == that.startHigh && startLow == that.startLow && endHigh == that.endHigh && endLow == that.endLow
+                    && bits == that.bits;
+        }
+
+        private int segmentHashCode()
+        {
+            int result = (int) (startLow ^ (startLow >>> 32));
+            result = 31 * result + (int) (startHigh ^ (startHigh >>> 32));
+            result = 31 * result + (int) (endLow ^ (endLow >>> 32));
+            result = 31 * result + (int) (endHigh ^ (endHigh >>> 32));
+            result = 31 * result + (int) (bits ^ (bits >>> 32));
+            return result;
+        }
+    }
+
+    /**
+     * Growable list of runs, each stored as four longs (start high, start low, end high, end low).
+     */
+    private static final class Runs
+    {
+        private long[] data = new long[16];
+
+        private int size;
+
+        private void add(long startHigh, long startLow, long endHigh, long endLow)
+        {
+            if (4 * size + 4 > data.length)
+            {
+                final long[] grown = new long[data.length * 2];
+                System.arraycopy(data, 0, grown, 0, 4 * size);
+                data = grown;
+            }
+
+            data[4 * size] = startHigh;
+            data[4 * size + 1] = startLow;
+            data[4 * size + 2] = endHigh;
+            data[4 * size + 3] = endLow;
+            size++;
+        }
+
+        /**
+         * Add a run, merging it with the last run if they are adjacent.
+         */
+        private void addMerging(long startHigh, long startLow, long endHigh, long endLow)
+        {
+            if (size > 0 && isSuccessor(data[4 * size - 2], data[4 * size - 1], startHigh, startLow))
+            {
+                data[4 * size - 2] = endHigh;
+                data[4 * size - 1] = endLow;
+            }
+            else
+            {
+                add(startHigh, startLow, endHigh, endLow);
+            }
+        }
+
+        private static boolean isSuccessor(long high, long low, long nextHigh, long nextLow)
+        {
+            return low == -1L ? (nextLow == 0 && nextHigh == high + 1 && high != -1L) : (nextLow == low + 1 && nextHigh == high);
+        }
+
+        /**
+         * @return the union of these runs with the given run
+         */
+        private Runs union(long firstHigh, long firstLow, long lastHigh, long lastLow)
+        {
+            final Runs result = new Runs();
+            boolean added = false;
+            for (int i = 0; i < size; i++)
+            {
+                if (!added && compare(firstHigh, firstLow, data[4 * i], data[4 * i + 1]) <= 0)
+                {
+                    result.addMergingOverlap(firstHigh, firstLow, lastHigh, lastLow);
+                    added = true;
+                }
+                result.addMergingOverlap(data[4 * i], data[4 * i + 1], data[4 * i + 2], data[4 * i + 3]);
+            }
+            if (!added)
+                result.addMergingOverlap(firstHigh, firstLow, lastHigh, lastLow);
+
+            return result;
+        }
+
+        /**
+         * Add a run (which doesn't start before the last run), merging it with the last run if they overlap or are adjacent.
+         */
+        private void addMergingOverlap(long startHigh, long startLow, long endHigh, long endLow)
+        {
+            if (size > 0 && (compare(startHigh, startLow, data[4 * size - 2], data[4 * size - 1]) <= 0
+                    || isSuccessor(data[4 * size - 2], data[4 * size - 1], startHigh, startLow)))
+            {
+                if (compare(endHigh, endLow, data[4 * size - 2], data[4 * size - 1]) > 0)
+                {
+                    data[4 * size - 2] = endHigh;
+                    data[4 * size - 1] = endLow;
+                }
+            }
+            else
+            {
+                add(startHigh, startLow, endHigh, endLow);
+            }
+        }
+
+        /**
+         * @return these runs without the subnets in the given (sorted, non overlapping) runs, in a single pass over both
+         */
+        private Runs without(Runs that)
+        {
+            final Runs result = new Runs();
+            int j = 0;
+            for (int i = 0; i < size; i++)
+            {
+                long currentHigh = data[4 * i];
+                long currentLow = data[4 * i + 1];
+                final long endHigh = data[4 * i + 2];
+                final long endLow = data[4 * i + 3];
+
+                // skip the runs of that which end before the current subnet
+                while (j < that.size && compare(that.data[4 * j + 2], that.data[4 * j + 3], currentHigh, currentLow) < 0)
+                {
+                    j++;
+                }
+
+                boolean covered = false;
+                while (j < that.size && compare(that.data[4 * j], that.data[4 * j + 1], endHigh, endLow) <= 0)
+                {
+                    final long thatStartHigh = that.data[4 * j];
+                    final long thatStartLow = that.data[4 * j + 1];
+                    if (compare(thatStartHigh, thatStartLow, currentHigh, currentLow) > 0)
+                        result.addMerging(currentHigh, currentLow, thatStartLow == 0 ? thatStartHigh - 1 : thatStartHigh, thatStartLow - 1);
+
+                    final long thatEndHigh = that.data[4 * j + 2];
+                    final long thatEndLow = that.data[4 * j + 3];
+                    if (compare(thatEndHigh, thatEndLow, endHigh, endLow) >= 0)
+                    {
+                        // the run of that covers the rest of this run (and might overlap with the next run as well)
+                        covered = true;
+                        break;
+                    }
+                    currentLow = thatEndLow + 1;
+                    currentHigh = currentLow == 0 ? thatEndHigh + 1 : thatEndHigh;
+                    j++;
+                }
+
+                if (!covered)
+                    result.addMerging(currentHigh, currentLow, endHigh, endLow);
+            }
+            return result;
+        }
+
+        private long[] toArray()
+        {
+            final long[] result = new long[4 * size];
+            System.arraycopy(data, 0, result, 0, result.length);
+            return result;
+        }
+
+        /**
+         * @return these runs without the given run
+         */
+        private Runs subtract(long firstHigh, long firstLow, long lastHigh, long lastLow)
+        {
+            final Runs result = new Runs();
+            for (int i = 0; i < size; i++)
+            {
+                final long startHigh = data[4 * i];
+                final long startLow = data[4 * i + 1];
+                final long endHigh = data[4 * i + 2];
+                final long endLow = data[4 * i + 3];
+
+                if (compare(endHigh, endLow, firstHigh, firstLow) < 0 || compare(startHigh, startLow, lastHigh, lastLow) > 0)
+                {
+                    // no overlap
+                    result.add(startHigh, startLow, endHigh, endLow);
+                }
+                else
+                {
+                    if (compare(startHigh, startLow, firstHigh, firstLow) < 0)
+                        result.add(startHigh, startLow, firstLow == 0 ? firstHigh - 1 : firstHigh, firstLow - 1);
+                    if (compare(endHigh, endLow, lastHigh, lastLow) > 0)
+                        result.add(lastLow == -1L ? lastHigh + 1 : lastHigh, lastLow + 1, endHigh, endLow);
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Growable list of segments, each stored as five longs (start high, start low, end high, end low, bits).
+     */
+    private static final class Segments
+    {
+        private long[] data = new long[20];
+
+        private int size;
+
+        private void add(long startHigh, long startLow, long endHigh, long endLow, long bits)
+        {
+            if (5 * size + 5 > data.length)
+            {
+                final long[] grown = new long[data.length * 2];
+                System.arraycopy(data, 0, grown, 0, 5 * size);
+                data = grown;
+            }
+
+            data[5 * size] = startHigh;
+            data[5 * size + 1] = startLow;
+            data[5 * size + 2] = endHigh;
+            data[5 * size + 3] = endLow;
+            data[5 * size + 4] = bits;
+            size++;
+        }
+    }
+
+    /**
+     * Iterates over the free subnets, in order.
+     */
+    private final class FreeSubnetIterator implements Iterator<IPv6Address>
+    {
+        private final List<Node> stack = new ArrayList<Node>();
+
+        private final Runs runs = new Runs();
+
+        private int run;
+
+        private long currentHigh, currentLow;
+
+        private FreeSubnetIterator()
+        {
+            pushLeft(root);
+            advanceToNextRun();
+        }
+
+        private void pushLeft(Node node)
+        {
+            while (node != null)
+            {
+                stack.add(node);
+                node = node.left;
+            }
+        }
+
+        private void advanceToNextRun()
+        {
+            run++;
+            if (run >= runs.size)
+            {
+                runs.size = 0;
+                run = 0;
+                if (stack.isEmpty())
+                    return;
+
+                final Node node = stack.remove(stack.size() - 1);
+                pushLeft(node.right);
+                node.addRunsTo(runs);
+            }
+
+            currentHigh = runs.data[4 * run];
+            currentLow = runs.data[4 * run + 1];
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return run < runs.size;
+        }
+
+        @Override
+        public IPv6Address next()
+        {
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            final IPv6Address result = toAddress(currentHigh, currentLow);
+            if (currentHigh == runs.data[4 * run + 2] && currentLow == runs.data[4 * run + 3])
+            {
+                advanceToNextRun();
+            }
+            else
+            {
+                currentHigh = currentLow == -1L ? currentHigh + 1 : currentHigh;
+                currentLow++;
+            }
+            return result;
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException("This iterator provides read only access");
+        }
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mutable IPv6 address pool which models nested delegation, e.g. /40 regions delegated from a /32, /48 sites delegated from the regions
+ * and /56 customers delegated from the sites. This class is not thread safe.
+ * <p>
+ * Every delegation (except those on the last level) has its own {@link IPv6AddressPool} from which the delegations on the next level are
+ * allocated. These pools are created lazily when the first delegation is allocated from them, and dropped again when their last delegation
+ * is released (releasing a delegation gives its block back to the pool of its parent, where it is merged with the adjacent free blocks).
+ * <p>
+ * Every delegation keeps track of the number of free blocks of the last level within it. This count is updated incrementally along the
+ * path to the root when a delegation is allocated or released, such that free counts and exhaustion are known at every level without
+ * visiting the pools below. Looking up a delegation, or the delegation which owns an address, descends the hierarchy one level at a time.
+ *
+ * @author Jan Van Besien
+ */
+public final class HierarchicalIPv6AddressPool
+{
+    private final int[] prefixLengths;
+
+    private final Delegation root;
+
+    /**
+     * Create a completely free hierarchical pool.
+     *
+     * @param network       network from within to delegate
+     * @param prefixLengths prefix lengths of the delegations on every level, e.g. 40, 48 and 56 (in strictly increasing order, all bigger
+     *                      than the prefix length of the network)
+     * @return hierarchical address pool
+     */
+    public static HierarchicalIPv6AddressPool fromNetworkAndPrefixLengths(final IPv6Network network, final int... prefixLengths)
+    {
+        if (network == null)
+            throw new IllegalArgumentException("network invalid [null]");
+        if (prefixLengths == null || prefixLengths.length == 0)
+            throw new IllegalArgumentException("at least one prefix length is required");
+
+        int previous = network.getNetmask().asPrefixLength();
+        for (int prefixLength : prefixLengths)
+        {
+            if (prefixLength <= previous || prefixLength > 128)
+                throw new IllegalArgumentException(
+                        "invalid prefix lengths " + Arrays.toString(prefixLengths) + " for network [" + network
+                                + "], should be strictly increasing and within [" + (network.getNetmask().asPrefixLength() + 1) + ", 128]");
+            previous = prefixLength;
+        }
+
+        return new HierarchicalIPv6AddressPool(network, prefixLengths.clone());
+    }
+
+    private HierarchicalIPv6AddressPool(IPv6Network network, int[] prefixLengths)
+    {
+        this.prefixLengths = prefixLengths;
+        this.root = new Delegation(network, 0, null, capacity(network));
+    }
+
+    /**
+     * Allocate the first free block on the next level of a delegation.
+     *
+     * @param parent network of the delegation to allocate from (the network of the pool itself for the first level)
+     * @return the allocated delegation, or null if no block is available in the parent
+     */
+    public IPv6Network allocate(final IPv6Network parent)
+    {
+        final Delegation delegation = findParent(parent);
+
+        final IPv6AddressPool result = poolOf(delegation).allocate();
+        if (result == null)
+            return null;
+
+        return addChild(delegation, result);
+    }
+
+    /**
+     * Allocate a specific block on the next level of a delegation.
+     *
+     * @param parent     network of the delegation to allocate from (the network of the pool itself for the first level)
+     * @param toAllocate block to allocate, with the prefix length of the next level
+     * @return the allocated delegation, or null if the block was not free
+     */
+    public IPv6Network allocate(final IPv6Network parent, final IPv6Network toAllocate)
+    {
+        final Delegation delegation = findParent(parent);
+
+        final IPv6AddressPool result = poolOf(delegation).allocate(toAllocate);
+        if (result == null)
+            return null;
+
+        return addChild(delegation, result);
+    }
+
+    private IPv6Network addChild(Delegation parent, IPv6AddressPool pool)
+    {
+        parent.pool = pool;
+
+        final IPv6Network network = pool.getLastAllocated();
+        final Delegation child = new Delegation(network, parent.level + 1, parent, capacity(network));
+        parent.children.put(network, child);
+
+        // the block moves from the pool of the parent to the child, which only changes the free count on the last level
+        if (child.isLeaf())
+            updateFreeCounts(parent, BigInteger.ONE.negate());
+
+        return network;
+    }
+
+    /**
+     * Release a delegation, together with all delegations within it, and give its block back to the pool of its parent.
+     *
+     * @param network network of the delegation to release
+     * @return true if the delegation was released, false if the network was not delegated
+     */
+    public boolean release(final IPv6Network network)
+    {
+        if (network == null)
+            throw new IllegalArgumentException("network invalid [null]");
+        if (network.equals(root.network))
+            throw new IllegalArgumentException("can not release the network of the pool itself [" + network + "]");
+
+        final Delegation delegation = find(network);
+        if (delegation == null)
+            return false;
+
+        final Delegation parent = delegation.parent;
+        parent.children.remove(network);
+        if (parent.children.isEmpty())
+            parent.pool = null; // completely free again, created again when needed
+        else
+            parent.pool = parent.pool.deAllocate(network);
+
+        updateFreeCounts(parent, capacity(network).subtract(delegation.free));
+        return true;
+    }
+
+    /**
+     * Find the most specific delegation which owns an address.
+     *
+     * @param address address
+     * @return the network of the delegation on the deepest level which contains the address, or null if the address is not delegated
+     */
+    public IPv6Network findDelegation(final IPv6Address address)
+    {
+        if (address == null)
+            throw new IllegalArgumentException("address invalid [null]");
+        if (!root.network.contains(address))
+            return null;
+
+        Delegation delegation = root;
+        while (!delegation.isLeaf())
+        {
+            final Delegation child = delegation.children.get(
+                    IPv6Network.fromAddressAndMask(address, IPv6NetworkMask.fromPrefixLength(prefixLengths[delegation.level])));
+            if (child == null)
+                break;
+            delegation = child;
+        }
+
+        return delegation == root ? null : delegation.network;
+    }
+
+    /**
+     * @param network network of a delegation (or of the pool itself)
+     * @return true if the network is delegated
+     */
+    public boolean isDelegated(final IPv6Network network)
+    {
+        if (network == null)
+            throw new IllegalArgumentException("network invalid [null]");
+
+        return !network.equals(root.network) && find(network) != null;
+    }
+
+    /**
+     * @param parent network of a delegation (or of the pool itself)
+     * @return the delegations on the next level, sorted
+     */
+    public List<IPv6Network> getDelegations(final IPv6Network parent)
+    {
+        final Delegation delegation = findExisting(parent);
+
+        final List<IPv6Network> result = new ArrayList<IPv6Network>(delegation.children.keySet());
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * @param network network of a delegation (or of the pool itself)
+     * @return number of free blocks of the last level within the delegation (in constant time)
+     */
+    public BigInteger freeCount(final IPv6Network network)
+    {
+        return findExisting(network).free;
+    }
+
+    /**
+     * @param network network of a delegation (or of the pool itself)
+     * @return true if no free blocks of the last level are left within the delegation (in constant time)
+     */
+    public boolean isExhausted(final IPv6Network network)
+    {
+        return findExisting(network).free.signum() == 0;
+    }
+
+    public IPv6Network getNetwork()
+    {
+        return root.network;
+    }
+
+    /**
+     * @return prefix lengths of the delegations on every level
+     */
+    public int[] getPrefixLengths()
+    {
+        return prefixLengths.clone();
+    }
+
+    /**
+     * @return the delegation of the given network, or null if the network is not delegated (the root if it is the network of the pool)
+     */
+    private Delegation find(IPv6Network network)
+    {
+        final int prefixLength = network.getNetmask().asPrefixLength();
+
+        Delegation delegation = root;
+        while (!delegation.isLeaf() && delegation.network.getNetmask().asPrefixLength() < prefixLength)
+        {
+            delegation = delegation.children.get(
+                    IPv6Network.fromAddressAndMask(network.getFirst(), IPv6NetworkMask.fromPrefixLength(prefixLengths[delegation.level])));
+            if (delegation == null)
+                return null;
+        }
+
+        return delegation.network.equals(network) ? delegation : null;
+    }
+
+    private Delegation findExisting(IPv6Network network)
+    {
+        if (network == null)
+            throw new IllegalArgumentException("network invalid [null]");
+
+        final Delegation delegation = find(network);
+        if (delegation == null)
+            throw new IllegalArgumentException("network is not delegated [" + network + "]");
+
+        return delegation;
+    }
+
+    private Delegation findParent(IPv6Network network)
+    {
+        final Delegation delegation = findExisting(network);
+        if (delegation.isLeaf())
+            throw new IllegalArgumentException("can not delegate from a network on the last level [" + network + "]");
+
+        return delegation;
+    }
+
+    private IPv6AddressPool poolOf(Delegation delegation)
+    {
+        if (delegation.pool == null)
+            delegation.pool = IPv6AddressPool.fromRangeAndSubnet(delegation.network,
+                                                                 IPv6NetworkMask.fromPrefixLength(prefixLengths[delegation.level]));
+        return delegation.pool;
+    }
+
+    /**
+     * @return number of blocks of the last level in the given network
+     */
+    private BigInteger capacity(IPv6Network network)
+    {
+        return BigInteger.ONE.shiftLeft(prefixLengths[prefixLengths.length - 1] - network.getNetmask().asPrefixLength());
+    }
+
+    private static void updateFreeCounts(Delegation from, BigInteger delta)
+    {
+        for (Delegation delegation = from; delegation != null; delegation = delegation.parent)
+        {
+            delegation.free = delegation.free.add(delta);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return root.network + " " + Arrays.toString(prefixLengths);
+    }
+
+    /**
+     * Node in the hierarchy of delegations.
+     */
+    private final class Delegation
+    {
+        private final IPv6Network network;
+
+        /**
+         * Zero for the root, the index in prefixLengths plus one otherwise.
+         */
+        private final int level;
+
+        private final Delegation parent;
+
+        private final Map<IPv6Network, Delegation> children = new HashMap<IPv6Network, Delegation>();
+
+        /**
+         * Pool from which the children are allocated, null if there are no children.
+         */
+        private IPv6AddressPool pool;
+
+        /**
+         * Number of free blocks of the last level within this delegation.
+         */
+        private BigInteger free;
+
+        private Delegation(IPv6Network network, int level, Delegation parent, BigInteger capacity)
+        {
+            this.network = network;
+            this.level = level;
+            this.parent = parent;
+            this.free = level == prefixLengths.length ? BigInteger.ZERO : capacity;
+        }
+
+        private boolean isLeaf()
+        {
+            return level == prefixLengths.length;
+        }
+    }
+}
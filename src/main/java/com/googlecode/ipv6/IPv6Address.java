@@ -34,10 +34,18 @@ import java.util.Arrays;
  */
 public final class IPv6Address implements Comparable<IPv6Address>, Serializable
 {
+    /**
+     * The serialVersionUID which was computed for v0.17 (which didn't declare one), such that instances serialized by v0.17 can still be
+     * deserialized.
+     */
+    private static final long serialVersionUID = -4542849660460009290L;
+
     private static final int N_SHORTS = 8;
 
     private static final int N_BYTES = 16;
 
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     public static final IPv6Address MAX = IPv6Address.fromString("ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff");
 
     private final long highBits;
@@ -72,28 +80,122 @@ public final class IPv6Address implements Comparable<IPv6Address>, Serializable
      * @return IPv6 address
      */
     public static IPv6Address fromString(final String string)
+    {
+        final IPv6MetricsListener metrics = IPv6Metrics.listener;
+        if (metrics == IPv6MetricsListener.NO_OP)
+            return parse(string);
+
+        try
+        {
+            final IPv6Address result = parse(string);
+            metrics.parsed();
+            return result;
+        } catch (IllegalArgumentException e)
+        {
+            metrics.parseFailed(string);
+            throw e;
+        }
+    }
+
+    /**
+     * Parse in a single pass over the string, without allocating anything but the result. Groups are shifted into two longs. When "::" is
+     * found, the groups before it are put aside, and shifted into place (to the left) at the end.
+     */
+    private static IPv6Address parse(final String string)
     {
         if (string == null)
             throw new IllegalArgumentException("can not parse [null]");
 
-        final String withoutIPv4MappedNotation = IPv6AddressHelpers.rewriteIPv4MappedNotation(string);
-        final String longNotation = IPv6AddressHelpers.expandShortNotation(withoutIPv4MappedNotation);
+        final int length = string.length();
+        long highBits = 0;
+        long lowBits = 0;
+        long highBitsBeforeGap = 0;
+        long lowBitsBeforeGap = 0;
+        int groups = 0;
+        int groupsBeforeGap = -1;
+
+        int position = 0;
+        if (string.startsWith("::"))
+        {
+            groupsBeforeGap = 0;
+            position = 2;
+        }
+
+        while (position < length)
+        {
+            int end = position;
+            int value = 0;
+            int digit;
+            while (end < length && (digit = Character.digit(string.charAt(end), 16)) >= 0)
+            {
+                // leading zeroes are allowed, anything above 0xFFFF is rejected below (after checking for an IPv4 address)
+                if (value <= 0xFFFF)
+                    value = (value << 4) | digit;
+                end++;
+            }
+
+            if (end < length && string.charAt(end) == '.')
+            {
+                // IPv4-mapped notation: the last 32 bits in dotted decimal notation
+                final long ipv4 = IPv6AddressHelpers.parseIPv4(string, position);
+                if (ipv4 < 0)
+                    throw new IllegalArgumentException("can not parse [" + string + "]");
+
+                highBits = (highBits << 32) | (lowBits >>> 32);
+                lowBits = (lowBits << 32) | ipv4;
+                groups += 2;
+                break;
+            }
 
-        final long[] longs = tryParseStringArrayIntoLongArray(string, longNotation);
+            if (end == position || value > 0xFFFF || (end < length && string.charAt(end) != ':'))
+                throw new IllegalArgumentException("can not parse [" + string + "]");
 
-        IPv6AddressHelpers.validateLongs(longs);
+            highBits = (highBits << 16) | (lowBits >>> 48);
+            lowBits = (lowBits << 16) | value;
+            groups++;
 
-        return IPv6AddressHelpers.mergeLongArrayIntoIPv6Address(longs);
-    }
+            position = end + 1;
+            if (position == length)
+            {
+                // a single colon at the end is tolerated after eight groups (for backwards compatibility)
+                if (groups != N_SHORTS)
+                    throw new IllegalArgumentException("can not parse [" + string + "]");
+            }
+            else if (position < length && string.charAt(position) == ':')
+            {
+                if (groupsBeforeGap >= 0)
+                    throw new IllegalArgumentException("can not parse [" + string + "]");
+
+                groupsBeforeGap = groups;
+                highBitsBeforeGap = highBits;
+                lowBitsBeforeGap = lowBits;
+                highBits = 0;
+                lowBits = 0;
+                position++;
+            }
+        }
 
-    private static long[] tryParseStringArrayIntoLongArray(String string, String longNotation)
-    {
-        try
+        if (groupsBeforeGap < 0)
         {
-            return IPv6AddressHelpers.parseStringArrayIntoLongArray(longNotation.split(":"));
-        } catch (NumberFormatException e)
+            if (groups != N_SHORTS)
+                throw new IllegalArgumentException("can not parse [" + string + "]");
+            return new IPv6Address(highBits, lowBits);
+        }
+        else
         {
-            throw new IllegalArgumentException("can not parse [" + string + "]");
+            if (groups > N_SHORTS)
+                throw new IllegalArgumentException("can not parse [" + string + "]");
+
+            final int shift = 16 * (N_SHORTS - groupsBeforeGap);
+            if (shift >= 128)
+                return new IPv6Address(highBits, lowBits);
+            else if (shift >= 64)
+                return new IPv6Address(highBits | (lowBitsBeforeGap << (shift - 64)), lowBits);
+            else if (shift == 0)
+                return new IPv6Address(highBits | highBitsBeforeGap, lowBits | lowBitsBeforeGap);
+            else
+                return new IPv6Address(highBits | (highBitsBeforeGap << shift) | (lowBitsBeforeGap >>> (64 - shift)),
+                                       lowBits | (lowBitsBeforeGap << shift));
         }
     }
 
@@ -393,67 +495,67 @@ public final class IPv6Address implements Comparable<IPv6Address>, Serializable
     @Override
     public String toString()
     {
-        if (isIPv4Mapped())
-            return toIPv4MappedAddressString();
-        else
-            return toShortHandNotationString();
+        return appendTo(new StringBuilder(39)).toString();
     }
 
-    private String toIPv4MappedAddressString()
+    /**
+     * Append the string representation of the IPv6 address (see {@link #toString()}) to the given builder. Unlike {@link #toString()}, this
+     * doesn't allocate anything (as long as the builder has enough capacity), which is useful when formatting many addresses.
+     *
+     * @param builder builder to append to
+     * @return the builder
+     */
+    public StringBuilder appendTo(final StringBuilder builder)
     {
-        int byteZero = (int) ((this.lowBits & 0x00000000FF000000L) >> 24);
-        int byteOne = (int) ((this.lowBits & 0x0000000000FF0000L) >> 16);
-        int byteTwo = (int) ((this.lowBits & 0x000000000000FF00L) >> 8);
-        int byteThree = (int) ((this.lowBits & 0x00000000000000FFL));
-
-        final StringBuilder result = new StringBuilder("::ffff:");
-        result.append(byteZero).append(".").append(byteOne).append(".").append(byteTwo).append(".").append(byteThree);
+        final IPv6MetricsListener metrics = IPv6Metrics.listener;
+        if (metrics != IPv6MetricsListener.NO_OP)
+            metrics.formatted();
 
-        return result.toString();
+        if (isIPv4Mapped())
+            return appendIPv4MappedAddressString(builder);
+        else
+            return appendShortHandNotationString(builder);
     }
 
-    private String toShortHandNotationString()
+    private StringBuilder appendIPv4MappedAddressString(final StringBuilder builder)
     {
-        final String[] strings = toArrayOfShortStrings();
+        final int byteZero = (int) ((this.lowBits & 0x00000000FF000000L) >> 24);
+        final int byteOne = (int) ((this.lowBits & 0x0000000000FF0000L) >> 16);
+        final int byteTwo = (int) ((this.lowBits & 0x000000000000FF00L) >> 8);
+        final int byteThree = (int) ((this.lowBits & 0x00000000000000FFL));
 
-        final StringBuilder result = new StringBuilder();
+        builder.append("::ffff:");
+        return builder.append(byteZero).append('.').append(byteOne).append('.').append(byteTwo).append('.').append(byteThree);
+    }
 
-        int[] shortHandNotationPositionAndLength = startAndLengthOfLongestRunOfZeroes();
-        int shortHandNotationPosition = shortHandNotationPositionAndLength[0];
-        int shortHandNotationLength = shortHandNotationPositionAndLength[1];
+    private StringBuilder appendShortHandNotationString(final StringBuilder builder)
+    {
+        final int longestRunOfZeroes = longestRunOfZeroes();
+        final int shortHandNotationPosition = longestRunOfZeroes >>> 4;
+        final int shortHandNotationLength = longestRunOfZeroes & 0xF;
 
         boolean useShortHandNotation =
                 shortHandNotationLength > 1; // RFC5952 recommends not to use shorthand notation for a single zero
 
-        for (int i = 0; i < strings.length; i++)
+        for (int i = 0; i < N_SHORTS; i++)
         {
             if (useShortHandNotation && i == shortHandNotationPosition)
             {
                 if (i == 0)
-                    result.append("::");
+                    builder.append("::");
                 else
-                    result.append(":");
+                    builder.append(':');
             }
-            else if (!(i > shortHandNotationPosition && i < shortHandNotationPosition + shortHandNotationLength))
+            else if (!(useShortHandNotation && i > shortHandNotationPosition
+                       && i < shortHandNotationPosition + shortHandNotationLength))
             {
-                result.append(strings[i]);
+                appendHex(builder, getShort(i), false);
                 if (i < N_SHORTS - 1)
-                    result.append(":");
+                    builder.append(':');
             }
         }
 
-        return result.toString().toLowerCase();
-    }
-
-    private String[] toArrayOfShortStrings()
-    {
-        final short[] shorts = toShortArray();
-        final String[] strings = new String[shorts.length];
-        for (int i = 0; i < shorts.length; i++)
-        {
-            strings[i] = String.format("%x", shorts[i]);
-        }
-        return strings;
+        return builder;
     }
 
     /**
@@ -461,71 +563,69 @@ public final class IPv6Address implements Comparable<IPv6Address>, Serializable
      */
     public String toLongString()
     {
-        final String[] strings = toArrayOfZeroPaddedstrings();
-        final StringBuilder result = new StringBuilder();
-        for (int i = 0; i < strings.length - 1; i++)
+        final StringBuilder builder = new StringBuilder(39);
+        for (int i = 0; i < N_SHORTS; i++)
         {
-            result.append(strings[i]).append(":");
+            appendHex(builder, getShort(i), true);
+            if (i < N_SHORTS - 1)
+                builder.append(':');
         }
 
-        result.append(strings[strings.length - 1]);
-
-        return result.toString();
+        return builder.toString();
     }
 
-    private String[] toArrayOfZeroPaddedstrings()
+    private static void appendHex(final StringBuilder builder, final int value, final boolean zeroPadded)
     {
-        final short[] shorts = toShortArray();
-        final String[] strings = new String[shorts.length];
-        for (int i = 0; i < shorts.length; i++)
+        for (int shift = 12; shift >= 0; shift -= 4)
         {
-            strings[i] = String.format("%04x", shorts[i]);
+            if (zeroPadded || shift == 0 || value >>> shift != 0)
+                builder.append(HEX_DIGITS[(value >>> shift) & 0xF]);
         }
-        return strings;
     }
 
-    private short[] toShortArray()
+    /**
+     * @param i index of a short (group of 16 bits), 0 being the highest
+     * @return the value of the short, as an unsigned value
+     */
+    private int getShort(final int i)
     {
-        final short[] shorts = new short[N_SHORTS];
-
-        for (int i = 0; i < N_SHORTS; i++)
-        {
-            if (IPv6AddressHelpers.inHighRange(i))
-                shorts[i] = (short) (((highBits << i * 16) >>> 16 * (N_SHORTS - 1)) & 0xFFFF);
-            else
-                shorts[i] = (short) (((lowBits << i * 16) >>> 16 * (N_SHORTS - 1)) & 0xFFFF);
-        }
-
-        return shorts;
+        return (int) ((i < 4 ? highBits : lowBits) >>> (16 * (3 - (i & 3)))) & 0xFFFF;
     }
 
     int[] startAndLengthOfLongestRunOfZeroes()
     {
-        int longestConsecutiveZeroes = 0;
-        int longestConsecutiveZeroesPos = -1;
-        short[] shorts = toShortArray();
-        for (int pos = 0; pos < shorts.length; pos++)
-        {
-            int consecutiveZeroesAtCurrentPos = countConsecutiveZeroes(shorts, pos);
-            if (consecutiveZeroesAtCurrentPos > longestConsecutiveZeroes)
-            {
-                longestConsecutiveZeroes = consecutiveZeroesAtCurrentPos;
-                longestConsecutiveZeroesPos = pos;
-            }
-        }
-
-        return new int[]{longestConsecutiveZeroesPos, longestConsecutiveZeroes};
+        final int longestRunOfZeroes = longestRunOfZeroes();
+        final int length = longestRunOfZeroes & 0xF;
+        return new int[]{length == 0 ? -1 : longestRunOfZeroes >>> 4, length};
     }
 
-    private int countConsecutiveZeroes(short[] shorts, int offset)
+    /**
+     * @return the position (shifted 4 bits to the left) and length (in the lowest 4 bits) of the first longest run of zero shorts, packed
+     *         in an int to avoid allocating an array
+     */
+    private int longestRunOfZeroes()
     {
-        int count = 0;
-        for (int i = offset; i < shorts.length && shorts[i] == 0; i++)
+        int longestConsecutiveZeroes = 0;
+        int longestConsecutiveZeroesPos = 0;
+        int consecutiveZeroes = 0;
+        for (int pos = 0; pos < N_SHORTS; pos++)
         {
-            count++;
+            if (getShort(pos) == 0)
+            {
+                consecutiveZeroes++;
+                if (consecutiveZeroes > longestConsecutiveZeroes)
+                {
+                    longestConsecutiveZeroes = consecutiveZeroes;
+                    longestConsecutiveZeroesPos = pos - consecutiveZeroes + 1;
+                }
+            }
+            else
+            {
+                consecutiveZeroes = 0;
+            }
         }
 
-        return count;
+        return (longestConsecutiveZeroesPos << 4) | longestConsecutiveZeroes;
     }
 
     @Override
@@ -582,11 +682,10 @@ public final class IPv6Address implements Comparable<IPv6Address>, Serializable
 
     public int numberOfTrailingOnes()
     {
-        // count trailing ones in "value" by counting the trailing zeroes in "value + 1"
-        final IPv6Address plusOne = this.add(1);
-        return plusOne.getLowBits() == 0 ?
-                Long.numberOfTrailingZeros(plusOne.getHighBits()) + 64 :
-                Long.numberOfTrailingZeros(plusOne.getLowBits());
+        // count trailing ones in "value" by counting the trailing zeroes in "~ value"
+        return lowBits == 0xFFFFFFFFFFFFFFFFL ?
+                Long.numberOfTrailingZeros(~highBits) + 64 :
+                Long.numberOfTrailingZeros(~lowBits);
     }
 
     public int numberOfLeadingZeroes()
@@ -16,9 +16,6 @@
 
 package com.googlecode.ipv6;
 
-import java.util.Arrays;
-import java.util.regex.Pattern;
-
 /**
  * Helper methods used by IPv6Address.
  *
@@ -26,115 +23,39 @@ import java.util.regex.Pattern;
  */
 public final class IPv6AddressHelpers
 {
-    static long[] parseStringArrayIntoLongArray(String[] strings)
-    {
-        final long[] longs = new long[strings.length];
-        for (int i = 0; i < strings.length; i++)
-        {
-            longs[i] = Long.parseLong(strings[i], 16);
-        }
-        return longs;
-    }
-
-    static void validateLongs(long[] longs)
-    {
-        if (longs.length != 8)
-            throw new IllegalArgumentException("an IPv6 address should contain 8 shorts [" + Arrays.toString(longs) + "]");
-
-        for (long l : longs)
-        {
-            if (l < 0) throw new IllegalArgumentException("each element should be positive [" + Arrays.toString(longs) + "]");
-            if (l > 0xFFFF) throw new IllegalArgumentException("each element should be less than 0xFFFF [" + Arrays.toString(longs) + "]");
-        }
-    }
-
-    static IPv6Address mergeLongArrayIntoIPv6Address(long[] longs)
-    {
-        long high = 0L;
-        long low = 0L;
-
-        for (int i = 0; i < longs.length; i++)
-        {
-            if (inHighRange(i))
-                high |= (longs[i] << ((4 - i - 1) * 16));
-            else
-                low |= (longs[i] << ((4 - i - 1) * 16));
-        }
-
-        return new IPv6Address(high, low);
-    }
-
-    static boolean inHighRange(int shortNumber)
-    {
-        return shortNumber >= 0 && shortNumber < 4;
-    }
-
-    static String expandShortNotation(String string)
-    {
-        if (!string.contains("::"))
-        {
-            return string;
-        }
-        else if (string.equals("::"))
-        {
-            return generateZeroes(8);
-        }
-        else
-        {
-            final int numberOfColons = countOccurrences(string, ':');
-            if (string.startsWith("::"))
-                return string.replace("::", generateZeroes((7 + 2) - numberOfColons));
-            else if (string.endsWith("::"))
-                return string.replace("::", ":" + generateZeroes((7 + 2) - numberOfColons));
-            else
-                return string.replace("::", ":" + generateZeroes((7 + 2 - 1) - numberOfColons));
-        }
-    }
-
-    private static final Pattern DOT_DELIM = Pattern.compile("\\.");
-
     /**
-     * Replaces a w.x.y.z substring at the end of the given string with corresponding hexadecimal notation. This is useful in case the
-     * string was using IPv4-Mapped address notation.
+     * Parse an IPv4 address in dotted decimal notation (w.x.y.z), from the given position up to the end of the string.
+     *
+     * @return the IPv4 address as an unsigned 32 bit value, or -1 if it can not be parsed
      */
-    static String rewriteIPv4MappedNotation(String string)
+    static long parseIPv4(String string, int from)
     {
-        if (!string.contains("."))
-        {
-            return string;
-        }
-        else
+        long result = 0;
+        int position = from;
+        for (int octet = 0; octet < 4; octet++)
         {
-            int lastColon = string.lastIndexOf(":");
-            String firstPart = string.substring(0, lastColon + 1);
-            String mappedIPv4Part = string.substring(lastColon + 1);
-
-            if (mappedIPv4Part.contains("."))
+            if (octet > 0)
             {
-                String[] dotSplits = DOT_DELIM.split(mappedIPv4Part);
-                if (dotSplits.length != 4)
-                    throw new IllegalArgumentException(String.format("can not parse [%s]", string));
-
-                StringBuilder rewrittenString = new StringBuilder();
-                rewrittenString.append(firstPart);
-                int byteZero = Integer.parseInt(dotSplits[0]);
-                int byteOne = Integer.parseInt(dotSplits[1]);
-                int byteTwo = Integer.parseInt(dotSplits[2]);
-                int byteThree = Integer.parseInt(dotSplits[3]);
-
-                rewrittenString.append(String.format("%02x", byteZero));
-                rewrittenString.append(String.format("%02x", byteOne));
-                rewrittenString.append(":");
-                rewrittenString.append(String.format("%02x", byteTwo));
-                rewrittenString.append(String.format("%02x", byteThree));
-
-                return rewrittenString.toString();
+                if (position == string.length() || string.charAt(position) != '.')
+                    return -1;
+                position++;
             }
-            else
+
+            final int start = position;
+            int value = 0;
+            while (position < string.length() && string.charAt(position) >= '0' && string.charAt(position) <= '9')
             {
-                throw new IllegalArgumentException(String.format("can not parse [%s]", string));
+                if (value <= 255)
+                    value = value * 10 + (string.charAt(position) - '0');
+                position++;
             }
+            if (position == start || value > 255)
+                return -1;
+
+            result = (result << 8) | value;
         }
+
+        return position == string.length() ? result : -1;
     }
 
     public static int countOccurrences(String haystack, char needle)
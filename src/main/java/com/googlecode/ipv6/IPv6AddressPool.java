@@ -17,14 +17,21 @@
 package com.googlecode.ipv6;
 
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamException;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
-import java.util.Arrays;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.SortedSet;
-import java.util.TreeSet;
 
 /**
  * Immutable representation of an IPv6 address pool.
@@ -32,19 +39,44 @@ import java.util.TreeSet;
  * An IPv6 address pool is like an IPv6 address range in which some addresses are "free" and some are "allocated". Think "dhcp server".
  * Addresses are allocated in whole subnet blocks at once. These subnet blocks have a predefined prefix length for the whole allocatable
  * range.
+ * <p>
+ * The free subnets are kept in a persistent tree which is shared (as much as possible) between a pool and the pools derived from it, such
+ * that allocating and de-allocating take logarithmic time and space. Regions where free and allocated subnets alternate a lot are stored
+ * as bitmaps (one bit per subnet) rather than as separate ranges.
  *
  * @author Jan Van Besien
  */
 public final class IPv6AddressPool implements Serializable
 {
+    /**
+     * The serialVersionUID which was computed for v0.17 (which didn't declare one), such that pools serialized by v0.17 can still be
+     * deserialized.
+     */
+    private static final long serialVersionUID = -6919584688536943795L;
+
+    /**
+     * The fields of the serialized form of v0.17, which had the free ranges in a sorted set. Pools are serialized as a
+     * {@link SerializedForm} since, but the v0.17 form can still be deserialized.
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("underlyingRange", IPv6AddressRange.class),
+            new ObjectStreamField("freeRanges", SortedSet.class),
+            new ObjectStreamField("allocationSubnetSize", IPv6NetworkMask.class),
+            new ObjectStreamField("lastAllocated", IPv6Network.class)};
+
     private final IPv6AddressRange underlyingRange;
 
-    private final SortedSet<IPv6AddressRange> freeRanges;
+    private final transient FreeRangeTree freeRanges;
 
     private final IPv6NetworkMask allocationSubnetSize;
 
     private final IPv6Network lastAllocated;
 
+    /**
+     * Pool deserialized from the v0.17 serialized form, to resolve this (incompletely deserialized) instance to.
+     */
+    private transient IPv6AddressPool deserialized;
+
     /**
      * Create a pool of the given range (boundaries inclusive) which is completely free. The given subnet size is the network mask (thus
      * size) of the allocated subnets in this range. This constructor verifies that the whole range is "aligned" with subnets of this size
@@ -57,61 +89,147 @@ public final class IPv6AddressPool implements Serializable
     public static IPv6AddressPool fromRangeAndSubnet(final IPv6AddressRange range,
                                                      final IPv6NetworkMask allocationSubnetSize)
     {
+        validateRangeIsMultipleOfSubnetsOfGivenSize(range, allocationSubnetSize);
+
         // in the beginning, all is free
-        return new IPv6AddressPool(range, allocationSubnetSize, new TreeSet<IPv6AddressRange>(Arrays.asList(range)), null);
+        return new IPv6AddressPool(range, allocationSubnetSize,
+                                   FreeRangeTree.fromRanges(allocationSubnetSize, Collections.singletonList(range)), null);
     }
 
     /**
-     * Private constructor to construct a pool with a given set of free ranges and a network which was just allocated.
+     * Create a pool of the given range (boundaries inclusive) in which the given networks are already allocated. This is equivalent to
+     * creating a completely free pool with {@link #fromRangeAndSubnet(IPv6AddressRange, IPv6NetworkMask)} and allocating all the given
+     * networks one by one, but much faster for large numbers of networks: the networks are validated and sorted in bulk (in parallel for
+     * large inputs, on a thread pool which is started for the call and shut down before returning) and the free ranges are calculated
+     * in a single sweep.
+     * <p>
+     * The allocated networks can be given in any order. They should all be contained in the range, have the same size as the subnets of
+     * the pool, and no network should be given more than once.
      *
      * @param range                range from within to allocate
      * @param allocationSubnetSize size of the subnets that will be allocated
-     * @param freeRanges           free ranges in the allocatable IP address range
+     * @param allocated            networks which are already allocated (or reserved) in the pool
+     * @return ipv6 address pool
      */
-    private IPv6AddressPool(final IPv6AddressRange range, final IPv6NetworkMask allocationSubnetSize,
-                            final SortedSet<IPv6AddressRange> freeRanges, final IPv6Network lastAllocated)
+    public static IPv6AddressPool fromRangeAndSubnetWithAllocations(final IPv6AddressRange range,
+                                                                    final IPv6NetworkMask allocationSubnetSize,
+                                                                    final Collection<IPv6Network> allocated)
     {
-        this.underlyingRange = range;
+        if (allocated == null)
+            throw new IllegalArgumentException("allocated networks invalid [null]");
 
-        this.allocationSubnetSize = allocationSubnetSize;
-        this.freeRanges = Collections.unmodifiableSortedSet(freeRanges);
-        this.lastAllocated = lastAllocated;
+        validateRangeIsMultipleOfSubnetsOfGivenSize(range, allocationSubnetSize);
+
+        final long start = IPv6Metrics.start();
+        final IPv6Network[] sorted =
+                IPv6AddressPoolHelpers.validateAndSort(range, allocationSubnetSize, allocated.toArray(new IPv6Network[allocated.size()]));
+
+        return IPv6Metrics.loaded(fromFreeRanges(range, allocationSubnetSize, IPv6AddressPoolHelpers.freeRangesAround(range, sorted)),
+                                  sorted.length, start);
+    }
 
-        validateFreeRanges(underlyingRange, freeRanges);
-        validateRangeIsMultipleOfSubnetsOfGivenSize(underlyingRange, allocationSubnetSize);
+    /**
+     * Create a pool from a sorted collection of free ranges. Adjacent free ranges are merged. The free ranges are expected to be valid for
+     * the given range and subnet size, they are not validated (except when assertions are enabled).
+     *
+     * @param range                range from within to allocate
+     * @param allocationSubnetSize size of the subnets that will be allocated
+     * @param sortedFreeRanges     sorted, non overlapping free ranges
+     * @return ipv6 address pool
+     */
+    static IPv6AddressPool fromFreeRanges(final IPv6AddressRange range, final IPv6NetworkMask allocationSubnetSize,
+                                          final Iterable<IPv6AddressRange> sortedFreeRanges)
+    {
+        return new IPv6AddressPool(range, allocationSubnetSize, FreeRangeTree.fromRanges(allocationSubnetSize, sortedFreeRanges), null);
     }
 
-    private void validateFreeRanges(IPv6AddressRange range, SortedSet<IPv6AddressRange> toValidate)
+    /**
+     * Create a pool from sorted runs of free subnet numbers (the address of a subnet shifted right over the number of host bits), without
+     * creating an object per run. The runs are expected to be valid for the given range and subnet size, they are not validated (except
+     * when assertions are enabled).
+     *
+     * @param range                range from within to allocate
+     * @param allocationSubnetSize size of the subnets that will be allocated
+     * @param freeSubnetRuns       first and last subnet number (high and low bits) of every free run
+     * @param numberOfRuns         number of runs in the array
+     * @param lastAllocated        last allocated network (or null)
+     * @return ipv6 address pool
+     */
+    static IPv6AddressPool fromFreeSubnetRuns(final IPv6AddressRange range, final IPv6NetworkMask allocationSubnetSize,
+                                              final long[] freeSubnetRuns, final int numberOfRuns, final IPv6Network lastAllocated)
     {
-        if (!toValidate.isEmpty() && !checkWithinBounds(range, toValidate))
-            throw new IllegalArgumentException("invalid free ranges: not all within bounds of overall range");
+        validateRangeIsMultipleOfSubnetsOfGivenSize(range, allocationSubnetSize);
 
-        // TODO: some more validations would be useful. For example the free ranges should be defragmented and non overlapping etc
+        return new IPv6AddressPool(range, allocationSubnetSize,
+                                   FreeRangeTree.fromSubnetRuns(allocationSubnetSize, freeSubnetRuns, numberOfRuns), lastAllocated);
     }
 
-    private boolean checkWithinBounds(IPv6AddressRange range, SortedSet<IPv6AddressRange> toValidate)
+    /**
+     * Private constructor to construct a pool with a given set of free ranges and a network which was just allocated. The free ranges are
+     * not validated (they are either validated by the public factory methods, or derived from a valid pool). When assertions are enabled,
+     * all invariants are checked nevertheless.
+     *
+     * @param range                range from within to allocate
+     * @param allocationSubnetSize size of the subnets that will be allocated
+     * @param freeRanges           free ranges in the allocatable IP address range
+     */
+    private IPv6AddressPool(final IPv6AddressRange range, final IPv6NetworkMask allocationSubnetSize,
+                            final FreeRangeTree freeRanges, final IPv6Network lastAllocated)
     {
-        return (toValidate.first().getFirst().compareTo(range.getFirst()) >= 0
-                && toValidate.last().getLast().compareTo(range.getLast()) <= 0);
+        this.underlyingRange = range;
+
+        this.allocationSubnetSize = allocationSubnetSize;
+        this.freeRanges = freeRanges;
+        this.lastAllocated = lastAllocated;
+
+        assert invariantsHold();
     }
 
-    private void validateRangeIsMultipleOfSubnetsOfGivenSize(IPv6AddressRange range, IPv6NetworkMask allocationSubnetSize)
+    private static void validateRangeIsMultipleOfSubnetsOfGivenSize(IPv6AddressRange range, IPv6NetworkMask allocationSubnetSize)
     {
+        if (range == null)
+            throw new IllegalArgumentException("range invalid [null]");
+        if (allocationSubnetSize == null)
+            throw new IllegalArgumentException("allocation subnet size invalid [null]");
+
         final int allocatableBits = 128 - allocationSubnetSize.asPrefixLength();
 
         if (range.getFirst().numberOfTrailingZeroes() < allocatableBits)
             throw new IllegalArgumentException(
-                    "range [" + this + "] is not aligned with prefix length [" + allocationSubnetSize.asPrefixLength() + "], "
+                    "range [" + range + "] is not aligned with prefix length [" + allocationSubnetSize.asPrefixLength() + "], "
                             + "first address should end with " +
                             allocatableBits + " zero bits");
 
         if (range.getLast().numberOfTrailingOnes() < allocatableBits)
             throw new IllegalArgumentException(
-                    "range [" + this + "] is not aligned with prefix length [" + allocationSubnetSize.asPrefixLength()
+                    "range [" + range + "] is not aligned with prefix length [" + allocationSubnetSize.asPrefixLength()
                             + "], last address should end with " +
                             allocatableBits + " one bits");
     }
 
+    /**
+     * Verify all the invariants of the pool in a single pass over the free ranges: the free ranges should be within the bounds of the
+     * underlying range, aligned with the subnet size of the pool, non overlapping and defragmented (i.e. no two free ranges are adjacent).
+     * The internal tree of free ranges should be balanced and in its canonical form (bitmaps for dense regions, ranges otherwise).
+     * <p>
+     * Pools derived from other pools (by allocating or de-allocating) are not validated, because that would make every operation linear
+     * in the number of free ranges. This method can be used to explicitly validate a pool instead, e.g. in tests. If assertions are
+     * enabled, it is executed automatically for every pool that is created.
+     *
+     * @throws IllegalStateException if one of the invariants is violated
+     */
+    public void checkInvariants()
+    {
+        freeRanges.checkStructure();
+        IPv6AddressPoolHelpers.checkFreeRanges(underlyingRange, allocationSubnetSize, freeRanges.toRanges());
+    }
+
+    private boolean invariantsHold()
+    {
+        checkInvariants();
+        return true;
+    }
+
     /**
      * @return the last IPv6Network which was allocated or null if none was allocated yet
      */
@@ -120,6 +238,47 @@ public final class IPv6AddressPool implements Serializable
         return lastAllocated;
     }
 
+    /**
+     * @return the size of the subnets that are allocated from this pool
+     */
+    public IPv6NetworkMask getAllocationSubnetSize()
+    {
+        return allocationSubnetSize;
+    }
+
+    /**
+     * @return the range from within this pool allocates
+     */
+    IPv6AddressRange getUnderlyingRange()
+    {
+        return underlyingRange;
+    }
+
+    /**
+     * @return the (sorted) free ranges of this pool
+     */
+    List<IPv6AddressRange> getFreeRanges()
+    {
+        return freeRanges.toRanges();
+    }
+
+    /**
+     * @return first and last subnet number (high and low bits) of all free runs, in order
+     */
+    long[] getFreeSubnetRuns()
+    {
+        return freeRanges.toSubnetRuns();
+    }
+
+    /**
+     * @return first and last subnet number (high and low bits) of the runs which are free in this pool but not in the other, and of the
+     *         runs which are free in the other pool but not in this one
+     */
+    long[][] diffFreeSubnetRuns(IPv6AddressPool newer)
+    {
+        return freeRanges.diff(newer.freeRanges);
+    }
+
     /**
      * Allocate the first available subnet from the pool.
      *
@@ -127,18 +286,63 @@ public final class IPv6AddressPool implements Serializable
      */
     public IPv6AddressPool allocate()
     {
+        return allocate(AllocationStrategy.FIRST_FIT);
+    }
+
+    /**
+     * Allocate a subnet from the pool, chosen with the given strategy. The {@link AllocationStrategy#RANDOM} strategy uses a
+     * {@link SecureRandom}.
+     *
+     * @param strategy strategy to choose the subnet to allocate
+     * @return resulting pool, or null if the pool is exhausted
+     */
+    public IPv6AddressPool allocate(AllocationStrategy strategy)
+    {
+        return allocate(strategy, strategy == AllocationStrategy.RANDOM ? SecureRandomHolder.SECURE_RANDOM : null);
+    }
+
+    /**
+     * Allocate a subnet from the pool, chosen with the given strategy.
+     *
+     * @param strategy strategy to choose the subnet to allocate
+     * @param random   source of randomness for the {@link AllocationStrategy#RANDOM} strategy (ignored by the other strategies)
+     * @return resulting pool, or null if the pool is exhausted
+     */
+    public IPv6AddressPool allocate(AllocationStrategy strategy, Random random)
+    {
+        if (strategy == null)
+            throw new IllegalArgumentException("strategy invalid [null]");
+        if (strategy == AllocationStrategy.RANDOM && random == null)
+            throw new IllegalArgumentException("random invalid [null]");
+
+        final long start = IPv6Metrics.start();
         if (!isExhausted())
         {
-            // get the first range of free subnets, and take the first subnet of that range
-            final IPv6AddressRange firstFreeRange = freeRanges.first();
-            final IPv6Network allocated = IPv6Network.fromAddressAndMask(firstFreeRange.getFirst(), allocationSubnetSize);
+            final IPv6Address first;
+            switch (strategy)
+            {
+                case FIRST_FIT:
+                    first = freeRanges.first();
+                    break;
+                case BEST_FIT:
+                    first = freeRanges.firstOfShortestRange();
+                    break;
+                case TOP_DOWN:
+                    first = freeRanges.last();
+                    break;
+                case RANDOM:
+                    first = freeRanges.random(random);
+                    break;
+                default:
+                    throw new IllegalStateException("unknown strategy [" + strategy + "]");
+            }
 
-            return doAllocate(allocated, firstFreeRange);
+            return IPv6Metrics.allocated(this, doAllocate(IPv6Network.fromAddressAndMask(first, allocationSubnetSize)), start);
         }
         else
         {
             // exhausted
-            return null;
+            return IPv6Metrics.allocated(this, null, start);
         }
     }
 
@@ -160,151 +364,194 @@ public final class IPv6AddressPool implements Serializable
                             " from a pool configured to hand out subnets with prefix length /"
                             + allocationSubnetSize);
 
-        // go find the range that contains the requested subnet
-        final IPv6AddressRange rangeToAllocateFrom = findFreeRangeContaining(toAllocate);
-
-        if (rangeToAllocateFrom != null)
+        final long start = IPv6Metrics.start();
+        if (freeRanges.isFree(toAllocate.getFirst()))
         {
-            // found a range in which this subnet is free, allocate it
-            return doAllocate(toAllocate, rangeToAllocateFrom);
+            // the requested subnet is free, allocate it
+            return IPv6Metrics.allocated(this, doAllocate(toAllocate), start);
         }
         else
         {
-            // requested subnet not free
-            return null;
+            // requested subnet not free (which is only reported if the whole pool is exhausted)
+            return IPv6Metrics.allocated(this, null, start);
         }
     }
 
-    private IPv6AddressRange findFreeRangeContaining(IPv6Network toAllocate)
+    /**
+     * Allocate the free subnet closest to the given hint, e.g. the subnet which was previously allocated to the same customer. If the
+     * subnet containing the hint is free, that subnet is allocated. Otherwise the closest free subnet before or after it is allocated (the
+     * one before if both are equally close).
+     *
+     * @param hint address to allocate close to (not necessarily within the pool)
+     * @return resulting pool, or null if the pool is exhausted
+     */
+    public IPv6AddressPool allocateNear(IPv6Address hint)
     {
-        // split around the subnet to allocate
-        final SortedSet<IPv6AddressRange> head = freeRanges.headSet(toAllocate);
-        final SortedSet<IPv6AddressRange> tail = freeRanges.tailSet(toAllocate);
+        if (hint == null)
+            throw new IllegalArgumentException("hint invalid [null]");
+
+        final long start = IPv6Metrics.start();
+        final IPv6Address subnet = IPv6Network.fromAddressAndMask(hint, allocationSubnetSize).getFirst();
+        final IPv6Address after = freeRanges.firstFreeFrom(subnet);
+        final IPv6Address before = freeRanges.lastFreeUpTo(subnet);
+
+        final IPv6Address nearest;
+        if (before == null)
+            nearest = after;
+        else if (after == null)
+            nearest = before;
+        else
+            nearest = subnet.toBigInteger().subtract(before.toBigInteger())
+                    .compareTo(after.toBigInteger().subtract(subnet.toBigInteger())) <= 0 ? before : after;
 
-        // the range containing the network to allocate is either the first of the tail, or the last of the head, or it doesn't exist
-        if (!head.isEmpty() && head.last().contains(toAllocate))
-        {
-            return head.last();
-        }
-        else if (!tail.isEmpty() && tail.first().contains(toAllocate))
-        {
-            return tail.first();
-        }
+        if (nearest != null)
+            return IPv6Metrics.allocated(this, doAllocate(IPv6Network.fromAddressAndMask(nearest, allocationSubnetSize)), start);
         else
-        {
-            return null;
-        }
+            return IPv6Metrics.allocated(this, null, start); // exhausted
     }
 
     /**
-     * Private helper method to perform the allocation of a subnet within one of the free ranges.
+     * Allocate the subnet which the given key (e.g. a DHCPv6 DUID or a customer identifier) maps on, if it is free. The key is hashed to a
+     * preferred subnet in the underlying range (see {@link #getStickySubnet(byte[])}). If that subnet is not free, the first free subnet
+     * after it is allocated, wrapping around to the start of the pool if needed. The same key thus always results in the same subnet, as
+     * long as the pool is in the same state, no matter how full the pool is.
      *
-     * @param toAllocate          subnet to allocate
-     * @param rangeToAllocateFrom free range to allocate from
-     * @return resulting pool
+     * @param key key identifying the client
+     * @return resulting pool, or null if the pool is exhausted
      */
-    private IPv6AddressPool doAllocate(final IPv6Network toAllocate, final IPv6AddressRange rangeToAllocateFrom)
+    public IPv6AddressPool allocateSticky(byte[] key)
     {
-        assert freeRanges.contains(rangeToAllocateFrom);
-        assert rangeToAllocateFrom.contains(toAllocate);
+        if (key == null)
+            throw new IllegalArgumentException("key invalid [null]");
 
-        final TreeSet<IPv6AddressRange> newFreeRanges = new TreeSet<IPv6AddressRange>(this.freeRanges);
+        final long start = IPv6Metrics.start();
+        if (isExhausted())
+            return IPv6Metrics.allocated(this, null, start);
 
-        // remove range from free ranges
-        newFreeRanges.remove(rangeToAllocateFrom);
+        final IPv6Address preferred = IPv6AddressPoolHelpers.stickySubnet(underlyingRange, allocationSubnetSize, key);
+        final IPv6Address next = freeRanges.firstFreeFrom(preferred);
 
-        // from the range, remove the allocated subnet
-        final List<IPv6AddressRange> newRanges = rangeToAllocateFrom.remove(toAllocate);
+        return IPv6Metrics.allocated(this, doAllocate(IPv6Network.fromAddressAndMask(next != null ? next : freeRanges.first(),
+                                                                                  allocationSubnetSize)), start);
+    }
 
-        // and add the resulting ranges as new free ranges
-        newFreeRanges.addAll(newRanges);
+    /**
+     * @param key key identifying the client
+     * @return the subnet which {@link #allocateSticky(byte[])} prefers for the given key (whether it is free or not)
+     */
+    public IPv6Network getStickySubnet(byte[] key)
+    {
+        if (key == null)
+            throw new IllegalArgumentException("key invalid [null]");
 
-        return new IPv6AddressPool(underlyingRange, allocationSubnetSize, newFreeRanges, toAllocate);
+        return IPv6Network.fromAddressAndMask(IPv6AddressPoolHelpers.stickySubnet(underlyingRange, allocationSubnetSize, key),
+                                              allocationSubnetSize);
     }
 
     /**
-     * Give a network back to the pool (de-allocate).
+     * Find the first free subnet after the given address, without allocating it. The subnet containing the address itself is not taken
+     * into account, such that all free subnets can be visited by calling this method with the last address of the previous result.
      *
-     * @param toDeAllocate network to de-allocate
+     * @param address address to search after (not necessarily within the pool)
+     * @return the first free subnet which starts after the given address, or null if there is none
      */
-    public IPv6AddressPool deAllocate(final IPv6Network toDeAllocate)
+    public IPv6Network nextFreeAfter(IPv6Address address)
     {
-        if (!contains(toDeAllocate))
-        {
-            throw new IllegalArgumentException(
-                    "Network to de-allocate[" + toDeAllocate + "] is not contained in this allocatable range [" + this + "]");
-        }
+        if (address == null)
+            throw new IllegalArgumentException("address invalid [null]");
 
-        // find ranges just in front or after the network to deallocate. These are the ranges to merge with to prevent fragmentation.
-        final IPv6AddressRange freeRangeBeforeNetwork = findFreeRangeBefore(toDeAllocate);
-        final IPv6AddressRange freeRangeAfterNetwork = findFreeRangeAfter(toDeAllocate);
+        final IPv6Network containing = IPv6Network.fromAddressAndMask(address, allocationSubnetSize);
+        if (containing.getLast().equals(IPv6Address.MAX))
+            return null;
 
-        final TreeSet<IPv6AddressRange> newFreeRanges = new TreeSet<IPv6AddressRange>(this.freeRanges);
+        final IPv6Address next = freeRanges.firstFreeFrom(containing.getLast().add(1));
+        return next == null ? null : IPv6Network.fromAddressAndMask(next, allocationSubnetSize);
+    }
 
-        if ((freeRangeBeforeNetwork == null) && (freeRangeAfterNetwork == null))
-        {
-            // nothing to "defragment"
-            newFreeRanges.add(toDeAllocate);
-        }
-        else
-        {
-            if ((freeRangeBeforeNetwork != null) && (freeRangeAfterNetwork != null))
-            {
-                // merge two existing ranges
-                newFreeRanges.remove(freeRangeBeforeNetwork);
-                newFreeRanges.remove(freeRangeAfterNetwork);
-                newFreeRanges.add(IPv6AddressRange
-                        .fromFirstAndLast(freeRangeBeforeNetwork.getFirst(), freeRangeAfterNetwork.getLast()));
-            }
-            else if (freeRangeBeforeNetwork != null)
-            {
-                // append
-                newFreeRanges.remove(freeRangeBeforeNetwork);
-                newFreeRanges.add(IPv6AddressRange.fromFirstAndLast(freeRangeBeforeNetwork.getFirst(), toDeAllocate.getLast()));
-            }
-            else /*if (freeRangeAfterNetwork != null)*/
-            {
-                // prepend
-                newFreeRanges.remove(freeRangeAfterNetwork);
-                newFreeRanges.add(IPv6AddressRange.fromFirstAndLast(toDeAllocate.getFirst(), freeRangeAfterNetwork.getLast()));
-            }
-        }
+    /**
+     * Private helper method to perform the allocation of a free subnet.
+     *
+     * @param toAllocate subnet to allocate
+     * @return resulting pool
+     */
+    private IPv6AddressPool doAllocate(final IPv6Network toAllocate)
+    {
+        assert freeRanges.isFree(toAllocate.getFirst());
+
+        return new IPv6AddressPool(underlyingRange, allocationSubnetSize, freeRanges.allocate(toAllocate), toAllocate);
+    }
+
+    /**
+     * Give a network back to the pool (de-allocate). The network can also be bigger than the subnets of the pool, in which case all the
+     * subnets it contains are de-allocated.
+     *
+     * @param toDeAllocate network to de-allocate
+     */
+    public IPv6AddressPool deAllocate(final IPv6Network toDeAllocate)
+    {
+        validateCanDeAllocate(toDeAllocate);
 
-        return new IPv6AddressPool(underlyingRange, allocationSubnetSize, newFreeRanges, getLastAllocated());
+        // the free range tree merges the network with the free ranges just in front and after it, to prevent fragmentation
+        final long start = IPv6Metrics.start();
+        return IPv6Metrics.deAllocated(
+                new IPv6AddressPool(underlyingRange, allocationSubnetSize, freeRanges.free(toDeAllocate), getLastAllocated()), start);
     }
 
     /**
-     * Private helper method to find the free range just before the given network.
+     * Give a number of networks back to the pool (de-allocate) at once. This is equivalent to de-allocating them one by one, but only
+     * creates a single new pool.
+     *
+     * @param toDeAllocate networks to de-allocate
+     * @return resulting pool
      */
-    private IPv6AddressRange findFreeRangeBefore(IPv6Network network)
+    public IPv6AddressPool deAllocate(final Collection<IPv6Network> toDeAllocate)
     {
-        for (IPv6AddressRange freeRange : freeRanges)
+        if (toDeAllocate == null)
+            throw new IllegalArgumentException("networks invalid [null]");
+
+        final long start = IPv6Metrics.start();
+        FreeRangeTree result = freeRanges;
+        for (IPv6Network network : toDeAllocate)
         {
-            if (freeRange.getLast().add(1).equals(network.getFirst()))
-            {
-                return freeRange;
-            }
+            validateCanDeAllocate(network);
+            result = result.free(network);
         }
 
-        // not found
-        return null;
+        return IPv6Metrics.deAllocated(new IPv6AddressPool(underlyingRange, allocationSubnetSize, result, getLastAllocated()), start);
     }
 
     /**
-     * Private helper method to find the free range just after the given address.
+     * Apply the differences between two versions of a pool (as computed with {@link IPv6AddressPoolChangeset#diff(IPv6AddressPool,
+     * IPv6AddressPool)}) to this pool, which is typically (a copy of) the older version. All the networks which were allocated in the
+     * changeset should be free in this pool, and all the networks which were released should be allocated.
+     *
+     * @param changeset changes to apply
+     * @return resulting pool
      */
-    private IPv6AddressRange findFreeRangeAfter(IPv6Network network)
+    public IPv6AddressPool apply(final IPv6AddressPoolChangeset changeset)
     {
-        for (IPv6AddressRange freeRange : freeRanges)
+        if (changeset == null)
+            throw new IllegalArgumentException("changeset invalid [null]");
+        if (!underlyingRange.equals(changeset.getUnderlyingRange()) || !allocationSubnetSize.equals(changeset.getAllocationSubnetSize()))
+            throw new IllegalArgumentException("can not apply changes of a different pool to [" + this + "]");
+
+        return new IPv6AddressPool(underlyingRange, allocationSubnetSize,
+                                   freeRanges.apply(changeset.getAllocatedRuns(), changeset.getReleasedRuns()),
+                                   changeset.getLastAllocated());
+    }
+
+    private void validateCanDeAllocate(IPv6Network toDeAllocate)
+    {
+        if (!contains(toDeAllocate))
         {
-            if (freeRange.getFirst().subtract(1).equals(network.getLast()))
-            {
-                return freeRange;
-            }
+            throw new IllegalArgumentException(
+                    "Network to de-allocate[" + toDeAllocate + "] is not contained in this allocatable range [" + this + "]");
         }
 
-        // not found
-        return null;
+        if (toDeAllocate.getNetmask().asPrefixLength() > allocationSubnetSize.asPrefixLength())
+            throw new IllegalArgumentException(
+                    "can not de-allocate network with prefix length /" + toDeAllocate.getNetmask().asPrefixLength() +
+                            " from a pool configured to hand out subnets with prefix length /" + allocationSubnetSize);
     }
 
     /**
@@ -315,6 +562,50 @@ public final class IPv6AddressPool implements Serializable
         return freeRanges.isEmpty();
     }
 
+    /**
+     * @return the number of free subnets in this pool (in constant time)
+     */
+    public BigInteger freeCount()
+    {
+        return freeRanges.count();
+    }
+
+    /**
+     * @return the number of segments in which the free subnets of this pool are stored (runs of consecutive free subnets, and chunks of 64
+     *         subnets in densely fragmented regions), a measure of the fragmentation of this pool (in constant time)
+     */
+    public int freeSegmentCount()
+    {
+        return freeRanges.numberOfSegments();
+    }
+
+    /**
+     * Count the free subnets within a network, e.g. the number of free /64 subnets within a /48, in logarithmic time.
+     *
+     * @param network network to count the free subnets in, it should not be smaller than the subnets of this pool (but it doesn't have
+     *                to be contained in the pool)
+     * @return the number of free subnets within the given network
+     */
+    public BigInteger freeCountWithin(final IPv6Network network)
+    {
+        if (network == null)
+            throw new IllegalArgumentException("network invalid [null]");
+        if (network.getNetmask().asPrefixLength() > allocationSubnetSize.asPrefixLength())
+            throw new IllegalArgumentException(
+                    "can not count subnets with prefix length /" + allocationSubnetSize.asPrefixLength() + " within network [" + network
+                            + "] which is smaller");
+
+        return freeRanges.countWithin(network);
+    }
+
+    /**
+     * @return the largest free range in this pool (the first of those if there are multiple), or null if the pool is exhausted
+     */
+    public IPv6AddressRange largestFreeBlock()
+    {
+        return freeRanges.longestRange();
+    }
+
     public boolean isFree(final IPv6Network network)
     {
         if (network == null)
@@ -326,17 +617,7 @@ public final class IPv6AddressPool implements Serializable
                             + "] can not be free in a pool which uses prefix length [" +
                             allocationSubnetSize + "]");
 
-        // find a free range that contains the network
-        for (IPv6AddressRange freeRange : freeRanges)
-        {
-            if (freeRange.contains(network))
-            {
-                return true;
-            }
-        }
-
-        // nothing found
-        return false;
+        return freeRanges.isFree(network.getFirst());
     }
 
     /**
@@ -349,32 +630,20 @@ public final class IPv6AddressPool implements Serializable
             @Override
             public Iterator<IPv6Network> iterator()
             {
+                final Iterator<IPv6Address> freeSubnets = freeRanges.freeSubnets();
+
                 return new Iterator<IPv6Network>()
                 {
-                    /*
-                     * Iteration is implemented by allocating from a separate pool.
-                     */
-
-                    private IPv6AddressPool poolInstanceUsedForIteration = IPv6AddressPool.this;
-
                     @Override
                     public boolean hasNext()
                     {
-                        return !poolInstanceUsedForIteration.isExhausted();
+                        return freeSubnets.hasNext();
                     }
 
                     @Override
                     public IPv6Network next()
                     {
-                        if (hasNext())
-                        {
-                            poolInstanceUsedForIteration = poolInstanceUsedForIteration.allocate();
-                            return poolInstanceUsedForIteration.lastAllocated;
-                        }
-                        else
-                        {
-                            throw new NoSuchElementException();
-                        }
+                        return IPv6Network.fromAddressAndMask(freeSubnets.next(), allocationSubnetSize);
                     }
 
                     @Override
@@ -456,4 +725,156 @@ public final class IPv6AddressPool implements Serializable
         return underlyingRange.toLongString();
     }
 
+    /**
+     * Strategies to choose the subnet to allocate. All strategies take logarithmic time in the number of free ranges.
+     */
+    public enum AllocationStrategy
+    {
+        /**
+         * The first (lowest) free subnet. This packs allocations at the start of the pool.
+         */
+        FIRST_FIT,
+
+        /**
+         * The first subnet of the smallest free range (the first of those if there are multiple). This fills up the gaps in fragmented
+         * regions first and keeps the big free ranges intact.
+         */
+        BEST_FIT,
+
+        /**
+         * The last (highest) free subnet. This packs allocations at the end of the pool.
+         */
+        TOP_DOWN,
+
+        /**
+         * A free subnet chosen uniformly at random over all free subnets, which makes allocated subnets hard to predict.
+         */
+        RANDOM
+    }
+
+    /**
+     * Lazily created, shared secure random for the {@link AllocationStrategy#RANDOM} strategy.
+     */
+    private static final class SecureRandomHolder
+    {
+        private static final Random SECURE_RANDOM = new SecureRandom();
+    }
+
+    // serialization
+
+    private Object writeReplace()
+    {
+        return new SerializedForm(this);
+    }
+
+    /**
+     * Read the v0.17 serialized form (pools are written as a {@link SerializedForm} since).
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+        final ObjectInputStream.GetField fields = in.readFields();
+        final Object freeRanges = fields.get("freeRanges", null);
+        if (!(freeRanges instanceof SortedSet))
+            throw new InvalidObjectException("invalid pool: free ranges invalid");
+
+        final List<IPv6AddressRange> ranges = new ArrayList<IPv6AddressRange>(((SortedSet<?>) freeRanges).size());
+        for (Object range : (SortedSet<?>) freeRanges)
+        {
+            if (!(range instanceof IPv6AddressRange))
+                throw new InvalidObjectException("invalid pool: free ranges invalid");
+            ranges.add((IPv6AddressRange) range);
+        }
+
+        deserialized = deserialize((IPv6AddressRange) fields.get("underlyingRange", null),
+                                   (IPv6NetworkMask) fields.get("allocationSubnetSize", null), ranges,
+                                   (IPv6Network) fields.get("lastAllocated", null));
+    }
+
+    private Object readResolve()
+    {
+        return deserialized;
+    }
+
+    /**
+     * @return the pool with the given (deserialized) free ranges, after validating them
+     */
+    private static IPv6AddressPool deserialize(IPv6AddressRange underlyingRange, IPv6NetworkMask allocationSubnetSize,
+                                               List<IPv6AddressRange> freeRanges, IPv6Network lastAllocated)
+            throws InvalidObjectException
+    {
+        try
+        {
+            if (underlyingRange == null || allocationSubnetSize == null)
+                throw new IllegalStateException("range or subnet size missing");
+            validateRangeIsMultipleOfSubnetsOfGivenSize(underlyingRange, allocationSubnetSize);
+            IPv6AddressPoolHelpers.checkFreeRanges(underlyingRange, allocationSubnetSize, freeRanges);
+
+            return new IPv6AddressPool(underlyingRange, allocationSubnetSize, FreeRangeTree.fromRanges(allocationSubnetSize, freeRanges),
+                                       lastAllocated);
+        } catch (RuntimeException e)
+        {
+            final InvalidObjectException invalidObjectException = new InvalidObjectException("invalid pool: " + e.getMessage());
+            invalidObjectException.initCause(e);
+            throw invalidObjectException;
+        }
+    }
+
+    /**
+     * Serialized form of a pool: the free ranges are written as a flat array of longs, independent of the internal representation.
+     */
+    private static final class SerializedForm implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final IPv6AddressRange underlyingRange;
+
+        private final IPv6NetworkMask allocationSubnetSize;
+
+        private final IPv6Network lastAllocated;
+
+        /**
+         * High and low bits of the first and last address of every free range.
+         */
+        private final long[] freeRanges;
+
+        private SerializedForm(IPv6AddressPool pool)
+        {
+            this.underlyingRange = pool.underlyingRange;
+            this.allocationSubnetSize = pool.allocationSubnetSize;
+            this.lastAllocated = pool.lastAllocated;
+
+            final List<IPv6AddressRange> ranges = pool.freeRanges.toRanges();
+            this.freeRanges = new long[4 * ranges.size()];
+            for (int i = 0; i < ranges.size(); i++)
+            {
+                freeRanges[4 * i] = ranges.get(i).getFirst().getHighBits();
+                freeRanges[4 * i + 1] = ranges.get(i).getFirst().getLowBits();
+                freeRanges[4 * i + 2] = ranges.get(i).getLast().getHighBits();
+                freeRanges[4 * i + 3] = ranges.get(i).getLast().getLowBits();
+            }
+        }
+
+        private Object readResolve() throws ObjectStreamException
+        {
+            if (freeRanges == null || freeRanges.length % 4 != 0)
+                throw new InvalidObjectException("invalid pool: free ranges invalid");
+
+            final List<IPv6AddressRange> ranges = new ArrayList<IPv6AddressRange>(freeRanges.length / 4);
+            try
+            {
+                for (int i = 0; i < freeRanges.length; i += 4)
+                {
+                    ranges.add(IPv6AddressRange.fromFirstAndLast(IPv6Address.fromLongs(freeRanges[i], freeRanges[i + 1]),
+                                                                 IPv6Address.fromLongs(freeRanges[i + 2], freeRanges[i + 3])));
+                }
+            } catch (IllegalArgumentException e)
+            {
+                final InvalidObjectException invalidObjectException = new InvalidObjectException("invalid pool: " + e.getMessage());
+                invalidObjectException.initCause(e);
+                throw invalidObjectException;
+            }
+
+            return deserialize(underlyingRange, allocationSubnetSize, ranges, lastAllocated);
+        }
+    }
 }
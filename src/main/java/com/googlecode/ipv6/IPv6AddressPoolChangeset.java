@@ -0,0 +1,194 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static com.googlecode.ipv6.FreeRangeTree.compare;
+import static com.googlecode.ipv6.FreeRangeTree.shiftRightHigh;
+import static com.googlecode.ipv6.FreeRangeTree.shiftRightLow;
+
+/**
+ * Immutable set of differences between two versions of an {@link IPv6AddressPool}: the networks which were allocated and the networks
+ * which were released (de-allocated) in the newer version. A changeset can be applied to (a copy of) the older version with {@link
+ * IPv6AddressPool#apply(IPv6AddressPoolChangeset)}, e.g. to keep a pool on another node in sync by shipping only the differences.
+ * <p>
+ * Versions of a pool which are derived from each other (by allocating and de-allocating) share most of their internal structure, which is
+ * skipped when computing the differences. The time to compute a changeset is thus proportional to the number of changes rather than to
+ * the size of the pool.
+ *
+ * @author Jan Van Besien
+ */
+public final class IPv6AddressPoolChangeset implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private final IPv6AddressRange underlyingRange;
+
+    private final IPv6NetworkMask allocationSubnetSize;
+
+    private final IPv6Network lastAllocated;
+
+    /**
+     * First and last subnet number (high and low bits) of every run of allocated subnets.
+     */
+    private final long[] allocated;
+
+    /**
+     * First and last subnet number (high and low bits) of every run of released subnets.
+     */
+    private final long[] released;
+
+    /**
+     * Compute the differences between two versions of a pool.
+     *
+     * @param older older version of the pool
+     * @param newer newer version of the pool, with the same range and subnet size
+     * @return the changes to apply to the older version to obtain the newer version
+     */
+    public static IPv6AddressPoolChangeset diff(final IPv6AddressPool older, final IPv6AddressPool newer)
+    {
+        if (older == null)
+            throw new IllegalArgumentException("older pool invalid [null]");
+        if (newer == null)
+            throw new IllegalArgumentException("newer pool invalid [null]");
+        if (!older.getUnderlyingRange().equals(newer.getUnderlyingRange())
+                || !older.getAllocationSubnetSize().equals(newer.getAllocationSubnetSize()))
+            throw new IllegalArgumentException("can not compute the differences between unrelated pools [" + older + "] and [" + newer + "]");
+
+        final long[][] differences = older.diffFreeSubnetRuns(newer);
+        return new IPv6AddressPoolChangeset(older.getUnderlyingRange(), older.getAllocationSubnetSize(), newer.getLastAllocated(),
+                                            differences[0], differences[1]);
+    }
+
+    private IPv6AddressPoolChangeset(IPv6AddressRange underlyingRange, IPv6NetworkMask allocationSubnetSize, IPv6Network lastAllocated,
+                                     long[] allocated, long[] released)
+    {
+        this.underlyingRange = underlyingRange;
+        this.allocationSubnetSize = allocationSubnetSize;
+        this.lastAllocated = lastAllocated;
+        this.allocated = allocated;
+        this.released = released;
+    }
+
+    /**
+     * @return true if both versions of the pool have the same free subnets
+     */
+    public boolean isEmpty()
+    {
+        return allocated.length == 0 && released.length == 0;
+    }
+
+    /**
+     * @return the allocated networks (as big as possible, i.e. consecutive allocated subnets are aggregated), sorted
+     */
+    public List<IPv6Network> getAllocated()
+    {
+        return toNetworks(allocated);
+    }
+
+    /**
+     * @return the released networks (as big as possible, i.e. consecutive released subnets are aggregated), sorted
+     */
+    public List<IPv6Network> getReleased()
+    {
+        return toNetworks(released);
+    }
+
+    private List<IPv6Network> toNetworks(long[] runs)
+    {
+        final List<IPv6Network> result = new ArrayList<IPv6Network>();
+        for (IPv6AddressRange range : FreeRangeTree.fromSubnetRuns(allocationSubnetSize, runs, runs.length / 4).toRanges())
+        {
+            final Iterator<IPv6Network> networks = range.toSubnets();
+            while (networks.hasNext())
+            {
+                result.add(networks.next());
+            }
+        }
+        return result;
+    }
+
+    IPv6AddressRange getUnderlyingRange()
+    {
+        return underlyingRange;
+    }
+
+    IPv6NetworkMask getAllocationSubnetSize()
+    {
+        return allocationSubnetSize;
+    }
+
+    IPv6Network getLastAllocated()
+    {
+        return lastAllocated;
+    }
+
+    long[] getAllocatedRuns()
+    {
+        return allocated;
+    }
+
+    long[] getReleasedRuns()
+    {
+        return released;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "allocated " + getAllocated() + ", released " + getReleased();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+        in.defaultReadObject();
+
+        // the runs should be sorted, non overlapping and within the range
+        if (underlyingRange == null || allocationSubnetSize == null || allocated == null || released == null
+                || !validRuns(allocated) || !validRuns(released))
+            throw new InvalidObjectException("invalid changeset");
+    }
+
+    private boolean validRuns(long[] runs)
+    {
+        if (runs.length % 4 != 0)
+            return false;
+
+        final int shift = 128 - allocationSubnetSize.asPrefixLength();
+        long previousHigh = shiftRightHigh(underlyingRange.getFirst().getHighBits(), underlyingRange.getFirst().getLowBits(), shift);
+        long previousLow = shiftRightLow(underlyingRange.getFirst().getHighBits(), underlyingRange.getFirst().getLowBits(), shift);
+        for (int i = 0; i < runs.length; i += 4)
+        {
+            // the first run may start at the start of the range, every other run starts after the end of the previous run
+            if (compare(runs[i], runs[i + 1], previousHigh, previousLow) < (i == 0 ? 0 : 1)
+                    || compare(runs[i], runs[i + 1], runs[i + 2], runs[i + 3]) > 0)
+                return false;
+            previousHigh = runs[i + 2];
+            previousLow = runs[i + 3];
+        }
+        return compare(previousHigh, previousLow,
+                       shiftRightHigh(underlyingRange.getLast().getHighBits(), underlyingRange.getLast().getLowBits(), shift),
+                       shiftRightLow(underlyingRange.getLast().getHighBits(), underlyingRange.getLast().getLowBits(), shift)) <= 0;
+    }
+}
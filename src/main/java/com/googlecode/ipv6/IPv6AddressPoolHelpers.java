@@ -0,0 +1,283 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Helper methods used by IPv6AddressPool.
+ *
+ * @author Jan Van Besien
+ */
+public final class IPv6AddressPoolHelpers
+{
+    /**
+     * Below this number of networks, bulk validation and sorting is done on the calling thread.
+     */
+    static final int PARALLEL_THRESHOLD = 1 << 16;
+
+    /**
+     * Validate that all the given networks can be allocated in a pool with the given range and subnet size, and sort them. Large inputs
+     * are split in chunks which are validated and sorted in parallel, after which the sorted chunks are merged. The parallel work runs on
+     * a new fixed thread pool (of non daemon threads, one per processor) which is started for the call and shut down before returning.
+     *
+     * @param range                range of the pool
+     * @param allocationSubnetSize subnet size of the pool
+     * @param networks             networks to validate and sort (the array is modified: it is either sorted in place, or used as one of
+     *                             the buffers when merging sorted chunks)
+     * @return the sorted networks, which is either the given array or a new array
+     */
+    static IPv6Network[] validateAndSort(final IPv6AddressRange range, final IPv6NetworkMask allocationSubnetSize,
+                                         final IPv6Network[] networks)
+    {
+        final int nThreads = Runtime.getRuntime().availableProcessors();
+        if (networks.length < PARALLEL_THRESHOLD || nThreads == 1)
+        {
+            validateAndSortChunk(range, allocationSubnetSize, networks, 0, networks.length);
+            return networks;
+        }
+        else
+        {
+            return validateAndSortInParallel(range, allocationSubnetSize, networks, nThreads);
+        }
+    }
+
+    private static IPv6Network[] validateAndSortInParallel(final IPv6AddressRange range, final IPv6NetworkMask allocationSubnetSize,
+                                                           final IPv6Network[] networks, final int nThreads)
+    {
+        final ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try
+        {
+            // validate and sort chunks in parallel
+            final int chunkSize = (networks.length + nThreads - 1) / nThreads;
+            final List<Future<?>> sorts = new ArrayList<Future<?>>();
+            final List<int[]> chunks = new ArrayList<int[]>();
+            for (int from = 0; from < networks.length; from += chunkSize)
+            {
+                final int start = from;
+                final int end = Math.min(from + chunkSize, networks.length);
+                chunks.add(new int[]{start, end});
+                sorts.add(executor.submit(new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                    {
+                        validateAndSortChunk(range, allocationSubnetSize, networks, start, end);
+                        return null;
+                    }
+                }));
+            }
+            awaitAll(sorts);
+
+            // merge pairs of adjacent sorted chunks until a single sorted chunk remains
+            IPv6Network[] source = networks;
+            IPv6Network[] target = new IPv6Network[networks.length];
+            while (chunks.size() > 1)
+            {
+                final List<Future<?>> merges = new ArrayList<Future<?>>();
+                final List<int[]> mergedChunks = new ArrayList<int[]>();
+                for (int i = 0; i < chunks.size(); i += 2)
+                {
+                    final int[] left = chunks.get(i);
+                    final int[] right = i + 1 < chunks.size() ? chunks.get(i + 1) : new int[]{left[1], left[1]};
+                    final IPv6Network[] from = source;
+                    final IPv6Network[] to = target;
+                    mergedChunks.add(new int[]{left[0], right[1]});
+                    merges.add(executor.submit(new Callable<Void>()
+                    {
+                        @Override
+                        public Void call()
+                        {
+                            merge(from, left[0], left[1], right[1], to);
+                            return null;
+                        }
+                    }));
+                }
+                awaitAll(merges);
+
+                chunks.clear();
+                chunks.addAll(mergedChunks);
+                final IPv6Network[] swap = source;
+                source = target;
+                target = swap;
+            }
+
+            return source;
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void validateAndSortChunk(IPv6AddressRange range, IPv6NetworkMask allocationSubnetSize, IPv6Network[] networks,
+                                             int from, int to)
+    {
+        for (int i = from; i < to; i++)
+        {
+            final IPv6Network network = networks[i];
+            if (network == null)
+                throw new IllegalArgumentException("network invalid [null]");
+            if (!allocationSubnetSize.equals(network.getNetmask()))
+                throw new IllegalArgumentException(
+                        "can not allocate network with prefix length /" + network.getNetmask().asPrefixLength() +
+                                " from a pool configured to hand out subnets with prefix length /" + allocationSubnetSize);
+            if (!range.contains(network))
+                throw new IllegalArgumentException(
+                        "can not allocate network which is not contained in the pool to allocate from [" + network + "]");
+        }
+
+        Arrays.sort(networks, from, to);
+    }
+
+    private static void merge(IPv6Network[] source, int from, int middle, int to, IPv6Network[] target)
+    {
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++)
+        {
+            if (right >= to || (left < middle && source[left].compareTo(source[right]) <= 0))
+                target[i] = source[left++];
+            else
+                target[i] = source[right++];
+        }
+    }
+
+    private static void awaitAll(List<Future<?>> futures)
+    {
+        try
+        {
+            for (Future<?> future : futures)
+            {
+                future.get();
+            }
+        } catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            else
+                throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while validating allocated networks", e);
+        }
+    }
+
+    /**
+     * Calculate the free ranges in a range in which the given (sorted, same size) networks are allocated, in a single sweep.
+     *
+     * @param range  range of the pool
+     * @param sorted sorted allocated networks, all contained in the range
+     * @return free ranges
+     */
+    static List<IPv6AddressRange> freeRangesAround(IPv6AddressRange range, IPv6Network[] sorted)
+    {
+        final List<IPv6AddressRange> freeRanges = new ArrayList<IPv6AddressRange>();
+
+        // the first address which is not yet known to be allocated, or null if the end of the range was reached
+        IPv6Address firstCandidate = range.getFirst();
+        for (IPv6Network network : sorted)
+        {
+            if (firstCandidate == null || network.getFirst().compareTo(firstCandidate) < 0)
+                throw new IllegalArgumentException("network [" + network + "] can not be allocated more than once");
+
+            if (network.getFirst().compareTo(firstCandidate) > 0)
+                freeRanges.add(IPv6AddressRange.fromFirstAndLast(firstCandidate, network.getFirst().subtract(1)));
+
+            firstCandidate = network.getLast().equals(range.getLast()) ? null : network.getLast().add(1);
+        }
+
+        if (firstCandidate != null)
+            freeRanges.add(IPv6AddressRange.fromFirstAndLast(firstCandidate, range.getLast()));
+
+        return freeRanges;
+    }
+
+    /**
+     * Check, in a single pass, that the given free ranges are valid free ranges for a pool with the given range and subnet size: they
+     * should be sorted, within the bounds of the range, aligned with the subnet size, non overlapping and defragmented.
+     *
+     * @param range                range of the pool
+     * @param allocationSubnetSize subnet size of the pool
+     * @param freeRanges           free ranges to check
+     * @throws IllegalStateException if the free ranges are invalid
+     */
+    static void checkFreeRanges(IPv6AddressRange range, IPv6NetworkMask allocationSubnetSize, Iterable<IPv6AddressRange> freeRanges)
+    {
+        final int allocatableBits = 128 - allocationSubnetSize.asPrefixLength();
+
+        IPv6AddressRange previous = null;
+        for (IPv6AddressRange freeRange : freeRanges)
+        {
+            if (!range.contains(freeRange))
+                throw new IllegalStateException("free range [" + freeRange + "] is not within bounds of overall range [" + range + "]");
+
+            if (freeRange.getFirst().numberOfTrailingZeroes() < allocatableBits
+                    || freeRange.getLast().numberOfTrailingOnes() < allocatableBits)
+                throw new IllegalStateException(
+                        "free range [" + freeRange + "] is not aligned with prefix length [" + allocationSubnetSize + "]");
+
+            if (previous != null)
+            {
+                if (previous.getLast().compareTo(freeRange.getFirst()) >= 0)
+                    throw new IllegalStateException("free ranges [" + previous + "] and [" + freeRange + "] are not sorted or overlap");
+
+                if (previous.getLast().add(1).equals(freeRange.getFirst()))
+                    throw new IllegalStateException("free ranges [" + previous + "] and [" + freeRange + "] are adjacent");
+            }
+
+            previous = freeRange;
+        }
+    }
+
+    /**
+     * Map a key on a subnet of the given range, with a hash which is the same on every JVM and in every version of this library.
+     *
+     * @param range                range of the pool
+     * @param allocationSubnetSize subnet size of the pool
+     * @param key                  key to map
+     * @return the first address of the subnet the key maps on
+     */
+    static IPv6Address stickySubnet(IPv6AddressRange range, IPv6NetworkMask allocationSubnetSize, byte[] key)
+    {
+        final byte[] digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256").digest(key);
+        } catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-256 is required to be supported by every java platform", e);
+        }
+
+        final int allocatableBits = 128 - allocationSubnetSize.asPrefixLength();
+        final BigInteger numberOfSubnets = range.size().shiftRight(allocatableBits);
+        final BigInteger index = new BigInteger(1, digest).mod(numberOfSubnets);
+
+        return IPv6Address.fromBigInteger(range.getFirst().toBigInteger().add(index.shiftLeft(allocatableBits)));
+    }
+}
@@ -0,0 +1,542 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Mutable IPv6 address pool which is persisted in local files: a snapshot (see {@link IPv6AddressPoolSnapshot}) and an append only
+ * journal of all allocations and de-allocations since that snapshot. This class is not thread safe.
+ * <p>
+ * Every change is appended to the journal as a small fixed size record with its own checksum. Records are buffered and written (and
+ * synced to disk) in batches: a change is durable once {@link #sync()} returns, which happens automatically after a configurable number
+ * of changes. When the journal is opened, the snapshot is loaded and the journal is replayed on top of it. A partially written or corrupt
+ * record at the end of the journal (e.g. after a crash) is discarded, together with everything after it.
+ * <p>
+ * {@link #checkpoint()} writes a new snapshot and starts a new journal, which keeps the journal (and the time to replay it) small.
+ * Snapshots and journals have a generation: a checkpoint writes a snapshot of the next generation and starts the journal of that
+ * generation (a separate file, named after the generation), and a snapshot supersedes the journals of all generations before it. When
+ * opening, the journals of the generation of the snapshot and all later generations are replayed. The rename of a new snapshot into place
+ * is not guaranteed to be durable before a crash (the directory can't be synced), so a checkpoint never discards the journal which the new
+ * snapshot supersedes: if the previous snapshot is still there after a crash, its journal and the journal after it are both replayed.
+ * Journals are only deleted once they are superseded by a snapshot which has been read back (when opening, or at the next checkpoint).
+ * Records are idempotent (allocating a subnet which is already allocated, or de-allocating a free one, has no effect), such that
+ * replaying a journal on top of a snapshot which already contains (some of) its changes is harmless (the free subnets are restored
+ * exactly, only {@link IPv6AddressPool#getLastAllocated()} might differ).
+ * <p>
+ * If writing the journal (or a checkpoint) fails, the state of the files is unknown, and all further operations throw an IOException: the
+ * journal has to be opened again, which recovers all changes which were synced.
+ *
+ * @author Jan Van Besien
+ */
+public final class IPv6AddressPoolJournal implements Closeable
+{
+    private static final int MAGIC = 0x4950364a; // "IP6J"
+
+    private static final byte VERSION = 2;
+
+    /**
+     * Magic number, version, generation, first and last address of the range of the pool and prefix length of its subnets.
+     */
+    private static final int HEADER_SIZE = 4 + 1 + 8 + 4 * 8 + 1;
+
+    /**
+     * Type, address and prefix length of the network, checksum.
+     */
+    private static final int RECORD_SIZE = 1 + 2 * 8 + 1 + 4;
+
+    private static final byte ALLOCATE = 1;
+
+    private static final byte DE_ALLOCATE = 2;
+
+    private static final int MAX_SYNC_INTERVAL = 1 << 16;
+
+    private final File snapshotFile;
+
+    private final File journalFile;
+
+    /**
+     * Records which are not written yet (at most syncInterval records).
+     */
+    private final ByteBuffer pending;
+
+    private final CRC32 crc = new CRC32();
+
+    private IPv6AddressPool pool;
+
+    /**
+     * Generation of the snapshot which was read (or written) last, the journals before it are superseded.
+     */
+    private long snapshotGeneration;
+
+    /**
+     * Generation of the journal which is appended to.
+     */
+    private long generation;
+
+    private RandomAccessFile file;
+
+    private FileChannel channel;
+
+    /**
+     * Whether writing failed (after which the journal can't be used anymore).
+     */
+    private boolean failed;
+
+    /**
+     * Open a pool from its snapshot and journal, replaying the journal on top of the snapshot.
+     *
+     * @param snapshotFile snapshot file
+     * @param journalFile  journal file, of which the name is used for a file per generation (e.g. "pool.journal.0", created if it doesn't
+     *                     exist)
+     * @param initial      pool to start from if the snapshot file doesn't exist (yet), ignored otherwise (if the snapshot file doesn't exist
+     *                     because a crash interrupted the writing of a snapshot, the previous snapshot is read from its backup file, or
+     *                     an IOException is thrown if there is none)
+     * @param syncInterval maximum number of changes which are not synced to disk, e.g. 1 to sync every change
+     * @return the journaled pool
+     * @throws IOException if the snapshot or journal could not be read, or if they are not valid
+     */
+    public static IPv6AddressPoolJournal open(final File snapshotFile, final File journalFile, final IPv6AddressPool initial,
+                                              final int syncInterval) throws IOException
+    {
+        if (snapshotFile == null)
+            throw new IllegalArgumentException("snapshot file invalid [null]");
+        if (journalFile == null)
+            throw new IllegalArgumentException("journal file invalid [null]");
+        if (syncInterval < 1 || syncInterval > MAX_SYNC_INTERVAL)
+            throw new IllegalArgumentException("sync interval should be within [1, " + MAX_SYNC_INTERVAL + "] [" + syncInterval + "]");
+
+        // the snapshot, or the previous snapshot if the crash was in the middle of replacing it
+        final File backupFile = IPv6AddressPoolSnapshot.backupFile(snapshotFile);
+        final File source = snapshotFile.exists() ? snapshotFile : backupFile.exists() ? backupFile : null;
+
+        final IPv6AddressPool pool;
+        final long snapshotGeneration;
+        if (source != null)
+        {
+            pool = IPv6AddressPoolSnapshot.read(source);
+            snapshotGeneration = IPv6AddressPoolSnapshot.readGeneration(source);
+        }
+        else if (IPv6AddressPoolSnapshot.temporaryFile(snapshotFile).exists())
+        {
+            throw new IOException("incomplete snapshot [" + IPv6AddressPoolSnapshot.temporaryFile(snapshotFile)
+                                          + "] without a previous snapshot [" + snapshotFile + "]");
+        }
+        else if (initial != null)
+        {
+            pool = initial;
+            snapshotGeneration = 0;
+        }
+        else
+        {
+            throw new IllegalArgumentException("initial pool required if there is no snapshot [" + snapshotFile + "]");
+        }
+
+        final IPv6AddressPoolJournal journal = new IPv6AddressPoolJournal(snapshotFile, journalFile, pool, snapshotGeneration,
+                                                                          syncInterval);
+        try
+        {
+            journal.recover();
+            return journal;
+        } catch (IOException e)
+        {
+            journal.closeFile();
+            throw e;
+        }
+    }
+
+    private IPv6AddressPoolJournal(File snapshotFile, File journalFile, IPv6AddressPool pool, long snapshotGeneration,
+                                   int syncInterval)
+    {
+        this.snapshotFile = snapshotFile;
+        this.journalFile = journalFile;
+        this.pending = ByteBuffer.allocate(syncInterval * RECORD_SIZE);
+        this.pool = pool;
+        this.snapshotGeneration = snapshotGeneration;
+    }
+
+    /**
+     * @return the journal file of the given generation
+     */
+    File journalFile(long generation)
+    {
+        return new File(journalFile.getPath() + "." + generation);
+    }
+
+    /**
+     * Replay the journals of the generation of the snapshot and all later generations, and continue appending to the last one (or start
+     * the journal of the generation of the snapshot if there is none).
+     */
+    private void recover() throws IOException
+    {
+        deleteJournalsBefore(snapshotGeneration);
+
+        generation = snapshotGeneration;
+        while (journalFile(generation + 1).exists())
+        {
+            generation++;
+        }
+
+        // journals before the last one are complete (they were synced before the next one was started)
+        for (long older = snapshotGeneration; older < generation; older++)
+        {
+            final RandomAccessFile olderFile = new RandomAccessFile(journalFile(older), "r");
+            try
+            {
+                final FileChannel olderChannel = olderFile.getChannel();
+                if (olderChannel.size() < HEADER_SIZE || replay(olderChannel, older) != olderChannel.size())
+                    throw new IOException("corrupt journal [" + journalFile(older) + "]");
+            } finally
+            {
+                olderFile.close();
+            }
+        }
+
+        file = new RandomAccessFile(journalFile(generation), "rw");
+        channel = file.getChannel();
+        if (channel.size() < HEADER_SIZE)
+        {
+            // new journal (or the header of a new journal was never completely written)
+            writeHeader(channel, generation);
+            return;
+        }
+
+        final long position = replay(channel, generation);
+        if (position < channel.size())
+        {
+            // torn or corrupt tail
+            channel.truncate(position);
+            channel.force(false);
+        }
+        channel.position(position);
+    }
+
+    private void writeHeader(FileChannel channel, long generation) throws IOException
+    {
+        channel.truncate(0);
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).put(VERSION).putLong(generation);
+        header.putLong(pool.getFirst().getHighBits()).putLong(pool.getFirst().getLowBits());
+        header.putLong(pool.getLast().getHighBits()).putLong(pool.getLast().getLowBits());
+        header.put((byte) pool.getAllocationSubnetSize().asPrefixLength());
+        header.flip();
+        writeFully(channel, header, 0);
+        channel.force(false);
+        channel.position(HEADER_SIZE);
+    }
+
+    /**
+     * Validate the header and replay all valid records.
+     *
+     * @return the position after the last valid record
+     */
+    private long replay(FileChannel channel, long generation) throws IOException
+    {
+        final ByteBuffer header = readFully(channel, 0, HEADER_SIZE);
+        if (header.getInt() != MAGIC || header.get() != VERSION)
+            throw new IOException("not a journal (or unsupported version) [" + journalFile(generation) + "]");
+        if (header.getLong() != generation)
+            throw new IOException("journal of a different generation than [" + generation + "]");
+        if (header.getLong() != pool.getFirst().getHighBits() || header.getLong() != pool.getFirst().getLowBits()
+                || header.getLong() != pool.getLast().getHighBits() || header.getLong() != pool.getLast().getLowBits()
+                || (header.get() & 0xff) != pool.getAllocationSubnetSize().asPrefixLength())
+            throw new IOException("journal of a different pool than [" + pool + "]");
+
+        long position = HEADER_SIZE;
+        final long size = channel.size();
+        while (position + RECORD_SIZE <= size)
+        {
+            final ByteBuffer record = readFully(channel, position, RECORD_SIZE);
+            crc.reset();
+            crc.update(record.array(), 0, RECORD_SIZE - 4);
+            if (record.getInt(RECORD_SIZE - 4) != (int) crc.getValue())
+                break;
+
+            replay(record);
+            position += RECORD_SIZE;
+        }
+        return position;
+    }
+
+    /**
+     * Delete the journals of all generations before the given one (which are superseded by the snapshot of that generation).
+     */
+    private void deleteJournalsBefore(long generation) throws IOException
+    {
+        final File directory = journalFile.getAbsoluteFile().getParentFile();
+        final String prefix = journalFile.getName() + ".";
+        final File[] files = directory == null ? null : directory.listFiles();
+        if (files == null)
+            return;
+
+        for (File candidate : files)
+        {
+            final String name = candidate.getName();
+            if (!name.startsWith(prefix))
+                continue;
+            try
+            {
+                if (Long.parseLong(name.substring(prefix.length())) < generation && !candidate.delete())
+                    throw new IOException("could not delete superseded journal [" + candidate + "]");
+            } catch (NumberFormatException e)
+            {
+                // not a journal
+            }
+        }
+    }
+
+    private void replay(ByteBuffer record) throws IOException
+    {
+        final byte type = record.get();
+        final IPv6Address address = IPv6Address.fromLongs(record.getLong(), record.getLong());
+        try
+        {
+            final IPv6Network network = IPv6Network.fromAddressAndMask(address, IPv6NetworkMask.fromPrefixLength(record.get() & 0xff));
+            if (type == ALLOCATE)
+            {
+                if (pool.isFree(network))
+                    pool = pool.allocate(network);
+            }
+            else if (type == DE_ALLOCATE)
+            {
+                pool = pool.deAllocate(network);
+            }
+            else
+            {
+                throw new IOException("invalid journal record type [" + type + "]");
+            }
+        } catch (IllegalArgumentException e)
+        {
+            throw new IOException("invalid journal record for pool [" + pool + "]: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Allocate the first available subnet from the pool.
+     *
+     * @return the allocated subnet, or null if the pool is exhausted
+     * @throws IOException if the journal could not be written
+     */
+    public IPv6Network allocate() throws IOException
+    {
+        ensureNotFailed();
+        final IPv6AddressPool result = pool.allocate();
+        if (result == null)
+            return null;
+
+        pool = result;
+        append(ALLOCATE, result.getLastAllocated());
+        return result.getLastAllocated();
+    }
+
+    /**
+     * Allocate the given subnet from the pool.
+     *
+     * @param toAllocate subnet to allocate
+     * @return the allocated subnet, or null if it was not free
+     * @throws IOException if the journal could not be written
+     */
+    public IPv6Network allocate(final IPv6Network toAllocate) throws IOException
+    {
+        ensureNotFailed();
+        final IPv6AddressPool result = pool.allocate(toAllocate);
+        if (result == null)
+            return null;
+
+        pool = result;
+        append(ALLOCATE, toAllocate);
+        return toAllocate;
+    }
+
+    /**
+     * Give a network back to the pool.
+     *
+     * @param toDeAllocate network to de-allocate
+     * @throws IOException if the journal could not be written
+     */
+    public void deAllocate(final IPv6Network toDeAllocate) throws IOException
+    {
+        ensureNotFailed();
+        pool = pool.deAllocate(toDeAllocate);
+        append(DE_ALLOCATE, toDeAllocate);
+    }
+
+    private void append(byte type, IPv6Network network) throws IOException
+    {
+        final int start = pending.position();
+        pending.put(type);
+        pending.putLong(network.getFirst().getHighBits());
+        pending.putLong(network.getFirst().getLowBits());
+        pending.put((byte) network.getNetmask().asPrefixLength());
+        crc.reset();
+        crc.update(pending.array(), start, RECORD_SIZE - 4);
+        pending.putInt((int) crc.getValue());
+
+        if (!pending.hasRemaining())
+            sync();
+    }
+
+    /**
+     * Write all pending changes to the journal, and sync the journal to disk.
+     *
+     * @throws IOException if the journal could not be written
+     */
+    public void sync() throws IOException
+    {
+        ensureNotFailed();
+        if (pending.position() == 0)
+            return;
+
+        boolean synced = false;
+        try
+        {
+            pending.flip();
+            while (pending.hasRemaining())
+            {
+                channel.write(pending);
+            }
+            pending.clear();
+            channel.force(false);
+            synced = true;
+        } finally
+        {
+            // an unknown part of the pending records was written
+            failed = !synced;
+        }
+    }
+
+    /**
+     * Write a snapshot of the current pool (of the next generation), and start the journal of that generation. The journals which were
+     * superseded by the previous snapshot are deleted.
+     *
+     * @throws IOException if the snapshot or the journal could not be written
+     */
+    public void checkpoint() throws IOException
+    {
+        sync();
+
+        boolean done = false;
+        try
+        {
+            startNextGeneration();
+            done = true;
+        } finally
+        {
+            // the snapshot of the next generation might be in place, which supersedes the current journal
+            failed = !done;
+        }
+    }
+
+    private void startNextGeneration() throws IOException
+    {
+        final long next = generation + 1;
+        IPv6AddressPoolSnapshot.write(pool, snapshotFile, next);
+        if (IPv6AddressPoolSnapshot.readGeneration(snapshotFile) != next)
+            throw new IOException("snapshot [" + snapshotFile + "] was not written");
+
+        final RandomAccessFile nextFile = new RandomAccessFile(journalFile(next), "rw");
+        try
+        {
+            writeHeader(nextFile.getChannel(), next);
+        } catch (IOException e)
+        {
+            nextFile.close();
+            throw e;
+        }
+        file.close();
+        file = nextFile;
+        channel = nextFile.getChannel();
+        generation = next;
+
+        // the previous snapshot was read back (when opening or at the previous checkpoint)
+        deleteJournalsBefore(snapshotGeneration);
+        snapshotGeneration = next;
+    }
+
+    /**
+     * @return the current pool (including changes which are not synced yet)
+     */
+    public IPv6AddressPool getPool()
+    {
+        return pool;
+    }
+
+    /**
+     * Sync all pending changes, and close the journal.
+     *
+     * @throws IOException if the journal could not be written
+     */
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            if (!failed)
+                sync();
+        } finally
+        {
+            closeFile();
+        }
+    }
+
+    /**
+     * Mark the journal as failed (e.g. because a batch of changes could not be applied completely): the changes which are not written yet
+     * are discarded rather than written when closing, and the journal has to be opened again.
+     */
+    void fail()
+    {
+        failed = true;
+    }
+
+    private void ensureNotFailed() throws IOException
+    {
+        if (failed)
+            throw new IOException("writing the journal failed before, it has to be opened again");
+    }
+
+    private void closeFile() throws IOException
+    {
+        if (file != null)
+            file.close();
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int size) throws IOException
+    {
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("unexpected end of journal");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+}
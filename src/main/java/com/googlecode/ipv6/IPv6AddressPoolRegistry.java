@@ -0,0 +1,251 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.googlecode.ipv6.IPv6AddressHelpers.isLessThanUnsigned;
+
+/**
+ * Thread safe registry of {@link IPv6AddressPool}s with non overlapping ranges, which finds the pool that contains an address in
+ * logarithmic time.
+ * <p>
+ * The boundaries of the registered ranges are kept in a sorted array, which is searched with a binary search. Lookups don't take any lock,
+ * they read the current (immutable) version of the array. Registrations are copy on write: they create a new version of the array (in
+ * linear time) and publish it, they are thus best suited for registries which are read much more often than they are modified.
+ * <p>
+ * Because pools are immutable, a registered pool should be {@link #replace(IPv6AddressPool) replaced} after every allocation or
+ * de-allocation for the registry to return the current version of the pool.
+ *
+ * @author Jan Van Besien
+ */
+public final class IPv6AddressPoolRegistry
+{
+    private volatile Entries entries = new Entries(new long[0], new IPv6AddressPool[0]);
+
+    /**
+     * Register a pool.
+     *
+     * @param pool pool to register, its range should not overlap with the range of any registered pool
+     */
+    public synchronized void register(final IPv6AddressPool pool)
+    {
+        if (pool == null)
+            throw new IllegalArgumentException("pool invalid [null]");
+
+        final Entries current = entries;
+        final int index = current.firstEndingAtOrAfter(pool.getFirst().getHighBits(), pool.getFirst().getLowBits());
+        if (index < current.size() && current.startsAtOrBefore(index, pool.getLast().getHighBits(), pool.getLast().getLowBits()))
+            throw new IllegalArgumentException(
+                    "can not register pool [" + pool + "] which overlaps with registered pool [" + current.pools[index] + "]");
+
+        final long[] bounds = new long[current.bounds.length + 4];
+        final IPv6AddressPool[] pools = new IPv6AddressPool[current.pools.length + 1];
+        System.arraycopy(current.bounds, 0, bounds, 0, index * 4);
+        System.arraycopy(current.pools, 0, pools, 0, index);
+        bounds[index * 4] = pool.getFirst().getHighBits();
+        bounds[index * 4 + 1] = pool.getFirst().getLowBits();
+        bounds[index * 4 + 2] = pool.getLast().getHighBits();
+        bounds[index * 4 + 3] = pool.getLast().getLowBits();
+        pools[index] = pool;
+        System.arraycopy(current.bounds, index * 4, bounds, index * 4 + 4, current.bounds.length - index * 4);
+        System.arraycopy(current.pools, index, pools, index + 1, current.pools.length - index);
+
+        entries = new Entries(bounds, pools);
+    }
+
+    /**
+     * Replace a registered pool with another version of it (e.g. the result of an allocation).
+     *
+     * @param pool new version of the pool, with exactly the same range as the registered pool
+     * @return the previous version of the pool
+     */
+    public synchronized IPv6AddressPool replace(final IPv6AddressPool pool)
+    {
+        if (pool == null)
+            throw new IllegalArgumentException("pool invalid [null]");
+
+        final Entries current = entries;
+        final int index = current.indexOf(pool);
+        if (index < 0)
+            throw new IllegalArgumentException("can not replace pool [" + pool + "] which is not registered");
+
+        final IPv6AddressPool[] pools = current.pools.clone();
+        pools[index] = pool;
+        entries = new Entries(current.bounds, pools);
+
+        return current.pools[index];
+    }
+
+    /**
+     * Unregister a pool.
+     *
+     * @param range range of the pool to unregister
+     * @return the unregistered pool, or null if no pool with exactly this range was registered
+     */
+    public synchronized IPv6AddressPool unregister(final IPv6AddressRange range)
+    {
+        if (range == null)
+            throw new IllegalArgumentException("range invalid [null]");
+
+        final Entries current = entries;
+        final int index = current.indexOf(range);
+        if (index < 0)
+            return null;
+
+        final long[] bounds = new long[current.bounds.length - 4];
+        final IPv6AddressPool[] pools = new IPv6AddressPool[current.pools.length - 1];
+        System.arraycopy(current.bounds, 0, bounds, 0, index * 4);
+        System.arraycopy(current.pools, 0, pools, 0, index);
+        System.arraycopy(current.bounds, index * 4 + 4, bounds, index * 4, bounds.length - index * 4);
+        System.arraycopy(current.pools, index + 1, pools, index, pools.length - index);
+
+        entries = new Entries(bounds, pools);
+        return current.pools[index];
+    }
+
+    /**
+     * Find the pool which contains an address, in logarithmic time.
+     *
+     * @param address address
+     * @return the registered pool of which the range contains the address, or null if there is none
+     */
+    public IPv6AddressPool poolFor(final IPv6Address address)
+    {
+        if (address == null)
+            throw new IllegalArgumentException("address invalid [null]");
+
+        final Entries current = entries;
+        final int index = current.firstEndingAtOrAfter(address.getHighBits(), address.getLowBits());
+        if (index < current.size() && current.startsAtOrBefore(index, address.getHighBits(), address.getLowBits()))
+            return current.pools[index];
+        else
+            return null;
+    }
+
+    /**
+     * Find the pools which overlap with a range, in logarithmic time (plus the number of overlapping pools).
+     *
+     * @param range range
+     * @return the registered pools of which the range overlaps with the given range, sorted
+     */
+    public List<IPv6AddressPool> poolsOverlapping(final IPv6AddressRange range)
+    {
+        if (range == null)
+            throw new IllegalArgumentException("range invalid [null]");
+
+        final Entries current = entries;
+        final int from = current.firstEndingAtOrAfter(range.getFirst().getHighBits(), range.getFirst().getLowBits());
+        int to = from;
+        while (to < current.size() && current.startsAtOrBefore(to, range.getLast().getHighBits(), range.getLast().getLowBits()))
+        {
+            to++;
+        }
+
+        return Collections.unmodifiableList(Arrays.asList(current.pools).subList(from, to));
+    }
+
+    /**
+     * @return all registered pools, sorted
+     */
+    public List<IPv6AddressPool> getPools()
+    {
+        return Collections.unmodifiableList(Arrays.asList(entries.pools));
+    }
+
+    /**
+     * @return number of registered pools
+     */
+    public int size()
+    {
+        return entries.size();
+    }
+
+    @Override
+    public String toString()
+    {
+        return getPools().toString();
+    }
+
+    /**
+     * Immutable version of the registry: the first and last address (high and low bits) of every range, sorted, and the corresponding
+     * pools.
+     */
+    private static final class Entries
+    {
+        private final long[] bounds;
+
+        private final IPv6AddressPool[] pools;
+
+        private Entries(long[] bounds, IPv6AddressPool[] pools)
+        {
+            this.bounds = bounds;
+            this.pools = pools;
+        }
+
+        private int size()
+        {
+            return pools.length;
+        }
+
+        /**
+         * @return index of the first range which ends at or after the given address (ranges don't overlap, so their ends are sorted too),
+         *         or size() if there is none
+         */
+        private int firstEndingAtOrAfter(long high, long low)
+        {
+            int from = 0;
+            int to = size();
+            while (from < to)
+            {
+                final int middle = (from + to) >>> 1;
+                final long lastHigh = bounds[middle * 4 + 2];
+                final long lastLow = bounds[middle * 4 + 3];
+                if (isLessThanUnsigned(lastHigh, high) || (lastHigh == high && isLessThanUnsigned(lastLow, low)))
+                    from = middle + 1;
+                else
+                    to = middle;
+            }
+            return from;
+        }
+
+        private boolean startsAtOrBefore(int index, long high, long low)
+        {
+            final long firstHigh = bounds[index * 4];
+            final long firstLow = bounds[index * 4 + 1];
+            return isLessThanUnsigned(firstHigh, high) || (firstHigh == high && !isLessThanUnsigned(low, firstLow));
+        }
+
+        private int indexOf(IPv6AddressRange range)
+        {
+            final int index = firstEndingAtOrAfter(range.getLast().getHighBits(), range.getLast().getLowBits());
+            if (index < size()
+                    && bounds[index * 4] == range.getFirst().getHighBits() && bounds[index * 4 + 1] == range.getFirst().getLowBits()
+                    && bounds[index * 4 + 2] == range.getLast().getHighBits() && bounds[index * 4 + 3] == range.getLast().getLowBits())
+                return index;
+            else
+                return -1;
+        }
+
+        private int indexOf(IPv6AddressPool pool)
+        {
+            return indexOf(IPv6AddressRange.fromFirstAndLast(pool.getFirst(), pool.getLast()));
+        }
+    }
+}
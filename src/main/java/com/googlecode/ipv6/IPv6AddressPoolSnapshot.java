@@ -0,0 +1,416 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import static com.googlecode.ipv6.FreeRangeTree.compare;
+import static com.googlecode.ipv6.FreeRangeTree.shiftRightHigh;
+import static com.googlecode.ipv6.FreeRangeTree.shiftRightLow;
+import static com.googlecode.ipv6.IPv6AddressHelpers.isLessThanUnsigned;
+
+/**
+ * Compact binary file format for {@link IPv6AddressPool}s, as an alternative for java serialization of big pools.
+ * <p>
+ * The free ranges are written as runs of subnet numbers (the address of a subnet shifted right over the number of host bits), delta
+ * encoded: every run is written as the number of allocated subnets in front of it and the number of free subnets in it, both as unsigned
+ * variable length integers of 7 bits per byte. A pool with many small allocations thus takes a few bytes per free range. The layout is
+ * <ul>
+ * <li>magic number (4 bytes) and format version (1 byte)</li>
+ * <li>generation (long), which relates the snapshot to the journal of the changes after it (see {@link IPv6AddressPoolJournal})</li>
+ * <li>first and last address of the range of the pool (4 longs), a byte which is 1 if the range is an {@link IPv6Network} (0 otherwise)
+ * and the prefix length of the subnets (1 byte)</li>
+ * <li>the last allocated subnet: a byte which is 1 if there is one (followed by its address as 2 longs), 0 otherwise</li>
+ * <li>the number of free runs (int), followed by the delta encoded runs</li>
+ * <li>a CRC32 checksum of all the preceding bytes (int)</li>
+ * </ul>
+ * Snapshots are read from a memory mapped file, directly into the internal representation of the pool, without creating objects per
+ * free range.
+ *
+ * @author Jan Van Besien
+ */
+public final class IPv6AddressPoolSnapshot
+{
+    private static final int MAGIC = 0x49503650; // "IP6P"
+
+    private static final byte VERSION = 2;
+
+    /**
+     * Version without generation (read as generation 0).
+     */
+    private static final byte VERSION_WITHOUT_GENERATION = 1;
+
+    private IPv6AddressPoolSnapshot()
+    {
+        // utility class
+    }
+
+    /**
+     * Write a snapshot of a pool. The snapshot is written to a temporary file first (the given file name with ".tmp"), which is synced to
+     * disk and then renamed to the given file, such that the given file always contains a complete snapshot (either the previous one or the
+     * new one). On platforms where renaming doesn't replace an existing file, the previous snapshot is renamed to a backup file (the given
+     * file name with ".bak") first, such that there is a complete snapshot in either the given file or the backup file (see
+     * {@link IPv6AddressPoolJournal}).
+     *
+     * @param pool pool to write
+     * @param file file to write to
+     * @throws IOException if the snapshot could not be written
+     */
+    public static void write(final IPv6AddressPool pool, final File file) throws IOException
+    {
+        write(pool, file, 0);
+    }
+
+    /**
+     * Like {@link #write(IPv6AddressPool, File)}, with a given generation.
+     */
+    static void write(final IPv6AddressPool pool, final File file, final long generation) throws IOException
+    {
+        if (pool == null)
+            throw new IllegalArgumentException("pool invalid [null]");
+        if (file == null)
+            throw new IllegalArgumentException("file invalid [null]");
+
+        final File temporary = temporaryFile(file);
+        final FileOutputStream fileOut = new FileOutputStream(temporary);
+        try
+        {
+            final CheckedOutputStream checkedOut = new CheckedOutputStream(new BufferedOutputStream(fileOut, 1 << 16), new CRC32());
+            final DataOutputStream out = new DataOutputStream(checkedOut);
+            writeTo(pool, generation, out);
+            out.flush();
+            out.writeInt((int) checkedOut.getChecksum().getValue());
+            out.flush();
+            fileOut.getFD().sync();
+        } finally
+        {
+            fileOut.close();
+        }
+
+        // File.renameTo doesn't replace an existing file on all platforms
+        if (!temporary.renameTo(file))
+        {
+            final File backup = backupFile(file);
+            if (backup.exists() && !backup.delete())
+                throw new IOException("could not delete [" + backup + "]");
+            if (!file.renameTo(backup))
+                throw new IOException("could not rename [" + file + "] to [" + backup + "]");
+            if (!temporary.renameTo(file))
+            {
+                backup.renameTo(file);
+                throw new IOException("could not rename [" + temporary + "] to [" + file + "]");
+            }
+            backup.delete();
+        }
+    }
+
+    /**
+     * @return the temporary file to which a snapshot is written before it is renamed to the given file
+     */
+    static File temporaryFile(File file)
+    {
+        return new File(file.getPath() + ".tmp");
+    }
+
+    /**
+     * @return the backup file of the previous snapshot, while a snapshot is renamed to the given file
+     */
+    static File backupFile(File file)
+    {
+        return new File(file.getPath() + ".bak");
+    }
+
+    private static void writeTo(IPv6AddressPool pool, long generation, DataOutputStream out) throws IOException
+    {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(generation);
+        out.writeLong(pool.getFirst().getHighBits());
+        out.writeLong(pool.getFirst().getLowBits());
+        out.writeLong(pool.getLast().getHighBits());
+        out.writeLong(pool.getLast().getLowBits());
+        out.writeByte(pool.getUnderlyingRange() instanceof IPv6Network ? 1 : 0);
+        out.writeByte(pool.getAllocationSubnetSize().asPrefixLength());
+
+        final IPv6Network lastAllocated = pool.getLastAllocated();
+        if (lastAllocated == null)
+        {
+            out.writeByte(0);
+        }
+        else
+        {
+            out.writeByte(1);
+            out.writeLong(lastAllocated.getFirst().getHighBits());
+            out.writeLong(lastAllocated.getFirst().getLowBits());
+        }
+
+        final int shift = 128 - pool.getAllocationSubnetSize().asPrefixLength();
+        final long[] runs = pool.getFreeSubnetRuns();
+        out.writeInt(runs.length / 4);
+
+        // the first subnet which is not yet covered, relative to which the next run is encoded
+        long nextHigh = shiftRightHigh(pool.getFirst().getHighBits(), pool.getFirst().getLowBits(), shift);
+        long nextLow = shiftRightLow(pool.getFirst().getHighBits(), pool.getFirst().getLowBits(), shift);
+        for (int i = 0; i < runs.length; i += 4)
+        {
+            writeUnsigned(out, runs[i] - nextHigh - (isLessThanUnsigned(runs[i + 1], nextLow) ? 1 : 0), runs[i + 1] - nextLow);
+            writeUnsigned(out, runs[i + 2] - runs[i] - (isLessThanUnsigned(runs[i + 3], runs[i + 1]) ? 1 : 0), runs[i + 3] - runs[i + 1]);
+
+            nextLow = runs[i + 3] + 1;
+            nextHigh = nextLow == 0 ? runs[i + 2] + 1 : runs[i + 2];
+        }
+    }
+
+    /**
+     * Read a snapshot of a pool.
+     *
+     * @param file file to read from
+     * @return the pool
+     * @throws IOException if the snapshot could not be read, or if it is not a valid snapshot
+     */
+    public static IPv6AddressPool read(final File file) throws IOException
+    {
+        if (file == null)
+            throw new IllegalArgumentException("file invalid [null]");
+
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try
+        {
+            final FileChannel channel = randomAccessFile.getChannel();
+            return readFrom(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (BufferUnderflowException e)
+        {
+            throw new IOException("invalid snapshot [" + file + "]: unexpected end of file", e);
+        } catch (IllegalArgumentException e)
+        {
+            throw new IOException("invalid snapshot [" + file + "]: " + e.getMessage(), e);
+        } finally
+        {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Read the generation of a snapshot (see {@link IPv6AddressPoolJournal}).
+     *
+     * @param file file to read from
+     * @return the generation
+     * @throws IOException if the snapshot could not be read, or if it is not a valid snapshot
+     */
+    static long readGeneration(final File file) throws IOException
+    {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try
+        {
+            final FileChannel channel = randomAccessFile.getChannel();
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            verifyChecksum(buffer);
+            return readGeneration(buffer);
+        } catch (BufferUnderflowException e)
+        {
+            throw new IOException("invalid snapshot [" + file + "]: unexpected end of file", e);
+        } catch (IllegalArgumentException e)
+        {
+            throw new IOException("invalid snapshot [" + file + "]: " + e.getMessage(), e);
+        } finally
+        {
+            randomAccessFile.close();
+        }
+    }
+
+    private static void verifyChecksum(ByteBuffer buffer)
+    {
+        if (buffer.remaining() < 4)
+            throw new IllegalArgumentException("too short");
+        final int checksum = buffer.getInt(buffer.limit() - 4);
+        if (checksum != checksum(buffer.duplicate(), buffer.limit() - 4))
+            throw new IllegalArgumentException("checksum mismatch");
+    }
+
+    /**
+     * Read the magic number, version and generation.
+     */
+    private static long readGeneration(ByteBuffer buffer)
+    {
+        if (buffer.getInt() != MAGIC)
+            throw new IllegalArgumentException("not a snapshot");
+        final byte version = buffer.get();
+        if (version == VERSION)
+            return buffer.getLong();
+        else if (version == VERSION_WITHOUT_GENERATION)
+            return 0;
+        else
+            throw new IllegalArgumentException("unsupported version [" + version + "]");
+    }
+
+    private static IPv6AddressPool readFrom(ByteBuffer buffer)
+    {
+        verifyChecksum(buffer);
+        readGeneration(buffer);
+
+        final IPv6Address first = IPv6Address.fromLongs(buffer.getLong(), buffer.getLong());
+        final IPv6Address last = IPv6Address.fromLongs(buffer.getLong(), buffer.getLong());
+        final IPv6AddressRange range = buffer.get() == 0
+                                       ? IPv6AddressRange.fromFirstAndLast(first, last)
+                                       : IPv6Network.fromTwoAddresses(first, last);
+        if (!range.getFirst().equals(first) || !range.getLast().equals(last))
+            throw new IllegalArgumentException("range [" + first + " - " + last + "] is not a network");
+        final IPv6NetworkMask allocationSubnetSize = IPv6NetworkMask.fromPrefixLength(buffer.get() & 0xff);
+
+        final IPv6Network lastAllocated;
+        if (buffer.get() == 0)
+        {
+            lastAllocated = null;
+        }
+        else
+        {
+            lastAllocated = IPv6Network.fromAddressAndMask(IPv6Address.fromLongs(buffer.getLong(), buffer.getLong()),
+                                                           allocationSubnetSize);
+            if (!range.contains(lastAllocated))
+                throw new IllegalArgumentException("last allocated subnet [" + lastAllocated + "] not within [" + range + "]");
+        }
+
+        final int shift = 128 - allocationSubnetSize.asPrefixLength();
+        final long lastHigh = shiftRightHigh(range.getLast().getHighBits(), range.getLast().getLowBits(), shift);
+        final long lastLow = shiftRightLow(range.getLast().getHighBits(), range.getLast().getLowBits(), shift);
+
+        final int numberOfRuns = buffer.getInt();
+        if (numberOfRuns < 0 || numberOfRuns > buffer.remaining() / 2)
+            throw new IllegalArgumentException("invalid number of free ranges [" + numberOfRuns + "]");
+        final long[] runs = new long[4 * numberOfRuns];
+        final long[] value = new long[2];
+
+        long nextHigh = shiftRightHigh(range.getFirst().getHighBits(), range.getFirst().getLowBits(), shift);
+        long nextLow = shiftRightLow(range.getFirst().getHighBits(), range.getFirst().getLowBits(), shift);
+        boolean full = false;
+        for (int i = 0; i < numberOfRuns; i++)
+        {
+            if (full)
+                throw new IllegalArgumentException("free ranges beyond the end of the range");
+
+            readUnsigned(buffer, value);
+            final long startHigh = addWithin(nextHigh, nextLow, value, lastHigh, lastLow);
+            final long startLow = value[1];
+
+            readUnsigned(buffer, value);
+            final long endHigh = addWithin(startHigh, startLow, value, lastHigh, lastLow);
+            final long endLow = value[1];
+
+            runs[4 * i] = startHigh;
+            runs[4 * i + 1] = startLow;
+            runs[4 * i + 2] = endHigh;
+            runs[4 * i + 3] = endLow;
+
+            full = endHigh == lastHigh && endLow == lastLow;
+            nextLow = endLow + 1;
+            nextHigh = nextLow == 0 ? endHigh + 1 : endHigh;
+        }
+
+        if (buffer.remaining() != 4)
+            throw new IllegalArgumentException("unexpected data after the free ranges");
+
+        return IPv6AddressPool.fromFreeSubnetRuns(range, allocationSubnetSize, runs, numberOfRuns, lastAllocated);
+    }
+
+    /**
+     * Add a 128 bit value to a subnet number, verifying that the result doesn't exceed the given last subnet number.
+     *
+     * @param value value to add (high and low bits), replaced with the result
+     * @return high bits of the result (the low bits are in value[1])
+     */
+    private static long addWithin(long high, long low, long[] value, long lastHigh, long lastLow)
+    {
+        // remaining = last - (high, low)
+        final long remainingLow = lastLow - low;
+        final long remainingHigh = lastHigh - high - (isLessThanUnsigned(lastLow, low) ? 1 : 0);
+        if (compare(high, low, lastHigh, lastLow) > 0 || compare(value[0], value[1], remainingHigh, remainingLow) > 0)
+            throw new IllegalArgumentException("free ranges beyond the end of the range");
+
+        final long resultLow = low + value[1];
+        final long resultHigh = high + value[0] + (isLessThanUnsigned(resultLow, low) ? 1 : 0);
+        value[1] = resultLow;
+        return resultHigh;
+    }
+
+    private static void writeUnsigned(DataOutputStream out, long high, long low) throws IOException
+    {
+        while (high != 0 || (low & ~0x7fL) != 0)
+        {
+            out.writeByte((int) (low & 0x7f) | 0x80);
+            low = (low >>> 7) | (high << 57);
+            high >>>= 7;
+        }
+        out.writeByte((int) low);
+    }
+
+    private static void readUnsigned(ByteBuffer buffer, long[] value)
+    {
+        long high = 0;
+        long low = 0;
+        for (int shift = 0; ; shift += 7)
+        {
+            if (shift >= 128)
+                throw new IllegalArgumentException("invalid variable length integer");
+
+            final int b = buffer.get() & 0xff;
+            final long bits = b & 0x7f;
+            if (shift < 64)
+            {
+                low |= bits << shift;
+                if (shift > 57)
+                    high |= bits >>> (64 - shift);
+            }
+            else
+            {
+                if (shift > 121 && (bits >>> (128 - shift)) != 0)
+                    throw new IllegalArgumentException("invalid variable length integer");
+                high |= bits << (shift - 64);
+            }
+
+            if ((b & 0x80) == 0)
+                break;
+        }
+        value[0] = high;
+        value[1] = low;
+    }
+
+    private static int checksum(ByteBuffer buffer, int length)
+    {
+        final CRC32 crc = new CRC32();
+        final byte[] chunk = new byte[8192];
+        buffer.position(0);
+        int remaining = length;
+        while (remaining > 0)
+        {
+            final int size = Math.min(chunk.length, remaining);
+            buffer.get(chunk, 0, size);
+            crc.update(chunk, 0, size);
+            remaining -= size;
+        }
+        return (int) crc.getValue();
+    }
+}
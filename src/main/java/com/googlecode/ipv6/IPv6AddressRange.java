@@ -31,6 +31,12 @@ import java.util.NoSuchElementException;
  */
 public class IPv6AddressRange implements Comparable<IPv6AddressRange>, Iterable<IPv6Address>, Serializable
 {
+    /**
+     * The serialVersionUID which was computed for v0.17 (which didn't declare one), such that instances serialized by v0.17 can still be
+     * deserialized.
+     */
+    private static final long serialVersionUID = -8346291722366648771L;
+
     private final IPv6Address first;
 
     private final IPv6Address last;
@@ -0,0 +1,378 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Mutable IPv6 address pool from which subnets of different sizes can be allocated (as opposed to {@link IPv6AddressPool}, which hands
+ * out subnets of one fixed size). This class is not thread safe.
+ * <p>
+ * The pool is a "buddy allocator": it keeps a separate set of free blocks for every prefix length. A subnet is allocated by taking the
+ * first free block of the requested size, or by splitting the smallest bigger free block in halves ("buddies") until a block of the
+ * requested size is obtained. When a subnet is de-allocated, it is merged with its buddy (and the result with its buddy, etc) for as long
+ * as the buddy is free. This keeps fragmentation bounded, and both allocation and de-allocation take at most one step per prefix length.
+ *
+ * @author Jan Van Besien
+ */
+public final class IPv6BuddyAddressPool
+{
+    private final IPv6AddressRange underlyingRange;
+
+    private final int minPrefixLength;
+
+    private final int maxPrefixLength;
+
+    /**
+     * Free blocks, indexed on prefix length.
+     */
+    private final List<TreeSet<IPv6Network>> freeBlocks;
+
+    /**
+     * Bit i is set if there is at least one free block with prefix length i.
+     */
+    private final long[] nonEmpty = new long[3];
+
+    /**
+     * Create a completely free pool of the given range (boundaries inclusive), from which subnets can be allocated with prefix lengths in
+     * the interval [minPrefixLength, maxPrefixLength]. The range should be aligned with subnets of the smallest size (maxPrefixLength).
+     *
+     * @param range           range from within to allocate
+     * @param minPrefixLength smallest prefix length (biggest subnets) that can be allocated
+     * @param maxPrefixLength biggest prefix length (smallest subnets) that can be allocated
+     * @return buddy address pool
+     */
+    public static IPv6BuddyAddressPool fromRangeAndPrefixLengths(final IPv6AddressRange range, final int minPrefixLength,
+                                                                 final int maxPrefixLength)
+    {
+        if (range == null)
+            throw new IllegalArgumentException("range invalid [null]");
+        if (minPrefixLength < 0 || maxPrefixLength > 128 || minPrefixLength > maxPrefixLength)
+            throw new IllegalArgumentException(
+                    "invalid prefix lengths [" + minPrefixLength + ", " + maxPrefixLength + "], should be within [0, 128]");
+
+        final int allocatableBits = 128 - maxPrefixLength;
+        if (range.getFirst().numberOfTrailingZeroes() < allocatableBits || range.getLast().numberOfTrailingOnes() < allocatableBits)
+            throw new IllegalArgumentException("range [" + range + "] is not aligned with prefix length [" + maxPrefixLength + "]");
+
+        return new IPv6BuddyAddressPool(range, minPrefixLength, maxPrefixLength);
+    }
+
+    private IPv6BuddyAddressPool(IPv6AddressRange range, int minPrefixLength, int maxPrefixLength)
+    {
+        this.underlyingRange = range;
+        this.minPrefixLength = minPrefixLength;
+        this.maxPrefixLength = maxPrefixLength;
+
+        this.freeBlocks = new ArrayList<TreeSet<IPv6Network>>(129);
+        for (int i = 0; i <= 128; i++)
+        {
+            freeBlocks.add(new TreeSet<IPv6Network>());
+        }
+
+        // in the beginning, all is free: the range is deaggregated in the biggest possible blocks
+        final Iterator<IPv6Network> blocks = range.toSubnets();
+        while (blocks.hasNext())
+        {
+            addFreeBlock(blocks.next());
+        }
+    }
+
+    /**
+     * Allocate the first available subnet with the given prefix length, splitting a bigger free block if needed.
+     *
+     * @param prefixLength prefix length of the subnet to allocate
+     * @return the allocated subnet, or null if no subnet of the given size is available
+     */
+    public IPv6Network allocate(final int prefixLength)
+    {
+        validatePrefixLength(prefixLength);
+
+        // find the smallest free block which is big enough
+        final int blockPrefixLength = longestNonEmptyPrefixLengthUpTo(prefixLength);
+        if (blockPrefixLength < 0)
+            return null;
+
+        IPv6Network block = removeFirstFreeBlock(blockPrefixLength);
+
+        // split in halves, keeping the lower half, until it has the requested size
+        for (int i = blockPrefixLength + 1; i <= prefixLength; i++)
+        {
+            final IPv6NetworkMask halfSize = IPv6NetworkMask.fromPrefixLength(i);
+            addFreeBlock(IPv6Network.fromAddressAndMask(buddyAddress(block.getFirst(), i), halfSize));
+            block = IPv6Network.fromAddressAndMask(block.getFirst(), halfSize);
+        }
+
+        return block;
+    }
+
+    /**
+     * Allocate the given subnet from the pool.
+     *
+     * @param toAllocate subnet to allocate from the pool
+     * @return true if the subnet was allocated, false if it was not (completely) free
+     */
+    public boolean allocate(final IPv6Network toAllocate)
+    {
+        validate(toAllocate);
+
+        final int prefixLength = toAllocate.getNetmask().asPrefixLength();
+
+        // find the free block containing the subnet
+        for (int i = prefixLength; i >= 0; i--)
+        {
+            final IPv6Network candidate = IPv6Network.fromAddressAndMask(toAllocate.getFirst(), IPv6NetworkMask.fromPrefixLength(i));
+            if (removeFreeBlock(candidate))
+            {
+                // split the block in halves, freeing the halves which don't contain the subnet to allocate
+                for (int j = i + 1; j <= prefixLength; j++)
+                {
+                    addFreeBlock(IPv6Network.fromAddressAndMask(buddyAddress(toAllocate.getFirst(), j), IPv6NetworkMask.fromPrefixLength(j)));
+                }
+                return true;
+            }
+        }
+
+        // not free
+        return false;
+    }
+
+    /**
+     * Give a subnet back to the pool (de-allocate). It is merged with its buddy for as long as possible.
+     *
+     * @param toDeAllocate subnet to de-allocate
+     */
+    public void deAllocate(final IPv6Network toDeAllocate)
+    {
+        validate(toDeAllocate);
+        if (isFree(toDeAllocate) || containsFreeBlock(toDeAllocate))
+            throw new IllegalArgumentException("network [" + toDeAllocate + "] is not (completely) allocated");
+
+        IPv6Network block = toDeAllocate;
+        int prefixLength = block.getNetmask().asPrefixLength();
+        while (prefixLength > 0)
+        {
+            final IPv6Network buddy =
+                    IPv6Network.fromAddressAndMask(buddyAddress(block.getFirst(), prefixLength), block.getNetmask());
+            if (!removeFreeBlock(buddy))
+                break;
+
+            prefixLength--;
+            block = IPv6Network.fromAddressAndMask(block.getFirst(), IPv6NetworkMask.fromPrefixLength(prefixLength));
+        }
+
+        addFreeBlock(block);
+    }
+
+    /**
+     * @param network network to check
+     * @return true if the network is completely free
+     */
+    public boolean isFree(final IPv6Network network)
+    {
+        if (network == null)
+            throw new IllegalArgumentException("network invalid [null]");
+
+        // free if one of the free blocks contains it (only looking at prefix lengths with free blocks)
+        for (int i = longestNonEmptyPrefixLengthUpTo(network.getNetmask().asPrefixLength()); i >= 0;
+             i = longestNonEmptyPrefixLengthUpTo(i - 1))
+        {
+            if (freeBlocks.get(i).contains(IPv6Network.fromAddressAndMask(network.getFirst(), IPv6NetworkMask.fromPrefixLength(i))))
+                return true;
+        }
+
+        return false;
+    }
+
+    private boolean containsFreeBlock(IPv6Network network)
+    {
+        // free blocks are never smaller than the smallest subnets which can be allocated
+        for (int i = shortestNonEmptyPrefixLengthFrom(network.getNetmask().asPrefixLength() + 1); i >= 0 && i <= maxPrefixLength;
+             i = shortestNonEmptyPrefixLengthFrom(i + 1))
+        {
+            final IPv6Network block =
+                    freeBlocks.get(i).ceiling(IPv6Network.fromAddressAndMask(network.getFirst(), IPv6NetworkMask.fromPrefixLength(i)));
+            if (block != null && network.contains(block))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @param prefixLength prefix length
+     * @return true if no subnet with the given prefix length can be allocated
+     */
+    public boolean isExhausted(final int prefixLength)
+    {
+        validatePrefixLength(prefixLength);
+
+        return longestNonEmptyPrefixLengthUpTo(prefixLength) < 0;
+    }
+
+    /**
+     * @return all free blocks, sorted on address
+     */
+    public List<IPv6Network> getFreeBlocks()
+    {
+        final List<IPv6Network> result = new ArrayList<IPv6Network>();
+        for (TreeSet<IPv6Network> blocks : freeBlocks)
+        {
+            result.addAll(blocks);
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private void validate(IPv6Network network)
+    {
+        if (network == null)
+            throw new IllegalArgumentException("network invalid [null]");
+        if (!underlyingRange.contains(network))
+            throw new IllegalArgumentException("network [" + network + "] is not contained in this pool [" + this + "]");
+
+        validatePrefixLength(network.getNetmask().asPrefixLength());
+    }
+
+    private void validatePrefixLength(int prefixLength)
+    {
+        if (prefixLength < minPrefixLength || prefixLength > maxPrefixLength)
+            throw new IllegalArgumentException(
+                    "can not allocate prefix length /" + prefixLength + " from a pool configured to hand out prefix lengths between /"
+                            + minPrefixLength + " and /" + maxPrefixLength);
+    }
+
+    /**
+     * @return the address of the buddy of the block with the given prefix length starting at the given address
+     */
+    private static IPv6Address buddyAddress(IPv6Address address, int prefixLength)
+    {
+        final int bit = 128 - prefixLength;
+        if (bit < 64)
+            return IPv6Address.fromLongs(address.getHighBits(), address.getLowBits() ^ (1L << bit));
+        else
+            return IPv6Address.fromLongs(address.getHighBits() ^ (1L << (bit - 64)), address.getLowBits());
+    }
+
+    private void addFreeBlock(IPv6Network block)
+    {
+        final int prefixLength = block.getNetmask().asPrefixLength();
+        freeBlocks.get(prefixLength).add(block);
+        nonEmpty[prefixLength >>> 6] |= 1L << (prefixLength & 63);
+    }
+
+    private boolean removeFreeBlock(IPv6Network block)
+    {
+        final int prefixLength = block.getNetmask().asPrefixLength();
+        final TreeSet<IPv6Network> blocks = freeBlocks.get(prefixLength);
+        if (!blocks.remove(block))
+            return false;
+
+        if (blocks.isEmpty())
+            nonEmpty[prefixLength >>> 6] &= ~(1L << (prefixLength & 63));
+        return true;
+    }
+
+    private IPv6Network removeFirstFreeBlock(int prefixLength)
+    {
+        final IPv6Network block = freeBlocks.get(prefixLength).first();
+        removeFreeBlock(block);
+        return block;
+    }
+
+    /**
+     * @return the longest prefix length, not longer than the given prefix length, for which there is a free block (or -1 if none)
+     */
+    private int longestNonEmptyPrefixLengthUpTo(int prefixLength)
+    {
+        if (prefixLength < 0)
+            return -1;
+
+        for (int word = prefixLength >>> 6; word >= 0; word--)
+        {
+            long bits = nonEmpty[word];
+            if (word == prefixLength >>> 6)
+                bits &= (-1L >>> (63 - (prefixLength & 63))); // ignore longer prefix lengths
+
+            if (bits != 0)
+                return (word << 6) + 63 - Long.numberOfLeadingZeros(bits);
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return the shortest prefix length, not shorter than the given prefix length (at most 129), for which there is a free block (or -1
+     *         if none)
+     */
+    private int shortestNonEmptyPrefixLengthFrom(int prefixLength)
+    {
+        for (int word = prefixLength >>> 6; word < nonEmpty.length; word++)
+        {
+            long bits = nonEmpty[word];
+            if (word == prefixLength >>> 6)
+                bits &= -1L << (prefixLength & 63); // ignore shorter prefix lengths
+
+            if (bits != 0)
+                return (word << 6) + Long.numberOfTrailingZeros(bits);
+        }
+
+        return -1;
+    }
+
+    public int getMinPrefixLength()
+    {
+        return minPrefixLength;
+    }
+
+    public int getMaxPrefixLength()
+    {
+        return maxPrefixLength;
+    }
+
+    // delegation methods
+
+    public boolean contains(IPv6Address address)
+    {
+        return underlyingRange.contains(address);
+    }
+
+    public boolean contains(IPv6AddressRange range)
+    {
+        return underlyingRange.contains(range);
+    }
+
+    public IPv6Address getFirst()
+    {
+        return underlyingRange.getFirst();
+    }
+
+    public IPv6Address getLast()
+    {
+        return underlyingRange.getLast();
+    }
+
+    @Override
+    public String toString()
+    {
+        return underlyingRange.toString();
+    }
+}
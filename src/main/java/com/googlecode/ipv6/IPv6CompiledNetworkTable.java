@@ -0,0 +1,356 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Immutable table of {@link IPv6Network}s with values, compiled for fast longest prefix match lookups. Compared to an
+ * {@link IPv6NetworkTrie}, lookups are much faster but the table can not be modified: it is built (in linear time) from a {@link Builder},
+ * which is meant for tables which are read much more often than they change (e.g. rebuilt every few minutes, see
+ * {@link Builder#buildInBackground(ExecutorService)}).
+ * <p>
+ * The table is a multibit trie with strides of 16, 8, 8, ... bits, stored in a single int array: a root block of 65536 entries indexed by
+ * the first 16 bits of an address, and blocks of 256 entries indexed by every next 8 bits. Networks are expanded to the stride boundaries
+ * (a /20 becomes 16 entries in a block indexed by bits 16 to 24), and longer networks overwrite the entries of shorter ones. An entry
+ * either contains the value of the longest network covering it, or refers to a block for the next 8 bits (of which the entries inherit
+ * the value of the longest network covering the entry). A lookup is thus a read of at most 15 entries, and doesn't allocate anything.
+ * <p>
+ * The root block takes 256 KB, every other block 1 KB. A table has one block per distinct prefix of 16, 24, 32, ... bits of its networks
+ * which are longer than that prefix, see {@link #tableSizeInBytes()}.
+ * <p>
+ * This class is thread safe (it is immutable).
+ *
+ * @param <V> type of the values
+ * @author Jan Van Besien
+ */
+public final class IPv6CompiledNetworkTable<V>
+{
+    private static final int ROOT_BITS = 16;
+
+    private static final int ROOT_SIZE = 1 << ROOT_BITS;
+
+    private static final int BLOCK_BITS = 8;
+
+    private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+
+    /**
+     * Maximum length of the table array (somewhat below Integer.MAX_VALUE, the maximum array length of most virtual machines).
+     */
+    private static final int MAX_TABLE_LENGTH = Integer.MAX_VALUE - 8;
+
+    /**
+     * Entries: zero if no network covers it, a positive (one based) index in the values, or the complement of the number of a block.
+     */
+    private final int[] table;
+
+    private final Object[] values;
+
+    private IPv6CompiledNetworkTable(int[] table, Object[] values)
+    {
+        this.table = table;
+        this.values = values;
+    }
+
+    /**
+     * @return a new (empty) builder
+     */
+    public static <V> Builder<V> builder()
+    {
+        return new Builder<V>();
+    }
+
+    /**
+     * @param address address
+     * @return the value associated with the longest network containing the address, or null if no network contains it
+     */
+    public V longestMatch(final IPv6Address address)
+    {
+        if (address == null)
+            throw new IllegalArgumentException("address invalid [null]");
+
+        return longestMatch(address.getHighBits(), address.getLowBits());
+    }
+
+    /**
+     * Like {@link #longestMatch(IPv6Address)}, for an address given as two longs (see {@link IPv6Address#fromLongs(long, long)}).
+     *
+     * @param highBits highest order bits of the address
+     * @param lowBits  lowest order bits of the address
+     * @return the value associated with the longest network containing the address, or null if no network contains it
+     */
+    @SuppressWarnings("unchecked")
+    public V longestMatch(final long highBits, final long lowBits)
+    {
+        int entry = table[(int) (highBits >>> (64 - ROOT_BITS))];
+        for (int level = 0; entry < 0; level++)
+        {
+            entry = table[ROOT_SIZE + (~entry << BLOCK_BITS) + indexInBlock(highBits, lowBits, level)];
+        }
+        return entry == 0 ? null : (V) values[entry - 1];
+    }
+
+    /**
+     * @return the number of networks in the table
+     */
+    public int size()
+    {
+        return values.length;
+    }
+
+    /**
+     * @return the size of the lookup table (excluding the values themselves), in bytes
+     */
+    public long tableSizeInBytes()
+    {
+        return 4L * table.length;
+    }
+
+    /**
+     * @return the index in a block (below the root) of the given level, i.e. the 8 bits starting at bit 16 + 8 * level
+     */
+    private static int indexInBlock(long highBits, long lowBits, int level)
+    {
+        return level < 6 ? (int) (highBits >>> (40 - BLOCK_BITS * level)) & 0xFF : (int) (lowBits >>> (104 - BLOCK_BITS * level)) & 0xFF;
+    }
+
+    /**
+     * Builder of {@link IPv6CompiledNetworkTable}s. The builder keeps the networks and their values, and can build a table of its current
+     * contents any number of times. To keep a table up to date with a changing set of networks, modify the builder and periodically build a
+     * new table (in the background) to replace the previous one.
+     * <p>
+     * This class is not thread safe.
+     *
+     * @param <V> type of the values
+     */
+    public static final class Builder<V>
+    {
+        private final Map<IPv6Network, V> networks = new HashMap<IPv6Network, V>();
+
+        private Builder()
+        {
+        }
+
+        /**
+         * Associate a value with a network.
+         *
+         * @param network network
+         * @param value   value (not null)
+         * @return the builder
+         */
+        public Builder<V> put(final IPv6Network network, final V value)
+        {
+            if (network == null)
+                throw new IllegalArgumentException("network invalid [null]");
+            if (value == null)
+                throw new IllegalArgumentException("value invalid [null]");
+
+            networks.put(network, value);
+            return this;
+        }
+
+        /**
+         * Remove the value associated with a network (if any).
+         *
+         * @param network network
+         * @return the builder
+         */
+        public Builder<V> remove(final IPv6Network network)
+        {
+            if (network == null)
+                throw new IllegalArgumentException("network invalid [null]");
+
+            networks.remove(network);
+            return this;
+        }
+
+        /**
+         * @return the number of networks in the builder
+         */
+        public int size()
+        {
+            return networks.size();
+        }
+
+        /**
+         * @return a table of the networks which are currently in the builder
+         */
+        public IPv6CompiledNetworkTable<V> build()
+        {
+            return compile(snapshot());
+        }
+
+        /**
+         * Build a table of the networks which are currently in the builder on the given executor. The builder can be modified while the
+         * table is being built, such modifications will only be in the next table.
+         *
+         * @param executor executor to build the table on
+         * @return the future table
+         */
+        public Future<IPv6CompiledNetworkTable<V>> buildInBackground(final ExecutorService executor)
+        {
+            if (executor == null)
+                throw new IllegalArgumentException("executor invalid [null]");
+
+            final Object[][] snapshot = snapshot();
+            return executor.submit(new Callable<IPv6CompiledNetworkTable<V>>()
+            {
+                @Override
+                public IPv6CompiledNetworkTable<V> call()
+                {
+                    return compile(snapshot);
+                }
+            });
+        }
+
+        /**
+         * @return the networks and their values, as pairs sorted on prefix length (shortest first)
+         */
+        private Object[][] snapshot()
+        {
+            final Object[][] entries = new Object[networks.size()][];
+            int i = 0;
+            for (Map.Entry<IPv6Network, V> entry : networks.entrySet())
+            {
+                entries[i++] = new Object[]{entry.getKey(), entry.getValue()};
+            }
+            Arrays.sort(entries, new Comparator<Object[]>()
+            {
+                @Override
+                public int compare(Object[] a, Object[] b)
+                {
+                    return ((IPv6Network) a[0]).getNetmask().asPrefixLength() - ((IPv6Network) b[0]).getNetmask().asPrefixLength();
+                }
+            });
+            return entries;
+        }
+
+        /**
+         * Compile the table. Networks are inserted from the shortest to the longest, such that longer networks overwrite the expanded
+         * entries of shorter ones, and a network never overwrites a reference to a block (which would have been created by a longer
+         * network).
+         */
+        private static <V> IPv6CompiledNetworkTable<V> compile(final Object[][] entries)
+        {
+            // allocate the table at its exact size at once, rather than growing it (big tables take hundreds of megabytes)
+            final long tableLength = ROOT_SIZE + countBlocks(entries) * BLOCK_SIZE;
+            if (tableLength > MAX_TABLE_LENGTH)
+                throw new IllegalStateException("too many networks to compile into a table");
+            final int[] table = new int[(int) tableLength];
+            int blocks = 0;
+            final Object[] values = new Object[entries.length];
+
+            for (int i = 0; i < entries.length; i++)
+            {
+                final IPv6Network network = (IPv6Network) entries[i][0];
+                values[i] = entries[i][1];
+                final int value = i + 1;
+
+                final long highBits = network.getFirst().getHighBits();
+                final long lowBits = network.getFirst().getLowBits();
+                final int prefixLength = network.getNetmask().asPrefixLength();
+
+                int index = (int) (highBits >>> (64 - ROOT_BITS));
+                if (prefixLength <= ROOT_BITS)
+                {
+                    Arrays.fill(table, index, index + (1 << (ROOT_BITS - prefixLength)), value);
+                    continue;
+                }
+
+                // descend to the block of the stride in which the network ends, creating blocks as needed
+                int strideEnd = ROOT_BITS + BLOCK_BITS;
+                for (int level = 0; ; level++)
+                {
+                    int entry = table[index];
+                    if (entry >= 0)
+                    {
+                        // the new block inherits the value of the entry
+                        Arrays.fill(table, ROOT_SIZE + blocks * BLOCK_SIZE, ROOT_SIZE + (blocks + 1) * BLOCK_SIZE, entry);
+                        entry = ~blocks++;
+                        table[index] = entry;
+                    }
+
+                    index = ROOT_SIZE + (~entry << BLOCK_BITS) + indexInBlock(highBits, lowBits, level);
+                    if (prefixLength <= strideEnd)
+                    {
+                        Arrays.fill(table, index, index + (1 << (strideEnd - prefixLength)), value);
+                        break;
+                    }
+                    strideEnd += BLOCK_BITS;
+                }
+            }
+
+            return new IPv6CompiledNetworkTable<V>(table, values);
+        }
+
+        /**
+         * Count the blocks which {@link #compile(Object[][])} creates: one per distinct prefix of 16, 24, 32, ... bits of the networks
+         * which are longer than that prefix. The networks are visited in the order of their addresses, such that networks with the same
+         * prefix are visited one after the other.
+         */
+        private static long countBlocks(final Object[][] entries)
+        {
+            final IPv6Network[] networks = new IPv6Network[entries.length];
+            for (int i = 0; i < entries.length; i++)
+            {
+                networks[i] = (IPv6Network) entries[i][0];
+            }
+            Arrays.sort(networks, new Comparator<IPv6Network>()
+            {
+                @Override
+                public int compare(IPv6Network a, IPv6Network b)
+                {
+                    return a.getFirst().compareTo(b.getFirst());
+                }
+            });
+
+            // the last prefix of every level which was counted
+            final int levels = (128 - ROOT_BITS) / BLOCK_BITS;
+            final long[] lastHighBits = new long[levels];
+            final long[] lastLowBits = new long[levels];
+            final boolean[] counted = new boolean[levels];
+
+            long blocks = 0;
+            for (IPv6Network network : networks)
+            {
+                final long highBits = network.getFirst().getHighBits();
+                final long lowBits = network.getFirst().getLowBits();
+                final int prefixLength = network.getNetmask().asPrefixLength();
+
+                for (int level = 0, length = ROOT_BITS; length < prefixLength; level++, length += BLOCK_BITS)
+                {
+                    final long prefixHighBits = IPv6NetworkTrie.mask(highBits, length, true);
+                    final long prefixLowBits = IPv6NetworkTrie.mask(lowBits, length, false);
+                    if (!counted[level] || prefixHighBits != lastHighBits[level] || prefixLowBits != lastLowBits[level])
+                    {
+                        blocks++;
+                        counted[level] = true;
+                        lastHighBits[level] = prefixHighBits;
+                        lastLowBits[level] = prefixLowBits;
+                    }
+                }
+            }
+            return blocks;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread safe {@link IPv6MetricsListener} which keeps latency histograms of allocations and de-allocations, a histogram of the
+ * fragmentation of pools (see {@link IPv6AddressPool#freeSegmentCount()}) and counters of all other events, without locking.
+ *
+ * @author Jan Van Besien
+ */
+public class IPv6HistogramMetricsListener extends IPv6MetricsListener
+{
+    private final IPv6LatencyHistogram allocationLatency = new IPv6LatencyHistogram();
+
+    private final IPv6LatencyHistogram deAllocationLatency = new IPv6LatencyHistogram();
+
+    private final IPv6LatencyHistogram freeSegments = new IPv6LatencyHistogram();
+
+    private final AtomicLong exhausted = new AtomicLong();
+
+    private final AtomicLong parsed = new AtomicLong();
+
+    private final AtomicLong parseFailures = new AtomicLong();
+
+    private final AtomicLong formatted = new AtomicLong();
+
+    private volatile BigInteger lastFreeCount;
+
+    @Override
+    public void poolAllocated(IPv6AddressPool result, long durationNanos)
+    {
+        allocationLatency.record(durationNanos);
+        poolChanged(result);
+    }
+
+    @Override
+    public void poolDeAllocated(IPv6AddressPool result, long durationNanos)
+    {
+        deAllocationLatency.record(durationNanos);
+        poolChanged(result);
+    }
+
+    private void poolChanged(IPv6AddressPool result)
+    {
+        freeSegments.record(result.freeSegmentCount());
+        lastFreeCount = result.freeCount();
+    }
+
+    @Override
+    public void poolExhausted(IPv6AddressPool pool)
+    {
+        exhausted.incrementAndGet();
+    }
+
+    @Override
+    public void parsed()
+    {
+        parsed.incrementAndGet();
+    }
+
+    @Override
+    public void parseFailed(String string)
+    {
+        parseFailures.incrementAndGet();
+    }
+
+    @Override
+    public void formatted()
+    {
+        formatted.incrementAndGet();
+    }
+
+    /**
+     * @return histogram of the durations of allocations, in nanoseconds
+     */
+    public IPv6LatencyHistogram getAllocationLatency()
+    {
+        return allocationLatency;
+    }
+
+    /**
+     * @return histogram of the durations of de-allocations, in nanoseconds
+     */
+    public IPv6LatencyHistogram getDeAllocationLatency()
+    {
+        return deAllocationLatency;
+    }
+
+    /**
+     * @return histogram of the number of free segments of the pools after every allocation and de-allocation
+     */
+    public IPv6LatencyHistogram getFreeSegments()
+    {
+        return freeSegments;
+    }
+
+    /**
+     * @return the number of free subnets in the pool after the last allocation or de-allocation (of any pool), or null if there was none
+     */
+    public BigInteger getLastFreeCount()
+    {
+        return lastFreeCount;
+    }
+
+    /**
+     * @return the number of allocations which failed because the pool was exhausted
+     */
+    public long getExhaustedCount()
+    {
+        return exhausted.get();
+    }
+
+    /**
+     * @return the number of strings which were parsed into addresses
+     */
+    public long getParsedCount()
+    {
+        return parsed.get();
+    }
+
+    /**
+     * @return the number of strings which could not be parsed into addresses
+     */
+    public long getParseFailureCount()
+    {
+        return parseFailures.get();
+    }
+
+    /**
+     * @return the number of addresses which were formatted into strings
+     */
+    public long getFormattedCount()
+    {
+        return formatted.get();
+    }
+}
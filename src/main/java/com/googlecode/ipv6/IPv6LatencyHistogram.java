@@ -0,0 +1,141 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread safe, lock free histogram of non negative values (e.g. latencies in nanoseconds), from which percentiles can be read.
+ * <p>
+ * Values are counted in buckets with a relative width of at most 1/16: values below 16 have a bucket of their own, larger values are
+ * divided in 16 buckets per power of two. Recording a value is a single atomic increment (plus a compare and set if it is a new maximum),
+ * and the histogram has a fixed size of 960 counters. Percentiles are thus accurate to about 6%. Reading percentiles while values are
+ * being recorded gives a result which is consistent with some (but not necessarily a single) moment during the read.
+ *
+ * @author Jan Van Besien
+ */
+public final class IPv6LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 4;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Values below 16, plus 16 sub buckets for each power of two from 2^4 up to 2^62.
+     */
+    private static final int BUCKETS = SUB_BUCKETS + (62 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a value.
+     *
+     * @param value value to record (negative values are recorded as zero)
+     */
+    public void record(final long value)
+    {
+        final long nonNegative = Math.max(0, value);
+        counts.incrementAndGet(bucket(nonNegative));
+
+        long currentMax = max.get();
+        while (nonNegative > currentMax && !max.compareAndSet(currentMax, nonNegative))
+        {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * @return the number of recorded values
+     */
+    public long getCount()
+    {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return the largest recorded value (zero if nothing was recorded)
+     */
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    /**
+     * @param percentile percentile, e.g. 99.9
+     * @return the (upper bound of the bucket of the) value below which the given percentage of the recorded values are, zero if nothing
+     *         was recorded
+     */
+    public long getValueAtPercentile(final double percentile)
+    {
+        if (percentile < 0 || percentile > 100)
+            throw new IllegalArgumentException("percentile should be within [0, 100] [" + percentile + "]");
+
+        final long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0)
+            return 0;
+
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return Math.min(upperBound(i), getMax());
+        }
+        return getMax();
+    }
+
+    static int bucket(long value)
+    {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+
+        final int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        return ((magnitude - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + (int) ((value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    static long upperBound(int bucket)
+    {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+
+        final int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+        final long lower = (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "count=" + getCount() + ", p50=" + getValueAtPercentile(50) + ", p99=" + getValueAtPercentile(99) + ", p99.9="
+                + getValueAtPercentile(99.9) + ", max=" + getMax();
+    }
+}
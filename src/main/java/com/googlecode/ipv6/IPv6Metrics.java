@@ -0,0 +1,139 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * Holder of the (global) {@link IPv6MetricsListener} of the library. As long as no listener is registered, collecting metrics costs a
+ * single read of a field per operation (the clock is not even read).
+ *
+ * @author Jan Van Besien
+ */
+public final class IPv6Metrics
+{
+    static volatile IPv6MetricsListener listener = IPv6MetricsListener.NO_OP;
+
+    private IPv6Metrics()
+    {
+        // utility class
+    }
+
+    /**
+     * Register the listener to notify of all operations, replacing the previous one.
+     *
+     * @param listener listener, or null to stop collecting metrics
+     */
+    public static void setListener(final IPv6MetricsListener listener)
+    {
+        IPv6Metrics.listener = listener == null ? IPv6MetricsListener.NO_OP : listener;
+    }
+
+    /**
+     * Register a listener which records Java Flight Recorder events (from the optional java-ipv6-jfr module), if it is available. The
+     * listener is loaded reflectively, such that the library itself doesn't depend on Java Flight Recorder.
+     *
+     * @return true if the listener was registered, false if the module (or Java Flight Recorder) is not available
+     */
+    public static boolean registerFlightRecorderListener()
+    {
+        try
+        {
+            final Class<?> listenerClass = Class.forName("com.googlecode.ipv6.jfr.IPv6FlightRecorderListener");
+            setListener((IPv6MetricsListener) listenerClass.getDeclaredConstructor().newInstance());
+            return true;
+        } catch (ClassNotFoundException e)
+        {
+            return false;
+        } catch (LinkageError e)
+        {
+            return false; // the module is there, but Java Flight Recorder is not
+        } catch (InstantiationException e)
+        {
+            return false;
+        } catch (IllegalAccessException e)
+        {
+            return false;
+        } catch (NoSuchMethodException e)
+        {
+            return false;
+        } catch (InvocationTargetException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * @return the registered listener ({@link IPv6MetricsListener#NO_OP} if none)
+     */
+    public static IPv6MetricsListener getListener()
+    {
+        return listener;
+    }
+
+    /**
+     * @return the start time of an operation to measure, or zero if no listener is registered
+     */
+    static long start()
+    {
+        return listener == IPv6MetricsListener.NO_OP ? 0 : System.nanoTime();
+    }
+
+    /**
+     * Report the result of an allocation which was started at the given time.
+     *
+     * @return the result
+     */
+    static IPv6AddressPool allocated(IPv6AddressPool pool, IPv6AddressPool result, long start)
+    {
+        final IPv6MetricsListener metrics = listener;
+        if (start != 0 && metrics != IPv6MetricsListener.NO_OP)
+        {
+            if (result != null)
+                metrics.poolAllocated(result, System.nanoTime() - start);
+            else if (pool.isExhausted())
+                metrics.poolExhausted(pool);
+        }
+        return result;
+    }
+
+    /**
+     * Report a pool which was created (from a collection of allocated networks) starting at the given time.
+     *
+     * @return the pool
+     */
+    static IPv6AddressPool loaded(IPv6AddressPool pool, int allocations, long start)
+    {
+        final IPv6MetricsListener metrics = listener;
+        if (start != 0 && metrics != IPv6MetricsListener.NO_OP)
+            metrics.poolLoaded(pool, allocations, System.nanoTime() - start);
+        return pool;
+    }
+
+    /**
+     * Report the result of a de-allocation which was started at the given time.
+     *
+     * @return the result
+     */
+    static IPv6AddressPool deAllocated(IPv6AddressPool result, long start)
+    {
+        final IPv6MetricsListener metrics = listener;
+        if (start != 0 && metrics != IPv6MetricsListener.NO_OP)
+            metrics.poolDeAllocated(result, System.nanoTime() - start);
+        return result;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+/**
+ * Listener which is notified of operations in the library, to collect metrics (register it with {@link IPv6Metrics#setListener}). All
+ * methods do nothing by default, implementations override the ones they are interested in. Methods are called synchronously on the thread
+ * performing the operation, and can be called concurrently from many threads, so they should be fast and thread safe.
+ * <p>
+ * See {@link IPv6HistogramMetricsListener} for an implementation which keeps latency histograms and counters.
+ *
+ * @author Jan Van Besien
+ */
+public abstract class IPv6MetricsListener
+{
+    /**
+     * Listener which ignores everything (the default).
+     */
+    public static final IPv6MetricsListener NO_OP = new IPv6MetricsListener()
+    {
+    };
+
+    /**
+     * A subnet was allocated from a pool.
+     *
+     * @param result        pool after the allocation
+     * @param durationNanos duration of the allocation, in nanoseconds
+     */
+    public void poolAllocated(IPv6AddressPool result, long durationNanos)
+    {
+    }
+
+    /**
+     * One or more networks were de-allocated from a pool.
+     *
+     * @param result        pool after the de-allocation
+     * @param durationNanos duration of the de-allocation, in nanoseconds
+     */
+    public void poolDeAllocated(IPv6AddressPool result, long durationNanos)
+    {
+    }
+
+    /**
+     * An allocation failed because the pool is exhausted.
+     *
+     * @param pool exhausted pool
+     */
+    public void poolExhausted(IPv6AddressPool pool)
+    {
+    }
+
+    /**
+     * A pool was created from a collection of allocated networks (see {@link IPv6AddressPool#fromRangeAndSubnetWithAllocations}).
+     *
+     * @param pool          created pool
+     * @param allocations   number of allocated networks
+     * @param durationNanos duration of the creation, in nanoseconds
+     */
+    public void poolLoaded(IPv6AddressPool pool, int allocations, long durationNanos)
+    {
+    }
+
+    /**
+     * A network is split in subnets (see {@link IPv6Network#split}). Splitting is lazy, so this is called before any subnet is created.
+     *
+     * @param network network which is split
+     * @param size    size of the subnets
+     */
+    public void networkSplit(IPv6Network network, IPv6NetworkMask size)
+    {
+    }
+
+    /**
+     * A string was parsed into an address (with {@link IPv6Address#fromString}, also when parsing networks).
+     */
+    public void parsed()
+    {
+    }
+
+    /**
+     * A string could not be parsed into an address.
+     *
+     * @param string string which could not be parsed
+     */
+    public void parseFailed(String string)
+    {
+    }
+
+    /**
+     * An address was formatted into a string (with {@link IPv6Address#toString}, also when formatting networks).
+     */
+    public void formatted()
+    {
+    }
+}
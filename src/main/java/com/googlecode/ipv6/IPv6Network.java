@@ -28,6 +28,12 @@ import java.util.NoSuchElementException;
  */
 public final class IPv6Network extends IPv6AddressRange
 {
+    /**
+     * The serialVersionUID which was computed for v0.17 (which didn't declare one), such that instances serialized by v0.17 can still be
+     * deserialized.
+     */
+    private static final long serialVersionUID = 912747364457736340L;
+
     public static final IPv6Network MULTICAST_NETWORK = fromString("ff00::/8");
 
     public static final IPv6Network SITE_LOCAL_NETWORK = fromString("fec0::/48");
@@ -129,13 +135,17 @@ public final class IPv6Network extends IPv6AddressRange
             throw new IllegalArgumentException(String.format("Can not split a network of size %s in subnets of larger size %s",
                                                              this.getNetmask().asPrefixLength(), size.asPrefixLength()));
 
+        final IPv6MetricsListener metrics = IPv6Metrics.listener;
+        if (metrics != IPv6MetricsListener.NO_OP)
+            metrics.networkSplit(this, size);
+
         return new IPv6NetworkSplitsIterator(size);
     }
 
     @Override
     public String toString()
     {
-        return address.toString() + "/" + networkMask.asPrefixLength();
+        return address.appendTo(new StringBuilder(43)).append('/').append(networkMask.asPrefixLength()).toString();
     }
 
     /**
@@ -29,6 +29,12 @@ import java.util.BitSet;
  */
 public final class IPv6NetworkMask implements Serializable
 {
+    /**
+     * The serialVersionUID which was computed for v0.17 (which didn't declare one), such that instances serialized by v0.17 can still be
+     * deserialized.
+     */
+    private static final long serialVersionUID = 153555433930975245L;
+
     private final int prefixLength;
 
     /**
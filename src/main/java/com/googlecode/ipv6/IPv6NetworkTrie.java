@@ -0,0 +1,332 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Map from {@link IPv6Network}s to values, which finds the longest (most specific) network containing an address, like a routing table.
+ * <p>
+ * The networks are kept in a path compressed binary trie (a Patricia trie): every node is a network, and its children are networks within
+ * it which differ in the first bit after its prefix. Nodes with a single child and no value are left out, so there are less than two nodes
+ * per network, and a lookup visits at most one node per bit in which the networks on its path differ (never more than 129). Lookups don't
+ * allocate anything.
+ * <p>
+ * This class is not thread safe.
+ *
+ * @param <V> type of the values
+ * @author Jan Van Besien
+ */
+public final class IPv6NetworkTrie<V>
+{
+    private Node<V> root;
+
+    private int size;
+
+    /**
+     * Associate a value with a network.
+     *
+     * @param network network
+     * @param value   value (not null)
+     * @return the value which was associated with the network before, or null if there was none
+     */
+    public V put(final IPv6Network network, final V value)
+    {
+        if (network == null)
+            throw new IllegalArgumentException("network invalid [null]");
+        if (value == null)
+            throw new IllegalArgumentException("value invalid [null]");
+
+        final long highBits = network.getFirst().getHighBits();
+        final long lowBits = network.getFirst().getLowBits();
+        final int prefixLength = network.getNetmask().asPrefixLength();
+
+        Node<V> parent = null;
+        Node<V> node = root;
+        while (node != null)
+        {
+            final int common = Math.min(commonPrefixLength(node.highBits, node.lowBits, highBits, lowBits),
+                                        Math.min(node.prefixLength, prefixLength));
+            if (common == node.prefixLength && common == prefixLength)
+            {
+                // the network itself
+                final V previous = node.value;
+                node.value = value;
+                if (previous == null)
+                    size++;
+                return previous;
+            }
+            else if (common == node.prefixLength)
+            {
+                // the network is within the node
+                parent = node;
+                node = node.child(bit(highBits, lowBits, node.prefixLength));
+            }
+            else
+            {
+                // the network and the node differ in a bit within the prefix of the node
+                final Node<V> leaf = new Node<V>(highBits, lowBits, prefixLength, value);
+                if (common == prefixLength)
+                {
+                    // the node is within the network
+                    leaf.setChild(bit(node.highBits, node.lowBits, prefixLength), node);
+                    replaceChild(parent, node, leaf);
+                }
+                else
+                {
+                    final Node<V> branch = new Node<V>(mask(highBits, common, true), mask(lowBits, common, false), common, null);
+                    branch.setChild(bit(highBits, lowBits, common), leaf);
+                    branch.setChild(bit(node.highBits, node.lowBits, common), node);
+                    replaceChild(parent, node, branch);
+                }
+                size++;
+                return null;
+            }
+        }
+
+        final Node<V> leaf = new Node<V>(highBits, lowBits, prefixLength, value);
+        if (parent == null)
+            root = leaf;
+        else
+            parent.setChild(bit(highBits, lowBits, parent.prefixLength), leaf);
+        size++;
+        return null;
+    }
+
+    /**
+     * Remove the value associated with a network.
+     *
+     * @param network network
+     * @return the value which was associated with the network, or null if there was none
+     */
+    public V remove(final IPv6Network network)
+    {
+        if (network == null)
+            throw new IllegalArgumentException("network invalid [null]");
+
+        final long highBits = network.getFirst().getHighBits();
+        final long lowBits = network.getFirst().getLowBits();
+        final int prefixLength = network.getNetmask().asPrefixLength();
+
+        Node<V> grandParent = null;
+        Node<V> parent = null;
+        Node<V> node = root;
+        while (node != null && node.prefixLength < prefixLength && node.contains(highBits, lowBits))
+        {
+            grandParent = parent;
+            parent = node;
+            node = node.child(bit(highBits, lowBits, node.prefixLength));
+        }
+        if (node == null || node.prefixLength != prefixLength || !node.contains(highBits, lowBits) || node.value == null)
+            return null;
+
+        final V previous = node.value;
+        node.value = null;
+        size--;
+
+        // leave out nodes without value which don't branch
+        if (node.left != null && node.right != null)
+            return previous;
+
+        final Node<V> onlyChild = node.left != null ? node.left : node.right;
+        replaceChild(parent, node, onlyChild);
+        if (onlyChild == null && parent != null && parent.value == null)
+            replaceChild(grandParent, parent, parent.left != null ? parent.left : parent.right);
+
+        return previous;
+    }
+
+    /**
+     * @param network network
+     * @return the value associated with exactly the given network, or null if there is none
+     */
+    public V get(final IPv6Network network)
+    {
+        if (network == null)
+            throw new IllegalArgumentException("network invalid [null]");
+
+        final long highBits = network.getFirst().getHighBits();
+        final long lowBits = network.getFirst().getLowBits();
+        final int prefixLength = network.getNetmask().asPrefixLength();
+
+        Node<V> node = root;
+        while (node != null && node.prefixLength < prefixLength && node.contains(highBits, lowBits))
+        {
+            node = node.child(bit(highBits, lowBits, node.prefixLength));
+        }
+        return node != null && node.prefixLength == prefixLength && node.contains(highBits, lowBits) ? node.value : null;
+    }
+
+    /**
+     * @param address address
+     * @return the value associated with the longest network containing the address, or null if no network contains it
+     */
+    public V longestMatch(final IPv6Address address)
+    {
+        if (address == null)
+            throw new IllegalArgumentException("address invalid [null]");
+
+        return longestMatch(address.getHighBits(), address.getLowBits());
+    }
+
+    /**
+     * Like {@link #longestMatch(IPv6Address)}, for an address given as two longs (see {@link IPv6Address#fromLongs(long, long)}).
+     *
+     * @param highBits highest order bits of the address
+     * @param lowBits  lowest order bits of the address
+     * @return the value associated with the longest network containing the address, or null if no network contains it
+     */
+    public V longestMatch(final long highBits, final long lowBits)
+    {
+        V longest = null;
+        Node<V> node = root;
+        while (node != null && node.contains(highBits, lowBits))
+        {
+            if (node.value != null)
+                longest = node.value;
+            if (node.prefixLength == 128)
+                break;
+            node = node.child(bit(highBits, lowBits, node.prefixLength));
+        }
+        return longest;
+    }
+
+    /**
+     * @param address address
+     * @return the values associated with all networks containing the address, from the shortest to the longest network
+     */
+    public List<V> allMatches(final IPv6Address address)
+    {
+        if (address == null)
+            throw new IllegalArgumentException("address invalid [null]");
+
+        final long highBits = address.getHighBits();
+        final long lowBits = address.getLowBits();
+
+        final List<V> matches = new ArrayList<V>();
+        Node<V> node = root;
+        while (node != null && node.contains(highBits, lowBits))
+        {
+            if (node.value != null)
+                matches.add(node.value);
+            if (node.prefixLength == 128)
+                break;
+            node = node.child(bit(highBits, lowBits, node.prefixLength));
+        }
+        return matches;
+    }
+
+    /**
+     * @return the number of networks with a value
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    private void replaceChild(Node<V> parent, Node<V> child, Node<V> replacement)
+    {
+        if (parent == null)
+            root = replacement;
+        else if (parent.left == child)
+            parent.left = replacement;
+        else
+            parent.right = replacement;
+    }
+
+    /**
+     * @return the number of leading bits which are equal in both addresses (128 if they are equal)
+     */
+    static int commonPrefixLength(long highBits1, long lowBits1, long highBits2, long lowBits2)
+    {
+        final long high = highBits1 ^ highBits2;
+        return high != 0 ? Long.numberOfLeadingZeros(high) : 64 + Long.numberOfLeadingZeros(lowBits1 ^ lowBits2);
+    }
+
+    /**
+     * @param bit index of the bit, 0 being the highest order bit
+     * @return the bit (0 or 1)
+     */
+    static int bit(long highBits, long lowBits, int bit)
+    {
+        return bit < 64 ? (int) (highBits >>> (63 - bit)) & 1 : (int) (lowBits >>> (127 - bit)) & 1;
+    }
+
+    /**
+     * @param bits         high or low bits of an address
+     * @param prefixLength prefix length to mask with
+     * @param high         whether the bits are the high bits
+     * @return the given bits, with those after the prefix set to zero
+     */
+    static long mask(long bits, int prefixLength, boolean high)
+    {
+        final int length = high ? prefixLength : prefixLength - 64;
+        if (length <= 0)
+            return 0;
+        else if (length >= 64)
+            return bits;
+        else
+            return bits & (0xFFFFFFFFFFFFFFFFL << (64 - length));
+    }
+
+    private static final class Node<V>
+    {
+        private final long highBits;
+
+        private final long lowBits;
+
+        private final int prefixLength;
+
+        private V value;
+
+        private Node<V> left;
+
+        private Node<V> right;
+
+        private Node(long highBits, long lowBits, int prefixLength, V value)
+        {
+            this.highBits = highBits;
+            this.lowBits = lowBits;
+            this.prefixLength = prefixLength;
+            this.value = value;
+        }
+
+        private boolean contains(long highBits, long lowBits)
+        {
+            return commonPrefixLength(this.highBits, this.lowBits, highBits, lowBits) >= prefixLength;
+        }
+
+        private Node<V> child(int bit)
+        {
+            return bit == 0 ? left : right;
+        }
+
+        private void setChild(int bit, Node<V> child)
+        {
+            if (bit == 0)
+                left = child;
+            else
+                right = child;
+        }
+    }
+}
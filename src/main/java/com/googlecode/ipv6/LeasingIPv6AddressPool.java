@@ -0,0 +1,426 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Thread safe IPv6 address pool in which every allocated subnet is a lease with a limited lifetime (think "DHCPv6 prefix delegation").
+ * <p>
+ * Leases are kept on a hierarchical timer wheel: 11 levels of 64 slots each, where a lease is put on the level that corresponds to the
+ * most significant 6 bit group in which its expiry tick differs from the current tick. When the current tick reaches the slot of a lease
+ * on a higher level, the lease is moved down ("cascaded") to a lower level, until it expires on the lowest level. Inserting, renewing and
+ * releasing a lease take constant time, and advancing the clock takes constant time per tick in which leases expire or cascade (ticks in
+ * which nothing happens are skipped with a bitmap of occupied slots per level). The lease table itself is never scanned.
+ * <p>
+ * Time is never read from a clock by this class: all methods take the current time (e.g. {@link System#currentTimeMillis()}) as an
+ * argument, which should never go backwards. The time is divided in ticks of a fixed resolution, leases never expire before their expiry
+ * time, but can expire up to one tick later. Expired leases are only returned to the pool when {@link #expire(long)} is called, which
+ * should thus be called periodically.
+ *
+ * @author Jan Van Besien
+ */
+public final class LeasingIPv6AddressPool
+{
+    private static final int SLOT_BITS = 6;
+
+    private static final int SLOTS = 1 << SLOT_BITS;
+
+    private static final int LEVELS = (63 + SLOT_BITS - 1) / SLOT_BITS;
+
+    private final long resolution;
+
+    private IPv6AddressPool pool;
+
+    private final Map<IPv6Network, Entry> leases = new HashMap<IPv6Network, Entry>();
+
+    /**
+     * Per level, the sentinels of the (circular, doubly linked) lists of entries in the slots.
+     */
+    private final Entry[][] wheel = new Entry[LEVELS][SLOTS];
+
+    /**
+     * Per level, a bitmap of the slots which contain at least one entry.
+     */
+    private final long[] occupied = new long[LEVELS];
+
+    private long currentTick;
+
+    /**
+     * @param pool       pool to allocate from (subnets which are already allocated in the pool are not leased, and never expire)
+     * @param resolution length of a tick, in the same unit as the time arguments (e.g. 1000 for a resolution of a second if the time is
+     *                   given in milliseconds)
+     * @param now        current time
+     */
+    public LeasingIPv6AddressPool(final IPv6AddressPool pool, final long resolution, final long now)
+    {
+        if (pool == null)
+            throw new IllegalArgumentException("pool invalid [null]");
+        if (resolution <= 0)
+            throw new IllegalArgumentException("resolution should be positive [" + resolution + "]");
+        if (now < 0)
+            throw new IllegalArgumentException("time should not be negative [" + now + "]");
+
+        this.pool = pool;
+        this.resolution = resolution;
+        this.currentTick = now / resolution;
+
+        for (int level = 0; level < LEVELS; level++)
+        {
+            for (int slot = 0; slot < SLOTS; slot++)
+            {
+                final Entry sentinel = new Entry(null, 0);
+                sentinel.previous = sentinel;
+                sentinel.next = sentinel;
+                wheel[level][slot] = sentinel;
+            }
+        }
+    }
+
+    /**
+     * Allocate the first available subnet from the pool, leased for the given time to live.
+     *
+     * @param timeToLive time to live of the lease
+     * @param now        current time
+     * @return the lease, or null if the pool is exhausted
+     */
+    public synchronized Lease allocate(final long timeToLive, final long now)
+    {
+        final long expiryTick = expiryTick(timeToLive, now);
+
+        final IPv6AddressPool result = pool.allocate();
+        if (result == null)
+            return null;
+
+        pool = result;
+        final Entry entry = new Entry(result.getLastAllocated(), expiryTick);
+        leases.put(entry.network, entry);
+        schedule(entry, currentTick + 1);
+
+        return entry.toLease(resolution);
+    }
+
+    /**
+     * Renew a lease, such that it expires after the given time to live (counting from now, regardless of the previous expiry time).
+     *
+     * @param network    network of the lease
+     * @param timeToLive new time to live of the lease
+     * @param now        current time
+     * @return the renewed lease, or null if the network is not leased (anymore)
+     */
+    public synchronized Lease renew(final IPv6Network network, final long timeToLive, final long now)
+    {
+        final long expiryTick = expiryTick(timeToLive, now);
+
+        final Entry entry = leases.get(network);
+        if (entry == null)
+            return null;
+
+        unschedule(entry);
+        entry.expiryTick = expiryTick;
+        schedule(entry, currentTick + 1);
+
+        return entry.toLease(resolution);
+    }
+
+    /**
+     * Release a lease before it expires, giving its network back to the pool immediately.
+     *
+     * @param network network of the lease
+     * @return true if the lease was released, false if the network was not leased (anymore)
+     */
+    public synchronized boolean release(final IPv6Network network)
+    {
+        final Entry entry = leases.remove(network);
+        if (entry == null)
+            return false;
+
+        unschedule(entry);
+        pool = pool.deAllocate(network);
+        return true;
+    }
+
+    /**
+     * Advance the clock to the given time, and give all leases which expired in the meantime back to the pool in a single batch.
+     *
+     * @param now current time
+     * @return the networks of the expired leases
+     */
+    public synchronized List<IPv6Network> expire(final long now)
+    {
+        if (now < 0)
+            throw new IllegalArgumentException("time should not be negative [" + now + "]");
+
+        final long targetTick = now / resolution;
+        final List<IPv6Network> expired = new ArrayList<IPv6Network>();
+        while (currentTick < targetTick)
+        {
+            final long nextTick = nextEventTick();
+            if (nextTick > targetTick)
+            {
+                currentTick = targetTick;
+            }
+            else
+            {
+                currentTick = nextTick;
+                processTick(expired);
+            }
+        }
+
+        if (!expired.isEmpty())
+            pool = pool.deAllocate(expired);
+
+        return expired;
+    }
+
+    /**
+     * @return the first tick after the current tick in which a slot with entries is processed on any level, or Long.MAX_VALUE
+     */
+    private long nextEventTick()
+    {
+        long result = Long.MAX_VALUE;
+        for (int level = 0; level < LEVELS; level++)
+        {
+            final int shift = level * SLOT_BITS;
+            final int currentSlot = (int) ((currentTick >>> shift) & (SLOTS - 1));
+
+            // entries are always in slots after the current slot of their level
+            final long later = currentSlot == SLOTS - 1 ? 0 : occupied[level] & (-1L << (currentSlot + 1));
+            if (later != 0)
+            {
+                final int slot = Long.numberOfTrailingZeros(later);
+                final long tick = ((currentTick >>> shift) + (slot - currentSlot)) << shift;
+                result = Math.min(result, tick);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Cascade the slots of the current tick on all levels (from the highest to the lowest), then expire the current slot of the lowest
+     * level.
+     */
+    private void processTick(List<IPv6Network> expired)
+    {
+        for (int level = LEVELS - 1; level > 0; level--)
+        {
+            final int shift = level * SLOT_BITS;
+            if ((currentTick & ((1L << shift) - 1)) == 0)
+            {
+                final int slot = (int) ((currentTick >>> shift) & (SLOTS - 1));
+                for (Entry entry : removeAll(level, slot))
+                {
+                    schedule(entry, currentTick);
+                }
+            }
+        }
+
+        for (Entry entry : removeAll(0, (int) (currentTick & (SLOTS - 1))))
+        {
+            assert entry.expiryTick == currentTick;
+            leases.remove(entry.network);
+            expired.add(entry.network);
+        }
+    }
+
+    private long expiryTick(long timeToLive, long now)
+    {
+        if (timeToLive < 0)
+            throw new IllegalArgumentException("time to live should not be negative [" + timeToLive + "]");
+        if (now < 0)
+            throw new IllegalArgumentException("time should not be negative [" + now + "]");
+
+        // round up, a lease never expires before its time
+        final long expiry = now + timeToLive;
+        if (expiry < 0 || expiry > Long.MAX_VALUE - resolution)
+            return Long.MAX_VALUE / resolution; // practically never
+        else
+            return (expiry + resolution - 1) / resolution;
+    }
+
+    /**
+     * Put an entry in the slot of the level which corresponds to the most significant 6 bit group in which its expiry tick differs from
+     * the current tick. Entries which are due before the given earliest tick are moved to that tick.
+     */
+    private void schedule(Entry entry, long earliestTick)
+    {
+        final long tick = Math.max(entry.expiryTick, earliestTick);
+        final int level = tick == currentTick ? 0 : (63 - Long.numberOfLeadingZeros(tick ^ currentTick)) / SLOT_BITS;
+        final int slot = (int) ((tick >>> (level * SLOT_BITS)) & (SLOTS - 1));
+        if (entry.expiryTick < tick)
+            entry.expiryTick = tick;
+
+        final Entry sentinel = wheel[level][slot];
+        entry.previous = sentinel.previous;
+        entry.next = sentinel;
+        sentinel.previous.next = entry;
+        sentinel.previous = entry;
+        entry.level = level;
+        entry.slot = slot;
+        occupied[level] |= 1L << slot;
+    }
+
+    private void unschedule(Entry entry)
+    {
+        entry.previous.next = entry.next;
+        entry.next.previous = entry.previous;
+        entry.previous = null;
+        entry.next = null;
+
+        final Entry sentinel = wheel[entry.level][entry.slot];
+        if (sentinel.next == sentinel)
+            occupied[entry.level] &= ~(1L << entry.slot);
+    }
+
+    private List<Entry> removeAll(int level, int slot)
+    {
+        final List<Entry> result = new ArrayList<Entry>();
+        if ((occupied[level] & (1L << slot)) == 0)
+            return result;
+
+        final Entry sentinel = wheel[level][slot];
+        for (Entry entry = sentinel.next; entry != sentinel; entry = entry.next)
+        {
+            result.add(entry);
+        }
+        sentinel.next = sentinel;
+        sentinel.previous = sentinel;
+        occupied[level] &= ~(1L << slot);
+
+        return result;
+    }
+
+    /**
+     * @param network network
+     * @return the lease of the network, or null if it is not leased
+     */
+    public synchronized Lease getLease(final IPv6Network network)
+    {
+        final Entry entry = leases.get(network);
+        return entry == null ? null : entry.toLease(resolution);
+    }
+
+    /**
+     * @return number of active leases
+     */
+    public synchronized int getNumberOfLeases()
+    {
+        return leases.size();
+    }
+
+    /**
+     * @return the underlying pool, in which all leased subnets are allocated
+     */
+    public synchronized IPv6AddressPool getPool()
+    {
+        return pool;
+    }
+
+    public long getResolution()
+    {
+        return resolution;
+    }
+
+    @Override
+    public String toString()
+    {
+        return getPool().toString();
+    }
+
+    /**
+     * Entry in the lease table and in a slot of the timer wheel.
+     */
+    private static final class Entry
+    {
+        private final IPv6Network network;
+
+        private long expiryTick;
+
+        private Entry previous;
+
+        private Entry next;
+
+        private int level;
+
+        private int slot;
+
+        private Entry(IPv6Network network, long expiryTick)
+        {
+            this.network = network;
+            this.expiryTick = expiryTick;
+        }
+
+        private Lease toLease(long resolution)
+        {
+            return new Lease(network, expiryTick * resolution);
+        }
+    }
+
+    /**
+     * Immutable lease of a network.
+     */
+    public static final class Lease
+    {
+        private final IPv6Network network;
+
+        private final long expiry;
+
+        private Lease(IPv6Network network, long expiry)
+        {
+            this.network = network;
+            this.expiry = expiry;
+        }
+
+        public IPv6Network getNetwork()
+        {
+            return network;
+        }
+
+        /**
+         * @return time at which the lease expires (rounded up to the resolution of the pool)
+         */
+        public long getExpiry()
+        {
+            return expiry;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            final Lease lease = (Lease) o;
+            return expiry == lease.expiry && network.equals(lease.network);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * network.hashCode() + (int) (expiry ^ (expiry >>> 32));
+        }
+
+        @Override
+        public String toString()
+        {
+            return network + " (expires at " + expiry + ")";
+        }
+    }
+}
@@ -0,0 +1,479 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread safe front end for a {@link ConcurrentIPv6AddressPool} which caches subnets per thread.
+ * <p>
+ * Every thread gets its own "magazine" of subnets which are allocated in the shared pool, but not yet handed out. Allocations are served
+ * from the magazine of the calling thread, which is refilled with a batch of subnets from the shared pool when it runs empty.
+ * De-allocated subnets are put back in the magazine of the calling thread, and only when the magazine overflows, half of it is given back
+ * to the shared pool in a single batch. As long as allocations and de-allocations of a thread are more or less in balance, most
+ * operations never touch the shared pool.
+ * <p>
+ * Subnets in the magazines are free from the point of view of the users of this class, but allocated from the point of view of the
+ * shared pool. Call {@link #drain()} (e.g. on shutdown, see {@link #drainOnShutdown()}) to give all cached subnets back to the shared
+ * pool. The magazines of threads which died are given back to the shared pool automatically, when new threads start using this class
+ * (or when draining).
+ * <p>
+ * Only subnets which were allocated from this class (and not de-allocated yet) can be de-allocated: as de-allocated subnets are handed
+ * out again from the magazines without consulting the shared pool, de-allocating a subnet twice would otherwise hand it out twice.
+ *
+ * @author Jan Van Besien
+ */
+public final class ThreadCachingIPv6AddressPool
+{
+    private final ConcurrentIPv6AddressPool sharedPool;
+
+    private final int magazineSize;
+
+    /**
+     * Subnets which are handed out (allocated and not de-allocated yet).
+     */
+    private final Set<IPv6Network> allocated = Collections.newSetFromMap(new ConcurrentHashMap<IPv6Network, Boolean>());
+
+    /**
+     * Minimum number of magazines before the magazines of threads which died are reclaimed.
+     */
+    private static final int MIN_RECLAIM_THRESHOLD = 16;
+
+    /**
+     * Magazines of all threads which use this pool (guarded by itself).
+     */
+    private final List<Magazine> magazines = new ArrayList<Magazine>();
+
+    /**
+     * Number of magazines at which the magazines of threads which died are reclaimed, twice the number of magazines which were left after
+     * the previous time, such that reclaiming takes amortized constant time per registered magazine (guarded by magazines).
+     */
+    private int reclaimThreshold = MIN_RECLAIM_THRESHOLD;
+
+    /**
+     * Statistics of the reclaimed magazines (guarded by magazines).
+     */
+    private long reclaimedAllocationHits;
+
+    private long reclaimedAllocationMisses;
+
+    private long reclaimedReleaseHits;
+
+    private long reclaimedReleaseOverflows;
+
+    private final ThreadLocal<Magazine> magazine = new ThreadLocal<Magazine>()
+    {
+        @Override
+        protected Magazine initialValue()
+        {
+            final Magazine result = new Magazine(magazineSize, Thread.currentThread());
+            synchronized (magazines)
+            {
+                if (magazines.size() >= reclaimThreshold)
+                {
+                    reclaimDeadMagazines();
+                    reclaimThreshold = Math.max(MIN_RECLAIM_THRESHOLD, 2 * magazines.size());
+                }
+                magazines.add(result);
+            }
+            return result;
+        }
+    };
+
+    /**
+     * @param sharedPool   shared pool to allocate from
+     * @param magazineSize maximum number of subnets cached per thread
+     */
+    public ThreadCachingIPv6AddressPool(final ConcurrentIPv6AddressPool sharedPool, final int magazineSize)
+    {
+        if (sharedPool == null)
+            throw new IllegalArgumentException("shared pool invalid [null]");
+        if (magazineSize < 2)
+            throw new IllegalArgumentException("magazine size should be at least 2 [" + magazineSize + "]");
+
+        this.sharedPool = sharedPool;
+        this.magazineSize = magazineSize;
+    }
+
+    /**
+     * Allocate a subnet, from the magazine of the calling thread if possible.
+     *
+     * @return the allocated network, or null if the shared pool and all magazines are exhausted
+     */
+    public IPv6Network allocate()
+    {
+        final IPv6Network network = allocateFromMagazine();
+        if (network != null)
+            allocated.add(network);
+        return network;
+    }
+
+    private IPv6Network allocateFromMagazine()
+    {
+        final Magazine local = magazine.get();
+        synchronized (local)
+        {
+            if (local.size > 0)
+            {
+                local.allocationHits++;
+                return local.pop();
+            }
+
+            // refill half of the magazine, such that a subsequent de-allocation doesn't immediately overflow
+            local.allocationMisses++;
+            for (IPv6Network network : sharedPool.allocate(magazineSize / 2))
+            {
+                local.push(network);
+            }
+
+            if (local.size > 0)
+                return local.pop();
+        }
+
+        // the shared pool is exhausted, try to take one from the magazine of another thread
+        return stealFromOtherMagazine(local);
+    }
+
+    private IPv6Network stealFromOtherMagazine(Magazine local)
+    {
+        for (Magazine other : magazines())
+        {
+            if (other != local)
+            {
+                synchronized (other)
+                {
+                    if (other.size > 0)
+                        return other.pop();
+                }
+            }
+        }
+
+        // exhausted
+        return null;
+    }
+
+    /**
+     * Give a network back (de-allocate). It is put in the magazine of the calling thread. If that magazine is full, half of it is given
+     * back to the shared pool.
+     *
+     * @param toDeAllocate network to de-allocate, which was allocated from this pool
+     * @throws IllegalArgumentException if the network is not allocated from this pool (or was de-allocated already)
+     */
+    public void deAllocate(final IPv6Network toDeAllocate)
+    {
+        if (toDeAllocate == null)
+            throw new IllegalArgumentException("network invalid [null]");
+        if (!sharedPool.contains(toDeAllocate) || !sharedPool.getAllocationSubnetSize().equals(toDeAllocate.getNetmask()))
+            throw new IllegalArgumentException("network [" + toDeAllocate + "] can not be allocated from pool [" + sharedPool + "]");
+        if (!allocated.remove(toDeAllocate))
+            throw new IllegalArgumentException("network [" + toDeAllocate + "] is not allocated from pool [" + sharedPool + "]");
+
+        final Magazine local = magazine.get();
+        synchronized (local)
+        {
+            if (local.size < magazineSize)
+            {
+                local.releaseHits++;
+            }
+            else
+            {
+                local.releaseOverflows++;
+                sharedPool.deAllocate(local.popAll(magazineSize / 2));
+            }
+
+            local.push(toDeAllocate);
+        }
+    }
+
+    /**
+     * Give all subnets cached in the magazines of all threads back to the shared pool. The pool can still be used afterwards (the
+     * magazines are simply refilled).
+     */
+    public void drain()
+    {
+        synchronized (magazines)
+        {
+            reclaimDeadMagazines();
+        }
+
+        for (Magazine other : magazines())
+        {
+            synchronized (other)
+            {
+                if (other.size > 0)
+                    sharedPool.deAllocate(other.popAll(other.size));
+            }
+        }
+    }
+
+    /**
+     * Register a JVM shutdown hook which drains all magazines (see {@link #drain()}).
+     *
+     * @return the registered shutdown hook, which can be removed again with {@link Runtime#removeShutdownHook(Thread)}
+     */
+    public Thread drainOnShutdown()
+    {
+        final Thread hook = new Thread("drain " + this)
+        {
+            @Override
+            public void run()
+            {
+                drain();
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(hook);
+        return hook;
+    }
+
+    /**
+     * @return statistics summed over the magazines of all threads
+     */
+    public Statistics getStatistics()
+    {
+        long allocationHits;
+        long allocationMisses;
+        long releaseHits;
+        long releaseOverflows;
+        final Magazine[] all;
+        synchronized (magazines)
+        {
+            allocationHits = reclaimedAllocationHits;
+            allocationMisses = reclaimedAllocationMisses;
+            releaseHits = reclaimedReleaseHits;
+            releaseOverflows = reclaimedReleaseOverflows;
+            all = magazines.toArray(new Magazine[magazines.size()]);
+        }
+
+        int cached = 0;
+        for (Magazine other : all)
+        {
+            synchronized (other)
+            {
+                allocationHits += other.allocationHits;
+                allocationMisses += other.allocationMisses;
+                releaseHits += other.releaseHits;
+                releaseOverflows += other.releaseOverflows;
+                cached += other.size;
+            }
+        }
+
+        return new Statistics(allocationHits, allocationMisses, releaseHits, releaseOverflows, cached);
+    }
+
+    /**
+     * @return the magazines of all threads which use this pool
+     */
+    private Magazine[] magazines()
+    {
+        synchronized (magazines)
+        {
+            return magazines.toArray(new Magazine[magazines.size()]);
+        }
+    }
+
+    /**
+     * Give the subnets in the magazines of threads which died back to the shared pool, and forget about those magazines. Must be called
+     * while holding the lock on magazines.
+     */
+    private void reclaimDeadMagazines()
+    {
+        int alive = 0;
+        for (int i = 0; i < magazines.size(); i++)
+        {
+            final Magazine other = magazines.get(i);
+            if (other.isOwnerAlive())
+            {
+                magazines.set(alive++, other);
+                continue;
+            }
+
+            synchronized (other)
+            {
+                if (other.size > 0)
+                    sharedPool.deAllocate(other.popAll(other.size));
+                reclaimedAllocationHits += other.allocationHits;
+                reclaimedAllocationMisses += other.allocationMisses;
+                reclaimedReleaseHits += other.releaseHits;
+                reclaimedReleaseOverflows += other.releaseOverflows;
+            }
+        }
+        magazines.subList(alive, magazines.size()).clear();
+    }
+
+    /**
+     * @return the shared pool (in which all subnets cached in the magazines are allocated)
+     */
+    public ConcurrentIPv6AddressPool getSharedPool()
+    {
+        return sharedPool;
+    }
+
+    public int getMagazineSize()
+    {
+        return magazineSize;
+    }
+
+    @Override
+    public String toString()
+    {
+        return sharedPool.toString();
+    }
+
+    /**
+     * Magazine of one thread. Mostly accessed by its own thread, but other threads access it when stealing, draining, reclaiming or
+     * collecting statistics, hence all access is synchronized on the magazine itself.
+     */
+    private static final class Magazine
+    {
+        /**
+         * The thread of the magazine (weakly referenced, such that the magazine doesn't keep it from being garbage collected).
+         */
+        private final WeakReference<Thread> owner;
+
+        private final IPv6Network[] networks;
+
+        private int size;
+
+        private long allocationHits;
+
+        private long allocationMisses;
+
+        private long releaseHits;
+
+        private long releaseOverflows;
+
+        private Magazine(int capacity, Thread owner)
+        {
+            this.owner = new WeakReference<Thread>(owner);
+            this.networks = new IPv6Network[capacity];
+        }
+
+        private boolean isOwnerAlive()
+        {
+            final Thread thread = owner.get();
+            return thread != null && thread.isAlive();
+        }
+
+        private void push(IPv6Network network)
+        {
+            networks[size++] = network;
+        }
+
+        private IPv6Network pop()
+        {
+            final IPv6Network network = networks[--size];
+            networks[size] = null;
+            return network;
+        }
+
+        private List<IPv6Network> popAll(int count)
+        {
+            final List<IPv6Network> result = new ArrayList<IPv6Network>(count);
+            for (int i = 0; i < count; i++)
+            {
+                result.add(pop());
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Immutable hit rate statistics.
+     */
+    public static final class Statistics
+    {
+        private final long allocationHits;
+
+        private final long allocationMisses;
+
+        private final long releaseHits;
+
+        private final long releaseOverflows;
+
+        private final int cached;
+
+        private Statistics(long allocationHits, long allocationMisses, long releaseHits, long releaseOverflows, int cached)
+        {
+            this.allocationHits = allocationHits;
+            this.allocationMisses = allocationMisses;
+            this.releaseHits = releaseHits;
+            this.releaseOverflows = releaseOverflows;
+            this.cached = cached;
+        }
+
+        /**
+         * @return number of allocations served from the magazine of the calling thread
+         */
+        public long getAllocationHits()
+        {
+            return allocationHits;
+        }
+
+        /**
+         * @return number of allocations which required a refill from the shared pool
+         */
+        public long getAllocationMisses()
+        {
+            return allocationMisses;
+        }
+
+        /**
+         * @return number of de-allocations which were put in the magazine of the calling thread
+         */
+        public long getReleaseHits()
+        {
+            return releaseHits;
+        }
+
+        /**
+         * @return number of de-allocations which caused a flush to the shared pool
+         */
+        public long getReleaseOverflows()
+        {
+            return releaseOverflows;
+        }
+
+        /**
+         * @return number of subnets currently cached in all magazines
+         */
+        public int getCached()
+        {
+            return cached;
+        }
+
+        /**
+         * @return fraction of all operations which didn't touch the shared pool (or 0 if there were no operations yet)
+         */
+        public double getHitRate()
+        {
+            final long total = allocationHits + allocationMisses + releaseHits + releaseOverflows;
+            return total == 0 ? 0 : (double) (allocationHits + releaseHits) / total;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "allocation hits: " + allocationHits + ", allocation misses: " + allocationMisses + ", release hits: " + releaseHits
+                    + ", release overflows: " + releaseOverflows + ", cached: " + cached;
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6.server;
+
+import com.googlecode.ipv6.IPv6Network;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.googlecode.ipv6.server.Protocol.*;
+
+/**
+ * Client of an {@link IPv6AddressPoolServer}. This class is not thread safe (use a client per thread, or synchronize externally).
+ * <p>
+ * Every method sends its request(s) and waits for the response(s). {@link #allocate(String, int)} sends all its requests at once
+ * (pipelining, in windows of many requests), such that allocating many subnets takes only a few round trips.
+ *
+ * @author Jan Van Besien
+ */
+public final class IPv6AddressPoolClient implements Closeable
+{
+    /**
+     * Maximum number of requests sent before reading responses (the responses should fit in the buffers of the server, otherwise the
+     * server stops reading while the client is still writing).
+     */
+    private static final int PIPELINE_WINDOW = 1024;
+
+    private final SocketChannel channel;
+
+    private final ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+
+    private final ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+
+    private int nextRequestId;
+
+    /**
+     * Connect to a server.
+     *
+     * @param address address of the server
+     * @return the connected client
+     * @throws IOException if the client could not connect
+     */
+    public static IPv6AddressPoolClient connect(final InetSocketAddress address) throws IOException
+    {
+        if (address == null)
+            throw new IllegalArgumentException("address invalid [null]");
+
+        final SocketChannel channel = SocketChannel.open();
+        try
+        {
+            channel.socket().setTcpNoDelay(true);
+            channel.connect(address);
+            return new IPv6AddressPoolClient(channel);
+        } catch (IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private IPv6AddressPoolClient(SocketChannel channel)
+    {
+        this.channel = channel;
+        this.in.flip();
+    }
+
+    /**
+     * Allocate the first available subnet from a pool.
+     *
+     * @param pool name of the pool
+     * @return the allocated subnet, or null if the pool is exhausted
+     * @throws IOException if the server could not be reached
+     */
+    public IPv6Network allocate(final String pool) throws IOException
+    {
+        final int requestId = request(ALLOCATE, pool, null);
+        flush();
+        return allocated(requestId);
+    }
+
+    /**
+     * Allocate a number of subnets from a pool, pipelining the requests.
+     *
+     * @param pool  name of the pool
+     * @param count number of subnets to allocate
+     * @return the allocated subnets (less than requested if the pool is exhausted)
+     * @throws IOException if the server could not be reached
+     */
+    public List<IPv6Network> allocate(final String pool, final int count) throws IOException
+    {
+        if (count < 0)
+            throw new IllegalArgumentException("count should not be negative [" + count + "]");
+
+        final List<IPv6Network> result = new ArrayList<IPv6Network>(count);
+        for (int sent = 0; sent < count; sent += PIPELINE_WINDOW)
+        {
+            final int window = Math.min(PIPELINE_WINDOW, count - sent);
+            final int firstRequestId = nextRequestId;
+            for (int i = 0; i < window; i++)
+            {
+                request(ALLOCATE, pool, null);
+            }
+            flush();
+
+            // read all responses of the window, even if one of them is an error
+            IllegalArgumentException error = null;
+            for (int i = 0; i < window; i++)
+            {
+                try
+                {
+                    final IPv6Network allocated = allocated(firstRequestId + i);
+                    if (allocated != null)
+                        result.add(allocated);
+                } catch (IllegalArgumentException e)
+                {
+                    error = error == null ? e : error;
+                }
+            }
+            if (error != null)
+                throw error;
+        }
+        return result;
+    }
+
+    /**
+     * Allocate the given subnet from a pool.
+     *
+     * @param pool       name of the pool
+     * @param toAllocate subnet to allocate
+     * @return the allocated subnet, or null if it was not free
+     * @throws IOException if the server could not be reached
+     */
+    public IPv6Network allocate(final String pool, final IPv6Network toAllocate) throws IOException
+    {
+        final int requestId = request(ALLOCATE_NETWORK, pool, toAllocate);
+        flush();
+        return allocated(requestId);
+    }
+
+    /**
+     * Give a network back to a pool.
+     *
+     * @param pool         name of the pool
+     * @param toDeAllocate network to de-allocate
+     * @throws IOException if the server could not be reached
+     */
+    public void deAllocate(final String pool, final IPv6Network toDeAllocate) throws IOException
+    {
+        final int requestId = request(DE_ALLOCATE, pool, toDeAllocate);
+        flush();
+        response(requestId);
+    }
+
+    /**
+     * @param pool    name of the pool
+     * @param network network to check
+     * @return true if the network is free in the pool
+     * @throws IOException if the server could not be reached
+     */
+    public boolean isFree(final String pool, final IPv6Network network) throws IOException
+    {
+        final int requestId = request(IS_FREE, pool, network);
+        flush();
+        return response(requestId).get() != 0;
+    }
+
+    /**
+     * @param pool name of the pool
+     * @return the number of free subnets in the pool
+     * @throws IOException if the server could not be reached
+     */
+    public BigInteger freeCount(final String pool) throws IOException
+    {
+        final int requestId = request(STATS, pool, null);
+        flush();
+        final ByteBuffer result = response(requestId);
+        final byte[] freeCount = new byte[result.get() & 0xff];
+        result.get(freeCount);
+        return new BigInteger(freeCount);
+    }
+
+    private int request(byte operation, String pool, IPv6Network network) throws IOException
+    {
+        if (pool == null)
+            throw new IllegalArgumentException("pool invalid [null]");
+        final byte[] name = encodeName(pool);
+
+        final int length = 4 + 1 + 1 + name.length + (network != null ? NETWORK_LENGTH : 0);
+        if (out.remaining() < 4 + length)
+            flush();
+
+        final int requestId = nextRequestId++;
+        out.putInt(length).putInt(requestId).put(operation).put((byte) name.length).put(name);
+        if (network != null)
+            putNetwork(out, network);
+        return requestId;
+    }
+
+    private void flush() throws IOException
+    {
+        out.flip();
+        while (out.hasRemaining())
+        {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    private IPv6Network allocated(int requestId) throws IOException
+    {
+        final ByteBuffer result = response(requestId);
+        return result == null ? null : getNetwork(result);
+    }
+
+    /**
+     * Read the response of the given request.
+     *
+     * @return the result, or null if the status was {@link Protocol#NONE}
+     */
+    private ByteBuffer response(int requestId) throws IOException
+    {
+        fill(4);
+        final int length = in.getInt();
+        if (length < 4 + 1 || length > in.capacity())
+            throw new IOException("invalid response length [" + length + "]");
+        fill(length);
+
+        final ByteBuffer response = in.slice();
+        response.limit(length);
+        in.position(in.position() + length);
+
+        if (response.getInt() != requestId)
+            throw new IOException("unexpected response (expected response to request " + requestId + ")");
+        final byte status = response.get();
+        switch (status)
+        {
+            case OK:
+                return response;
+            case NONE:
+                return null;
+            case ERROR:
+                final byte[] message = new byte[response.getShort() & 0xffff];
+                response.get(message);
+                throw new IllegalArgumentException(new String(message, UTF_8));
+            default:
+                throw new IOException("invalid response status [" + status + "]");
+        }
+    }
+
+    /**
+     * Make sure at least the given number of bytes are available in the input buffer.
+     */
+    private void fill(int bytes) throws IOException
+    {
+        if (in.remaining() >= bytes)
+            return;
+
+        in.compact();
+        while (in.position() < bytes)
+        {
+            if (channel.read(in) < 0)
+                throw new EOFException("connection closed by server");
+        }
+        in.flip();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+}
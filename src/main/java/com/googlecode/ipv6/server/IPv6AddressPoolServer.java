@@ -0,0 +1,391 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6.server;
+
+import com.googlecode.ipv6.IPv6AddressPool;
+import com.googlecode.ipv6.IPv6Network;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.googlecode.ipv6.server.Protocol.*;
+
+/**
+ * Server which hands out subnets from named {@link IPv6AddressPool}s to {@link IPv6AddressPoolClient}s over TCP, such that many processes
+ * can share the same pools.
+ * <p>
+ * A single thread runs a non blocking selector loop, which accepts connections, reads requests and writes responses (see {@link Protocol}
+ * for the binary framing). All complete requests which were read at once are handled before the responses are written at once, such that
+ * pipelined requests of a client result in batched responses. The pools are only modified on the selector thread, so no locking is
+ * needed.
+ *
+ * @author Jan Van Besien
+ */
+public final class IPv6AddressPoolServer implements Closeable
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Map<String, IPv6AddressPool> pools;
+
+    private final Selector selector;
+
+    private final ServerSocketChannel serverChannel;
+
+    private final Thread selectorThread;
+
+    private volatile boolean closed;
+
+    /**
+     * Start a server.
+     *
+     * @param address address to listen on (e.g. port 0 to pick a free port)
+     * @param pools   initial pools by name
+     * @return the started server
+     * @throws IOException if the server could not listen on the address
+     */
+    public static IPv6AddressPoolServer start(final InetSocketAddress address, final Map<String, IPv6AddressPool> pools)
+            throws IOException
+    {
+        if (address == null)
+            throw new IllegalArgumentException("address invalid [null]");
+        if (pools == null)
+            throw new IllegalArgumentException("pools invalid [null]");
+        for (String name : pools.keySet())
+        {
+            encodeName(name);
+        }
+
+        final IPv6AddressPoolServer server = new IPv6AddressPoolServer(address, pools);
+        server.selectorThread.start();
+        return server;
+    }
+
+    private IPv6AddressPoolServer(InetSocketAddress address, Map<String, IPv6AddressPool> pools) throws IOException
+    {
+        this.pools = new ConcurrentHashMap<String, IPv6AddressPool>(pools);
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        try
+        {
+            serverChannel.configureBlocking(false);
+            serverChannel.socket().bind(address);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e)
+        {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+
+        this.selectorThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                selectLoop();
+            }
+        }, "ipv6-pool-server");
+        this.selectorThread.setDaemon(true);
+    }
+
+    /**
+     * @return the address the server listens on
+     */
+    public InetSocketAddress getAddress()
+    {
+        return (InetSocketAddress) serverChannel.socket().getLocalSocketAddress();
+    }
+
+    /**
+     * @param name name of the pool
+     * @return the current version of the pool, or null if there is no such pool
+     */
+    public IPv6AddressPool getPool(final String name)
+    {
+        return pools.get(name);
+    }
+
+    private void selectLoop()
+    {
+        while (!closed)
+        {
+            try
+            {
+                selector.select();
+            } catch (IOException e)
+            {
+                break;
+            }
+
+            final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext())
+            {
+                final SelectionKey key = keys.next();
+                keys.remove();
+                try
+                {
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable())
+                        accept();
+                    else
+                        ((Connection) key.attachment()).handle(key);
+                } catch (IOException e)
+                {
+                    // the connection is broken or the client doesn't speak the protocol
+                    closeConnection(key);
+                } catch (RuntimeException e)
+                {
+                    // handling a request of the connection failed unexpectedly, the other connections are still served
+                    closeConnection(key);
+                }
+            }
+        }
+
+        for (SelectionKey key : selector.keys())
+        {
+            closeQuietly(key);
+        }
+        try
+        {
+            selector.close();
+        } catch (IOException e)
+        {
+            // ignore
+        }
+    }
+
+    private void accept() throws IOException
+    {
+        final SocketChannel channel = serverChannel.accept();
+        if (channel == null)
+            return;
+
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+    }
+
+    /**
+     * Close the connection of the key, but never the server channel (failing to accept a connection doesn't stop the server).
+     */
+    private void closeConnection(SelectionKey key)
+    {
+        if (key.channel() != serverChannel)
+            closeQuietly(key);
+    }
+
+    private static void closeQuietly(SelectionKey key)
+    {
+        key.cancel();
+        try
+        {
+            key.channel().close();
+        } catch (IOException e)
+        {
+            // ignore
+        }
+    }
+
+    /**
+     * Stop the server and close all connections.
+     *
+     * @throws IOException if interrupted while waiting for the server to stop
+     */
+    @Override
+    public void close() throws IOException
+    {
+        closed = true;
+        selector.wakeup();
+        try
+        {
+            selectorThread.join();
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while closing the server");
+        }
+    }
+
+    /**
+     * Buffers of a client connection.
+     */
+    private final class Connection
+    {
+        private final SocketChannel channel;
+
+        private final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+
+        private ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+
+        private Connection(SocketChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        void handle(SelectionKey key) throws IOException
+        {
+            if (key.isReadable())
+            {
+                if (channel.read(in) < 0)
+                    throw new IOException("connection closed by client");
+
+                in.flip();
+                while (handleFrame())
+                {
+                    // handle all complete requests
+                }
+                in.compact();
+            }
+
+            out.flip();
+            channel.write(out);
+            out.compact();
+
+            // stop reading until all responses are written, if the client doesn't read them
+            if (out.position() > 0)
+                key.interestOps(out.position() >= BUFFER_SIZE ? SelectionKey.OP_WRITE : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            else
+                key.interestOps(SelectionKey.OP_READ);
+        }
+
+        /**
+         * @return true if a complete request was handled
+         */
+        private boolean handleFrame() throws IOException
+        {
+            if (in.remaining() < 4)
+                return false;
+            final int length = in.getInt(in.position());
+            if (length < 4 + 1 + 1 || length > MAX_FRAME_LENGTH)
+                throw new IOException("invalid frame length [" + length + "]");
+            if (in.remaining() < 4 + length)
+                return false;
+
+            final int end = in.position() + 4 + length;
+            in.position(in.position() + 4);
+            final int requestId = in.getInt();
+            final byte operation = in.get();
+            final int nameLength = in.get() & 0xff;
+            if (in.position() + nameLength > end)
+                throw new IOException("invalid frame");
+            final byte[] name = new byte[nameLength];
+            in.get(name);
+
+            final ByteBuffer request = in.slice();
+            request.limit(end - in.position());
+            in.position(end);
+
+            handleRequest(requestId, operation, new String(name, UTF_8), request);
+            return true;
+        }
+
+        private void handleRequest(int requestId, byte operation, String name, ByteBuffer request)
+        {
+            final IPv6AddressPool pool = pools.get(name);
+            if (pool == null)
+            {
+                error(requestId, "no pool with name [" + name + "]");
+                return;
+            }
+
+            try
+            {
+                switch (operation)
+                {
+                    case ALLOCATE:
+                        allocated(requestId, name, pool.allocate());
+                        break;
+                    case ALLOCATE_NETWORK:
+                        allocated(requestId, name, pool.allocate(network(request)));
+                        break;
+                    case DE_ALLOCATE:
+                        pools.put(name, pool.deAllocate(network(request)));
+                        response(requestId, OK, 0);
+                        break;
+                    case IS_FREE:
+                        final boolean free = pool.isFree(network(request));
+                        response(requestId, OK, 1).put(free ? (byte) 1 : (byte) 0);
+                        break;
+                    case STATS:
+                        final byte[] freeCount = pool.freeCount().toByteArray();
+                        response(requestId, OK, 1 + freeCount.length).put((byte) freeCount.length).put(freeCount);
+                        break;
+                    default:
+                        error(requestId, "unknown operation [" + operation + "]");
+                }
+            } catch (IllegalArgumentException e)
+            {
+                error(requestId, String.valueOf(e.getMessage()));
+            }
+        }
+
+        private IPv6Network network(ByteBuffer request)
+        {
+            if (request.remaining() != NETWORK_LENGTH)
+                throw new IllegalArgumentException("network expected");
+            return getNetwork(request.duplicate());
+        }
+
+        private void allocated(int requestId, String name, IPv6AddressPool result)
+        {
+            if (result == null)
+            {
+                response(requestId, NONE, 0);
+            }
+            else
+            {
+                pools.put(name, result);
+                putNetwork(response(requestId, OK, NETWORK_LENGTH), result.getLastAllocated());
+            }
+        }
+
+        private void error(int requestId, String message)
+        {
+            final byte[] encoded = encodeMessage(message);
+            response(requestId, ERROR, 2 + encoded.length).putShort((short) encoded.length).put(encoded);
+        }
+
+        /**
+         * Start a response with a result of the given length.
+         *
+         * @return the output buffer, to put the result in
+         */
+        private ByteBuffer response(int requestId, byte status, int resultLength)
+        {
+            final int length = 4 + 1 + resultLength;
+            if (out.remaining() < 4 + length)
+            {
+                final ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + 4 + length));
+                out.flip();
+                bigger.put(out);
+                out = bigger;
+            }
+            return out.putInt(length).putInt(requestId).put(status);
+        }
+    }
+}
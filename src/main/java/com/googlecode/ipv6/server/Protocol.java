@@ -0,0 +1,130 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6.server;
+
+import com.googlecode.ipv6.IPv6Address;
+import com.googlecode.ipv6.IPv6Network;
+import com.googlecode.ipv6.IPv6NetworkMask;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Binary framing shared by {@link IPv6AddressPoolServer} and {@link IPv6AddressPoolClient}.
+ * <p>
+ * Every frame starts with its length (an int, not including the length itself) and a request id (an int, chosen by the client and copied
+ * in the response). A request continues with the operation (a byte), the name of the pool (a byte with the length, followed by the UTF-8
+ * encoded name) and for some operations a network (16 bytes of address and a byte with the prefix length). A response continues with a
+ * status (a byte) and a result which depends on the operation. Responses are sent in the order of the requests, such that clients can send
+ * many requests without waiting for the responses (pipelining).
+ *
+ * @author Jan Van Besien
+ */
+final class Protocol
+{
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Allocate the first free subnet. Result: the allocated network.
+     */
+    static final byte ALLOCATE = 1;
+
+    /**
+     * Allocate the given network. Result: the allocated network.
+     */
+    static final byte ALLOCATE_NETWORK = 2;
+
+    /**
+     * De-allocate the given network. No result.
+     */
+    static final byte DE_ALLOCATE = 3;
+
+    /**
+     * Is the given network free? Result: a boolean byte.
+     */
+    static final byte IS_FREE = 4;
+
+    /**
+     * Statistics of the pool. Result: the number of free subnets (a byte with the length, followed by the big endian bytes).
+     */
+    static final byte STATS = 5;
+
+    static final byte OK = 0;
+
+    /**
+     * Nothing could be allocated (pool exhausted or network not free).
+     */
+    static final byte NONE = 1;
+
+    /**
+     * Invalid request. Result: the error message (a short with the length, followed by the UTF-8 encoded message).
+     */
+    static final byte ERROR = 2;
+
+    /**
+     * Maximum length of a frame (requests are much smaller, responses never are).
+     */
+    static final int MAX_FRAME_LENGTH = 1024;
+
+    static final int NETWORK_LENGTH = 2 * 8 + 1;
+
+    private Protocol()
+    {
+        // utility class
+    }
+
+    static void putNetwork(ByteBuffer buffer, IPv6Network network)
+    {
+        buffer.putLong(network.getFirst().getHighBits());
+        buffer.putLong(network.getFirst().getLowBits());
+        buffer.put((byte) network.getNetmask().asPrefixLength());
+    }
+
+    static IPv6Network getNetwork(ByteBuffer buffer)
+    {
+        final IPv6Address address = IPv6Address.fromLongs(buffer.getLong(), buffer.getLong());
+        return IPv6Network.fromAddressAndMask(address, IPv6NetworkMask.fromPrefixLength(buffer.get() & 0xff));
+    }
+
+    static byte[] encodeName(String name)
+    {
+        final byte[] encoded = name.getBytes(UTF_8);
+        if (encoded.length > 0xff)
+            throw new IllegalArgumentException("pool name too long [" + name + "]");
+        return encoded;
+    }
+
+    /**
+     * @return the UTF-8 encoded error message, truncated (at a character boundary) such that the response fits in a frame
+     */
+    static byte[] encodeMessage(String message)
+    {
+        final byte[] encoded = message.getBytes(UTF_8);
+        final int maxLength = MAX_FRAME_LENGTH - 4 - 1 - 2;
+        if (encoded.length <= maxLength)
+            return encoded;
+
+        // don't cut in the middle of a character, i.e. before a continuation byte
+        int length = maxLength;
+        while ((encoded[length] & 0xc0) == 0x80)
+        {
+            length--;
+        }
+        return Arrays.copyOf(encoded, length);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Test utility which measures the number of bytes allocated (on the heap) by the current thread while running a block of code, to test
+ * that hot paths don't allocate garbage. It relies on the ThreadMXBean of HotSpot based JVMs, tests using it are skipped on other JVMs
+ * (see {@link #assumeSupported()}).
+ * <p>
+ * The block is run many times to warm it up first (such that it is compiled, and classes are loaded and initialized), and then many
+ * times more while measuring. The result is the average per run, such that the few bytes which reading the counters may cost are
+ * negligible.
+ *
+ * @author Jan Van Besien
+ */
+public final class AllocationMeter
+{
+    private static final int WARM_UP_RUNS = 20000;
+
+    private static final int MEASURED_RUNS = 10000;
+
+    private static final int ATTEMPTS = 5;
+
+    private static final com.sun.management.ThreadMXBean THREADS = threads();
+
+    private AllocationMeter()
+    {
+        // utility class
+    }
+
+    private static com.sun.management.ThreadMXBean threads()
+    {
+        try
+        {
+            final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            if (!(threads instanceof com.sun.management.ThreadMXBean))
+                return null;
+
+            final com.sun.management.ThreadMXBean hotSpotThreads = (com.sun.management.ThreadMXBean) threads;
+            if (!hotSpotThreads.isThreadAllocatedMemorySupported())
+                return null;
+
+            hotSpotThreads.setThreadAllocatedMemoryEnabled(true);
+            return hotSpotThreads;
+        } catch (LinkageError e)
+        {
+            return null; // not a HotSpot based JVM
+        } catch (UnsupportedOperationException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if allocations can be measured on this JVM
+     */
+    public static boolean isSupported()
+    {
+        return THREADS != null;
+    }
+
+    /**
+     * Skip the calling test if allocations can not be measured on this JVM.
+     */
+    public static void assumeSupported()
+    {
+        assumeTrue(isSupported());
+    }
+
+    /**
+     * Measure the number of bytes allocated by a block of code, after warming it up. The measurement is repeated a few times and the
+     * lowest result is returned, to ignore allocations which are caused by the JVM itself (e.g. when compiling) rather than by the code.
+     *
+     * @param block code to measure
+     * @return the average number of bytes allocated per run of the block
+     */
+    public static long allocatedBytesPerRun(final Runnable block)
+    {
+        if (!isSupported())
+            throw new IllegalStateException("measuring allocations is not supported on this JVM");
+
+        for (int i = 0; i < WARM_UP_RUNS; i++)
+        {
+            block.run();
+        }
+
+        final long thread = Thread.currentThread().getId();
+        long lowest = Long.MAX_VALUE;
+        for (int attempt = 0; attempt < ATTEMPTS; attempt++)
+        {
+            final long before = THREADS.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < MEASURED_RUNS; i++)
+            {
+                block.run();
+            }
+            final long after = THREADS.getThreadAllocatedBytes(thread);
+
+            lowest = Math.min(lowest, (after - before) / MEASURED_RUNS);
+        }
+        return lowest;
+    }
+}
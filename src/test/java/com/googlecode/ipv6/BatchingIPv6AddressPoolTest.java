@@ -0,0 +1,250 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Jan Van Besien
+ */
+public class BatchingIPv6AddressPoolTest
+{
+    private static final IPv6AddressPool POOL = IPv6AddressPool.fromRangeAndSubnet(IPv6Network.fromString("2001:db8::/48"),
+                                                                                   IPv6NetworkMask.fromPrefixLength(64));
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File snapshot;
+
+    private File journal;
+
+    @Before
+    public void files()
+    {
+        snapshot = new File(folder.getRoot(), "pool.snapshot");
+        journal = new File(folder.getRoot(), "pool.journal");
+    }
+
+    @Test
+    public void concurrentRequestsAreCommittedInBatches() throws Exception
+    {
+        final BatchingIPv6AddressPool pool =
+                BatchingIPv6AddressPool.start(IPv6AddressPoolJournal.open(snapshot, journal, POOL, 64), 64, 5, TimeUnit.MILLISECONDS);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        final List<Future<List<IPv6Network>>> results = new ArrayList<Future<List<IPv6Network>>>();
+        for (int i = 0; i < 8; i++)
+        {
+            results.add(executor.submit(new Callable<List<IPv6Network>>()
+            {
+                @Override
+                public List<IPv6Network> call() throws Exception
+                {
+                    // submit all requests before waiting for any of them
+                    final List<Future<IPv6Network>> futures = new ArrayList<Future<IPv6Network>>();
+                    for (int j = 0; j < 100; j++)
+                    {
+                        futures.add(pool.allocate());
+                    }
+                    final List<IPv6Network> allocated = new ArrayList<IPv6Network>();
+                    for (Future<IPv6Network> future : futures)
+                    {
+                        allocated.add(future.get());
+                    }
+                    return allocated;
+                }
+            }));
+        }
+
+        final Set<IPv6Network> allocated = new HashSet<IPv6Network>();
+        for (Future<List<IPv6Network>> result : results)
+        {
+            allocated.addAll(result.get());
+        }
+        executor.shutdown();
+
+        assertEquals(800, allocated.size());
+        for (IPv6Network network : allocated)
+        {
+            assertFalse(pool.getPool().isFree(network));
+        }
+        assertTrue(pool.getBatches() + " batches", pool.getBatches() < 800 / 4);
+        pool.close();
+
+        // all allocations are durable
+        final IPv6AddressPoolJournal reopened = IPv6AddressPoolJournal.open(snapshot, journal, POOL, 1);
+        assertEquals(pool.getPool().getFreeRanges(), reopened.getPool().getFreeRanges());
+        reopened.close();
+    }
+
+    @Test
+    public void allocateAndDeAllocate() throws Exception
+    {
+        final BatchingIPv6AddressPool pool =
+                BatchingIPv6AddressPool.start(IPv6AddressPoolJournal.open(snapshot, journal, POOL, 16), 16, 0, TimeUnit.MILLISECONDS);
+
+        final IPv6Network network = IPv6Network.fromString("2001:db8:0:10::/64");
+        assertEquals(network, pool.allocate(network).get());
+        assertNull(pool.allocate(network).get());
+        assertFalse(pool.getPool().isFree(network));
+
+        pool.deAllocate(network).get();
+        assertTrue(pool.getPool().isFree(network));
+        pool.close();
+    }
+
+    @Test
+    public void invalidRequestFailsOnlyItself() throws Exception
+    {
+        final BatchingIPv6AddressPool pool =
+                BatchingIPv6AddressPool.start(IPv6AddressPoolJournal.open(snapshot, journal, POOL, 16), 16, 10, TimeUnit.MILLISECONDS);
+
+        final Future<Void> invalid = pool.deAllocate(IPv6Network.fromString("2001:db8:1::/64"));
+        final Future<IPv6Network> valid = pool.allocate();
+        try
+        {
+            invalid.get();
+            fail("de-allocating a network outside of the pool should fail");
+        } catch (ExecutionException e)
+        {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+        assertNotNull(valid.get());
+        pool.close();
+    }
+
+    @Test
+    public void unexpectedExceptionFailsAllRequests() throws Exception
+    {
+        // batches of two requests
+        final BatchingIPv6AddressPool pool =
+                BatchingIPv6AddressPool.start(IPv6AddressPoolJournal.open(snapshot, journal, POOL, 16), 2, 10, TimeUnit.SECONDS);
+
+        final Future<IPv6Network> sameBatch = pool.allocate();
+        final Future<Void> unexpected = pool.submit(new BatchingIPv6AddressPool.Request<Void>()
+        {
+            @Override
+            Void execute(IPv6AddressPoolJournal journal)
+            {
+                throw new UnsupportedOperationException("not an IllegalArgumentException");
+            }
+        });
+        try
+        {
+            unexpected.get(10, TimeUnit.SECONDS);
+            fail("the request should fail");
+        } catch (ExecutionException e)
+        {
+            assertTrue(e.getCause() instanceof UnsupportedOperationException);
+        }
+        try
+        {
+            sameBatch.get(10, TimeUnit.SECONDS);
+            fail("the batch should fail");
+        } catch (ExecutionException e)
+        {
+            // expected
+        }
+        try
+        {
+            pool.allocate().get(10, TimeUnit.SECONDS);
+            fail("the pool should be failed");
+        } catch (ExecutionException e)
+        {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        try
+        {
+            pool.close();
+            fail("closing a failed pool should fail");
+        } catch (IOException e)
+        {
+            assertTrue(e.getCause() instanceof UnsupportedOperationException);
+        }
+
+        // the allocation of the failed batch is not durable
+        final IPv6AddressPoolJournal reopened = IPv6AddressPoolJournal.open(snapshot, journal, POOL, 1);
+        assertEquals(POOL.freeCount(), reopened.getPool().freeCount());
+        reopened.close();
+    }
+
+    @Test
+    public void nullNetworksAreRejectedWhenSubmitted() throws Exception
+    {
+        final BatchingIPv6AddressPool pool =
+                BatchingIPv6AddressPool.start(IPv6AddressPoolJournal.open(snapshot, journal, POOL, 16), 16, 0, TimeUnit.MILLISECONDS);
+        try
+        {
+            pool.allocate(null);
+            fail("allocating null should fail");
+        } catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+        try
+        {
+            pool.deAllocate(null);
+            fail("de-allocating null should fail");
+        } catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+
+        // the pool is still usable
+        assertNotNull(pool.allocate().get());
+        pool.close();
+    }
+
+    @Test
+    public void requestsAfterCloseFail() throws IOException, InterruptedException
+    {
+        final BatchingIPv6AddressPool pool =
+                BatchingIPv6AddressPool.start(IPv6AddressPoolJournal.open(snapshot, journal, POOL, 16), 16, 0, TimeUnit.MILLISECONDS);
+        final Future<IPv6Network> beforeClose = pool.allocate();
+        pool.close();
+        assertTrue(beforeClose.isDone());
+
+        try
+        {
+            pool.allocate().get();
+            fail("allocating from a closed pool should fail");
+        } catch (ExecutionException e)
+        {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+}
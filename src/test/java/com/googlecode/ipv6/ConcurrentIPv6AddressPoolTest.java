@@ -0,0 +1,179 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.googlecode.ipv6.IPv6Address.fromString;
+import static org.junit.Assert.*;
+
+/**
+ * @author Jan Van Besien
+ */
+public class ConcurrentIPv6AddressPoolTest
+{
+    private static final IPv6AddressRange RANGE = IPv6AddressRange.fromFirstAndLast(fromString("2001::"), fromString("2001::ffff"));
+
+    private static final IPv6NetworkMask SUBNET_SIZE = IPv6NetworkMask.fromPrefixLength(120);
+
+    @Test
+    public void splitInStripes()
+    {
+        final ConcurrentIPv6AddressPool pool = ConcurrentIPv6AddressPool.fromPool(IPv6AddressPool.fromRangeAndSubnet(RANGE, SUBNET_SIZE), 4);
+        assertEquals(4, pool.getNumberOfStripes());
+
+        // stripes contain a power of two number of subnets
+        final ConcurrentIPv6AddressPool unevenStripes =
+                ConcurrentIPv6AddressPool.fromPool(IPv6AddressPool.fromRangeAndSubnet(RANGE, SUBNET_SIZE), 3);
+        assertEquals(2, unevenStripes.getNumberOfStripes());
+
+        final ConcurrentIPv6AddressPool tooManyStripes =
+                ConcurrentIPv6AddressPool.fromPool(IPv6AddressPool.fromRangeAndSubnet(RANGE, SUBNET_SIZE), 1000);
+        assertEquals(256, tooManyStripes.getNumberOfStripes());
+    }
+
+    @Test
+    public void allocateFromSingleThreadStealsFromAllStripes()
+    {
+        final ConcurrentIPv6AddressPool pool = ConcurrentIPv6AddressPool.fromPool(IPv6AddressPool.fromRangeAndSubnet(RANGE, SUBNET_SIZE), 8);
+
+        final Set<IPv6Network> allocated = new HashSet<IPv6Network>();
+        IPv6Network network;
+        while ((network = pool.allocate()) != null)
+        {
+            assertTrue("allocated twice " + network, allocated.add(network));
+            assertFalse(pool.isFree(network));
+        }
+
+        assertEquals(256, allocated.size());
+        assertTrue(pool.isExhausted());
+        assertTrue(pool.snapshot().isExhausted());
+
+        for (IPv6Network toDeAllocate : allocated)
+        {
+            pool.deAllocate(toDeAllocate);
+        }
+
+        assertFalse(pool.isExhausted());
+        assertEquals(IPv6AddressPool.fromRangeAndSubnet(RANGE, SUBNET_SIZE), pool.snapshot());
+    }
+
+    @Test
+    public void allocateFromManyThreads() throws Exception
+    {
+        final ConcurrentIPv6AddressPool pool = ConcurrentIPv6AddressPool.fromPool(IPv6AddressPool.fromRangeAndSubnet(
+                IPv6AddressRange.fromFirstAndLast(fromString("2001::"), fromString("2001::ffff")), IPv6NetworkMask.fromPrefixLength(128)),
+                                                                                  16);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try
+        {
+            final List<Future<List<IPv6Network>>> results = new ArrayList<Future<List<IPv6Network>>>();
+            for (int i = 0; i < 8; i++)
+            {
+                results.add(executor.submit(new Callable<List<IPv6Network>>()
+                {
+                    @Override
+                    public List<IPv6Network> call()
+                    {
+                        final List<IPv6Network> allocated = new ArrayList<IPv6Network>();
+                        int count = 0;
+                        IPv6Network network;
+                        while ((network = pool.allocate()) != null)
+                        {
+                            // give back every third network (to be allocated again later on, maybe by another thread)
+                            if (++count % 3 == 0)
+                                pool.deAllocate(network);
+                            else
+                                allocated.add(network);
+                        }
+                        return allocated;
+                    }
+                }));
+            }
+
+            final Set<IPv6Network> allAllocated = new HashSet<IPv6Network>();
+            for (Future<List<IPv6Network>> result : results)
+            {
+                for (IPv6Network network : result.get())
+                {
+                    assertTrue("allocated twice " + network, allAllocated.add(network));
+                }
+            }
+
+            assertEquals(0x10000, allAllocated.size());
+            assertTrue(pool.snapshot().isExhausted());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void snapshotOfPartiallyAllocatedPool()
+    {
+        final IPv6AddressPool original = IPv6AddressPool.fromRangeAndSubnetWithAllocations(
+                RANGE, SUBNET_SIZE, Arrays.asList(IPv6Network.fromString("2001::100/120"), IPv6Network.fromString("2001::7f00/120"),
+                                                  IPv6Network.fromString("2001::8000/120")));
+
+        final ConcurrentIPv6AddressPool pool = ConcurrentIPv6AddressPool.fromPool(original, 4);
+        assertEquals(original, pool.snapshot());
+
+        assertFalse(pool.allocate(IPv6Network.fromString("2001::7f00/120")));
+        assertTrue(pool.allocate(IPv6Network.fromString("2001::7e00/120")));
+        assertFalse(pool.snapshot().isFree(IPv6Network.fromString("2001::7e00/120")));
+        assertTrue(pool.snapshot().isFree(IPv6Network.fromString("2001::8100/120")));
+    }
+
+    @Test
+    public void allocateAndDeAllocateInBatch()
+    {
+        final ConcurrentIPv6AddressPool pool = ConcurrentIPv6AddressPool.fromPool(IPv6AddressPool.fromRangeAndSubnet(RANGE, SUBNET_SIZE), 8);
+
+        final List<IPv6Network> batch = pool.allocate(100);
+        assertEquals(100, batch.size());
+        assertEquals(100, new HashSet<IPv6Network>(batch).size());
+        assertEquals(156, pool.allocate(1000).size());
+        assertTrue(pool.isExhausted());
+
+        pool.deAllocate(batch);
+        assertEquals(100, pool.allocate(1000).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void deAllocateOutOfRange()
+    {
+        ConcurrentIPv6AddressPool.fromRangeAndSubnet(RANGE, SUBNET_SIZE).deAllocate(IPv6Network.fromString("2002::/120"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void allocateWrongSize()
+    {
+        ConcurrentIPv6AddressPool.fromRangeAndSubnet(RANGE, SUBNET_SIZE).allocate(IPv6Network.fromString("2001::/124"));
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.googlecode.ipv6.IPv6Address.fromString;
+import static org.junit.Assert.*;
+
+/**
+ * @author Jan Van Besien
+ */
+public class ConcurrentIPv6NetworkTrieTest
+{
+    @Test
+    public void batchOfUpdates()
+    {
+        final ConcurrentIPv6NetworkTrie<String> trie = new ConcurrentIPv6NetworkTrie<String>();
+        assertTrue(trie.isEmpty());
+
+        trie.apply(trie.batch()
+                           .put(IPv6Network.fromString("::/0"), "default")
+                           .put(IPv6Network.fromString("2001:db8::/32"), "documentation")
+                           .put(IPv6Network.fromString("2001:db8:1::/48"), "site")
+                           .put(IPv6Network.fromString("2001:db8:1::1/128"), "host")
+                           .remove(IPv6Network.fromString("2001:db8:1::/48"))
+                           .put(IPv6Network.fromString("2001:db8::/32"), "doc"));
+
+        assertEquals(3, trie.size());
+        assertEquals("doc", trie.get(IPv6Network.fromString("2001:db8::/32")));
+        assertNull(trie.get(IPv6Network.fromString("2001:db8:1::/48")));
+        assertEquals("host", trie.longestMatch(fromString("2001:db8:1::1")));
+        assertEquals("doc", trie.longestMatch(fromString("2001:db8:1::2")));
+        assertEquals("default", trie.longestMatch(fromString("fe80::1")));
+        assertEquals(Arrays.asList("default", "doc", "host"), trie.allMatches(fromString("2001:db8:1::1")));
+
+        trie.remove(IPv6Network.fromString("::/0"));
+        trie.remove(IPv6Network.fromString("::/0"));
+        trie.put(IPv6Network.fromString("2001:db8:1::/48"), "site");
+        assertEquals(3, trie.size());
+        assertNull(trie.longestMatch(fromString("fe80::1")));
+        assertEquals("site", trie.longestMatch(fromString("2001:db8:1::2").getHighBits(), fromString("2001:db8:1::2").getLowBits()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void putNullValue()
+    {
+        final ConcurrentIPv6NetworkTrie<String> trie = new ConcurrentIPv6NetworkTrie<String>();
+        trie.batch().put(IPv6Network.fromString("2001:db8::/32"), null);
+    }
+
+    @Test
+    public void updateSharesUntouchedSubtrees()
+    {
+        final ConcurrentIPv6NetworkTrie<String> trie = new ConcurrentIPv6NetworkTrie<String>();
+        trie.apply(trie.batch()
+                           .put(IPv6Network.fromString("2001:db8::/32"), "documentation")
+                           .put(IPv6Network.fromString("fe80::/10"), "link local"));
+        final ConcurrentIPv6NetworkTrie.Node<String> before = trie.getRoot();
+
+        trie.put(IPv6Network.fromString("2001:db8:1::/48"), "site");
+        final ConcurrentIPv6NetworkTrie.Node<String> after = trie.getRoot();
+
+        assertNotSame(before, after);
+        assertNotSame(before.child(0), after.child(0));
+        assertSame(before.child(1), after.child(1));
+        assertNull(before.child(0).child(0)); // the previous version is not modified
+    }
+
+    @Test
+    public void randomBatchesMatchTrie()
+    {
+        final Random random = new Random(50);
+        for (int run = 0; run < 20; run++)
+        {
+            final IPv6NetworkTrie<Integer> reference = new IPv6NetworkTrie<Integer>();
+            final ConcurrentIPv6NetworkTrie<Integer> trie = new ConcurrentIPv6NetworkTrie<Integer>();
+            final List<IPv6Network> networks = randomNetworks(random, 300);
+
+            for (int i = 0; i < 200; i++)
+            {
+                final ConcurrentIPv6NetworkTrie.Batch<Integer> batch = trie.batch();
+                for (int j = random.nextInt(20); j >= 0; j--)
+                {
+                    final IPv6Network network = networks.get(random.nextInt(networks.size()));
+                    if (random.nextInt(3) == 0)
+                    {
+                        reference.remove(network);
+                        batch.remove(network);
+                    }
+                    else
+                    {
+                        reference.put(network, i * 100 + j);
+                        batch.put(network, i * 100 + j);
+                    }
+                }
+                trie.apply(batch);
+                assertEquals(reference.size(), trie.size());
+            }
+
+            for (IPv6Network network : networks)
+            {
+                assertEquals(reference.get(network), trie.get(network));
+
+                final IPv6Address address = randomAddressWithin(random, network);
+                assertEquals(reference.allMatches(address), trie.allMatches(address));
+                assertEquals(reference.longestMatch(address), trie.longestMatch(address));
+            }
+        }
+    }
+
+    @Test
+    public void lookupsDuringUpdates() throws Exception
+    {
+        final ConcurrentIPv6NetworkTrie<String> trie = new ConcurrentIPv6NetworkTrie<String>();
+        trie.put(IPv6Network.fromString("2001:db8::/32"), "stable");
+
+        // networks which are added and removed while looking up addresses in them
+        final Random random = new Random(50);
+        final List<IPv6Network> networks = new ArrayList<IPv6Network>();
+        for (int i = 0; i < 100; i++)
+        {
+            networks.add(IPv6Network.fromAddressAndMask(fromString("2001:db8:8000::").add(random.nextInt(Integer.MAX_VALUE)),
+                                                        IPv6NetworkMask.fromPrefixLength(40 + random.nextInt(89))));
+        }
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final ExecutorService executor = Executors.newFixedThreadPool(3);
+        try
+        {
+            final List<Future<?>> readers = new ArrayList<Future<?>>();
+            for (int i = 0; i < 3; i++)
+            {
+                readers.add(executor.submit(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        final Random random = new Random();
+                        while (!done.get())
+                        {
+                            // always the stable network, outside of the changing ones
+                            assertEquals("stable", trie.longestMatch(fromString("2001:db8::").add(random.nextInt(Integer.MAX_VALUE))));
+
+                            // the stable network, or one of the changing ones
+                            final IPv6Network network = networks.get(random.nextInt(networks.size()));
+                            assertNotNull(trie.longestMatch(network.getFirst()));
+                        }
+                    }
+                }));
+            }
+
+            for (int i = 0; i < 2000; i++)
+            {
+                final ConcurrentIPv6NetworkTrie.Batch<String> batch = trie.batch();
+                for (int j = 0; j < 10; j++)
+                {
+                    final IPv6Network network = networks.get(random.nextInt(networks.size()));
+                    if (random.nextBoolean())
+                        batch.put(network, network.toString());
+                    else
+                        batch.remove(network);
+                }
+                trie.apply(batch);
+            }
+            done.set(true);
+
+            for (Future<?> reader : readers)
+            {
+                reader.get(); // fails if a lookup failed
+            }
+        } finally
+        {
+            done.set(true);
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void longestMatchDoesNotAllocate()
+    {
+        AllocationMeter.assumeSupported();
+
+        final Random random = new Random(50);
+        final ConcurrentIPv6NetworkTrie<Integer> trie = new ConcurrentIPv6NetworkTrie<Integer>();
+        final ConcurrentIPv6NetworkTrie.Batch<Integer> batch = trie.batch();
+        final List<IPv6Network> networks = randomNetworks(random, 1000);
+        for (int i = 0; i < networks.size(); i++)
+        {
+            batch.put(networks.get(i), i);
+        }
+        trie.apply(batch);
+        final IPv6Address[] addresses = new IPv6Address[64];
+        for (int i = 0; i < addresses.length; i++)
+        {
+            addresses[i] = randomAddressWithin(random, networks.get(i));
+        }
+
+        assertEquals(0, AllocationMeter.allocatedBytesPerRun(new Runnable()
+        {
+            private int i;
+
+            @Override
+            public void run()
+            {
+                if (trie.longestMatch(addresses[i++ & 63]) != null)
+                    matched++;
+            }
+        }));
+    }
+
+    /**
+     * Result of code of which allocations are measured, such that it can't be optimized away.
+     */
+    private int matched;
+
+    /**
+     * Random networks, nested in each other (by picking the prefixes of a few random addresses), with all kinds of prefix lengths.
+     */
+    private static List<IPv6Network> randomNetworks(Random random, int count)
+    {
+        final IPv6Address[] bases = new IPv6Address[8];
+        for (int i = 0; i < bases.length; i++)
+        {
+            bases[i] = IPv6Address.fromLongs(random.nextLong(), random.nextLong());
+        }
+
+        final List<IPv6Network> networks = new ArrayList<IPv6Network>();
+        for (int i = 0; i < count; i++)
+        {
+            IPv6Address address = bases[random.nextInt(bases.length)];
+            if (random.nextInt(4) == 0)
+                address = address.add(random.nextInt());
+            networks.add(IPv6Network.fromAddressAndMask(address, IPv6NetworkMask.fromPrefixLength(random.nextInt(129))));
+        }
+        return networks;
+    }
+
+    private static IPv6Address randomAddressWithin(Random random, IPv6Network network)
+    {
+        final IPv6Address mask = network.getNetmask().asAddress();
+        return IPv6Address.fromLongs(network.getFirst().getHighBits() | (random.nextLong() & ~mask.getHighBits()),
+                                     network.getFirst().getLowBits() | (random.nextLong() & ~mask.getLowBits()));
+    }
+}
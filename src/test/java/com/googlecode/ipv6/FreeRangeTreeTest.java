@@ -0,0 +1,364 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static com.googlecode.ipv6.IPv6Address.fromString;
+import static org.junit.Assert.*;
+
+/**
+ * @author Jan Van Besien
+ */
+public class FreeRangeTreeTest
+{
+    private static final IPv6Address MIN = fromString("::");
+
+    private static final IPv6NetworkMask SINGLE = IPv6NetworkMask.fromPrefixLength(128);
+
+    private static final IPv6AddressRange RANGE = IPv6AddressRange.fromFirstAndLast(fromString("2001::"), fromString("2001::ffff"));
+
+    @Test
+    public void randomChurnMatchesReference()
+    {
+        final Random random = new Random(31);
+        final BitSet reference = new BitSet();
+        reference.set(0, 1 << 16);
+        FreeRangeTree tree = FreeRangeTree.fromRanges(SINGLE, Collections.singletonList(RANGE));
+
+        for (int i = 0; i < 20000; i++)
+        {
+            // allocate and free small ranges, concentrated in a part of the range to get dense regions
+            final int first = random.nextInt(1 << 12) + (i % 2 == 0 ? 0 : random.nextInt(1 << 14));
+            final int last = first + (random.nextInt(8) == 0 ? random.nextInt(200) : 0);
+            final IPv6AddressRange range = IPv6AddressRange.fromFirstAndLast(RANGE.getFirst().add(first), RANGE.getFirst().add(last));
+            if (random.nextBoolean())
+            {
+                tree = tree.allocate(range);
+                reference.clear(first, last + 1);
+            }
+            else
+            {
+                tree = tree.free(range);
+                reference.set(first, last + 1);
+            }
+
+            final int probe = random.nextInt(1 << 16);
+            assertEquals(reference.get(probe), tree.isFree(RANGE.getFirst().add(probe)));
+            final int after = reference.nextSetBit(probe);
+            assertEquals(after < 0 ? null : RANGE.getFirst().add(after), tree.firstFreeFrom(RANGE.getFirst().add(probe)));
+            final int before = reference.previousSetBit(probe);
+            assertEquals(before < 0 ? null : RANGE.getFirst().add(before), tree.lastFreeUpTo(RANGE.getFirst().add(probe)));
+
+            if (i % 1000 == 0)
+            {
+                tree.checkStructure();
+                assertEquals(rangesOf(reference), tree.toRanges());
+                assertEquals(RANGE.getFirst().add(reference.length() - 1), tree.last());
+                assertEquals(RANGE.getFirst().add(firstOfShortestRange(reference)), tree.firstOfShortestRange());
+                assertEquals(longestRange(reference), tree.longestRange());
+                assertEquals(BigInteger.valueOf(reference.cardinality()), tree.count());
+                for (int j = 0; j < 100; j++)
+                {
+                    final int from = random.nextInt(1 << 16);
+                    final int to = Math.min(from + random.nextInt(1 << 12), (1 << 16) - 1);
+                    assertEquals(BigInteger.valueOf(reference.get(from, to + 1).cardinality()),
+                                 tree.countWithin(IPv6AddressRange.fromFirstAndLast(RANGE.getFirst().add(from), RANGE.getFirst().add(to))));
+                }
+                for (int j = 0; j < 100; j++)
+                {
+                    assertTrue(tree.isFree(tree.random(random)));
+                }
+            }
+        }
+
+        tree.checkStructure();
+        assertEquals(rangesOf(reference), tree.toRanges());
+        assertEquals(RANGE.getFirst().add(reference.nextSetBit(0)), tree.first());
+
+        int expected = reference.nextSetBit(0);
+        final Iterator<IPv6Address> freeSubnets = tree.freeSubnets();
+        while (freeSubnets.hasNext())
+        {
+            assertEquals(RANGE.getFirst().add(expected), freeSubnets.next());
+            expected = reference.nextSetBit(expected + 1);
+        }
+        assertEquals(-1, expected);
+    }
+
+    @Test
+    public void denseRegionsAreStoredAsBitmaps()
+    {
+        // every other subnet free: 512 ranges, in 16 chunks of 64 subnets
+        final List<IPv6AddressRange> alternating = new ArrayList<IPv6AddressRange>();
+        for (int i = 0; i < 1024; i += 2)
+        {
+            alternating.add(IPv6AddressRange.fromFirstAndLast(RANGE.getFirst().add(i), RANGE.getFirst().add(i)));
+        }
+
+        FreeRangeTree tree = FreeRangeTree.fromRanges(SINGLE, alternating);
+        tree.checkStructure();
+        assertEquals(16, tree.numberOfSegments());
+        assertEquals(alternating, tree.toRanges());
+
+        // make the first chunk sparse, it is converted back to ranges
+        tree = tree.allocate(IPv6AddressRange.fromFirstAndLast(RANGE.getFirst(), RANGE.getFirst().add(57)));
+        tree.checkStructure();
+        assertEquals(15 + 3, tree.numberOfSegments());
+
+        // free everything, a single range remains
+        tree = tree.free(IPv6AddressRange.fromFirstAndLast(RANGE.getFirst(), RANGE.getFirst().add(1023)));
+        tree.checkStructure();
+        assertEquals(1, tree.numberOfSegments());
+        assertEquals(Collections.singletonList(IPv6AddressRange.fromFirstAndLast(RANGE.getFirst(), RANGE.getFirst().add(1023))),
+                     tree.toRanges());
+    }
+
+    @Test
+    public void boundariesOfTheAddressSpace()
+    {
+        final IPv6AddressRange everything = IPv6AddressRange.fromFirstAndLast(MIN, IPv6Address.MAX);
+        FreeRangeTree tree = FreeRangeTree.fromRanges(SINGLE, Collections.singletonList(everything));
+
+        for (int i = 0; i < 8; i += 2)
+        {
+            tree = tree.allocate(IPv6AddressRange.fromFirstAndLast(MIN.add(i), MIN.add(i)));
+            tree = tree.allocate(IPv6AddressRange.fromFirstAndLast(IPv6Address.MAX.subtract(i), IPv6Address.MAX.subtract(i)));
+        }
+        tree.checkStructure();
+        assertFalse(tree.isFree(MIN));
+        assertTrue(tree.isFree(MIN.add(1)));
+        assertFalse(tree.isFree(IPv6Address.MAX));
+        assertTrue(tree.isFree(IPv6Address.MAX.subtract(1)));
+        assertEquals(MIN.add(1), tree.first());
+
+        for (int i = 0; i < 8; i += 2)
+        {
+            tree = tree.free(IPv6AddressRange.fromFirstAndLast(MIN.add(i), MIN.add(i)));
+            tree = tree.free(IPv6AddressRange.fromFirstAndLast(IPv6Address.MAX.subtract(i), IPv6Address.MAX.subtract(i)));
+        }
+        tree.checkStructure();
+        assertEquals(Collections.singletonList(everything), tree.toRanges());
+        assertEquals(MIN, tree.firstOfShortestRange());
+        assertEquals(everything, tree.longestRange());
+        assertEquals(BigInteger.ONE.shiftLeft(128), tree.count());
+        assertEquals(BigInteger.valueOf(16), tree.countWithin(IPv6Network.fromString("2001::/124")));
+        assertEquals(IPv6Address.MAX, tree.last());
+        assertNotNull(tree.random(new Random(1)));
+
+        // a single subnet which spans the whole address space
+        final IPv6NetworkMask all = IPv6NetworkMask.fromPrefixLength(0);
+        final FreeRangeTree single = FreeRangeTree.fromRanges(all, Collections.singletonList(everything));
+        assertTrue(single.allocate(everything).isEmpty());
+        assertEquals(Collections.singletonList(everything), single.allocate(everything).free(everything).toRanges());
+    }
+
+    @Test
+    public void lastChunksOfTheAddressSpace()
+    {
+        final IPv6Address first = IPv6Address.MAX.subtract(255);
+        FreeRangeTree tree = FreeRangeTree.fromRanges(SINGLE, Collections.singletonList(IPv6AddressRange.fromFirstAndLast(first,
+                                                                                                                        IPv6Address.MAX)));
+        final BitSet free = new BitSet();
+        free.set(0, 256);
+
+        // fragment the last two chunks, then update the second to last chunk (of which the neighbourhood ends at the end of the space)
+        final int[] allocated = {0xc1, 0xc3, 0xc5, 0xc7, 0x81, 0x83, 0x85, 0x87, 0x90};
+        for (int offset : allocated)
+        {
+            tree = tree.allocate(IPv6AddressRange.fromFirstAndLast(first.add(offset), first.add(offset)));
+            free.clear(offset);
+            assertEquals(BigInteger.valueOf(free.cardinality()), tree.count());
+        }
+        assertFalse(tree.isFree(first.add(0x90)));
+
+        final Random random = new Random(31);
+        for (int i = 0; i < 2000; i++)
+        {
+            final int offset = 128 + random.nextInt(128);
+            final IPv6AddressRange subnet = IPv6AddressRange.fromFirstAndLast(first.add(offset), first.add(offset));
+            if (random.nextBoolean())
+            {
+                tree = tree.allocate(subnet);
+                free.clear(offset);
+            }
+            else
+            {
+                tree = tree.free(subnet);
+                free.set(offset);
+            }
+            assertEquals(BigInteger.valueOf(free.cardinality()), tree.count());
+            assertEquals(free.get(offset), tree.isFree(first.add(offset)));
+        }
+        tree.checkStructure();
+    }
+
+    @Test
+    public void equalSetsHaveEqualTrees()
+    {
+        final Random random = new Random(7);
+        FreeRangeTree tree = FreeRangeTree.fromRanges(SINGLE, Collections.singletonList(RANGE));
+        for (int i = 0; i < 2000; i++)
+        {
+            final IPv6Address address = RANGE.getFirst().add(random.nextInt(1 << 10));
+            tree = tree.allocate(IPv6AddressRange.fromFirstAndLast(address, address));
+        }
+
+        final FreeRangeTree rebuilt = FreeRangeTree.fromRanges(SINGLE, tree.toRanges());
+        assertEquals(tree, rebuilt);
+        assertEquals(tree.hashCode(), rebuilt.hashCode());
+        assertFalse(tree.equals(tree.free(RANGE)));
+    }
+
+    @Test
+    public void diffAndApplyMatchReference()
+    {
+        final Random random = new Random(40);
+        final BitSet reference = new BitSet();
+        reference.set(0, 1 << 16);
+        FreeRangeTree tree = FreeRangeTree.fromRanges(SINGLE, Collections.singletonList(RANGE));
+
+        for (int i = 0; i < 200; i++)
+        {
+            final FreeRangeTree older = tree;
+            final BitSet olderReference = (BitSet) reference.clone();
+            for (int j = random.nextInt(20); j >= 0; j--)
+            {
+                final int first = random.nextInt(1 << 12) + (j % 2 == 0 ? 0 : random.nextInt(1 << 14));
+                final int last = first + (random.nextInt(8) == 0 ? random.nextInt(200) : 0);
+                final IPv6AddressRange range = IPv6AddressRange.fromFirstAndLast(RANGE.getFirst().add(first), RANGE.getFirst().add(last));
+                if (random.nextBoolean())
+                {
+                    tree = tree.allocate(range);
+                    reference.clear(first, last + 1);
+                }
+                else
+                {
+                    tree = tree.free(range);
+                    reference.set(first, last + 1);
+                }
+            }
+
+            final BitSet allocated = (BitSet) olderReference.clone();
+            allocated.andNot(reference);
+            final BitSet released = (BitSet) reference.clone();
+            released.andNot(olderReference);
+
+            // versions which share structure, and versions which don't, give the same result
+            final long[][] diff = older.diff(tree);
+            assertEquals(allocated, bitsOf(diff[0]));
+            assertEquals(released, bitsOf(diff[1]));
+            final long[][] unshared = FreeRangeTree.fromRanges(SINGLE, older.toRanges()).diff(tree);
+            assertEquals(allocated, bitsOf(unshared[0]));
+            assertEquals(released, bitsOf(unshared[1]));
+
+            final FreeRangeTree applied = older.apply(diff[0], diff[1]);
+            applied.checkStructure();
+            assertEquals(tree, applied);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void applyAllocatingSubnetsWhichAreNotFree()
+    {
+        final FreeRangeTree older = FreeRangeTree.fromRanges(SINGLE, Collections.singletonList(RANGE));
+        final FreeRangeTree newer = older.allocate(IPv6AddressRange.fromFirstAndLast(RANGE.getFirst(), RANGE.getFirst().add(10)));
+        final long[][] diff = older.diff(newer);
+        newer.apply(diff[0], diff[1]);
+    }
+
+    @Test
+    public void randomIsUniform()
+    {
+        // free ranges of 1 and 3 subnets, one of which is in a bitmap
+        final List<IPv6AddressRange> free = new ArrayList<IPv6AddressRange>();
+        for (int i = 0; i < 8; i += 2)
+        {
+            free.add(IPv6AddressRange.fromFirstAndLast(RANGE.getFirst().add(i), RANGE.getFirst().add(i)));
+        }
+        free.add(IPv6AddressRange.fromFirstAndLast(RANGE.getFirst().add(100), RANGE.getFirst().add(102)));
+        final FreeRangeTree tree = FreeRangeTree.fromRanges(SINGLE, free);
+
+        final Random random = new Random(3);
+        final int[] counts = new int[103];
+        for (int i = 0; i < 7000; i++)
+        {
+            counts[(int) tree.random(random).getLowBits()]++;
+        }
+        for (int i : new int[]{0, 2, 4, 6, 100, 101, 102})
+        {
+            assertTrue("count " + counts[i] + " for " + i, counts[i] > 850 && counts[i] < 1150);
+        }
+    }
+
+    private static IPv6AddressRange longestRange(BitSet free)
+    {
+        IPv6AddressRange result = null;
+        for (IPv6AddressRange range : rangesOf(free))
+        {
+            if (result == null || range.size().compareTo(result.size()) > 0)
+                result = range;
+        }
+        return result;
+    }
+
+    private static int firstOfShortestRange(BitSet free)
+    {
+        int result = -1;
+        int shortest = Integer.MAX_VALUE;
+        for (int first = free.nextSetBit(0); first >= 0; first = free.nextSetBit(free.nextClearBit(first)))
+        {
+            final int length = free.nextClearBit(first) - first;
+            if (length < shortest)
+            {
+                shortest = length;
+                result = first;
+            }
+        }
+        return result;
+    }
+
+    private static List<IPv6AddressRange> rangesOf(BitSet free)
+    {
+        final List<IPv6AddressRange> ranges = new ArrayList<IPv6AddressRange>();
+        for (int first = free.nextSetBit(0); first >= 0; first = free.nextSetBit(first))
+        {
+            final int last = free.nextClearBit(first) - 1;
+            ranges.add(IPv6AddressRange.fromFirstAndLast(RANGE.getFirst().add(first), RANGE.getFirst().add(last)));
+            first = last + 1;
+        }
+        return ranges;
+    }
+
+    private static BitSet bitsOf(long[] runs)
+    {
+        final BitSet bits = new BitSet();
+        for (int i = 0; i < runs.length; i += 4)
+        {
+            bits.set((int) (runs[i + 1] - RANGE.getFirst().getLowBits()), (int) (runs[i + 3] - RANGE.getFirst().getLowBits()) + 1);
+        }
+        return bits;
+    }
+}
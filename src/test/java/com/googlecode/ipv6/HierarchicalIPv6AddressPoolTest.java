@@ -0,0 +1,212 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static com.googlecode.ipv6.IPv6Address.fromString;
+import static org.junit.Assert.*;
+
+/**
+ * @author Jan Van Besien
+ */
+public class HierarchicalIPv6AddressPoolTest
+{
+    private static final IPv6Network ROOT = IPv6Network.fromString("2001:db8::/32");
+
+    @Test
+    public void delegateOnEveryLevel()
+    {
+        final HierarchicalIPv6AddressPool pool = HierarchicalIPv6AddressPool.fromNetworkAndPrefixLengths(ROOT, 40, 48, 56);
+        assertEquals(BigInteger.ONE.shiftLeft(24), pool.freeCount(ROOT));
+
+        final IPv6Network region = pool.allocate(ROOT);
+        assertEquals(IPv6Network.fromString("2001:db8::/40"), region);
+        final IPv6Network site = pool.allocate(region);
+        assertEquals(IPv6Network.fromString("2001:db8::/48"), site);
+        final IPv6Network customer = pool.allocate(site, IPv6Network.fromString("2001:db8:0:1200::/56"));
+        assertEquals(IPv6Network.fromString("2001:db8:0:1200::/56"), customer);
+        assertNull(pool.allocate(site, IPv6Network.fromString("2001:db8:0:1200::/56")));
+
+        // only the customer delegation changes the free counts (on all levels above it)
+        assertEquals(BigInteger.ONE.shiftLeft(24).subtract(BigInteger.ONE), pool.freeCount(ROOT));
+        assertEquals(BigInteger.valueOf(0xffff), pool.freeCount(region));
+        assertEquals(BigInteger.valueOf(0xff), pool.freeCount(site));
+        assertEquals(BigInteger.ZERO, pool.freeCount(customer));
+        assertTrue(pool.isExhausted(customer));
+        assertFalse(pool.isExhausted(site));
+
+        assertEquals(Collections.singletonList(region), pool.getDelegations(ROOT));
+        assertEquals(Collections.singletonList(customer), pool.getDelegations(site));
+        assertTrue(pool.isDelegated(customer));
+        assertFalse(pool.isDelegated(IPv6Network.fromString("2001:db8:0:1300::/56")));
+        assertFalse(pool.isDelegated(IPv6Network.fromString("2001:db8::/44")));
+        assertFalse(pool.isDelegated(ROOT));
+    }
+
+    @Test
+    public void findDelegation()
+    {
+        final HierarchicalIPv6AddressPool pool = HierarchicalIPv6AddressPool.fromNetworkAndPrefixLengths(ROOT, 40, 48, 56);
+        final IPv6Network region = pool.allocate(ROOT);
+        final IPv6Network site = pool.allocate(region);
+        final IPv6Network customer = pool.allocate(site);
+
+        assertEquals(customer, pool.findDelegation(fromString("2001:db8::1")));
+        assertEquals(site, pool.findDelegation(fromString("2001:db8:0:100::1")));
+        assertEquals(region, pool.findDelegation(fromString("2001:db8:1::1")));
+        assertNull(pool.findDelegation(fromString("2001:db8:100::1")));
+        assertNull(pool.findDelegation(fromString("2001:db9::1")));
+    }
+
+    @Test
+    public void exhaustionRollsUp()
+    {
+        final HierarchicalIPv6AddressPool pool = HierarchicalIPv6AddressPool.fromNetworkAndPrefixLengths(ROOT, 34, 36);
+        final List<IPv6Network> regions = new ArrayList<IPv6Network>();
+        for (int i = 0; i < 4; i++)
+        {
+            regions.add(pool.allocate(ROOT));
+        }
+        assertNull(pool.allocate(ROOT));
+        assertFalse(pool.isExhausted(ROOT));
+
+        for (IPv6Network region : regions)
+        {
+            for (int i = 0; i < 4; i++)
+            {
+                assertNotNull(pool.allocate(region));
+            }
+            assertNull(pool.allocate(region));
+            assertTrue(pool.isExhausted(region));
+        }
+        assertTrue(pool.isExhausted(ROOT));
+
+        // releasing a customer frees a block on all levels above it
+        final IPv6Network customer = pool.getDelegations(regions.get(2)).get(1);
+        assertTrue(pool.release(customer));
+        assertFalse(pool.release(customer));
+        assertEquals(BigInteger.ONE, pool.freeCount(ROOT));
+        assertEquals(customer, pool.allocate(regions.get(2)));
+    }
+
+    @Test
+    public void releaseCoalescesIntoParent()
+    {
+        final HierarchicalIPv6AddressPool pool = HierarchicalIPv6AddressPool.fromNetworkAndPrefixLengths(ROOT, 40, 48, 56);
+        final IPv6Network region = pool.allocate(ROOT);
+        final IPv6Network site = pool.allocate(region);
+        for (int i = 0; i < 10; i++)
+        {
+            pool.allocate(site);
+        }
+        final IPv6Network otherSite = pool.allocate(region);
+        pool.allocate(otherSite);
+
+        // releasing a delegation releases everything within it
+        assertTrue(pool.release(site));
+        assertEquals(BigInteger.valueOf(0x10000 - 1), pool.freeCount(region));
+        assertFalse(pool.isDelegated(site));
+        assertEquals(region, pool.findDelegation(fromString("2001:db8::1")));
+        assertEquals(site, pool.allocate(region));
+
+        assertTrue(pool.release(region));
+        assertEquals(BigInteger.ONE.shiftLeft(24), pool.freeCount(ROOT));
+        assertEquals(Collections.<IPv6Network>emptyList(), pool.getDelegations(ROOT));
+        assertEquals(region, pool.allocate(ROOT));
+    }
+
+    @Test
+    public void randomChurnMatchesFreeCounts()
+    {
+        final Random random = new Random(37);
+        final HierarchicalIPv6AddressPool pool = HierarchicalIPv6AddressPool.fromNetworkAndPrefixLengths(ROOT, 36, 40, 44);
+        final List<IPv6Network> delegations = new ArrayList<IPv6Network>();
+
+        for (int i = 0; i < 5000; i++)
+        {
+            if (delegations.isEmpty() || random.nextInt(3) > 0)
+            {
+                final IPv6Network parent = delegations.isEmpty() || random.nextInt(4) == 0
+                                           ? ROOT
+                                           : delegations.get(random.nextInt(delegations.size()));
+                if (parent.getNetmask().asPrefixLength() < 44)
+                {
+                    final IPv6Network allocated = pool.allocate(parent);
+                    if (allocated != null)
+                        delegations.add(allocated);
+                }
+            }
+            else
+            {
+                final IPv6Network toRelease = delegations.get(random.nextInt(delegations.size()));
+                assertTrue(pool.release(toRelease));
+                for (int j = delegations.size() - 1; j >= 0; j--)
+                {
+                    if (toRelease.contains(delegations.get(j)))
+                        delegations.remove(j);
+                }
+            }
+        }
+
+        // the free count of the root equals all blocks of the last level minus the delegated ones
+        int customers = 0;
+        for (IPv6Network delegation : delegations)
+        {
+            assertTrue(pool.isDelegated(delegation));
+            assertTrue(delegation.contains(pool.findDelegation(delegation.getFirst())));
+            if (delegation.getNetmask().asPrefixLength() == 44)
+                customers++;
+        }
+        assertEquals(BigInteger.valueOf((1 << 12) - customers), pool.freeCount(ROOT));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void allocateFromLastLevel()
+    {
+        final HierarchicalIPv6AddressPool pool = HierarchicalIPv6AddressPool.fromNetworkAndPrefixLengths(ROOT, 40);
+        pool.allocate(pool.allocate(ROOT));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void allocateFromUnknownDelegation()
+    {
+        HierarchicalIPv6AddressPool.fromNetworkAndPrefixLengths(ROOT, 40, 48).allocate(IPv6Network.fromString("2001:db8::/40"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void prefixLengthsNotIncreasing()
+    {
+        HierarchicalIPv6AddressPool.fromNetworkAndPrefixLengths(ROOT, 48, 40);
+    }
+
+    @Test
+    public void prefixLengthsAreCopied()
+    {
+        final int[] prefixLengths = {40, 48};
+        final HierarchicalIPv6AddressPool pool = HierarchicalIPv6AddressPool.fromNetworkAndPrefixLengths(ROOT, prefixLengths);
+        prefixLengths[0] = 36;
+        assertTrue(Arrays.equals(new int[]{40, 48}, pool.getPrefixLengths()));
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Jan Van Besien
+ */
+public class IPv6AddressPoolChangesetTest
+{
+    private static final IPv6AddressPool POOL = IPv6AddressPool.fromRangeAndSubnet(IPv6Network.fromString("2001:db8::/48"),
+                                                                                   IPv6NetworkMask.fromPrefixLength(64));
+
+    @Test
+    public void followerStaysInSyncWithLeader() throws IOException, ClassNotFoundException
+    {
+        final Random random = new Random(40);
+        final List<IPv6Network> allocated = new ArrayList<IPv6Network>();
+        IPv6AddressPool leader = POOL;
+        IPv6AddressPool follower = POOL;
+
+        for (int i = 0; i < 100; i++)
+        {
+            final IPv6AddressPool published = leader;
+            for (int j = 0; j < 50; j++)
+            {
+                if (allocated.isEmpty() || random.nextInt(3) > 0)
+                {
+                    leader = leader.allocate(IPv6AddressPool.AllocationStrategy.RANDOM, random);
+                    allocated.add(leader.getLastAllocated());
+                }
+                else
+                {
+                    leader = leader.deAllocate(allocated.remove(random.nextInt(allocated.size())));
+                }
+            }
+
+            // ship the changes (serialized) to the follower
+            follower = follower.apply(serializeAndDeserialize(IPv6AddressPoolChangeset.diff(published, leader)));
+            follower.checkInvariants();
+            assertEquals(leader, follower);
+        }
+    }
+
+    @Test
+    public void allocatedAndReleasedNetworks()
+    {
+        final IPv6AddressPool older = POOL.allocate(IPv6Network.fromString("2001:db8:0:1::/64"));
+        final IPv6AddressPool newer = older.allocate(IPv6Network.fromString("2001:db8:0:2::/64"))
+                .allocate(IPv6Network.fromString("2001:db8:0:3::/64"))
+                .deAllocate(IPv6Network.fromString("2001:db8:0:1::/64"));
+
+        final IPv6AddressPoolChangeset changeset = IPv6AddressPoolChangeset.diff(older, newer);
+        assertFalse(changeset.isEmpty());
+        assertEquals(Arrays.asList(IPv6Network.fromString("2001:db8:0:2::/63")), changeset.getAllocated());
+        assertEquals(Arrays.asList(IPv6Network.fromString("2001:db8:0:1::/64")), changeset.getReleased());
+
+        // the reverse changeset undoes the changes
+        final IPv6AddressPoolChangeset reverse = IPv6AddressPoolChangeset.diff(newer, older);
+        assertEquals(changeset.getAllocated(), reverse.getReleased());
+        assertEquals(changeset.getReleased(), reverse.getAllocated());
+        assertEquals(older.getFreeRanges(), newer.apply(reverse).getFreeRanges());
+    }
+
+    @Test
+    public void noChanges()
+    {
+        final IPv6AddressPool pool = POOL.allocate().allocate();
+        assertTrue(IPv6AddressPoolChangeset.diff(pool, pool).isEmpty());
+        assertTrue(IPv6AddressPoolChangeset.diff(pool, POOL.allocate().allocate()).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void applyToPoolWhichIsNotInSync()
+    {
+        final IPv6AddressPoolChangeset changeset = IPv6AddressPoolChangeset.diff(POOL, POOL.allocate());
+        POOL.allocate().apply(changeset);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void applyToOtherPool()
+    {
+        final IPv6AddressPoolChangeset changeset = IPv6AddressPoolChangeset.diff(POOL, POOL.allocate());
+        IPv6AddressPool.fromRangeAndSubnet(IPv6Network.fromString("2001:db8:1::/48"), IPv6NetworkMask.fromPrefixLength(64))
+                .apply(changeset);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void diffOfOtherPools()
+    {
+        IPv6AddressPoolChangeset.diff(POOL, IPv6AddressPool.fromRangeAndSubnet(IPv6Network.fromString("2001:db8::/48"),
+                                                                              IPv6NetworkMask.fromPrefixLength(56)));
+    }
+
+    @Test(expected = InvalidObjectException.class)
+    public void deserializeOverlappingRuns() throws IOException, ClassNotFoundException
+    {
+        final IPv6AddressPool newer = POOL.allocate(IPv6Network.fromString("2001:db8:0:1::/64"))
+                .allocate(IPv6Network.fromString("2001:db8:0:3::/64"));
+        final IPv6AddressPoolChangeset changeset = IPv6AddressPoolChangeset.diff(POOL, newer);
+        final long[] runs = changeset.getAllocatedRuns();
+        assertEquals(8, runs.length);
+
+        // let the second run start on the last subnet of the first run
+        runs[4] = runs[2];
+        runs[5] = runs[3];
+        serializeAndDeserialize(changeset);
+    }
+
+    private static IPv6AddressPoolChangeset serializeAndDeserialize(IPv6AddressPoolChangeset changeset)
+            throws IOException, ClassNotFoundException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(changeset);
+        out.close();
+        return (IPv6AddressPoolChangeset) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+    }
+}
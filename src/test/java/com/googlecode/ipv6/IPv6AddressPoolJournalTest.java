@@ -0,0 +1,315 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Jan Van Besien
+ */
+public class IPv6AddressPoolJournalTest
+{
+    private static final IPv6AddressPool POOL = IPv6AddressPool.fromRangeAndSubnet(IPv6Network.fromString("2001:db8::/48"),
+                                                                                   IPv6NetworkMask.fromPrefixLength(64));
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File snapshot;
+
+    private File journal;
+
+    @Before
+    public void files()
+    {
+        snapshot = new File(folder.getRoot(), "pool.snapshot");
+        journal = new File(folder.getRoot(), "pool.journal");
+    }
+
+    @Test
+    public void replayAfterReopen() throws IOException
+    {
+        final IPv6AddressPoolJournal first = IPv6AddressPoolJournal.open(snapshot, journal, POOL, 16);
+        for (int i = 0; i < 100; i++)
+        {
+            first.allocate();
+        }
+        first.deAllocate(IPv6Network.fromString("2001:db8:0:10::/64"));
+        assertNull(first.allocate(IPv6Network.fromString("2001:db8:0:11::/64")));
+        assertNotNull(first.allocate(IPv6Network.fromString("2001:db8:0:1000::/64")));
+        first.close();
+
+        final IPv6AddressPoolJournal second = IPv6AddressPoolJournal.open(snapshot, journal, POOL, 16);
+        assertEquals(first.getPool().getFreeRanges(), second.getPool().getFreeRanges());
+        second.close();
+    }
+
+    @Test
+    public void checkpoint() throws IOException
+    {
+        final IPv6AddressPoolJournal first = IPv6AddressPoolJournal.open(snapshot, journal, POOL, 1);
+        for (int i = 0; i < 100; i++)
+        {
+            first.allocate();
+        }
+        first.checkpoint();
+        assertTrue(snapshot.exists());
+        final long emptyJournal = journal(1).length();
+        first.allocate();
+        assertTrue(journal(1).length() > emptyJournal);
+        first.close();
+
+        // the initial pool is ignored once there is a snapshot
+        final IPv6AddressPoolJournal second = IPv6AddressPoolJournal.open(snapshot, journal, null, 1);
+        assertEquals(first.getPool().getFreeRanges(), second.getPool().getFreeRanges());
+        second.close();
+    }
+
+    @Test
+    public void crashDuringCheckpoint() throws IOException
+    {
+        final IPv6AddressPoolJournal first = IPv6AddressPoolJournal.open(snapshot, journal, POOL, 1);
+        for (int i = 0; i < 10; i++)
+        {
+            first.allocate();
+        }
+        first.deAllocate(IPv6Network.fromString("2001:db8:0:3::/64"));
+        first.close();
+
+        // the snapshot of the next generation was written, but its journal was not started yet: the previous journal is superseded
+        IPv6AddressPoolSnapshot.write(first.getPool(), snapshot, 1);
+        final IPv6AddressPoolJournal second = IPv6AddressPoolJournal.open(snapshot, journal, POOL, 1);
+        assertEquals(first.getPool().getFreeRanges(), second.getPool().getFreeRanges());
+        assertFalse(journal(0).exists());
+        assertTrue(journal(1).exists());
+        second.close();
+    }
+
+    @Test
+    public void renameOfSnapshotLost() throws IOException
+    {
+        final IPv6AddressPoolJournal first = IPv6AddressPoolJournal.open(snapshot, journal, POOL, 1);
+        first.allocate();
+        first.checkpoint();
+        final byte[] previousSnapshot = read(snapshot);
+        first.allocate();
+        first.checkpoint();
+        first.allocate();
+        first.close();
+
+        // the new snapshot replaced the previous one, but after a crash the rename didn't survive (while the new journal did)
+        write(snapshot, previousSnapshot);
+        final IPv6AddressPoolJournal second = IPv6AddressPoolJournal.open(snapshot, journal, POOL, 1);
+        assertEquals(first.getPool().getFreeRanges(), second.getPool().getFreeRanges());
+        second.close();
+    }
+
+    @Test
+    public void crashWhileReplacingSnapshot() throws IOException
+    {
+        final IPv6AddressPoolJournal first = IPv6AddressPoolJournal.open(snapshot, journal, POOL, 1);
+        first.allocate();
+        first.checkpoint();
+        first.allocate();
+        first.close();
+
+        // the previous snapshot was renamed to the backup file, but the new one was not renamed into place
+        assertTrue(snapshot.renameTo(new File(snapshot.getPath() + ".bak")));
+        final IPv6AddressPoolJournal second = IPv6AddressPoolJournal.open(snapshot, journal, POOL, 1);
+        assertEquals(first.getPool().getFreeRanges(), second.getPool().getFreeRanges());
+        second.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void incompleteSnapshotWithoutPreviousSnapshot() throws IOException
+    {
+        final IPv6AddressPoolJournal first = IPv6AddressPoolJournal.open(snapshot, journal, POOL, 1);
+        first.allocate();
+        first.checkpoint();
+        first.close();
+
+        // never start from the initial pool (which would lose the allocations in the snapshot)
+        assertTrue(snapshot.renameTo(new File(snapshot.getPath() + ".tmp")));
+        IPv6AddressPoolJournal.open(snapshot, journal, POOL, 1);
+    }
+
+    @Test
+    public void supersededJournalsAreDeleted() throws IOException
+    {
+        final IPv6AddressPoolJournal first = IPv6AddressPoolJournal.open(snapshot, journal, POOL, 1);
+        first.allocate();
+        first.checkpoint();
+        assertTrue(journal(0).exists()); // the new snapshot was not read back yet
+        first.checkpoint();
+        assertFalse(journal(0).exists());
+        assertTrue(journal(1).exists());
+        assertTrue(journal(2).exists());
+        first.close();
+
+        final IPv6AddressPoolJournal second = IPv6AddressPoolJournal.open(snapshot, journal, POOL, 1);
+        assertFalse(journal(1).exists());
+        assertEquals(first.getPool().getFreeRanges(), second.getPool().getFreeRanges());
+        second.close();
+    }
+
+    @Test
+    public void tornRecordIsDiscarded() throws IOException
+    {
+        final IPv6AddressPoolJournal first = IPv6AddressPoolJournal.open(snapshot, journal, POOL, 1);
+        final IPv6Network kept = first.allocate();
+        final IPv6Network lost = first.allocate();
+        first.close();
+
+        // cut the last record in half
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(journal(0), "rw");
+        randomAccessFile.setLength(journal(0).length() - 10);
+        randomAccessFile.close();
+
+        final IPv6AddressPoolJournal second = IPv6AddressPoolJournal.open(snapshot, journal, POOL, 1);
+        assertFalse(second.getPool().isFree(kept));
+        assertTrue(second.getPool().isFree(lost));
+
+        // appending continues after the last valid record
+        assertEquals(lost, second.allocate());
+        second.close();
+        final IPv6AddressPoolJournal third = IPv6AddressPoolJournal.open(snapshot, journal, POOL, 1);
+        assertFalse(third.getPool().isFree(lost));
+        third.close();
+    }
+
+    @Test
+    public void unsyncedChangesAreBuffered() throws IOException
+    {
+        final IPv6AddressPoolJournal first = IPv6AddressPoolJournal.open(snapshot, journal, POOL, 10);
+        final long emptyJournal = journal(0).length();
+        for (int i = 0; i < 9; i++)
+        {
+            first.allocate();
+        }
+        assertEquals(emptyJournal, journal(0).length());
+
+        // the tenth change fills the batch
+        first.allocate();
+        assertTrue(journal(0).length() > emptyJournal);
+        first.close();
+    }
+
+    @Test
+    public void failedWriteRequiresReopen() throws IOException
+    {
+        final IPv6AddressPoolJournal first = IPv6AddressPoolJournal.open(snapshot, journal, POOL, 1);
+        final IPv6Network synced = first.allocate();
+
+        // an interrupt closes the channel while writing
+        Thread.currentThread().interrupt();
+        try
+        {
+            first.allocate();
+            fail("interrupted write expected to fail");
+        } catch (IOException e)
+        {
+            // expected
+        } finally
+        {
+            Thread.interrupted();
+        }
+
+        try
+        {
+            first.allocate();
+            fail("failed journal expected to fail");
+        } catch (IOException e)
+        {
+            // expected
+        }
+        first.close();
+
+        final IPv6AddressPoolJournal second = IPv6AddressPoolJournal.open(snapshot, journal, POOL, 1);
+        assertFalse(second.getPool().isFree(synced));
+        assertNotNull(second.allocate());
+        second.close();
+    }
+
+    @Test
+    public void singleAddresses() throws IOException
+    {
+        final IPv6AddressPool addresses = IPv6AddressPool.fromRangeAndSubnet(IPv6Network.fromString("2001:db8::/120"),
+                                                                             IPv6NetworkMask.fromPrefixLength(128));
+        final IPv6AddressPoolJournal first = IPv6AddressPoolJournal.open(snapshot, journal, addresses, 1);
+        final IPv6Network allocated = first.allocate();
+        first.close();
+
+        final IPv6AddressPoolJournal second = IPv6AddressPoolJournal.open(snapshot, journal, addresses, 1);
+        assertFalse(second.getPool().isFree(allocated));
+        second.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void journalOfOtherPool() throws IOException
+    {
+        IPv6AddressPoolJournal.open(snapshot, journal, POOL, 1).close();
+        IPv6AddressPoolJournal.open(snapshot, journal, IPv6AddressPool.fromRangeAndSubnet(IPv6Network.fromString("2001:db8:1::/48"),
+                                                                                          IPv6NetworkMask.fromPrefixLength(64)), 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noSnapshotAndNoInitialPool() throws IOException
+    {
+        IPv6AddressPoolJournal.open(snapshot, journal, null, 1);
+    }
+
+    private File journal(long generation)
+    {
+        return new File(journal.getPath() + "." + generation);
+    }
+
+    private static byte[] read(File file) throws IOException
+    {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try
+        {
+            final byte[] bytes = new byte[(int) randomAccessFile.length()];
+            randomAccessFile.readFully(bytes);
+            return bytes;
+        } finally
+        {
+            randomAccessFile.close();
+        }
+    }
+
+    private static void write(File file, byte[] bytes) throws IOException
+    {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try
+        {
+            randomAccessFile.setLength(0);
+            randomAccessFile.write(bytes);
+        } finally
+        {
+            randomAccessFile.close();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static com.googlecode.ipv6.IPv6Address.fromString;
+import static org.junit.Assert.*;
+
+/**
+ * @author Jan Van Besien
+ */
+public class IPv6AddressPoolRegistryTest
+{
+    private static final IPv6NetworkMask SUBNET_SIZE = IPv6NetworkMask.fromPrefixLength(64);
+
+    @Test
+    public void poolFor()
+    {
+        final IPv6AddressPoolRegistry registry = new IPv6AddressPoolRegistry();
+        final IPv6AddressPool first = pool("2001:db8:1::/48");
+        final IPv6AddressPool second = pool("2001:db8:3::/48");
+        final IPv6AddressPool third = pool("::/48");
+        registry.register(second);
+        registry.register(first);
+        registry.register(third);
+
+        assertEquals(3, registry.size());
+        assertEquals(Arrays.asList(third, first, second), registry.getPools());
+        assertSame(first, registry.poolFor(fromString("2001:db8:1::")));
+        assertSame(first, registry.poolFor(fromString("2001:db8:1:ffff:ffff:ffff:ffff:ffff")));
+        assertSame(second, registry.poolFor(fromString("2001:db8:3:1::1")));
+        assertSame(third, registry.poolFor(fromString("::")));
+        assertNull(registry.poolFor(fromString("2001:db8:2::1")));
+        assertNull(registry.poolFor(fromString("2001:db8::ffff")));
+        assertNull(registry.poolFor(IPv6Address.MAX));
+    }
+
+    @Test
+    public void poolsOverlapping()
+    {
+        final IPv6AddressPoolRegistry registry = new IPv6AddressPoolRegistry();
+        final List<IPv6AddressPool> pools = new ArrayList<IPv6AddressPool>();
+        for (int i = 0; i < 8; i += 2)
+        {
+            pools.add(pool("2001:db8:" + i + "::/48"));
+            registry.register(pools.get(pools.size() - 1));
+        }
+
+        assertEquals(pools, registry.poolsOverlapping(IPv6Network.fromString("2001:db8::/32")));
+        assertEquals(pools.subList(1, 3), registry.poolsOverlapping(
+                IPv6AddressRange.fromFirstAndLast(fromString("2001:db8:2:ffff::"), fromString("2001:db8:4::"))));
+        assertEquals(pools.subList(1, 2), registry.poolsOverlapping(IPv6Network.fromString("2001:db8:2:1::/64")));
+        assertEquals(Collections.<IPv6AddressPool>emptyList(), registry.poolsOverlapping(IPv6Network.fromString("2001:db8:3::/48")));
+        assertEquals(Collections.<IPv6AddressPool>emptyList(), registry.poolsOverlapping(IPv6Network.fromString("2001:db9::/32")));
+    }
+
+    @Test
+    public void replaceAndUnregister()
+    {
+        final IPv6AddressPoolRegistry registry = new IPv6AddressPoolRegistry();
+        final IPv6AddressPool pool = pool("2001:db8:1::/48");
+        registry.register(pool);
+        registry.register(pool("2001:db8:2::/48"));
+
+        final IPv6AddressPool allocated = pool.allocate();
+        assertSame(pool, registry.replace(allocated));
+        assertSame(allocated, registry.poolFor(fromString("2001:db8:1::1")));
+
+        assertSame(allocated, registry.unregister(IPv6Network.fromString("2001:db8:1::/48")));
+        assertNull(registry.unregister(IPv6Network.fromString("2001:db8:1::/48")));
+        assertNull(registry.poolFor(fromString("2001:db8:1::1")));
+        assertEquals(1, registry.size());
+
+        // can be registered again after unregistering
+        registry.register(pool);
+        assertSame(pool, registry.poolFor(fromString("2001:db8:1::1")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void registerOverlapping()
+    {
+        final IPv6AddressPoolRegistry registry = new IPv6AddressPoolRegistry();
+        registry.register(pool("2001:db8:1::/48"));
+        registry.register(pool("2001:db8::/32"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void replaceNotRegistered()
+    {
+        final IPv6AddressPoolRegistry registry = new IPv6AddressPoolRegistry();
+        registry.register(pool("2001:db8::/32"));
+        registry.replace(pool("2001:db8:1::/48"));
+    }
+
+    @Test
+    public void randomRegistrationsMatchLinearScan()
+    {
+        final Random random = new Random(38);
+        final IPv6AddressPoolRegistry registry = new IPv6AddressPoolRegistry();
+        final List<IPv6AddressPool> reference = new ArrayList<IPv6AddressPool>();
+
+        for (int i = 0; i < 2000; i++)
+        {
+            // pools of different sizes in a /40
+            final int prefixLength = 48 + random.nextInt(8);
+            final IPv6Network network = IPv6Network.fromAddressAndMask(
+                    IPv6Address.fromLongs(0x20010db800000000L | ((long) random.nextInt(1 << 24) << 8), 0),
+                    IPv6NetworkMask.fromPrefixLength(prefixLength));
+            final IPv6AddressPool pool = IPv6AddressPool.fromRangeAndSubnet(network, SUBNET_SIZE);
+
+            if (random.nextInt(4) == 0 && !reference.isEmpty())
+            {
+                final IPv6AddressPool toUnregister = reference.remove(random.nextInt(reference.size()));
+                assertSame(toUnregister, registry.unregister(IPv6AddressRange.fromFirstAndLast(toUnregister.getFirst(),
+                                                                                              toUnregister.getLast())));
+            }
+            else if (linearScan(reference, network).isEmpty())
+            {
+                registry.register(pool);
+                reference.add(pool);
+            }
+            else
+            {
+                try
+                {
+                    registry.register(pool);
+                    fail("overlapping registration should be rejected");
+                }
+                catch (IllegalArgumentException e)
+                {
+                    // expected
+                }
+            }
+
+            final IPv6Address probe = IPv6Address.fromLongs(0x20010db800000000L | ((long) random.nextInt(1 << 24) << 8), 0);
+            final List<IPv6AddressPool> expected = linearScan(reference, IPv6AddressRange.fromFirstAndLast(probe, probe));
+            assertEquals(expected.isEmpty() ? null : expected.get(0), registry.poolFor(probe));
+            assertEquals(linearScan(reference, network), registry.poolsOverlapping(network));
+        }
+        assertEquals(reference.size(), registry.size());
+    }
+
+    private static List<IPv6AddressPool> linearScan(List<IPv6AddressPool> pools, IPv6AddressRange range)
+    {
+        final List<IPv6AddressPool> result = new ArrayList<IPv6AddressPool>();
+        for (IPv6AddressPool pool : pools)
+        {
+            if (pool.overlaps(range))
+                result.add(pool);
+        }
+        Collections.sort(result, new Comparator<IPv6AddressPool>()
+        {
+            @Override
+            public int compare(IPv6AddressPool a, IPv6AddressPool b)
+            {
+                return a.getFirst().compareTo(b.getFirst());
+            }
+        });
+        return result;
+    }
+
+    private static IPv6AddressPool pool(String network)
+    {
+        return IPv6AddressPool.fromRangeAndSubnet(IPv6Network.fromString(network), SUBNET_SIZE);
+    }
+}
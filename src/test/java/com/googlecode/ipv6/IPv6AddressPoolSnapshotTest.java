@@ -0,0 +1,137 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static com.googlecode.ipv6.IPv6Address.fromString;
+import static org.junit.Assert.*;
+
+/**
+ * @author Jan Van Besien
+ */
+public class IPv6AddressPoolSnapshotTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writeAndRead() throws IOException
+    {
+        final File file = new File(folder.getRoot(), "pool.snapshot");
+
+        final Random random = new Random(39);
+        IPv6AddressPool pool = IPv6AddressPool.fromRangeAndSubnet(IPv6Network.fromString("2001:db8::/48"),
+                                                                  IPv6NetworkMask.fromPrefixLength(64));
+        for (int i = 0; i < 5000; i++)
+        {
+            final IPv6AddressPool allocated = pool.allocate(IPv6AddressPool.AllocationStrategy.RANDOM, random);
+            pool = allocated == null ? pool : allocated;
+        }
+
+        IPv6AddressPoolSnapshot.write(pool, file);
+        final IPv6AddressPool read = IPv6AddressPoolSnapshot.read(file);
+        read.checkInvariants();
+        assertEquals(pool, read);
+        assertEquals(pool.getLastAllocated(), read.getLastAllocated());
+
+        // a few bytes per free range, much smaller than java serialization
+        final ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(serialized);
+        out.writeObject(pool);
+        out.close();
+        assertTrue(file.length() + " bytes", file.length() < serialized.size() / 4);
+    }
+
+    @Test
+    public void writeAndReadBoundaries() throws IOException
+    {
+        final File file = new File(folder.getRoot(), "pool.snapshot");
+
+        // the whole address space, with only its first and last address allocated
+        final IPv6AddressPool everything = IPv6AddressPool.fromRangeAndSubnet(
+                IPv6AddressRange.fromFirstAndLast(fromString("::"), IPv6Address.MAX), IPv6NetworkMask.fromPrefixLength(128))
+                .allocate(IPv6Network.fromString("::/128")).allocate(IPv6Network.fromString("ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff/128"));
+        IPv6AddressPoolSnapshot.write(everything, file);
+        assertEquals(everything, IPv6AddressPoolSnapshot.read(file));
+
+        // nothing free
+        final IPv6AddressPool exhausted = IPv6AddressPool.fromRangeAndSubnet(IPv6Network.fromString("2001:db8::/64"),
+                                                                             IPv6NetworkMask.fromPrefixLength(64)).allocate();
+        IPv6AddressPoolSnapshot.write(exhausted, file);
+        assertEquals(exhausted, IPv6AddressPoolSnapshot.read(file));
+        assertTrue(IPv6AddressPoolSnapshot.read(file).isExhausted());
+
+        // everything free
+        final IPv6AddressPool free = IPv6AddressPool.fromRangeAndSubnet(IPv6Network.fromString("::/0"), IPv6NetworkMask.fromPrefixLength(0));
+        IPv6AddressPoolSnapshot.write(free, file);
+        assertEquals(free, IPv6AddressPoolSnapshot.read(file));
+    }
+
+    @Test
+    public void generation() throws IOException
+    {
+        final File file = new File(folder.getRoot(), "pool.snapshot");
+        final IPv6AddressPool pool = IPv6AddressPool.fromRangeAndSubnet(IPv6Network.fromString("2001:db8::/48"),
+                                                                        IPv6NetworkMask.fromPrefixLength(64)).allocate();
+
+        IPv6AddressPoolSnapshot.write(pool, file);
+        assertEquals(0, IPv6AddressPoolSnapshot.readGeneration(file));
+
+        IPv6AddressPoolSnapshot.write(pool, file, 7);
+        assertEquals(7, IPv6AddressPoolSnapshot.readGeneration(file));
+        assertEquals(pool, IPv6AddressPoolSnapshot.read(file));
+    }
+
+    @Test(expected = IOException.class)
+    public void readCorrupt() throws IOException
+    {
+        final File file = new File(folder.getRoot(), "pool.snapshot");
+        IPv6AddressPoolSnapshot.write(IPv6AddressPool.fromRangeAndSubnet(IPv6Network.fromString("2001:db8::/48"),
+                                                                         IPv6NetworkMask.fromPrefixLength(64)).allocate(), file);
+
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.seek(20);
+        randomAccessFile.write(0xff);
+        randomAccessFile.close();
+
+        IPv6AddressPoolSnapshot.read(file);
+    }
+
+    @Test(expected = IOException.class)
+    public void readTruncated() throws IOException
+    {
+        final File file = new File(folder.getRoot(), "pool.snapshot");
+        IPv6AddressPoolSnapshot.write(IPv6AddressPool.fromRangeAndSubnet(IPv6Network.fromString("2001:db8::/48"),
+                                                                         IPv6NetworkMask.fromPrefixLength(64)).allocate(), file);
+
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(file.length() - 6);
+        randomAccessFile.close();
+
+        IPv6AddressPoolSnapshot.read(file);
+    }
+}
@@ -18,7 +18,18 @@ package com.googlecode.ipv6;
 
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
 import java.util.Set;
 
 import static com.googlecode.ipv6.IPv6Address.fromString;
@@ -271,4 +282,462 @@ public class IPv6AddressPoolTest
         assertTrue(freeNetworks.contains(IPv6Network.fromString("::c000:0:0:0/66")));
     }
 
+    @Test
+    public void constructWithAllocations()
+    {
+        final IPv6AddressRange range = IPv6AddressRange.fromFirstAndLast(fromString("2001::"), fromString("2001::ffff"));
+        final IPv6NetworkMask subnetSize = IPv6NetworkMask.fromPrefixLength(124);
+
+        // allocate a random selection of subnets one by one
+        final Random random = new Random(42);
+        final List<IPv6Network> allocated = new ArrayList<IPv6Network>();
+        IPv6AddressPool oneByOne = IPv6AddressPool.fromRangeAndSubnet(range, subnetSize);
+        for (IPv6Network network : IPv6AddressPool.fromRangeAndSubnet(range, subnetSize).freeNetworks())
+        {
+            if (random.nextBoolean())
+            {
+                allocated.add(network);
+                oneByOne = oneByOne.allocate(network);
+            }
+        }
+
+        // and in bulk, in random order
+        Collections.shuffle(allocated, random);
+        final IPv6AddressPool bulk = IPv6AddressPool.fromRangeAndSubnetWithAllocations(range, subnetSize, allocated);
+
+        assertNull(bulk.getLastAllocated());
+        assertEquals(oneByOne.allocate(), bulk.allocate());
+        for (IPv6Network network : IPv6AddressPool.fromRangeAndSubnet(range, subnetSize).freeNetworks())
+        {
+            assertEquals(oneByOne.isFree(network), bulk.isFree(network));
+        }
+    }
+
+    @Test
+    public void constructWithAllocationsOnBoundaries()
+    {
+        final IPv6AddressRange range = IPv6AddressRange.fromFirstAndLast(fromString("::"), IPv6Address.MAX);
+        final IPv6NetworkMask subnetSize = IPv6NetworkMask.fromPrefixLength(1);
+
+        final IPv6AddressPool pool = IPv6AddressPool.fromRangeAndSubnetWithAllocations(
+                range, subnetSize, Arrays.asList(IPv6Network.fromString("8000::/1"), IPv6Network.fromString("::/1")));
+        assertTrue(pool.isExhausted());
+
+        final IPv6AddressPool empty =
+                IPv6AddressPool.fromRangeAndSubnetWithAllocations(range, subnetSize, Collections.<IPv6Network>emptyList());
+        assertEquals(IPv6AddressPool.fromRangeAndSubnet(range, subnetSize), empty);
+    }
+
+    @Test
+    public void constructWithManyAllocations()
+    {
+        final IPv6AddressRange range = IPv6AddressRange.fromFirstAndLast(fromString("2001::"), fromString("2001::ff:ffff"));
+        final IPv6NetworkMask subnetSize = IPv6NetworkMask.fromPrefixLength(128);
+
+        // enough networks to take the parallel path, every other address is allocated
+        final List<IPv6Network> allocated = new ArrayList<IPv6Network>();
+        for (int i = 0; i < IPv6AddressPoolHelpers.PARALLEL_THRESHOLD * 2; i++)
+        {
+            allocated.add(IPv6Network.fromAddressAndMask(fromString("2001::").add(2 * i), subnetSize));
+        }
+        final List<IPv6Network> shuffled = new ArrayList<IPv6Network>(allocated);
+        Collections.shuffle(shuffled, new Random(42));
+
+        final IPv6AddressPool pool = IPv6AddressPool.fromRangeAndSubnetWithAllocations(range, subnetSize, shuffled);
+
+        assertEquals(IPv6AddressPool.fromRangeAndSubnetWithAllocations(range, subnetSize, allocated), pool);
+        assertFalse(pool.isFree(IPv6Network.fromString("2001::/128")));
+        assertTrue(pool.isFree(IPv6Network.fromString("2001::1/128")));
+        assertEquals(IPv6Network.fromString("2001::1/128"), pool.allocate().getLastAllocated());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructWithDuplicateAllocations()
+    {
+        IPv6AddressPool.fromRangeAndSubnetWithAllocations(
+                IPv6AddressRange.fromFirstAndLast(fromString("2001::"), fromString("2001::ffff")), IPv6NetworkMask.fromPrefixLength(120),
+                Arrays.asList(IPv6Network.fromString("2001::100/120"), IPv6Network.fromString("2001::/120"),
+                              IPv6Network.fromString("2001::100/120")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructWithAllocationsOfWrongSize()
+    {
+        IPv6AddressPool.fromRangeAndSubnetWithAllocations(
+                IPv6AddressRange.fromFirstAndLast(fromString("2001::"), fromString("2001::ffff")), IPv6NetworkMask.fromPrefixLength(120),
+                Arrays.asList(IPv6Network.fromString("2001::/124")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructWithAllocationsOutOfRange()
+    {
+        IPv6AddressPool.fromRangeAndSubnetWithAllocations(
+                IPv6AddressRange.fromFirstAndLast(fromString("2001::"), fromString("2001::ffff")), IPv6NetworkMask.fromPrefixLength(120),
+                Arrays.asList(IPv6Network.fromString("2002::/120")));
+    }
+
+    @Test
+    public void invariantsHoldAfterChurn()
+    {
+        final IPv6AddressRange range = IPv6AddressRange.fromFirstAndLast(fromString("2001::"), fromString("2001::ffff"));
+        final IPv6NetworkMask subnetSize = IPv6NetworkMask.fromPrefixLength(124);
+
+        final Random random = new Random(42);
+        final List<IPv6Network> allocated = new ArrayList<IPv6Network>();
+        IPv6AddressPool pool = IPv6AddressPool.fromRangeAndSubnet(range, subnetSize);
+        for (int i = 0; i < 1000; i++)
+        {
+            if (allocated.isEmpty() || random.nextInt(3) > 0)
+            {
+                pool = pool.allocate();
+                allocated.add(pool.getLastAllocated());
+            }
+            else
+            {
+                pool = pool.deAllocate(allocated.remove(random.nextInt(allocated.size())));
+            }
+            pool.checkInvariants();
+        }
+    }
+
+    @Test
+    public void allocateInFragmentedPool()
+    {
+        // a /52 in which every other /64 is allocated
+        final IPv6Network site = IPv6Network.fromString("2001:db8:1::/52");
+        final IPv6NetworkMask subnetSize = IPv6NetworkMask.fromPrefixLength(64);
+        final List<IPv6Network> allocated = new ArrayList<IPv6Network>();
+        for (int i = 0; i < 4096; i += 2)
+        {
+            allocated.add(IPv6Network.fromAddressAndMask(IPv6Address.fromLongs(site.getFirst().getHighBits() + i, 0), subnetSize));
+        }
+
+        IPv6AddressPool pool = IPv6AddressPool.fromRangeAndSubnetWithAllocations(site, subnetSize, allocated);
+        assertEquals(IPv6Network.fromString("2001:db8:1:1::/64"), pool.allocate().getLastAllocated());
+        assertFalse(pool.isFree(IPv6Network.fromString("2001:db8:1:ffe::/64")));
+        assertTrue(pool.isFree(IPv6Network.fromString("2001:db8:1:fff::/64")));
+
+        // give everything back, one by one
+        for (IPv6Network network : allocated)
+        {
+            pool = pool.deAllocate(network);
+        }
+        assertEquals(IPv6AddressPool.fromRangeAndSubnet(site, subnetSize), pool);
+    }
+
+    @Test
+    public void deAllocateBiggerNetwork()
+    {
+        final IPv6AddressRange range = IPv6AddressRange.fromFirstAndLast(fromString("2001::"), fromString("2001::ffff"));
+        final IPv6NetworkMask subnetSize = IPv6NetworkMask.fromPrefixLength(120);
+
+        IPv6AddressPool pool = IPv6AddressPool.fromRangeAndSubnet(range, subnetSize);
+        for (int i = 0; i < 20; i++)
+        {
+            pool = pool.allocate();
+        }
+
+        pool = pool.deAllocate(IPv6Network.fromString("2001::/116"));
+        assertEquals(IPv6Network.fromString("2001::/120"), pool.allocate().getLastAllocated());
+        assertFalse(pool.isFree(IPv6Network.fromString("2001::1000/120")));
+        assertTrue(pool.isFree(IPv6Network.fromString("2001::f00/120")));
+    }
+
+    @Test
+    public void deAllocateBatch()
+    {
+        IPv6AddressPool pool = IPv6AddressPool.fromRangeAndSubnet(
+                IPv6AddressRange.fromFirstAndLast(fromString("2001::"), fromString("2001::ffff")), IPv6NetworkMask.fromPrefixLength(120));
+        final List<IPv6Network> allocated = new ArrayList<IPv6Network>();
+        for (int i = 0; i < 10; i++)
+        {
+            pool = pool.allocate();
+            allocated.add(pool.getLastAllocated());
+        }
+
+        IPv6AddressPool oneByOne = pool;
+        for (IPv6Network network : allocated.subList(2, 7))
+        {
+            oneByOne = oneByOne.deAllocate(network);
+        }
+        assertEquals(oneByOne, pool.deAllocate(allocated.subList(2, 7)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void deAllocateSmallerNetwork()
+    {
+        IPv6AddressPool.fromRangeAndSubnet(IPv6AddressRange.fromFirstAndLast(fromString("2001::"), fromString("2001::ffff")),
+                                           IPv6NetworkMask.fromPrefixLength(120)).allocate()
+                .deAllocate(IPv6Network.fromString("2001::/124"));
+    }
+
+    @Test
+    public void allocateTopDown()
+    {
+        final IPv6AddressPool pool = IPv6AddressPool.fromRangeAndSubnet(
+                IPv6AddressRange.fromFirstAndLast(fromString("2001::"), fromString("2001::ffff")), IPv6NetworkMask.fromPrefixLength(120));
+
+        final IPv6AddressPool allocated = pool.allocate(IPv6AddressPool.AllocationStrategy.TOP_DOWN);
+        assertEquals(IPv6Network.fromString("2001::ff00/120"), allocated.getLastAllocated());
+        assertEquals(IPv6Network.fromString("2001::fe00/120"),
+                     allocated.allocate(IPv6AddressPool.AllocationStrategy.TOP_DOWN).getLastAllocated());
+    }
+
+    @Test
+    public void allocateBestFit()
+    {
+        // free ranges of 2 subnets, 1 subnet and the rest of the pool
+        final IPv6AddressPool pool = IPv6AddressPool.fromRangeAndSubnetWithAllocations(
+                IPv6AddressRange.fromFirstAndLast(fromString("2001::"), fromString("2001::ffff")), IPv6NetworkMask.fromPrefixLength(120),
+                Arrays.asList(IPv6Network.fromString("2001::/120"), IPv6Network.fromString("2001::300/120"),
+                              IPv6Network.fromString("2001::500/120")));
+
+        final IPv6AddressPool first = pool.allocate(IPv6AddressPool.AllocationStrategy.BEST_FIT);
+        assertEquals(IPv6Network.fromString("2001::400/120"), first.getLastAllocated());
+        final IPv6AddressPool second = first.allocate(IPv6AddressPool.AllocationStrategy.BEST_FIT);
+        assertEquals(IPv6Network.fromString("2001::100/120"), second.getLastAllocated());
+        final IPv6AddressPool third = second.allocate(IPv6AddressPool.AllocationStrategy.BEST_FIT);
+        assertEquals(IPv6Network.fromString("2001::200/120"), third.getLastAllocated());
+        assertEquals(IPv6Network.fromString("2001::600/120"),
+                     third.allocate(IPv6AddressPool.AllocationStrategy.BEST_FIT).getLastAllocated());
+    }
+
+    @Test
+    public void allocateRandom()
+    {
+        IPv6AddressPool pool = IPv6AddressPool.fromRangeAndSubnet(
+                IPv6AddressRange.fromFirstAndLast(fromString("2001::"), fromString("2001::ffff")), IPv6NetworkMask.fromPrefixLength(120));
+
+        final Random random = new Random(5);
+        final List<IPv6Network> allocated = new ArrayList<IPv6Network>();
+        while (!pool.isExhausted())
+        {
+            pool = pool.allocate(IPv6AddressPool.AllocationStrategy.RANDOM, random);
+            allocated.add(pool.getLastAllocated());
+        }
+
+        assertEquals(256, allocated.size());
+        assertEquals(256, new HashSet<IPv6Network>(allocated).size());
+        final List<IPv6Network> sorted = new ArrayList<IPv6Network>(allocated);
+        Collections.sort(sorted);
+        assertFalse(sorted.equals(allocated));
+        assertNull(pool.allocate(IPv6AddressPool.AllocationStrategy.RANDOM));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void allocateRandomWithoutRandom()
+    {
+        IPv6AddressPool.fromRangeAndSubnet(IPv6AddressRange.fromFirstAndLast(fromString("2001::"), fromString("2001::ffff")),
+                                           IPv6NetworkMask.fromPrefixLength(120)).allocate(IPv6AddressPool.AllocationStrategy.RANDOM, null);
+    }
+
+    @Test
+    public void allocateNear()
+    {
+        // free: 2001::100/120 and 2001::400/120 up to the end
+        final IPv6AddressPool pool = IPv6AddressPool.fromRangeAndSubnetWithAllocations(
+                IPv6AddressRange.fromFirstAndLast(fromString("2001::"), fromString("2001::ffff")), IPv6NetworkMask.fromPrefixLength(120),
+                Arrays.asList(IPv6Network.fromString("2001::/120"), IPv6Network.fromString("2001::200/120"),
+                              IPv6Network.fromString("2001::300/120")));
+
+        assertEquals(IPv6Network.fromString("2001::400/120"), pool.allocateNear(fromString("2001::4ab")).getLastAllocated());
+        assertEquals(IPv6Network.fromString("2001::100/120"), pool.allocateNear(fromString("2001::1")).getLastAllocated());
+        assertEquals(IPv6Network.fromString("2001::100/120"), pool.allocateNear(fromString("2001::200")).getLastAllocated());
+        assertEquals(IPv6Network.fromString("2001::400/120"), pool.allocateNear(fromString("2001::300")).getLastAllocated());
+        assertEquals(IPv6Network.fromString("2001::ff00/120"), pool.allocateNear(fromString("2002::")).getLastAllocated());
+        assertEquals(IPv6Network.fromString("2001::100/120"), pool.allocateNear(fromString("::")).getLastAllocated());
+    }
+
+    @Test
+    public void allocateNearInExhaustedPool()
+    {
+        final IPv6AddressPool pool = IPv6AddressPool.fromRangeAndSubnet(
+                IPv6AddressRange.fromFirstAndLast(fromString("2001::"), fromString("2001::ff")), IPv6NetworkMask.fromPrefixLength(120));
+
+        assertNull(pool.allocate().allocateNear(fromString("2001::")));
+    }
+
+    @Test
+    public void nextFreeAfter()
+    {
+        IPv6AddressPool pool = IPv6AddressPool.fromRangeAndSubnet(
+                IPv6AddressRange.fromFirstAndLast(fromString("2001::"), fromString("2001::ffff")), IPv6NetworkMask.fromPrefixLength(120));
+        final Random random = new Random(11);
+        for (int i = 0; i < 200; i++)
+        {
+            pool = pool.allocate(IPv6AddressPool.AllocationStrategy.RANDOM, random);
+        }
+
+        final List<IPv6Network> visited = new ArrayList<IPv6Network>();
+        for (IPv6Network next = pool.nextFreeAfter(fromString("2000:ffff:ffff:ffff:ffff:ffff:ffff:ffff")); next != null;
+             next = pool.nextFreeAfter(next.getLast()))
+        {
+            visited.add(next);
+        }
+
+        final List<IPv6Network> expected = new ArrayList<IPv6Network>();
+        for (IPv6Network network : pool.freeNetworks())
+        {
+            expected.add(network);
+        }
+        assertEquals(expected, visited);
+        assertEquals(expected.get(1), pool.nextFreeAfter(expected.get(0).getFirst()));
+        assertNull(pool.nextFreeAfter(IPv6Address.MAX));
+    }
+
+    @Test
+    public void allocateSticky()
+    {
+        final IPv6AddressPool pool = IPv6AddressPool.fromRangeAndSubnet(
+                IPv6AddressRange.fromFirstAndLast(fromString("2001::"), fromString("2001::ffff")), IPv6NetworkMask.fromPrefixLength(120));
+        final byte[] key = "client-1".getBytes();
+
+        final IPv6Network sticky = pool.getStickySubnet(key);
+        assertEquals(IPv6Network.fromString("2001::7200/120"), sticky);
+        assertEquals(sticky, pool.allocateSticky(key).getLastAllocated());
+        assertEquals(sticky, pool.allocate().allocateSticky(key.clone()).getLastAllocated());
+
+        // falls back to the next free subnet
+        final IPv6AddressPool taken = pool.allocate(sticky);
+        assertEquals(taken.nextFreeAfter(sticky.getLast()), taken.allocateSticky(key).getLastAllocated());
+    }
+
+    @Test
+    public void allocateStickyWrapsAround()
+    {
+        final IPv6AddressRange range = IPv6AddressRange.fromFirstAndLast(fromString("2001::"), fromString("2001::ffff"));
+        final IPv6NetworkMask subnetSize = IPv6NetworkMask.fromPrefixLength(120);
+        final byte[] key = "client-1".getBytes();
+        final IPv6Network sticky = IPv6AddressPool.fromRangeAndSubnet(range, subnetSize).getStickySubnet(key);
+
+        // everything from the sticky subnet onwards is allocated, as is the first subnet
+        final List<IPv6Network> allocated = new ArrayList<IPv6Network>();
+        allocated.add(IPv6Network.fromString("2001::/120"));
+        for (IPv6Network next = sticky; next != null; )
+        {
+            allocated.add(next);
+            next = next.getLast().equals(range.getLast()) ? null : IPv6Network.fromAddressAndMask(next.getLast().add(1), subnetSize);
+        }
+        final IPv6AddressPool pool = IPv6AddressPool.fromRangeAndSubnetWithAllocations(range, subnetSize, allocated);
+
+        assertEquals(IPv6Network.fromString("2001::100/120"), pool.allocateSticky(key).getLastAllocated());
+    }
+
+    @Test
+    public void freeCounts()
+    {
+        // a /44 of /64s, with one /48 half full and some subnets allocated in another one
+        final IPv6AddressRange range = IPv6Network.fromString("2001:db8::/44");
+        final IPv6NetworkMask subnetSize = IPv6NetworkMask.fromPrefixLength(64);
+        final List<IPv6Network> allocated = new ArrayList<IPv6Network>();
+        for (int i = 0; i < 0x8000; i++)
+        {
+            allocated.add(IPv6Network.fromAddressAndMask(IPv6Address.fromLongs(0x20010db800010000L + i, 0), subnetSize));
+        }
+        for (int i = 0; i < 0x100; i += 3)
+        {
+            allocated.add(IPv6Network.fromAddressAndMask(IPv6Address.fromLongs(0x20010db800020000L + i, 0), subnetSize));
+        }
+        final IPv6AddressPool pool = IPv6AddressPool.fromRangeAndSubnetWithAllocations(range, subnetSize, allocated);
+
+        assertEquals(BigInteger.valueOf(16 * 0x10000 - 0x8000 - 86), pool.freeCount());
+        assertEquals(BigInteger.valueOf(0x10000), pool.freeCountWithin(IPv6Network.fromString("2001:db8::/48")));
+        assertEquals(BigInteger.valueOf(0x8000), pool.freeCountWithin(IPv6Network.fromString("2001:db8:1::/48")));
+        assertEquals(BigInteger.valueOf(0x10000 - 86), pool.freeCountWithin(IPv6Network.fromString("2001:db8:2::/48")));
+        assertEquals(BigInteger.valueOf(0x100 - 86), pool.freeCountWithin(IPv6Network.fromString("2001:db8:2::/56")));
+        assertEquals(BigInteger.ZERO, pool.freeCountWithin(IPv6Network.fromString("2001:db8:2::/64")));
+        assertEquals(BigInteger.ONE, pool.freeCountWithin(IPv6Network.fromString("2001:db8:2:1::/64")));
+        assertEquals(BigInteger.ZERO, pool.freeCountWithin(IPv6Network.fromString("2002::/16")));
+
+        assertEquals(IPv6AddressRange.fromFirstAndLast(fromString("2001:db8:2:100::"), fromString("2001:db8:f:ffff:ffff:ffff:ffff:ffff")),
+                     pool.largestFreeBlock());
+
+        final IPv6AddressPool exhausted = IPv6AddressPool.fromRangeAndSubnet(IPv6Network.fromString("2001:db8::/64"), subnetSize).allocate();
+        assertEquals(BigInteger.ZERO, exhausted.freeCount());
+        assertNull(exhausted.largestFreeBlock());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void freeCountWithinSmallerNetwork()
+    {
+        IPv6AddressPool.fromRangeAndSubnet(IPv6Network.fromString("2001:db8::/48"), IPv6NetworkMask.fromPrefixLength(64))
+                .freeCountWithin(IPv6Network.fromString("2001:db8::/96"));
+    }
+
+    @Test
+    public void checkFreeRanges()
+    {
+        final IPv6AddressRange range = IPv6AddressRange.fromFirstAndLast(fromString("2001::"), fromString("2001::ffff"));
+        final IPv6NetworkMask subnetSize = IPv6NetworkMask.fromPrefixLength(120);
+
+        IPv6AddressPoolHelpers.checkFreeRanges(range, subnetSize, Arrays.asList(
+                IPv6AddressRange.fromFirstAndLast(fromString("2001::"), fromString("2001::1ff")),
+                IPv6AddressRange.fromFirstAndLast(fromString("2001::300"), fromString("2001::3ff"))));
+
+        assertInvalidFreeRanges(range, subnetSize, IPv6AddressRange.fromFirstAndLast(fromString("2000::"), fromString("2001::ff")));
+        assertInvalidFreeRanges(range, subnetSize, IPv6AddressRange.fromFirstAndLast(fromString("2001::1"), fromString("2001::ff")));
+        assertInvalidFreeRanges(range, subnetSize, IPv6AddressRange.fromFirstAndLast(fromString("2001::"), fromString("2001::fe")));
+        assertInvalidFreeRanges(range, subnetSize,
+                                IPv6AddressRange.fromFirstAndLast(fromString("2001::"), fromString("2001::1ff")),
+                                IPv6AddressRange.fromFirstAndLast(fromString("2001::100"), fromString("2001::2ff")));
+        assertInvalidFreeRanges(range, subnetSize,
+                                IPv6AddressRange.fromFirstAndLast(fromString("2001::"), fromString("2001::ff")),
+                                IPv6AddressRange.fromFirstAndLast(fromString("2001::100"), fromString("2001::1ff")));
+        assertInvalidFreeRanges(range, subnetSize,
+                                IPv6AddressRange.fromFirstAndLast(fromString("2001::200"), fromString("2001::2ff")),
+                                IPv6AddressRange.fromFirstAndLast(fromString("2001::"), fromString("2001::ff")));
+    }
+
+    private static void assertInvalidFreeRanges(IPv6AddressRange range, IPv6NetworkMask subnetSize, IPv6AddressRange... freeRanges)
+    {
+        try
+        {
+            IPv6AddressPoolHelpers.checkFreeRanges(range, subnetSize, Arrays.asList(freeRanges));
+            fail("free ranges should be invalid " + Arrays.toString(freeRanges));
+        } catch (IllegalStateException expected)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void serializeAndDeserialize() throws IOException, ClassNotFoundException
+    {
+        final IPv6AddressPool pool = IPv6AddressPool.fromRangeAndSubnet(
+                IPv6AddressRange.fromFirstAndLast(fromString("2001::"), fromString("2001::ffff")), IPv6NetworkMask.fromPrefixLength(120))
+                .allocate().allocate(IPv6Network.fromString("2001::ff00/120"));
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(pool);
+        out.close();
+
+        final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(pool, in.readObject());
+    }
+
+    @Test
+    public void deserializeVersion017() throws IOException, ClassNotFoundException
+    {
+        // serialized by v0.17, which had the free ranges in a TreeSet
+        final ObjectInputStream in = new ObjectInputStream(getClass().getResourceAsStream("IPv6AddressPool-v0.17.ser"));
+        final IPv6AddressPool deserialized = (IPv6AddressPool) in.readObject();
+        in.close();
+
+        IPv6AddressPool expected = IPv6AddressPool.fromRangeAndSubnet(IPv6Network.fromString("2001:db8::/48"),
+                                                                      IPv6NetworkMask.fromPrefixLength(64));
+        for (int i = 0; i < 5; i++)
+        {
+            expected = expected.allocate();
+        }
+        expected = expected.allocate(IPv6Network.fromString("2001:db8:0:100::/64"))
+                .deAllocate(IPv6Network.fromString("2001:db8:0:2::/64"))
+                .allocate(IPv6Network.fromString("2001:db8:0:ffff::/64"));
+
+        deserialized.checkInvariants();
+        assertEquals(expected, deserialized);
+        assertEquals(IPv6Network.fromString("2001:db8:0:ffff::/64"), deserialized.getLastAllocated());
+        assertEquals(IPv6Network.fromString("2001:db8:0:2::/64"), deserialized.allocate().getLastAllocated());
+    }
+
 }
@@ -57,6 +57,32 @@ public class IPv6AddressRangeTest
                 .contains(fromString("9:10:11:12:13:14:15:16")));
     }
 
+    @Test
+    public void containsDoesNotAllocate()
+    {
+        AllocationMeter.assumeSupported();
+
+        final IPv6AddressRange[] ranges = {fromFirstAndLast(fromString("::1:2:3:4"), fromString("::5:6:7:8")),
+                                           IPv6Network.fromString("2001:db8::/32")};
+        final IPv6Address[] addresses = {fromString("::1:9:8:7"), fromString("::9:9:9:9"), fromString("2001:db8::1")};
+        assertEquals(0, AllocationMeter.allocatedBytesPerRun(new Runnable()
+        {
+            private int i;
+
+            @Override
+            public void run()
+            {
+                if (ranges[i % ranges.length].contains(addresses[i++ % addresses.length]))
+                    contained++;
+            }
+        }));
+    }
+
+    /**
+     * Result of code of which allocations are measured, such that it can't be optimized away.
+     */
+    private int contained;
+
     @Test
     public void doesNotContain()
     {
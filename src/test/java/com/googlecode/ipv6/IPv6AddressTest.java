@@ -140,6 +140,166 @@ public class IPv6AddressTest
         fromString("a:a:a:a:a:a:a:a:a:a:a:a");
     }
 
+    @Test(expected = IllegalArgumentException.class)
+    public void parseInvalidDoubleShortHandNotation()
+    {
+        fromString("1::2::3");
+    }
+
+    @Test
+    public void parseInvalidIPv4MappedAddresses()
+    {
+        for (String invalid : new String[]{"::ffff:256.1.1.1", "::ffff:1.2.3", "::ffff:1.2.3.4.5", "::ffff:1..3.4", "1.2.3.4",
+                                           "::ffff:1.2.3.4:1", "1:2:3:4:5:6:7:1.2.3.4"})
+        {
+            try
+            {
+                fromString(invalid);
+                fail("parsing [" + invalid + "] should fail");
+            } catch (IllegalArgumentException e)
+            {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Inputs which were accepted (and partly mis-parsed) by the parser of version 0.17, and are rejected since.
+     */
+    @Test
+    public void parseInvalidAcceptedByVersion017()
+    {
+        for (String invalid : new String[]{"+1::", "1::+2", "2001:+db8::1", "::ffff:1.+2.3.4", "::ffff:1.-0.3.4", "::1.2.3.256",
+                                           "::ffff:1.2.3.256", "::1.273.3.4", "::1.2.3.4.", "::ffff:1.2.3.4.", "1::3::5:6:7:8"})
+        {
+            try
+            {
+                fromString(invalid);
+                fail("parsing [" + invalid + "] should fail");
+            } catch (IllegalArgumentException e)
+            {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void parseWithLeadingZeroes()
+    {
+        assertEquals(fromString("1:2:3:4:5:6:7:8"), fromString("00001:2:3:4:5:6:7:0008"));
+        assertEquals(fromString("::ffff:1.2.3.4"), fromString("::ffff:001.02.3.0004"));
+    }
+
+    @Test
+    public void appendTo()
+    {
+        final StringBuilder builder = new StringBuilder("address ");
+        assertSame(builder, fromString("2001:db8::1").appendTo(builder));
+        assertEquals("address 2001:db8::1", builder.toString());
+    }
+
+    @Test
+    public void parseAllocatesNothingButTheResult()
+    {
+        AllocationMeter.assumeSupported();
+
+        final String[] strings = {"2001:db8:85a3::8a2e:370:7334", "::1", "1:2:3:4:5:6:7:8", "::ffff:192.168.139.50", "fe80::"};
+        final long result = AllocationMeter.allocatedBytesPerRun(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                sink = IPv6Address.fromLongs(sink.getLowBits(), sink.getHighBits() + 1);
+            }
+        });
+        final long parse = AllocationMeter.allocatedBytesPerRun(new Runnable()
+        {
+            private int i;
+
+            @Override
+            public void run()
+            {
+                sink = fromString(strings[i++ % strings.length]);
+            }
+        });
+        assertTrue("parsing allocates " + parse + " bytes, the result " + result, parse <= result);
+    }
+
+    @Test
+    public void appendToDoesNotAllocate()
+    {
+        AllocationMeter.assumeSupported();
+
+        final IPv6Address[] addresses = {fromString("2001:db8:85a3::8a2e:370:7334"), fromString("::1"), fromString("1:2:3:4:5:6:7:8"),
+                                         fromString("::ffff:192.168.139.50"), fromString("fe80::")};
+        final StringBuilder builder = new StringBuilder(64);
+        assertEquals(0, AllocationMeter.allocatedBytesPerRun(new Runnable()
+        {
+            private int i;
+
+            @Override
+            public void run()
+            {
+                builder.setLength(0);
+                addresses[i++ % addresses.length].appendTo(builder);
+            }
+        }));
+    }
+
+    @Test
+    public void maskAllocatesNothingButTheResult()
+    {
+        AllocationMeter.assumeSupported();
+
+        final IPv6NetworkMask[] masks = {IPv6NetworkMask.fromPrefixLength(48), IPv6NetworkMask.fromPrefixLength(64),
+                                         IPv6NetworkMask.fromPrefixLength(96)};
+        final IPv6Address address = fromString("2001:db8:85a3::8a2e:370:7334");
+        final long result = AllocationMeter.allocatedBytesPerRun(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                sink = IPv6Address.fromLongs(sink.getLowBits(), sink.getHighBits() + 1);
+            }
+        });
+        final long mask = AllocationMeter.allocatedBytesPerRun(new Runnable()
+        {
+            private int i;
+
+            @Override
+            public void run()
+            {
+                sink = address.maskWithNetworkMask(masks[i++ % masks.length]);
+            }
+        });
+        assertTrue("masking allocates " + mask + " bytes, the result " + result, mask <= result);
+    }
+
+    @Test
+    public void compareToDoesNotAllocate()
+    {
+        AllocationMeter.assumeSupported();
+
+        final IPv6Address[] addresses = {fromString("2001:db8::1"), fromString("2001:db8::2"), fromString("::1"), fromString("ffff::")};
+        assertEquals(0, AllocationMeter.allocatedBytesPerRun(new Runnable()
+        {
+            private int i;
+
+            @Override
+            public void run()
+            {
+                comparisons += addresses[i++ % addresses.length].compareTo(addresses[i % addresses.length]);
+            }
+        }));
+    }
+
+    /**
+     * Results of code of which allocations are measured, such that it can't be optimized away.
+     */
+    private IPv6Address sink = IPv6Address.fromLongs(0, 0);
+
+    private int comparisons;
+
     @Test
     public void constructFromInet6Address() throws UnknownHostException
     {
@@ -369,6 +529,10 @@ public class IPv6AddressTest
         final IPv6Address addressWithLowBitsEqualToLongMaxValue = fromString("::7fff:ffff:ffff:ffff");
         assertEquals(Long.MAX_VALUE, addressWithLowBitsEqualToLongMaxValue.getLowBits());
         assertEquals(63, addressWithLowBitsEqualToLongMaxValue.numberOfTrailingOnes());
+
+        assertEquals(64, fromString("::ffff:ffff:ffff:ffff").numberOfTrailingOnes());
+        assertEquals(68, fromString("::f:ffff:ffff:ffff:ffff").numberOfTrailingOnes());
+        assertEquals(128, fromString("ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff").numberOfTrailingOnes());
     }
 
     @Test
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static com.googlecode.ipv6.IPv6Address.fromString;
+import static org.junit.Assert.*;
+
+/**
+ * @author Jan Van Besien
+ */
+public class IPv6BuddyAddressPoolTest
+{
+    private static final IPv6Network NETWORK = IPv6Network.fromString("2001:db8::/48");
+
+    @Test
+    public void allocateMixedPrefixLengths()
+    {
+        final IPv6BuddyAddressPool pool = IPv6BuddyAddressPool.fromRangeAndPrefixLengths(NETWORK, 56, 64);
+
+        assertEquals(IPv6Network.fromString("2001:db8::/64"), pool.allocate(64));
+        assertEquals(IPv6Network.fromString("2001:db8:0:100::/56"), pool.allocate(56));
+        assertEquals(IPv6Network.fromString("2001:db8:0:1::/64"), pool.allocate(64));
+        assertEquals(IPv6Network.fromString("2001:db8:0:2::/63"), pool.allocate(63));
+
+        assertFalse(pool.isFree(IPv6Network.fromString("2001:db8::/64")));
+        assertFalse(pool.isFree(IPv6Network.fromString("2001:db8:0:100::/64")));
+        assertTrue(pool.isFree(IPv6Network.fromString("2001:db8:0:4::/62")));
+        assertTrue(pool.isFree(IPv6Network.fromString("2001:db8:0:200::/56")));
+
+        assertEquals(Arrays.asList(IPv6Network.fromString("2001:db8:0:4::/62"), IPv6Network.fromString("2001:db8:0:8::/61"),
+                                   IPv6Network.fromString("2001:db8:0:10::/60"), IPv6Network.fromString("2001:db8:0:20::/59"),
+                                   IPv6Network.fromString("2001:db8:0:40::/58"), IPv6Network.fromString("2001:db8:0:80::/57"),
+                                   IPv6Network.fromString("2001:db8:0:200::/55"), IPv6Network.fromString("2001:db8:0:400::/54"),
+                                   IPv6Network.fromString("2001:db8:0:800::/53"), IPv6Network.fromString("2001:db8:0:1000::/52"),
+                                   IPv6Network.fromString("2001:db8:0:2000::/51"), IPv6Network.fromString("2001:db8:0:4000::/50"),
+                                   IPv6Network.fromString("2001:db8:0:8000::/49")),
+                     pool.getFreeBlocks());
+    }
+
+    @Test
+    public void deAllocateCoalescesBuddies()
+    {
+        final IPv6BuddyAddressPool pool = IPv6BuddyAddressPool.fromRangeAndPrefixLengths(NETWORK, 48, 64);
+
+        final Random random = new Random(42);
+        final List<IPv6Network> allocated = new ArrayList<IPv6Network>();
+        for (int i = 0; i < 500; i++)
+        {
+            final IPv6Network network = pool.allocate(48 + 8 + random.nextInt(9));
+            assertNotNull(network);
+            allocated.add(network);
+        }
+
+        Collections.shuffle(allocated, random);
+        for (IPv6Network network : allocated)
+        {
+            pool.deAllocate(network);
+        }
+
+        assertEquals(Collections.singletonList(NETWORK), pool.getFreeBlocks());
+    }
+
+    @Test
+    public void exhaustion()
+    {
+        final IPv6BuddyAddressPool pool = IPv6BuddyAddressPool.fromRangeAndPrefixLengths(NETWORK, 48, 50);
+
+        assertEquals(NETWORK, pool.allocate(48));
+        assertTrue(pool.isExhausted(50));
+        assertNull(pool.allocate(50));
+
+        pool.deAllocate(NETWORK);
+        for (int i = 0; i < 4; i++)
+        {
+            assertNotNull(pool.allocate(50));
+        }
+        assertNull(pool.allocate(50));
+    }
+
+    @Test
+    public void allocateSpecificNetwork()
+    {
+        final IPv6BuddyAddressPool pool = IPv6BuddyAddressPool.fromRangeAndPrefixLengths(NETWORK, 56, 64);
+
+        assertTrue(pool.allocate(IPv6Network.fromString("2001:db8:0:1234::/64")));
+        assertFalse(pool.allocate(IPv6Network.fromString("2001:db8:0:1234::/64")));
+        assertFalse(pool.allocate(IPv6Network.fromString("2001:db8:0:1200::/56")));
+        assertTrue(pool.allocate(IPv6Network.fromString("2001:db8:0:1235::/64")));
+
+        // the smallest free block which is big enough is used: the buddy of one of the blocks split off by the previous allocations
+        assertEquals(IPv6Network.fromString("2001:db8:0:1300::/56"), pool.allocate(56));
+
+        pool.deAllocate(IPv6Network.fromString("2001:db8:0:1234::/64"));
+        pool.deAllocate(IPv6Network.fromString("2001:db8:0:1235::/64"));
+        pool.deAllocate(IPv6Network.fromString("2001:db8:0:1300::/56"));
+        assertEquals(Collections.singletonList(NETWORK), pool.getFreeBlocks());
+    }
+
+    @Test
+    public void unalignedRangeIsDeaggregated()
+    {
+        final IPv6BuddyAddressPool pool = IPv6BuddyAddressPool.fromRangeAndPrefixLengths(
+                IPv6AddressRange.fromFirstAndLast(fromString("2001:db8:0:100::"), fromString("2001:db8:0:3ff:ffff:ffff:ffff:ffff")), 56, 64);
+
+        assertEquals(Arrays.asList(IPv6Network.fromString("2001:db8:0:100::/56"), IPv6Network.fromString("2001:db8:0:200::/55")),
+                     pool.getFreeBlocks());
+        assertEquals(IPv6Network.fromString("2001:db8:0:100::/56"), pool.allocate(56));
+        assertEquals(IPv6Network.fromString("2001:db8:0:200::/56"), pool.allocate(56));
+    }
+
+    @Test
+    public void randomAllocationsAndDeAllocations()
+    {
+        final IPv6BuddyAddressPool pool = IPv6BuddyAddressPool.fromRangeAndPrefixLengths(NETWORK, 52, 60);
+        final List<IPv6Network> allocated = new ArrayList<IPv6Network>();
+        final Random random = new Random(30);
+        for (int i = 0; i < 2000; i++)
+        {
+            if (allocated.isEmpty() || random.nextInt(3) > 0)
+            {
+                final IPv6Network network = pool.allocate(52 + random.nextInt(9));
+                if (network != null)
+                    allocated.add(network);
+            }
+            else
+            {
+                final IPv6Network network = allocated.remove(random.nextInt(allocated.size()));
+                pool.deAllocate(network);
+                assertTrue(pool.isFree(network));
+            }
+
+            if (!allocated.isEmpty())
+                assertFalse(pool.isFree(allocated.get(random.nextInt(allocated.size()))));
+
+            final List<IPv6Network> freeBlocks = pool.getFreeBlocks();
+            if (!freeBlocks.isEmpty())
+            {
+                final IPv6Network freeBlock = freeBlocks.get(random.nextInt(freeBlocks.size()));
+                assertTrue(pool.isFree(freeBlock));
+                try
+                {
+                    // the smallest subnet at the end of the free block
+                    pool.deAllocate(IPv6Network.fromAddressAndMask(freeBlock.getLast(), IPv6NetworkMask.fromPrefixLength(60)));
+                    fail("de-allocating a free network should fail");
+                } catch (IllegalArgumentException e)
+                {
+                    // expected
+                }
+            }
+        }
+
+        for (IPv6Network network : allocated)
+        {
+            pool.deAllocate(network);
+        }
+        assertEquals(Collections.singletonList(NETWORK), pool.getFreeBlocks());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void deAllocateFreeNetwork()
+    {
+        IPv6BuddyAddressPool.fromRangeAndPrefixLengths(NETWORK, 56, 64).deAllocate(IPv6Network.fromString("2001:db8::/64"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void deAllocatePartiallyFreeNetwork()
+    {
+        final IPv6BuddyAddressPool pool = IPv6BuddyAddressPool.fromRangeAndPrefixLengths(NETWORK, 56, 64);
+        pool.allocate(64);
+        pool.deAllocate(IPv6Network.fromString("2001:db8::/56"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void allocateInvalidPrefixLength()
+    {
+        IPv6BuddyAddressPool.fromRangeAndPrefixLengths(NETWORK, 56, 64).allocate(48);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructUnaligned()
+    {
+        IPv6BuddyAddressPool.fromRangeAndPrefixLengths(
+                IPv6AddressRange.fromFirstAndLast(fromString("2001:db8::1"), fromString("2001:db8::ffff")), 120, 124);
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.googlecode.ipv6.IPv6Address.fromString;
+import static org.junit.Assert.*;
+
+/**
+ * @author Jan Van Besien
+ */
+public class IPv6CompiledNetworkTableTest
+{
+    @Test
+    public void longestMatch()
+    {
+        final IPv6CompiledNetworkTable<String> table = IPv6CompiledNetworkTable.<String>builder()
+                .put(IPv6Network.fromString("::/0"), "default")
+                .put(IPv6Network.fromString("2001:db8::/32"), "documentation")
+                .put(IPv6Network.fromString("2001:db8:1::/48"), "site")
+                .put(IPv6Network.fromString("2001:db8:1::/50"), "subnet")
+                .put(IPv6Network.fromString("2001:db8:1::1/128"), "host")
+                .put(IPv6Network.fromString("2001::/12"), "short")
+                .build();
+
+        assertEquals(6, table.size());
+        assertEquals("host", table.longestMatch(fromString("2001:db8:1::1")));
+        assertEquals("subnet", table.longestMatch(fromString("2001:db8:1::2")));
+        assertEquals("site", table.longestMatch(fromString("2001:db8:1:c000::1")));
+        assertEquals("documentation", table.longestMatch(fromString("2001:db8:2::1")));
+        assertEquals("short", table.longestMatch(fromString("200f::1")));
+        assertEquals("default", table.longestMatch(fromString("fe80::1")));
+        assertEquals("site", table.longestMatch(fromString("2001:db8:1:c000::1").getHighBits(), 1));
+
+        // one block for every prefix of 16, 24, ... 48 bits, and for every prefix of 56, 64, ... 120 bits of the host
+        assertEquals(4 * (65536 + 14 * 256), table.tableSizeInBytes());
+    }
+
+    @Test
+    public void emptyTable()
+    {
+        final IPv6CompiledNetworkTable<String> table = IPv6CompiledNetworkTable.<String>builder().build();
+        assertEquals(0, table.size());
+        assertNull(table.longestMatch(fromString("2001:db8::1")));
+        assertEquals(4 * 65536, table.tableSizeInBytes());
+    }
+
+    @Test
+    public void builderCanBeModifiedAfterBuilding()
+    {
+        final IPv6CompiledNetworkTable.Builder<String> builder = IPv6CompiledNetworkTable.<String>builder()
+                .put(IPv6Network.fromString("2001:db8::/32"), "documentation");
+        final IPv6CompiledNetworkTable<String> first = builder.build();
+
+        builder.remove(IPv6Network.fromString("2001:db8::/32")).put(IPv6Network.fromString("2001:db8:1::/48"), "site");
+        final IPv6CompiledNetworkTable<String> second = builder.build();
+
+        assertEquals("documentation", first.longestMatch(fromString("2001:db8:1::1")));
+        assertEquals("site", second.longestMatch(fromString("2001:db8:1::1")));
+        assertNull(second.longestMatch(fromString("2001:db8:2::1")));
+    }
+
+    @Test
+    public void buildInBackground() throws Exception
+    {
+        final IPv6CompiledNetworkTable.Builder<String> builder = IPv6CompiledNetworkTable.<String>builder()
+                .put(IPv6Network.fromString("2001:db8::/32"), "documentation");
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            final Future<IPv6CompiledNetworkTable<String>> table = builder.buildInBackground(executor);
+            builder.put(IPv6Network.fromString("2001:db8:1::/48"), "site"); // not in the table which is being built
+            assertEquals("documentation", table.get().longestMatch(fromString("2001:db8:1::1")));
+            assertEquals("site", builder.buildInBackground(executor).get().longestMatch(fromString("2001:db8:1::1")));
+        } finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void randomNetworksMatchTrie()
+    {
+        final Random random = new Random(49);
+        for (int run = 0; run < 10; run++)
+        {
+            final IPv6NetworkTrie<Integer> trie = new IPv6NetworkTrie<Integer>();
+            final IPv6CompiledNetworkTable.Builder<Integer> builder = IPv6CompiledNetworkTable.builder();
+            final List<IPv6Network> networks = randomNetworks(random, 500);
+            for (int i = 0; i < networks.size(); i++)
+            {
+                trie.put(networks.get(i), i);
+                builder.put(networks.get(i), i);
+            }
+            final IPv6CompiledNetworkTable<Integer> table = builder.build();
+            assertEquals(trie.size(), table.size());
+
+            for (IPv6Network network : networks)
+            {
+                for (int i = 0; i < 10; i++)
+                {
+                    final IPv6Address address = randomAddressWithin(random, network);
+                    assertEquals(trie.longestMatch(address), table.longestMatch(address));
+                }
+            }
+            for (int i = 0; i < 1000; i++)
+            {
+                final IPv6Address address = IPv6Address.fromLongs(random.nextLong(), random.nextLong());
+                assertEquals(trie.longestMatch(address), table.longestMatch(address));
+            }
+        }
+    }
+
+    @Test
+    public void longestMatchDoesNotAllocate()
+    {
+        AllocationMeter.assumeSupported();
+
+        final Random random = new Random(49);
+        final IPv6CompiledNetworkTable.Builder<Integer> builder = IPv6CompiledNetworkTable.builder();
+        final List<IPv6Network> networks = randomNetworks(random, 1000);
+        for (int i = 0; i < networks.size(); i++)
+        {
+            builder.put(networks.get(i), i);
+        }
+        final IPv6CompiledNetworkTable<Integer> table = builder.build();
+        final IPv6Address[] addresses = new IPv6Address[64];
+        for (int i = 0; i < addresses.length; i++)
+        {
+            addresses[i] = randomAddressWithin(random, networks.get(i));
+        }
+
+        assertEquals(0, AllocationMeter.allocatedBytesPerRun(new Runnable()
+        {
+            private int i;
+
+            @Override
+            public void run()
+            {
+                if (table.longestMatch(addresses[i++ & 63]) != null)
+                    matched++;
+            }
+        }));
+    }
+
+    /**
+     * Result of code of which allocations are measured, such that it can't be optimized away.
+     */
+    private int matched;
+
+    /**
+     * Random networks, nested in each other (by picking the prefixes of a few random addresses), with all kinds of prefix lengths.
+     */
+    private static List<IPv6Network> randomNetworks(Random random, int count)
+    {
+        final IPv6Address[] bases = new IPv6Address[8];
+        for (int i = 0; i < bases.length; i++)
+        {
+            bases[i] = IPv6Address.fromLongs(random.nextLong(), random.nextLong());
+        }
+
+        final List<IPv6Network> networks = new ArrayList<IPv6Network>();
+        for (int i = 0; i < count; i++)
+        {
+            IPv6Address address = bases[random.nextInt(bases.length)];
+            if (random.nextInt(4) == 0)
+                address = address.add(random.nextInt());
+            networks.add(IPv6Network.fromAddressAndMask(address, IPv6NetworkMask.fromPrefixLength(random.nextInt(129))));
+        }
+        return networks;
+    }
+
+    private static IPv6Address randomAddressWithin(Random random, IPv6Network network)
+    {
+        final IPv6Address mask = network.getNetmask().asAddress();
+        return IPv6Address.fromLongs(network.getFirst().getHighBits() | (random.nextLong() & ~mask.getHighBits()),
+                                     network.getFirst().getLowBits() | (random.nextLong() & ~mask.getLowBits()));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Jan Van Besien
+ */
+public class IPv6HistogramMetricsListenerTest
+{
+    private IPv6HistogramMetricsListener listener;
+
+    @Before
+    public void register()
+    {
+        listener = new IPv6HistogramMetricsListener();
+        IPv6Metrics.setListener(listener);
+    }
+
+    @After
+    public void unregister()
+    {
+        IPv6Metrics.setListener(null);
+    }
+
+    @Test
+    public void poolOperations()
+    {
+        IPv6AddressPool pool = IPv6AddressPool.fromRangeAndSubnet(IPv6Network.fromString("2001:db8::/62"),
+                                                                  IPv6NetworkMask.fromPrefixLength(64));
+        for (int i = 0; i < 4; i++)
+        {
+            pool = pool.allocate();
+        }
+        assertNull(pool.allocate());
+        assertNull(pool.allocate(IPv6Network.fromString("2001:db8:0:2::/64")));
+        pool = pool.deAllocate(IPv6Network.fromString("2001:db8::/64"));
+        assertNull(pool.allocate(IPv6Network.fromString("2001:db8:0:1::/64")));
+
+        assertEquals(4, listener.getAllocationLatency().getCount());
+        assertEquals(1, listener.getDeAllocationLatency().getCount());
+        assertEquals(2, listener.getExhaustedCount()); // allocating a specific subnet which is not free is only exhaustion if none is
+        assertEquals(BigInteger.ONE, listener.getLastFreeCount());
+        assertEquals(1, listener.getFreeSegments().getMax());
+    }
+
+    @Test
+    public void parseAndFormat()
+    {
+        final long parsedBefore = listener.getParsedCount();
+        IPv6Address.fromString("2001:db8::1").toString();
+        IPv6Network.fromString("2001:db8::/32");
+        try
+        {
+            IPv6Address.fromString("2001:db8::g");
+            fail("invalid address should not be parsed");
+        } catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+
+        assertEquals(parsedBefore + 2, listener.getParsedCount());
+        assertEquals(1, listener.getParseFailureCount());
+        assertTrue(listener.getFormattedCount() >= 1);
+    }
+
+    @Test
+    public void noListener()
+    {
+        IPv6Metrics.setListener(null);
+        assertSame(IPv6MetricsListener.NO_OP, IPv6Metrics.getListener());
+
+        IPv6AddressPool.fromRangeAndSubnet(IPv6Network.fromString("2001:db8::/62"), IPv6NetworkMask.fromPrefixLength(64)).allocate();
+        IPv6Address.fromString("2001:db8::1");
+        assertEquals(0, listener.getAllocationLatency().getCount());
+        assertEquals(0, listener.getParsedCount());
+    }
+}
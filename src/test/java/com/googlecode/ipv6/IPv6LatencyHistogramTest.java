@@ -0,0 +1,102 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Jan Van Besien
+ */
+public class IPv6LatencyHistogramTest
+{
+    @Test
+    public void bucketsCoverAllValues()
+    {
+        int previous = -1;
+        for (long value : new long[]{0, 1, 15, 16, 17, 31, 32, 1000, 1L << 40, Long.MAX_VALUE})
+        {
+            final int bucket = IPv6LatencyHistogram.bucket(value);
+            assertTrue(bucket > previous);
+            assertTrue(value <= IPv6LatencyHistogram.upperBound(bucket));
+            assertTrue(bucket == 0 || value > IPv6LatencyHistogram.upperBound(bucket - 1));
+            previous = bucket;
+        }
+        assertEquals(Long.MAX_VALUE, IPv6LatencyHistogram.upperBound(IPv6LatencyHistogram.bucket(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void percentilesAreAccurate()
+    {
+        final IPv6LatencyHistogram histogram = new IPv6LatencyHistogram();
+        assertEquals(0, histogram.getValueAtPercentile(99));
+
+        for (int i = 1; i <= 10000; i++)
+        {
+            histogram.record(i);
+        }
+        assertEquals(10000, histogram.getCount());
+        assertEquals(10000, histogram.getMax());
+        assertEquals(10000, histogram.getValueAtPercentile(100));
+        assertEquals(1, histogram.getValueAtPercentile(0));
+        for (double percentile : new double[]{50, 90, 99, 99.9})
+        {
+            final double expected = percentile * 100;
+            final long actual = histogram.getValueAtPercentile(percentile);
+            assertTrue(percentile + ": " + actual, actual >= expected && actual <= expected * 1.0625);
+        }
+    }
+
+    @Test
+    public void concurrentRecording() throws InterruptedException
+    {
+        final IPv6LatencyHistogram histogram = new IPv6LatencyHistogram();
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++)
+        {
+            final int seed = i;
+            threads.add(new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    final Random random = new Random(seed);
+                    for (int j = 0; j < 100000; j++)
+                    {
+                        histogram.record(random.nextInt(1000000));
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads)
+        {
+            thread.start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        assertEquals(400000, histogram.getCount());
+        assertTrue(histogram.getMax() < 1000000);
+    }
+}
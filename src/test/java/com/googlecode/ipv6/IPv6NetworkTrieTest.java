@@ -0,0 +1,211 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static com.googlecode.ipv6.IPv6Address.fromString;
+import static org.junit.Assert.*;
+
+/**
+ * @author Jan Van Besien
+ */
+public class IPv6NetworkTrieTest
+{
+    @Test
+    public void putGetAndRemove()
+    {
+        final IPv6NetworkTrie<String> trie = new IPv6NetworkTrie<String>();
+        assertTrue(trie.isEmpty());
+
+        assertNull(trie.put(IPv6Network.fromString("2001:db8::/32"), "documentation"));
+        assertNull(trie.put(IPv6Network.fromString("2001:db8:1::/48"), "site"));
+        assertEquals("documentation", trie.put(IPv6Network.fromString("2001:db8::/32"), "doc"));
+        assertEquals(2, trie.size());
+
+        assertEquals("doc", trie.get(IPv6Network.fromString("2001:db8::/32")));
+        assertEquals("site", trie.get(IPv6Network.fromString("2001:db8:1::/48")));
+        assertNull(trie.get(IPv6Network.fromString("2001:db8::/33")));
+        assertNull(trie.get(IPv6Network.fromString("2001:db8:2::/48")));
+
+        assertEquals("doc", trie.remove(IPv6Network.fromString("2001:db8::/32")));
+        assertNull(trie.remove(IPv6Network.fromString("2001:db8::/32")));
+        assertNull(trie.get(IPv6Network.fromString("2001:db8::/32")));
+        assertEquals("site", trie.get(IPv6Network.fromString("2001:db8:1::/48")));
+        assertEquals(1, trie.size());
+    }
+
+    @Test
+    public void longestMatch()
+    {
+        final IPv6NetworkTrie<String> trie = new IPv6NetworkTrie<String>();
+        trie.put(IPv6Network.fromString("::/0"), "default");
+        trie.put(IPv6Network.fromString("2001:db8::/32"), "documentation");
+        trie.put(IPv6Network.fromString("2001:db8:1::/48"), "site");
+        trie.put(IPv6Network.fromString("2001:db8:1::1/128"), "host");
+
+        assertEquals("host", trie.longestMatch(fromString("2001:db8:1::1")));
+        assertEquals("site", trie.longestMatch(fromString("2001:db8:1::2")));
+        assertEquals("documentation", trie.longestMatch(fromString("2001:db8:2::1")));
+        assertEquals("default", trie.longestMatch(fromString("fe80::1")));
+        assertEquals("site", trie.longestMatch(fromString("2001:db8:1::2").getHighBits(), fromString("2001:db8:1::2").getLowBits()));
+
+        assertEquals(Arrays.asList("default", "documentation", "site", "host"), trie.allMatches(fromString("2001:db8:1::1")));
+        assertEquals(Arrays.asList("default"), trie.allMatches(fromString("fe80::1")));
+
+        trie.remove(IPv6Network.fromString("::/0"));
+        assertNull(trie.longestMatch(fromString("fe80::1")));
+        assertEquals(Collections.<String>emptyList(), trie.allMatches(fromString("fe80::1")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void putNullValue()
+    {
+        new IPv6NetworkTrie<String>().put(IPv6Network.fromString("2001:db8::/32"), null);
+    }
+
+    @Test
+    public void randomOperationsMatchReference()
+    {
+        final Random random = new Random(48);
+        for (int run = 0; run < 20; run++)
+        {
+            final IPv6NetworkTrie<Integer> trie = new IPv6NetworkTrie<Integer>();
+            final Map<IPv6Network, Integer> reference = new HashMap<IPv6Network, Integer>();
+            final List<IPv6Network> networks = randomNetworks(random, 300);
+
+            for (int i = 0; i < 2000; i++)
+            {
+                final IPv6Network network = networks.get(random.nextInt(networks.size()));
+                if (random.nextInt(3) == 0)
+                    assertEquals(reference.remove(network), trie.remove(network));
+                else
+                    assertEquals(reference.put(network, i), trie.put(network, i));
+                assertEquals(reference.size(), trie.size());
+            }
+
+            for (IPv6Network network : networks)
+            {
+                assertEquals(reference.get(network), trie.get(network));
+
+                final IPv6Address address = randomAddressWithin(random, network);
+                assertEquals(referenceMatches(reference, address), trie.allMatches(address));
+                final List<Integer> matches = referenceMatches(reference, address);
+                assertEquals(matches.isEmpty() ? null : matches.get(matches.size() - 1), trie.longestMatch(address));
+            }
+        }
+    }
+
+    @Test
+    public void longestMatchDoesNotAllocate()
+    {
+        AllocationMeter.assumeSupported();
+
+        final Random random = new Random(48);
+        final IPv6NetworkTrie<Integer> trie = new IPv6NetworkTrie<Integer>();
+        final List<IPv6Network> networks = randomNetworks(random, 1000);
+        for (int i = 0; i < networks.size(); i++)
+        {
+            trie.put(networks.get(i), i);
+        }
+        final IPv6Address[] addresses = new IPv6Address[64];
+        for (int i = 0; i < addresses.length; i++)
+        {
+            addresses[i] = randomAddressWithin(random, networks.get(i));
+        }
+
+        assertEquals(0, AllocationMeter.allocatedBytesPerRun(new Runnable()
+        {
+            private int i;
+
+            @Override
+            public void run()
+            {
+                if (trie.longestMatch(addresses[i++ & 63]) != null)
+                    matched++;
+            }
+        }));
+    }
+
+    /**
+     * Result of code of which allocations are measured, such that it can't be optimized away.
+     */
+    private int matched;
+
+    /**
+     * Random networks, nested in each other (by picking the prefixes of a few random addresses), with all kinds of prefix lengths.
+     */
+    private static List<IPv6Network> randomNetworks(Random random, int count)
+    {
+        final IPv6Address[] bases = new IPv6Address[8];
+        for (int i = 0; i < bases.length; i++)
+        {
+            bases[i] = IPv6Address.fromLongs(random.nextLong(), random.nextLong());
+        }
+
+        final List<IPv6Network> networks = new ArrayList<IPv6Network>();
+        for (int i = 0; i < count; i++)
+        {
+            IPv6Address address = bases[random.nextInt(bases.length)];
+            if (random.nextInt(4) == 0)
+                address = address.add(random.nextInt());
+            networks.add(IPv6Network.fromAddressAndMask(address, IPv6NetworkMask.fromPrefixLength(random.nextInt(129))));
+        }
+        return networks;
+    }
+
+    private static IPv6Address randomAddressWithin(Random random, IPv6Network network)
+    {
+        final IPv6Address mask = network.getNetmask().asAddress();
+        return IPv6Address.fromLongs(network.getFirst().getHighBits() | (random.nextLong() & ~mask.getHighBits()),
+                                     network.getFirst().getLowBits() | (random.nextLong() & ~mask.getLowBits()));
+    }
+
+    private static List<Integer> referenceMatches(Map<IPv6Network, Integer> reference, IPv6Address address)
+    {
+        final List<IPv6Network> containing = new ArrayList<IPv6Network>();
+        for (IPv6Network network : reference.keySet())
+        {
+            if (network.contains(address))
+                containing.add(network);
+        }
+        Collections.sort(containing, new Comparator<IPv6Network>()
+        {
+            @Override
+            public int compare(IPv6Network a, IPv6Network b)
+            {
+                return a.getNetmask().asPrefixLength() - b.getNetmask().asPrefixLength();
+            }
+        });
+
+        final List<Integer> matches = new ArrayList<Integer>();
+        for (IPv6Network network : containing)
+        {
+            matches.add(reference.get(network));
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static com.googlecode.ipv6.IPv6Address.fromString;
+import static org.junit.Assert.*;
+
+/**
+ * @author Jan Van Besien
+ */
+public class LeasingIPv6AddressPoolTest
+{
+    private static final IPv6AddressPool POOL = IPv6AddressPool.fromRangeAndSubnet(
+            IPv6AddressRange.fromFirstAndLast(fromString("2001::"), fromString("2001::ffff")), IPv6NetworkMask.fromPrefixLength(120));
+
+    @Test
+    public void leaseExpires()
+    {
+        final LeasingIPv6AddressPool pool = new LeasingIPv6AddressPool(POOL, 1000, 5000);
+
+        final LeasingIPv6AddressPool.Lease lease = pool.allocate(10000, 5500);
+        assertEquals(IPv6Network.fromString("2001::/120"), lease.getNetwork());
+        assertEquals(16000, lease.getExpiry());
+        assertFalse(pool.getPool().isFree(lease.getNetwork()));
+        assertEquals(lease, pool.getLease(lease.getNetwork()));
+
+        assertEquals(Collections.<IPv6Network>emptyList(), pool.expire(15999));
+        assertEquals(1, pool.getNumberOfLeases());
+
+        assertEquals(Collections.singletonList(lease.getNetwork()), pool.expire(16000));
+        assertEquals(0, pool.getNumberOfLeases());
+        assertNull(pool.getLease(lease.getNetwork()));
+        assertEquals(POOL.getFreeRanges(), pool.getPool().getFreeRanges());
+    }
+
+    @Test
+    public void renewAndRelease()
+    {
+        final LeasingIPv6AddressPool pool = new LeasingIPv6AddressPool(POOL, 1, 0);
+
+        final IPv6Network first = pool.allocate(100, 0).getNetwork();
+        final IPv6Network second = pool.allocate(100, 0).getNetwork();
+
+        assertEquals(250, pool.renew(first, 200, 50).getExpiry());
+        assertEquals(Collections.singletonList(second), pool.expire(100));
+        assertTrue(pool.getPool().isFree(second));
+        assertFalse(pool.getPool().isFree(first));
+
+        assertTrue(pool.release(first));
+        assertTrue(pool.getPool().isFree(first));
+        assertFalse(pool.release(first));
+        assertNull(pool.renew(first, 100, 100));
+        assertEquals(Collections.<IPv6Network>emptyList(), pool.expire(1000));
+    }
+
+    @Test
+    public void exhausted()
+    {
+        final LeasingIPv6AddressPool pool = new LeasingIPv6AddressPool(
+                IPv6AddressPool.fromRangeAndSubnet(IPv6AddressRange.fromFirstAndLast(fromString("2001::"), fromString("2001::1ff")),
+                                                   IPv6NetworkMask.fromPrefixLength(120)), 1, 0);
+
+        assertNotNull(pool.allocate(10, 0));
+        assertNotNull(pool.allocate(20, 0));
+        assertNull(pool.allocate(10, 0));
+
+        pool.expire(10);
+        assertEquals(IPv6Network.fromString("2001::/120"), pool.allocate(10, 10).getNetwork());
+    }
+
+    @Test
+    public void randomLeasesExpireOnTime()
+    {
+        final Random random = new Random(35);
+        final LeasingIPv6AddressPool pool = new LeasingIPv6AddressPool(POOL, 1, 0);
+        final Map<IPv6Network, Long> reference = new HashMap<IPv6Network, Long>();
+
+        long now = 0;
+        for (int i = 0; i < 20000; i++)
+        {
+            final int operation = random.nextInt(10);
+            if (operation < 5)
+            {
+                // time to live on all levels of the wheel
+                final long timeToLive = random.nextInt(4) == 0 ? random.nextInt(1 << 30) : random.nextInt(1000);
+                final LeasingIPv6AddressPool.Lease lease = pool.allocate(timeToLive, now);
+                if (lease != null)
+                {
+                    // leases expire in the next tick at the earliest
+                    assertEquals(now + Math.max(timeToLive, 1), lease.getExpiry());
+                    reference.put(lease.getNetwork(), lease.getExpiry());
+                }
+            }
+            else if (operation < 7 && !reference.isEmpty())
+            {
+                final IPv6Network network = new ArrayList<IPv6Network>(reference.keySet()).get(random.nextInt(reference.size()));
+                final long timeToLive = random.nextInt(1 << 20);
+                assertEquals(now + Math.max(timeToLive, 1), pool.renew(network, timeToLive, now).getExpiry());
+                reference.put(network, now + Math.max(timeToLive, 1));
+            }
+            else if (operation < 8 && !reference.isEmpty())
+            {
+                final IPv6Network network = new ArrayList<IPv6Network>(reference.keySet()).get(random.nextInt(reference.size()));
+                assertTrue(pool.release(network));
+                reference.remove(network);
+            }
+            else
+            {
+                now += random.nextInt(20) == 0 ? random.nextInt(1 << 28) : random.nextInt(100);
+
+                final Set<IPv6Network> expected = new HashSet<IPv6Network>();
+                for (Map.Entry<IPv6Network, Long> entry : reference.entrySet())
+                {
+                    if (entry.getValue() <= now)
+                        expected.add(entry.getKey());
+                }
+                final List<IPv6Network> expired = pool.expire(now);
+                assertEquals(expected, new HashSet<IPv6Network>(expired));
+                assertEquals(expected.size(), expired.size());
+                reference.keySet().removeAll(expected);
+
+                for (IPv6Network network : expired)
+                {
+                    assertTrue(pool.getPool().isFree(network));
+                }
+            }
+
+            assertEquals(reference.size(), pool.getNumberOfLeases());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeTimeToLive()
+    {
+        new LeasingIPv6AddressPool(POOL, 1, 0).allocate(-1, 0);
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.googlecode.ipv6.IPv6Address.fromString;
+import static org.junit.Assert.*;
+
+/**
+ * @author Jan Van Besien
+ */
+public class ThreadCachingIPv6AddressPoolTest
+{
+    private static final IPv6AddressRange RANGE = IPv6AddressRange.fromFirstAndLast(fromString("2001::"), fromString("2001::ffff"));
+
+    private static final IPv6NetworkMask SUBNET_SIZE = IPv6NetworkMask.fromPrefixLength(120);
+
+    @Test
+    public void churnIsServedFromMagazine()
+    {
+        final ThreadCachingIPv6AddressPool pool =
+                new ThreadCachingIPv6AddressPool(ConcurrentIPv6AddressPool.fromRangeAndSubnet(RANGE, SUBNET_SIZE), 16);
+
+        for (int i = 0; i < 1000; i++)
+        {
+            final IPv6Network network = pool.allocate();
+            assertNotNull(network);
+            assertFalse(pool.getSharedPool().isFree(network));
+            pool.deAllocate(network);
+        }
+
+        final ThreadCachingIPv6AddressPool.Statistics statistics = pool.getStatistics();
+        assertEquals(1, statistics.getAllocationMisses());
+        assertEquals(999, statistics.getAllocationHits());
+        assertEquals(1000, statistics.getReleaseHits());
+        assertEquals(0, statistics.getReleaseOverflows());
+        assertEquals(8, statistics.getCached());
+        assertTrue(statistics.getHitRate() > 0.99);
+    }
+
+    @Test
+    public void overflowAndDrain()
+    {
+        final ThreadCachingIPv6AddressPool pool =
+                new ThreadCachingIPv6AddressPool(ConcurrentIPv6AddressPool.fromRangeAndSubnet(RANGE, SUBNET_SIZE), 4);
+
+        final List<IPv6Network> allocated = new ArrayList<IPv6Network>();
+        for (int i = 0; i < 10; i++)
+        {
+            allocated.add(pool.allocate());
+        }
+        for (IPv6Network network : allocated)
+        {
+            pool.deAllocate(network);
+        }
+
+        assertTrue(pool.getStatistics().getReleaseOverflows() > 0);
+        assertTrue(pool.getStatistics().getCached() <= 4);
+
+        pool.drain();
+
+        assertEquals(0, pool.getStatistics().getCached());
+        assertEquals(IPv6AddressPool.fromRangeAndSubnet(RANGE, SUBNET_SIZE), pool.getSharedPool().snapshot());
+    }
+
+    @Test
+    public void allocateEverythingFromManyThreads() throws Exception
+    {
+        final ThreadCachingIPv6AddressPool pool =
+                new ThreadCachingIPv6AddressPool(ConcurrentIPv6AddressPool.fromRangeAndSubnet(RANGE, SUBNET_SIZE), 8);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            final List<Future<List<IPv6Network>>> results = new ArrayList<Future<List<IPv6Network>>>();
+            for (int i = 0; i < 4; i++)
+            {
+                results.add(executor.submit(new Callable<List<IPv6Network>>()
+                {
+                    @Override
+                    public List<IPv6Network> call()
+                    {
+                        final List<IPv6Network> allocated = new ArrayList<IPv6Network>();
+                        IPv6Network network;
+                        while ((network = pool.allocate()) != null)
+                        {
+                            allocated.add(network);
+                        }
+                        return allocated;
+                    }
+                }));
+            }
+
+            final Set<IPv6Network> allAllocated = new HashSet<IPv6Network>();
+            for (Future<List<IPv6Network>> result : results)
+            {
+                for (IPv6Network network : result.get())
+                {
+                    assertTrue("allocated twice " + network, allAllocated.add(network));
+                }
+            }
+
+            // everything is allocated, also the subnets which were cached in the magazines of other threads
+            assertEquals(256, allAllocated.size());
+            assertEquals(0, pool.getStatistics().getCached());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void magazinesOfDeadThreadsAreReclaimed() throws Exception
+    {
+        final ThreadCachingIPv6AddressPool pool =
+                new ThreadCachingIPv6AddressPool(ConcurrentIPv6AddressPool.fromRangeAndSubnet(RANGE, SUBNET_SIZE), 8);
+
+        // a thread per task, each of which leaves subnets in its magazine
+        final AtomicInteger failed = new AtomicInteger();
+        for (int i = 0; i < 200; i++)
+        {
+            final Thread thread = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    final IPv6Network network = pool.allocate();
+                    if (network == null)
+                        failed.incrementAndGet();
+                    else
+                        pool.deAllocate(network);
+                }
+            };
+            thread.start();
+            thread.join();
+        }
+
+        assertEquals(0, failed.get());
+        assertEquals(200, pool.getStatistics().getAllocationMisses());
+
+        // at most 16 magazines of dead threads (of 4 subnets each) are waiting to be reclaimed
+        assertTrue(pool.getStatistics().getCached() <= 16 * 4);
+        assertTrue(pool.getSharedPool().snapshot().getFreeRanges().size() > 0);
+
+        pool.drain();
+        assertEquals(0, pool.getStatistics().getCached());
+        assertEquals(IPv6AddressPool.fromRangeAndSubnet(RANGE, SUBNET_SIZE), pool.getSharedPool().snapshot());
+    }
+
+    @Test
+    public void deAllocateTwice()
+    {
+        final ThreadCachingIPv6AddressPool pool =
+                new ThreadCachingIPv6AddressPool(ConcurrentIPv6AddressPool.fromRangeAndSubnet(RANGE, SUBNET_SIZE), 4);
+
+        final IPv6Network network = pool.allocate();
+        pool.deAllocate(network);
+        try
+        {
+            pool.deAllocate(network);
+            fail("de-allocating twice should fail");
+        } catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+
+        // the network is cached only once
+        assertEquals(network, pool.allocate());
+        assertFalse(network.equals(pool.allocate()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void deAllocateNotAllocated()
+    {
+        new ThreadCachingIPv6AddressPool(ConcurrentIPv6AddressPool.fromRangeAndSubnet(RANGE, SUBNET_SIZE), 4)
+                .deAllocate(IPv6Network.fromString("2001::/120"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void deAllocateOutOfRange()
+    {
+        new ThreadCachingIPv6AddressPool(ConcurrentIPv6AddressPool.fromRangeAndSubnet(RANGE, SUBNET_SIZE), 4)
+                .deAllocate(IPv6Network.fromString("2002::/120"));
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2013 Jan Van Besien
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.ipv6.server;
+
+import com.googlecode.ipv6.IPv6AddressPool;
+import com.googlecode.ipv6.IPv6Network;
+import com.googlecode.ipv6.IPv6NetworkMask;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Jan Van Besien
+ */
+public class IPv6AddressPoolServerTest
+{
+    private IPv6AddressPoolServer server;
+
+    private IPv6AddressPoolClient client;
+
+    @Before
+    public void start() throws IOException
+    {
+        final Map<String, IPv6AddressPool> pools = new HashMap<String, IPv6AddressPool>();
+        pools.put("customers", IPv6AddressPool.fromRangeAndSubnet(IPv6Network.fromString("2001:db8::/40"),
+                                                                  IPv6NetworkMask.fromPrefixLength(56)));
+        pools.put("tiny", IPv6AddressPool.fromRangeAndSubnet(IPv6Network.fromString("2001:db8:ff::/63"),
+                                                             IPv6NetworkMask.fromPrefixLength(64)));
+        server = IPv6AddressPoolServer.start(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), pools);
+        client = IPv6AddressPoolClient.connect(server.getAddress());
+    }
+
+    @After
+    public void stop() throws IOException
+    {
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void allocateAndDeAllocate() throws IOException
+    {
+        final IPv6Network allocated = client.allocate("customers");
+        assertEquals(IPv6Network.fromString("2001:db8::/56"), allocated);
+        assertFalse(client.isFree("customers", allocated));
+        assertFalse(server.getPool("customers").isFree(allocated));
+
+        client.deAllocate("customers", allocated);
+        assertTrue(client.isFree("customers", allocated));
+
+        final IPv6Network specific = IPv6Network.fromString("2001:db8:0:1000::/56");
+        assertEquals(specific, client.allocate("customers", specific));
+        assertNull(client.allocate("customers", specific));
+    }
+
+    @Test
+    public void exhaustedPool() throws IOException
+    {
+        assertEquals(BigInteger.valueOf(2), client.freeCount("tiny"));
+        assertEquals(2, client.allocate("tiny", 5).size());
+        assertNull(client.allocate("tiny"));
+        assertEquals(BigInteger.ZERO, client.freeCount("tiny"));
+    }
+
+    @Test
+    public void pipelinedAllocations() throws IOException
+    {
+        final List<IPv6Network> allocated = client.allocate("customers", 5000);
+        assertEquals(5000, allocated.size());
+        assertEquals(5000, new HashSet<IPv6Network>(allocated).size());
+        assertEquals(BigInteger.valueOf(65536 - 5000), client.freeCount("customers"));
+    }
+
+    @Test
+    public void invalidRequests() throws IOException
+    {
+        try
+        {
+            client.allocate("unknown");
+            fail("allocating from an unknown pool should fail");
+        } catch (IllegalArgumentException e)
+        {
+            assertTrue(e.getMessage().contains("unknown"));
+        }
+
+        try
+        {
+            client.allocate("unknown", 3);
+            fail("allocating from an unknown pool should fail");
+        } catch (IllegalArgumentException e)
+        {
+            assertTrue(e.getMessage().contains("unknown"));
+        }
+
+        try
+        {
+            client.deAllocate("customers", IPv6Network.fromString("2001:db9::/56"));
+            fail("de-allocating a network outside of the pool should fail");
+        } catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+
+        // the connection is still usable
+        assertNotNull(client.allocate("customers"));
+    }
+
+    @Test
+    public void longErrorMessageFitsInFrame() throws IOException
+    {
+        final StringBuilder message = new StringBuilder();
+        for (int i = 0; i < Protocol.MAX_FRAME_LENGTH; i++)
+        {
+            message.append('\u00e9'); // two bytes in UTF-8, such that the limit is in the middle of a character
+        }
+
+        final byte[] encoded = Protocol.encodeMessage(message.toString());
+        assertTrue(4 + 1 + 2 + encoded.length <= Protocol.MAX_FRAME_LENGTH);
+        assertEquals(Protocol.MAX_FRAME_LENGTH - 4 - 1 - 2 - 1, encoded.length);
+        assertEquals(message.substring(0, encoded.length / 2), new String(encoded, "UTF-8"));
+
+        assertEquals("short", new String(Protocol.encodeMessage("short"), "UTF-8"));
+    }
+
+    @Test
+    public void concurrentClients() throws Exception
+    {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final List<Future<List<IPv6Network>>> results = new ArrayList<Future<List<IPv6Network>>>();
+        for (int i = 0; i < 4; i++)
+        {
+            results.add(executor.submit(new Callable<List<IPv6Network>>()
+            {
+                @Override
+                public List<IPv6Network> call() throws IOException
+                {
+                    final IPv6AddressPoolClient client = IPv6AddressPoolClient.connect(server.getAddress());
+                    try
+                    {
+                        final List<IPv6Network> allocated = new ArrayList<IPv6Network>();
+                        for (int j = 0; j < 500; j++)
+                        {
+                            allocated.add(client.allocate("customers"));
+                        }
+                        return allocated;
+                    } finally
+                    {
+                        client.close();
+                    }
+                }
+            }));
+        }
+
+        final Set<IPv6Network> allocated = new HashSet<IPv6Network>();
+        for (Future<List<IPv6Network>> result : results)
+        {
+            allocated.addAll(result.get());
+        }
+        executor.shutdown();
+        assertEquals(2000, allocated.size());
+    }
+}